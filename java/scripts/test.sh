@@ -0,0 +1,24 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+# requires Java 17 or newer; set JAVA_HOME if it is not the default JDK
+if [ -n "$JAVA_HOME" ]; then
+  export PATH=$JAVA_HOME/bin:$PATH
+fi
+
+# compile the program and the tests; the tests need no database, they
+# connect through the TestDriver in test/
+OUT=$(mktemp -d)
+trap 'rm -rf "$OUT"' EXIT
+javac -d $OUT $DIR/../src/*.java $DIR/../test/*.java || exit 1
+
+# run every test, or the ones named on the command line
+TESTS="$@"
+if [ -z "$TESTS" ]; then
+  TESTS=$(cd $DIR/../test && ls *Test.java | sed 's/\.java$//')
+fi
+STATUS=0
+for TEST in $TESTS; do
+  java -ea -cp $OUT $TEST || STATUS=1
+done
+exit $STATUS
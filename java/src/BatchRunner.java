@@ -0,0 +1,517 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Runs a stream of commands without the interactive menus, one command
+ * per line:
+ *
+ *   place-order login item[,item...] [key=uuid]
+ *   add-item orderid item [quantity] [key=uuid]
+ *   set-status orderid item Hasn't Started|Started|Finished
+ *   set-paid orderid [true|false]
+ *   set-price item price
+ *   set-type login Customer|Employee|Manager
+ *
+ * An item repeated in a place-order is ordered with that quantity, and
+ * add-item raises the quantity of an item already on the order. A
+ * place-order or add-item given a request key is run at most once under
+ * that key: running it again, e.g. when the file is run again after a
+ * failure, reports the first run's order as OK with "replayed" in the
+ * detail. If the connection is lost while a group runs it is opened
+ * again and the group's commands are run again one by one, except
+ * place-order and add-item commands without a key, which fail since they
+ * may have gone through. Names containing spaces are written in double quotes; blank
+ * lines and lines starting with # are skipped. A reader thread parses
+ * ahead while the previous group of cafe.batch.size (default 100)
+ * commands runs as one transaction. If a group fails, its commands are
+ * run again one transaction each so only the bad ones fail.
+ *
+ * One result line is printed per command: line number, OK, NOTFOUND or
+ * ERROR, the command name and a detail, separated by tabs. A final line
+ * starting with # gives the counts and throughput.
+ */
+public class BatchRunner {
+
+  static final String OK = "OK";
+  static final String NOT_FOUND = "NOTFOUND";
+  static final String ERROR = "ERROR";
+
+  static class Command {
+    final int line;
+    final String name;
+    final List<String> args;
+    final UUID key;
+    String error = null;
+    int orderid = 0;
+    List<String> statements = null;
+    String status = null;
+    String detail = "";
+
+    Command(int line, String name, List<String> args) {
+      this(line, name, args, null);
+    }
+
+    Command(int line, String name, List<String> args, UUID key) {
+      this.line = line;
+      this.name = name;
+      this.args = args;
+      this.key = key;
+    }
+  }
+
+  private static final List<Command> END = Collections.emptyList();
+
+  private final Cafe esql;
+  private final PrintStream out;
+  private final int groupSize;
+  private int ok = 0;
+  private int notFound = 0;
+  private int failed = 0;
+
+  public BatchRunner(Cafe esql, PrintStream out, int groupSize) {
+    this.esql = esql;
+    this.out = out;
+    this.groupSize = Math.max(1, groupSize);
+  }
+
+  /**
+   * Runs every command read from in and prints the results.
+   *
+   * @return the number of commands that did not succeed
+   */
+  public int run(final BufferedReader in) throws InterruptedException {
+    final BlockingQueue<List<Command>> groups =
+        new ArrayBlockingQueue<List<Command>>(4);
+    Thread reader = new Thread(new Runnable() {
+      public void run() {
+        List<Command> group = new ArrayList<Command>(groupSize);
+        int lineNo = 0;
+        try {
+          String line;
+          while ((line = in.readLine()) != null) {
+            lineNo++;
+            String trimmed = line.trim();
+            if (trimmed.length() == 0 || trimmed.startsWith("#"))
+              continue;
+            group.add(parse(lineNo, trimmed));
+            if (group.size() == groupSize) {
+              groups.put(group);
+              group = new ArrayList<Command>(groupSize);
+            }
+          }
+        } catch (IOException e) {
+          Command command = new Command(lineNo + 1, "read",
+              Collections.<String>emptyList());
+          command.error = e.getMessage();
+          group.add(command);
+        } catch (InterruptedException e) {
+          return;
+        }
+        try {
+          if (group.size() > 0)
+            groups.put(group);
+          groups.put(END);
+        } catch (InterruptedException e) {
+          // runner is gone
+        }
+      }
+    }, "cafe-batch-reader");
+    reader.setDaemon(true);
+    reader.start();
+
+    long start = System.nanoTime();
+    List<Command> group;
+    while ((group = groups.take()) != END)
+      execute(group);
+    double seconds = (System.nanoTime() - start) / 1e9;
+    int total = ok + notFound + failed;
+    out.printf(Locale.ROOT,
+        "# commands=%d ok=%d notfound=%d error=%d seconds=%.3f rate=%.1f/s%n",
+        total, ok, notFound, failed, seconds,
+        seconds > 0 ? total / seconds : 0.0);
+    out.flush();
+    return notFound + failed;
+  } // end run
+
+  /**
+   * Splits a line into words; double quotes group words.
+   */
+  static List<String> split(String line) {
+    List<String> words = new ArrayList<String>();
+    StringBuilder word = new StringBuilder();
+    boolean quoted = false;
+    boolean any = false;
+    for (int i = 0; i < line.length(); i++) {
+      char c = line.charAt(i);
+      if (c == '"') {
+        quoted = !quoted;
+        any = true;
+      } else if (!quoted && Character.isWhitespace(c)) {
+        if (any)
+          words.add(word.toString());
+        word.setLength(0);
+        any = false;
+      } else {
+        word.append(c);
+        any = true;
+      }
+    }
+    if (any)
+      words.add(word.toString());
+    return words;
+  }
+
+  /**
+   * Splits a comma separated item list.
+   */
+  static List<String> items(String list) {
+    List<String> items = new ArrayList<String>();
+    StringBuilder item = new StringBuilder();
+    for (int i = 0; i < list.length(); i++) {
+      char c = list.charAt(i);
+      if (c == ',') {
+        if (item.toString().trim().length() > 0)
+          items.add(item.toString().trim());
+        item.setLength(0);
+      } else {
+        item.append(c);
+      }
+    }
+    if (item.toString().trim().length() > 0)
+      items.add(item.toString().trim());
+    return items;
+  }
+
+  /**
+   * @return the optional quantity argument of an add-item command
+   */
+  static int quantity(List<String> args) {
+    return args.size() > 2 ? Integer.parseInt(args.get(2)) : 1;
+  }
+
+  static String status(String value) {
+    for (String status : new String[] { OrderLine.NOT_STARTED,
+        OrderLine.STARTED, OrderLine.FINISHED }) {
+      if (status.equalsIgnoreCase(value))
+        return status;
+    }
+    if (value.equalsIgnoreCase("not-started"))
+      return OrderLine.NOT_STARTED;
+    return null;
+  }
+
+  static String userType(String value) {
+    return UserAccount.typeOf(value);
+  }
+
+  /**
+   * Parses and checks one line. Problems are recorded on the command.
+   */
+  static Command parse(int lineNo, String line) {
+    List<String> words = split(line);
+    String name = words.get(0);
+    List<String> args = words.subList(1, words.size());
+    String key = null;
+    if ((name.equals("place-order") || name.equals("add-item"))
+        && args.size() > 0 && args.get(args.size() - 1).startsWith("key=")) {
+      key = args.get(args.size() - 1).substring(4);
+      args = args.subList(0, args.size() - 1);
+    }
+    Command command;
+    try {
+      command = new Command(lineNo, name, args,
+          key == null ? null : UUID.fromString(key));
+    } catch (IllegalArgumentException e) {
+      command = new Command(lineNo, name, args);
+      command.error = "invalid key: " + key;
+      return command;
+    }
+    try {
+      switch (command.name) {
+        case "place-order":
+          if (args.size() != 2 || items(args.get(1)).isEmpty())
+            command.error = "usage: place-order login item[,item...] [key=uuid]";
+          break;
+        case "add-item":
+          if (args.size() < 2 || args.size() > 3)
+            command.error = "usage: add-item orderid item [quantity] [key=uuid]";
+          else {
+            Integer.parseInt(args.get(0));
+            if (quantity(args) <= 0)
+              command.error = "quantity must be positive";
+          }
+          break;
+        case "set-status":
+          if (args.size() < 3)
+            command.error = "usage: set-status orderid item status";
+          else if (status(String.join(" ", args.subList(2, args.size()))) == null)
+            command.error = "unknown status";
+          else
+            Integer.parseInt(args.get(0));
+          break;
+        case "set-paid":
+          if (args.size() < 1 || args.size() > 2
+              || (args.size() == 2 && !args.get(1).matches("(?i)true|false")))
+            command.error = "usage: set-paid orderid [true|false]";
+          else
+            Integer.parseInt(args.get(0));
+          break;
+        case "set-price":
+          if (args.size() != 2)
+            command.error = "usage: set-price item price";
+          else if (Float.parseFloat(args.get(1)) < 0)
+            command.error = "negative price";
+          break;
+        case "set-type":
+          if (args.size() != 2)
+            command.error = "usage: set-type login Customer|Employee|Manager";
+          else if (userType(args.get(1)) == null)
+            command.error = "unknown user type";
+          break;
+        default:
+          command.error = "unknown command";
+          break;
+      }
+    } catch (NumberFormatException e) {
+      command.error = "invalid number: " + e.getMessage();
+    }
+    return command;
+  }
+
+  /**
+   * Builds the statements of a checked command. place-order commands
+   * must already have their order id.
+   */
+  static List<String> statements(Command command) {
+    List<String> args = command.args;
+    List<String> statements = new ArrayList<String>();
+    switch (command.name) {
+      case "place-order": {
+        Map<String, Integer> quantities = OrderLine.quantities(items(args.get(1)));
+        if (command.key != null)
+          statements.add(JdbcStore.keyedOrder(command.key, command.orderid,
+              "(SELECT coalesce(sum(M.price * Q.quantity), 0) FROM Menu M, ("
+                  + JdbcStore.unitsOf(quantities)
+                  + ") AS Q(itemName, quantity) WHERE M.itemName=Q.itemName)",
+              " FROM Users WHERE login='" + Cafe.escape(args.get(0)) + "'",
+              args.get(0), "date_trunc('second', now())"));
+        else
+          statements.add(String.format(
+              "INSERT INTO Orders (orderid, storeId, login, paid, timeStampRecieved, total) SELECT %d, %d, login, 'false', date_trunc('second', now()), (SELECT coalesce(sum(M.price * Q.quantity), 0) FROM Menu M, (%s) AS Q(itemName, quantity) WHERE M.itemName=Q.itemName) FROM Users WHERE login='%s'",
+              command.orderid,
+              Cafe.storeId(),
+              JdbcStore.unitsOf(quantities),
+              Cafe.escape(args.get(0))));
+        for (Map.Entry<String, Integer> item : quantities.entrySet()) {
+          statements.add(String.format(
+              "INSERT INTO ItemStatus (orderid, itemName, lastUpdated, status, timeStampRecieved, quantity, unitPrice) SELECT orderid, '%1$s', timeStampRecieved, '%2$s', timeStampRecieved, %3$d, (SELECT price FROM Menu WHERE itemName='%1$s') FROM Orders WHERE orderid=%4$d",
+              Cafe.escape(item.getKey()),
+              Cafe.escape(OrderLine.NOT_STARTED),
+              item.getValue(),
+              command.orderid));
+        }
+        break;
+      }
+      case "add-item":
+        if (command.key != null) {
+          statements.add(JdbcStore.Items.addStatement(command.key,
+              Integer.parseInt(args.get(0)), args.get(1), quantity(args),
+              new Timestamp(System.currentTimeMillis()),
+              OrderLine.NOT_STARTED));
+          break;
+        }
+        statements.add(String.format(
+            "INSERT INTO ItemStatus AS I (orderid, itemName, lastUpdated, status, timeStampRecieved, quantity, unitPrice) SELECT orderid, '%1$s', now(), '%2$s', timeStampRecieved, %3$d, (SELECT price FROM Menu WHERE itemName='%1$s') FROM Orders WHERE orderid=%4$d AND paid='false'"
+                + JdbcStore.ADD_UNITS,
+            Cafe.escape(args.get(1)),
+            Cafe.escape(OrderLine.NOT_STARTED),
+            quantity(args),
+            Integer.parseInt(args.get(0))));
+        statements.add(String.format(
+            "UPDATE Orders SET total=total+(SELECT unitPrice FROM ItemStatus WHERE orderid=%3$d AND itemName='%1$s')*%2$d, version=version+1 WHERE orderid=%3$d AND paid='false'",
+            Cafe.escape(args.get(1)),
+            quantity(args),
+            Integer.parseInt(args.get(0))));
+        break;
+      case "set-status": {
+        String status = status(String.join(" ", args.subList(2, args.size())));
+        statements.add(String.format(
+            "UPDATE ItemStatus SET status='%s', %s, lastUpdated=now(), version=version+1 WHERE orderid=%d AND itemName='%s'",
+            Cafe.escape(status),
+            JdbcStore.countsFor(status),
+            Integer.parseInt(args.get(0)),
+            Cafe.escape(args.get(1))));
+        break;
+      }
+      case "set-paid":
+        statements.add(String.format(
+            "UPDATE Orders SET paid='%s', version=version+1 WHERE orderid=%d",
+            args.size() == 1 || Boolean.parseBoolean(args.get(1)),
+            Integer.parseInt(args.get(0))));
+        break;
+      case "set-price":
+        statements.add(String.format(
+            "UPDATE Menu SET price='%s' WHERE itemName='%s'",
+            Float.parseFloat(args.get(1)),
+            Cafe.escape(args.get(0))));
+        break;
+      case "set-type":
+        statements.add(String.format(
+            "UPDATE Users SET type='%s' WHERE login='%s'",
+            userType(args.get(1)),
+            Cafe.escape(args.get(0))));
+        break;
+      default:
+        break;
+    }
+    return statements;
+  }
+
+  /**
+   * Records the outcome of a command from the update counts of its
+   * statements.
+   */
+  static void applied(Command command, int[] counts, int from) {
+    if (counts[from] == 0) {
+      command.status = NOT_FOUND;
+      switch (command.name) {
+        case "place-order":
+        case "set-type":
+          command.detail = "no such user";
+          break;
+        case "add-item":
+          command.detail = "no such unpaid order";
+          break;
+        case "set-status":
+          command.detail = "no such order item";
+          break;
+        case "set-paid":
+          command.detail = "no such order";
+          break;
+        default:
+          command.detail = "no such item";
+          break;
+      }
+    } else {
+      command.status = OK;
+      if (command.name.equals("place-order"))
+        command.detail = "orderid=" + command.orderid;
+      if (command.name.equals("set-status")) {
+        List<String> args = command.args;
+        ItemStatusEvents.status(Integer.parseInt(args.get(0)), args.get(1),
+            status(String.join(" ", args.subList(2, args.size()))));
+      }
+    }
+  }
+
+  /*
+   * A keyed command that changed nothing may have been run before under
+   * its key; it then reports the order of that run.
+   */
+  private void replayed(Command command) throws SQLException {
+    if (command.key == null || !command.status.equals(NOT_FOUND))
+      return;
+    OrderReceipt receipt = JdbcStore.receipt(esql, command.key, true);
+    if (receipt == null)
+      return;
+    command.status = OK;
+    command.orderid = receipt.orderid();
+    command.detail = command.name.equals("place-order")
+        ? "orderid=" + receipt.orderid() + " replayed" : "replayed";
+  }
+
+  private void execute(List<Command> group) {
+    List<Command> runnable = new ArrayList<Command>(group.size());
+    int orders = 0;
+    for (Command command : group) {
+      if (command.error != null) {
+        command.status = ERROR;
+        command.detail = command.error;
+      } else {
+        runnable.add(command);
+        if (command.name.equals("place-order"))
+          orders++;
+      }
+    }
+    try {
+      if (orders > 0) {
+        // take the ids up front so they can be bound in the batch
+        int[] ids = esql.nextOrderIds(orders);
+        int next = 0;
+        for (Command command : runnable) {
+          if (command.name.equals("place-order"))
+            command.orderid = ids[next++];
+        }
+      }
+      List<String> statements = new ArrayList<String>();
+      for (Command command : runnable) {
+        command.statements = statements(command);
+        statements.addAll(command.statements);
+      }
+      if (statements.size() > 0) {
+        try {
+          int[] counts = esql.executeUpdateBatch(statements);
+          int from = 0;
+          for (Command command : runnable) {
+            applied(command, counts, from);
+            replayed(command);
+            from += command.statements.size();
+          }
+        } catch (SQLException e) {
+          boolean lost = e.getSQLState() != null
+              && e.getSQLState().startsWith("08");
+          if (lost)
+            esql.reconnect();
+          else if (runnable.size() == 1)
+            throw e;
+          // find the bad commands by running each on its own
+          for (Command command : runnable) {
+            if (lost && command.key == null && (command.name.equals("place-order")
+                || command.name.equals("add-item"))) {
+              // the group may have been committed before the connection
+              // was lost; only a key makes running it again safe
+              command.status = ERROR;
+              command.detail = e.getMessage();
+              continue;
+            }
+            try {
+              applied(command, esql.executeUpdateBatch(command.statements), 0);
+              replayed(command);
+            } catch (SQLException single) {
+              command.status = ERROR;
+              command.detail = single.getMessage();
+            }
+          }
+        }
+      }
+    } catch (SQLException | RuntimeException e) {
+      for (Command command : runnable) {
+        if (command.status == null) {
+          command.status = ERROR;
+          command.detail = e.getMessage();
+        }
+      }
+    }
+    for (Command command : group) {
+      if (command.status.equals(OK))
+        ok++;
+      else if (command.status.equals(NOT_FOUND))
+        notFound++;
+      else
+        failed++;
+      out.println(command.line + "\t" + command.status + "\t" + command.name
+          + "\t" + (command.detail == null ? "" : command.detail.replace('\n', ' ')));
+    }
+  }
+} // end BatchRunner
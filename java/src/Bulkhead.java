@@ -0,0 +1,197 @@
+import java.sql.SQLException;
+import java.sql.SQLTransientException;
+
+/**
+ * Admission control in front of the Cafe execution helpers. Statements are
+ * split into three lanes, each with its own limit on statements running
+ * at once, statement timeout and queue:
+ *
+ * WRITE   order placement and every update
+ * READ    interactive reads (menu, order status, current orders)
+ * REPORT  sales reports
+ *
+ * A statement that finds its lane full waits in the lane's queue for at
+ * most the lane's queue budget and is then rejected. When the queue itself
+ * is full it is rejected at once. Rejections throw SQLTransientException
+ * and are counted per lane.
+ *
+ * Order writes keep priority during a rush: while any write is queued,
+ * reads and reports are only admitted up to half of their limit (at least
+ * one), leaving the database to the writes.
+ *
+ * Updates run in the WRITE lane and queries in the READ lane unless the
+ * thread has chosen a lane with use(), so the reads done while placing an
+ * order or building a report are admitted with them.
+ *
+ * Enabled with -Dcafe.bulkhead=true. Tunables per lane, with lane one of
+ * write, read or report: cafe.bulkhead.&lt;lane&gt;.limit,
+ * cafe.bulkhead.&lt;lane&gt;.queue (waiting statements),
+ * cafe.bulkhead.&lt;lane&gt;.queueMs and cafe.bulkhead.&lt;lane&gt;.timeoutSec.
+ */
+public class Bulkhead {
+
+  public enum Lane {
+    WRITE(8, 32, 2000, 10),
+    READ(8, 16, 500, 15),
+    REPORT(2, 2, 250, 60);
+
+    final int limit;
+    final int queue;
+    final long queueMs;
+    final int timeoutSec;
+
+    Lane(int limit, int queue, long queueMs, int timeoutSec) {
+      String prefix = "cafe.bulkhead." + name().toLowerCase() + ".";
+      this.limit = Math.max(1, Integer.getInteger(prefix + "limit", limit));
+      this.queue = Math.max(0, Integer.getInteger(prefix + "queue", queue));
+      this.queueMs = Long.getLong(prefix + "queueMs", queueMs);
+      this.timeoutSec = Integer.getInteger(prefix + "timeoutSec", timeoutSec);
+    }
+  }
+
+  private static final int LANES = Lane.values().length;
+
+  private static final Bulkhead SHARED =
+      Boolean.getBoolean("cafe.bulkhead") ? new Bulkhead() : null;
+
+  // lane chosen by the current thread, null for the statement's default
+  private static final ThreadLocal<Lane> CURRENT = new ThreadLocal<Lane>();
+
+  private final int[] running = new int[LANES];
+  private final int[] waiting = new int[LANES];
+  private final long[] admitted = new long[LANES];
+  private final long[] rejected = new long[LANES];
+  private final long[] expired = new long[LANES];
+
+  /**
+   * @return the bulkhead shared by every connection of this process, or
+   *         null when disabled
+   */
+  public static Bulkhead shared() {
+    return SHARED;
+  }
+
+  /**
+   * Runs the current thread's statements in a lane until restored.
+   *
+   * <pre>
+   * Bulkhead.Lane previous = Bulkhead.use(Bulkhead.Lane.REPORT);
+   * try {
+   *   ...
+   * } finally {
+   *   Bulkhead.restore(previous);
+   * }
+   * </pre>
+   *
+   * @return the lane used before, to be passed to restore
+   */
+  public static Lane use(Lane lane) {
+    Lane previous = CURRENT.get();
+    CURRENT.set(lane);
+    return previous;
+  }
+
+  public static void restore(Lane previous) {
+    if (previous == null)
+      CURRENT.remove();
+    else
+      CURRENT.set(previous);
+  }
+
+  /**
+   * @param update true for an update, false for a query
+   * @return the lane a statement of the current thread runs in
+   */
+  public static Lane laneOf(boolean update) {
+    Lane lane = CURRENT.get();
+    if (lane != null)
+      return lane;
+    return update ? Lane.WRITE : Lane.READ;
+  }
+
+  /*
+   * Reads and reports give way to queued writes.
+   */
+  private boolean admissible(Lane lane) {
+    int limit = lane.limit;
+    if (lane != Lane.WRITE && waiting[Lane.WRITE.ordinal()] > 0)
+      limit = Math.max(1, limit / 2);
+    return running[lane.ordinal()] < limit;
+  }
+
+  /**
+   * Waits for room in a lane. Every successful call must be followed by
+   * release(lane).
+   *
+   * @throws java.sql.SQLException when the lane's queue is full, its queue
+   *         budget ran out or the thread was interrupted
+   */
+  public synchronized void acquire(Lane lane) throws SQLException {
+    int i = lane.ordinal();
+    if (!admissible(lane)) {
+      if (waiting[i] >= lane.queue) {
+        rejected[i]++;
+        throw new SQLTransientException(
+            "Too busy (" + lane.name().toLowerCase() + "), please try again");
+      }
+      long deadline = System.currentTimeMillis() + lane.queueMs;
+      waiting[i]++;
+      try {
+        while (!admissible(lane)) {
+          long left = deadline - System.currentTimeMillis();
+          if (left <= 0) {
+            expired[i]++;
+            throw new SQLTransientException("Timed out waiting ("
+                + lane.name().toLowerCase() + "), please try again");
+          }
+          wait(left);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new SQLTransientException("Interrupted waiting to run");
+      } finally {
+        waiting[i]--;
+        if (lane == Lane.WRITE)
+          notifyAll(); // reads held back by this write may go on
+      }
+    }
+    running[i]++;
+    admitted[i]++;
+  }
+
+  public synchronized void release(Lane lane) {
+    running[lane.ordinal()]--;
+    notifyAll();
+  }
+
+  /**
+   * @return the query timeout of the lane's statements, 0 for none
+   */
+  public int timeoutSeconds(Lane lane) {
+    return lane.timeoutSec;
+  }
+
+  /**
+   * @return the number of statements turned away because the lane's
+   *         queue was full or its queue budget ran out
+   */
+  public synchronized long shed(Lane lane) {
+    return rejected[lane.ordinal()] + expired[lane.ordinal()];
+  }
+
+  /**
+   * @return one line per lane with its limit, running and waiting
+   *         statements, and admitted, rejected and expired counts
+   */
+  public synchronized String toString() {
+    StringBuilder out = new StringBuilder();
+    for (Lane lane : Lane.values()) {
+      int i = lane.ordinal();
+      out.append(String.format(
+          "%-7s limit %d running %d waiting %d admitted %d rejected %d expired %d%n",
+          lane.name().toLowerCase(), lane.limit, running[i], waiting[i],
+          admitted[i], rejected[i], expired[i]));
+    }
+    return out.toString();
+  }
+} // end Bulkhead
@@ -0,0 +1,465 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Local file holding the menu, user type and open order caches between
+ * runs, so a restarted client serves them without querying the database.
+ * The file is written on shutdown and memory-mapped on startup. The menu
+ * and user type sections record the ChangeMarker versions (see
+ * change_markers.sql) of the tables they were built from, and are only
+ * used when those versions are still current. Orders and ItemStatus have
+ * no markers, so the open order section starts with a fingerprint of the
+ * open orders it holds, and is only used when the database still gives
+ * the same one. Passwords and other user fields are never written.
+ *
+ * Layout: magic, format, saved-at millis, section count, then per section
+ * its id, marker count, (table, version) pairs, body length and body,
+ * followed by a CRC32 of everything before it. Strings are an int length
+ * and UTF-8 bytes. The open order body starts with the time the orders
+ * were received from, their count and the hash of their versions.
+ *
+ * Enabled with -Dcafe.snapshot=file. While running, the markers are
+ * checked every cafe.snapshot.checkMs (default 5000) milliseconds and the
+ * menu or user types are dropped when another client has changed them;
+ * the open orders are kept current by HotOrderStore.refresh.
+ */
+public class CacheSnapshot implements Runnable {
+
+  private static final int MAGIC = 0x43414653; // "CAFS"
+  private static final int FORMAT = 3;
+
+  private static final int MENU = 1;
+  private static final int USER_TYPES = 2;
+  private static final int OPEN_ORDERS = 3;
+
+  private static final String MARKERS =
+      "SELECT tableName, version FROM ChangeMarker";
+
+  // the unpaid orders received since a time: how many, and a hash of
+  // their ids and versions and of the versions of their lines, which
+  // every write to an order or line raises
+  private static final String FINGERPRINT =
+      "SELECT count(*), coalesce(sum(hashtext(O.orderid || ':' || O.version || ':' || coalesce(L.versions, ''))), 0)"
+          + " FROM Orders O LEFT JOIN LATERAL (SELECT string_agg(I.itemName || ':' || I.version, ',' ORDER BY I.itemName) AS versions FROM ItemStatus I WHERE I.orderid = O.orderid AND I.timeStampRecieved = O.timeStampRecieved) L ON true"
+          + " WHERE O.paid = false AND O.timeStampRecieved >= '%s'";
+
+  private final File file;
+  private final Cafe esql;
+  private CachingStore store = null;
+  private HotOrderStore hot = null;
+
+  // marker versions the cached data matches, minus our own writes since
+  private final Map<String, Long> baseline = new HashMap<String, Long>();
+  private final Map<String, Long> baseWrites = new HashMap<String, Long>();
+
+  // sections restored from the file, null when missing or stale
+  private List<MenuItem> menu = null;
+  private Map<String, String> userTypes = null;
+  private OpenOrders openOrders = null;
+
+  private ScheduledExecutorService scheduler = null;
+  private Cafe watcher = null;
+
+  private CacheSnapshot(File file, Cafe esql) {
+    this.file = file;
+    this.esql = esql;
+  }
+
+  /**
+   * Reads the current markers and restores every section of the file
+   * that is still valid. A missing, damaged or stale file just means
+   * starting cold.
+   *
+   * @param file the snapshot file
+   * @param esql the connection used to read the markers
+   * @return the snapshot, possibly with no restored sections
+   * @throws java.sql.SQLException when failed to read the markers
+   */
+  public static CacheSnapshot open(File file, Cafe esql) throws SQLException {
+    CacheSnapshot snapshot = new CacheSnapshot(file, esql);
+    snapshot.baseline.putAll(markers(esql));
+    if (file.exists()) {
+      try {
+        snapshot.restore();
+      } catch (IOException | SQLException | RuntimeException e) {
+        System.err.println("Ignoring cache snapshot " + file + ": " + e.getMessage());
+        snapshot.menu = null;
+        snapshot.userTypes = null;
+        snapshot.openOrders = null;
+      }
+    }
+    return snapshot;
+  } // end open
+
+  static Map<String, Long> markers(Cafe esql) throws SQLException {
+    Map<String, Long> markers = new HashMap<String, Long>();
+    for (Map.Entry<String, Long> marker : esql.executeQueryAndMap(MARKERS,
+        rs -> Map.entry(RowMapper.text(rs.getString(1)), rs.getLong(2))))
+      markers.put(marker.getKey(), marker.getValue());
+    return markers;
+  }
+
+  /**
+   * @return the count and hash of the unpaid orders received at or after
+   *         since, see FINGERPRINT
+   */
+  static long[] fingerprint(Cafe esql, long since) throws SQLException {
+    List<long[]> rows = esql.executeQueryAndMap(
+        String.format(FINGERPRINT, new Timestamp(since)),
+        rs -> new long[] { rs.getLong(1), rs.getLong(2) });
+    return rows.isEmpty() ? new long[2] : rows.get(0);
+  }
+
+  /**
+   * Builds the caching stores over the given store, seeded with the
+   * restored sections.
+   *
+   * @param delegate the store holding the data, normally a JdbcStore
+   * @return the store the operations should use
+   * @throws java.sql.SQLException when the open orders have to be read
+   */
+  public CafeStore wrap(CafeStore delegate) throws SQLException {
+    if (openOrders != null)
+      hot = new HotOrderStore(delegate, openOrders);
+    else
+      hot = new HotOrderStore(delegate);
+    store = new CachingStore(hot);
+    if (menu != null)
+      store.seedMenu(menu);
+    if (userTypes != null)
+      store.seedUserTypes(userTypes);
+    for (String table : baseline.keySet())
+      baseWrites.put(table, 0L);
+    return store;
+  } // end wrap
+
+  /**
+   * @return true when the tables have not been changed since the caches
+   *         were filled, other than by writes made through our store
+   */
+  private boolean current(Map<String, Long> now, String... tables) {
+    for (String table : tables) {
+      Long base = baseline.get(table);
+      Long version = now.get(table);
+      if (base == null || version == null)
+        return false;
+      long ours = store.writes(table) - baseWrites.get(table);
+      if (version != base + ours)
+        return false;
+    }
+    return true;
+  }
+
+  private void rebase(Map<String, Long> now, String... tables) {
+    for (String table : tables) {
+      baseline.put(table, now.get(table));
+      baseWrites.put(table, store.writes(table));
+    }
+  }
+
+  /**
+   * Starts checking the markers in the background on a connection of its
+   * own.
+   *
+   * @throws java.sql.SQLException when failed to open the connection
+   */
+  public void watch() throws SQLException {
+    watcher = esql.openSibling();
+    long interval = Long.getLong("cafe.snapshot.checkMs", 5000);
+    scheduler = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "cafe-snapshot-watch");
+            t.setDaemon(true);
+            return t;
+          }
+        });
+    scheduler.scheduleWithFixedDelay(this, interval, interval,
+        TimeUnit.MILLISECONDS);
+  } // end watch
+
+  public void run() {
+    try {
+      Map<String, Long> now = markers(watcher);
+      synchronized (this) {
+        if (!current(now, CachingStore.MENU)) {
+          store.invalidateMenu();
+          rebase(now, CachingStore.MENU);
+        }
+        if (!current(now, CachingStore.USERS)) {
+          store.invalidateUserTypes();
+          rebase(now, CachingStore.USERS);
+        }
+      }
+    } catch (SQLException e) {
+      System.err.println("Cache check failed: " + e.getMessage());
+    }
+  } // end run
+
+  /**
+   * Writes the sections that still match the database to the file and
+   * stops the background check. Sections changed by other clients are
+   * left out, so the next start reads them from the database.
+   */
+  public synchronized void save() {
+    if (scheduler != null)
+      scheduler.shutdownNow();
+    if (watcher != null)
+      watcher.cleanup();
+    if (store == null)
+      return;
+    try {
+      Map<String, Long> now = markers(esql);
+      ByteArrayOutputStream sections = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(sections);
+      int count = 0;
+
+      List<MenuItem> items = store.cachedMenu();
+      if (items != null && current(now, CachingStore.MENU)) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream b = new DataOutputStream(body);
+        b.writeInt(items.size());
+        for (MenuItem item : items) {
+          writeString(b, item.itemName());
+          writeString(b, item.type());
+          b.writeFloat(item.price());
+          writeString(b, item.description());
+          writeString(b, item.imageURL());
+        }
+        writeSection(out, MENU, now, body, CachingStore.MENU);
+        count++;
+      }
+
+      Map<String, String> types = store.cachedUserTypes();
+      if (!types.isEmpty() && current(now, CachingStore.USERS)) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream b = new DataOutputStream(body);
+        b.writeInt(types.size());
+        for (Map.Entry<String, String> e : types.entrySet()) {
+          writeString(b, e.getKey());
+          writeString(b, e.getValue());
+        }
+        writeSection(out, USER_TYPES, now, body, CachingStore.USERS);
+        count++;
+      }
+
+      if (hot != null) {
+        // the table is read after the fingerprint, so a change in between
+        // makes the section look stale rather than current
+        long since = System.currentTimeMillis() - HotOrderStore.DAY_MILLIS;
+        long[] fingerprint = fingerprint(esql, since);
+        hot.reload();
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        final DataOutputStream b = new DataOutputStream(body);
+        final OpenOrders open = hot.open();
+        b.writeLong(since);
+        b.writeLong(fingerprint[0]);
+        b.writeLong(fingerprint[1]);
+        b.writeInt(open.countCurrent(since));
+        open.forEachCurrent(since, (orderid, login, paid, received, cents) -> {
+          try {
+            b.writeInt(orderid);
+            writeString(b, login);
+            b.writeBoolean(paid);
+            b.writeLong(received);
+            b.writeLong(cents);
+            ByteArrayOutputStream lines = new ByteArrayOutputStream();
+            DataOutputStream l = new DataOutputStream(lines);
+            int lineCount = open.forEachLine(orderid,
+                (o, itemName, status, quantity, started, finished, updated) -> {
+                  try {
+                    writeString(l, itemName);
+                    writeString(l, status);
+                    l.writeInt(quantity);
+                    l.writeInt(started);
+                    l.writeInt(finished);
+                    l.writeLong(updated);
+                  } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                  }
+                });
+            b.writeInt(lineCount);
+            lines.writeTo(b);
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        });
+        writeSection(out, OPEN_ORDERS, now, body);
+        count++;
+      }
+
+      out.flush();
+      ByteArrayOutputStream whole = new ByteArrayOutputStream();
+      DataOutputStream w = new DataOutputStream(whole);
+      w.writeInt(MAGIC);
+      w.writeInt(FORMAT);
+      w.writeLong(System.currentTimeMillis());
+      w.writeInt(count);
+      sections.writeTo(w);
+      w.flush();
+      CRC32 crc = new CRC32();
+      crc.update(whole.toByteArray());
+      w.writeLong(crc.getValue());
+      w.flush();
+
+      File tmp = new File(file.getPath() + ".tmp");
+      DataOutputStream f = new DataOutputStream(
+          new BufferedOutputStream(new FileOutputStream(tmp)));
+      try {
+        whole.writeTo(f);
+      } finally {
+        f.close();
+      }
+      Files.move(tmp.toPath(), file.toPath(),
+          StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (Exception e) {
+      System.err.println("Could not save cache snapshot: " + e.getMessage());
+    }
+  } // end save
+
+  private static void writeSection(DataOutputStream out, int id,
+      Map<String, Long> now, ByteArrayOutputStream body, String... tables)
+      throws IOException {
+    out.writeInt(id);
+    out.writeInt(tables.length);
+    for (String table : tables) {
+      writeString(out, table);
+      out.writeLong(now.get(table));
+    }
+    out.writeInt(body.size());
+    body.writeTo(out);
+  }
+
+  private static void writeString(DataOutputStream out, String value)
+      throws IOException {
+    byte[] bytes = (value == null ? "" : value).getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(ByteBuffer in) {
+    byte[] bytes = new byte[in.getInt()];
+    in.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private void restore() throws IOException, SQLException {
+    MappedByteBuffer in;
+    try (FileChannel channel = FileChannel.open(file.toPath(),
+        StandardOpenOption.READ)) {
+      in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    if (in.limit() < 28 || in.getInt(0) != MAGIC || in.getInt(4) != FORMAT)
+      throw new IOException("not a cache snapshot");
+    CRC32 crc = new CRC32();
+    ByteBuffer content = in.duplicate();
+    content.limit(in.limit() - 8);
+    crc.update(content);
+    if (crc.getValue() != in.getLong(in.limit() - 8))
+      throw new IOException("checksum mismatch");
+
+    in.position(16);
+    int sections = in.getInt();
+    for (int s = 0; s < sections; s++) {
+      int id = in.getInt();
+      boolean valid = true;
+      int markerCount = in.getInt();
+      for (int m = 0; m < markerCount; m++) {
+        Long version = baseline.get(readString(in));
+        if (version == null || version != in.getLong())
+          valid = false;
+      }
+      int length = in.getInt();
+      int end = in.position() + length;
+      if (valid) {
+        switch (id) {
+          case MENU:
+            menu = readMenu(in);
+            break;
+          case USER_TYPES:
+            userTypes = readUserTypes(in);
+            break;
+          case OPEN_ORDERS:
+            openOrders = readOpenOrders(in);
+            break;
+          default:
+            break;
+        }
+      }
+      in.position(end);
+    }
+  }
+
+  private static List<MenuItem> readMenu(ByteBuffer in) {
+    int count = in.getInt();
+    List<MenuItem> items = new ArrayList<MenuItem>(count);
+    for (int i = 0; i < count; i++) {
+      String itemName = readString(in);
+      String type = readString(in);
+      float price = in.getFloat();
+      items.add(new MenuItem(itemName, type, price, readString(in),
+          readString(in)));
+    }
+    return items;
+  }
+
+  private static Map<String, String> readUserTypes(ByteBuffer in) {
+    int count = in.getInt();
+    Map<String, String> types = new LinkedHashMap<String, String>();
+    for (int i = 0; i < count; i++)
+      types.put(readString(in), readString(in));
+    return types;
+  }
+
+  /**
+   * @return the open orders, or null when the database no longer has the
+   *         same ones
+   */
+  private OpenOrders readOpenOrders(ByteBuffer in) throws SQLException {
+    long since = in.getLong();
+    long[] saved = { in.getLong(), in.getLong() };
+    if (!Arrays.equals(saved, fingerprint(esql, since)))
+      return null;
+    int count = in.getInt();
+    OpenOrders open = new OpenOrders(count);
+    for (int i = 0; i < count; i++) {
+      int orderid = in.getInt();
+      String login = readString(in);
+      boolean paid = in.get() != 0;
+      long received = in.getLong();
+      long cents = in.getLong();
+      open.put(orderid, login, paid, received, cents);
+      int lines = in.getInt();
+      for (int j = 0; j < lines; j++)
+        open.putLine(orderid, readString(in), readString(in), in.getInt(),
+            in.getInt(), in.getInt(), in.getLong());
+    }
+    open.evictBefore(System.currentTimeMillis() - HotOrderStore.DAY_MILLIS);
+    return open;
+  }
+} // end CacheSnapshot
@@ -0,0 +1,292 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.UnaryOperator;
+
+/**
+ * CafeStore decorator that keeps the menu and each user's type in memory,
+ * updating them on writes made through it. It also counts its successful
+ * writes to Menu and Users, in the same units as the ChangeMarker versions
+ * (one per statement), so CacheSnapshot can tell whether anybody else
+ * wrote since the caches were filled. Orders and items pass straight
+ * through.
+ */
+public class CachingStore implements CafeStore {
+
+  public static final String MENU = "menu";
+  public static final String USERS = "users";
+
+  private final CafeStore delegate;
+  private final UserRepository users = new Users();
+  private final MenuRepository menu = new Menu();
+
+  // itemName -> item in menu order, replaced as a whole on every change
+  private volatile Map<String, MenuItem> menuItems = null;
+  private final Map<String, String> userTypes =
+      new ConcurrentHashMap<String, String>();
+  private final Map<String, AtomicLong> writes =
+      new ConcurrentHashMap<String, AtomicLong>();
+
+  public CachingStore(CafeStore delegate) {
+    this.delegate = delegate;
+    for (String table : new String[] { MENU, USERS })
+      writes.put(table, new AtomicLong());
+  }
+
+  /**
+   * @return the underlying store
+   */
+  public CafeStore delegate() {
+    return delegate;
+  }
+
+  /**
+   * @return the number of writing statements made through this store
+   */
+  public long writes(String table) {
+    return writes.get(table).get();
+  }
+
+  private <T> T wrote(String table, T result) {
+    writes.get(table).incrementAndGet();
+    return result;
+  }
+
+  /**
+   * @return the cached menu, or null when it has not been loaded
+   */
+  public List<MenuItem> cachedMenu() {
+    Map<String, MenuItem> current = menuItems;
+    return current == null ? null
+        : Collections.unmodifiableList(new ArrayList<MenuItem>(current.values()));
+  }
+
+  public void seedMenu(List<MenuItem> items) {
+    Map<String, MenuItem> map = new LinkedHashMap<String, MenuItem>();
+    for (MenuItem item : items)
+      map.put(item.itemName(), item);
+    menuItems = Collections.unmodifiableMap(map);
+  }
+
+  /**
+   * @return a copy of the cached login to type entries
+   */
+  public Map<String, String> cachedUserTypes() {
+    return new LinkedHashMap<String, String>(userTypes);
+  }
+
+  public void seedUserTypes(Map<String, String> types) {
+    userTypes.putAll(types);
+  }
+
+  /**
+   * Drops the cached menu; it is read again on next use.
+   */
+  public void invalidateMenu() {
+    menuItems = null;
+  }
+
+  /**
+   * Drops the cached user types; they are read again on next use.
+   */
+  public void invalidateUserTypes() {
+    userTypes.clear();
+  }
+
+  public UserRepository users() {
+    return users;
+  }
+
+  public MenuRepository menu() {
+    return menu;
+  }
+
+  public OrderRepository orders() {
+    return delegate.orders();
+  }
+
+  public ItemStatusRepository items() {
+    return delegate.items();
+  }
+
+  private class Users implements UserRepository {
+
+    public UserAccount find(String login) throws SQLException {
+      return delegate.users().find(login);
+    }
+
+    public String type(String login) throws SQLException {
+      String type = userTypes.get(login);
+      if (type == null) {
+        type = delegate.users().type(login);
+        if (type != null)
+          userTypes.put(login, type);
+      }
+      return type;
+    }
+
+    public boolean checkPassword(String login, String password)
+        throws SQLException {
+      return delegate.users().checkPassword(login, password);
+    }
+
+    public void create(UserAccount user) throws SQLException {
+      delegate.users().create(user);
+      wrote(USERS, null);
+      userTypes.put(user.login(), user.type());
+    }
+
+    public int setFavItems(String login, String favItems) throws SQLException {
+      return wrote(USERS, delegate.users().setFavItems(login, favItems));
+    }
+
+    public int setPassword(String login, String password) throws SQLException {
+      return wrote(USERS, delegate.users().setPassword(login, password));
+    }
+
+    public int setPhoneNum(String login, String phoneNum) throws SQLException {
+      return wrote(USERS, delegate.users().setPhoneNum(login, phoneNum));
+    }
+
+    public int setType(String login, String type) throws SQLException {
+      int rowCount = wrote(USERS, delegate.users().setType(login, type));
+      if (rowCount > 0)
+        userTypes.put(login, type);
+      return rowCount;
+    }
+
+    public int setStore(String login, int storeId) throws SQLException {
+      return wrote(USERS, delegate.users().setStore(login, storeId));
+    }
+
+    public int[] upsert(List<UserAccount> users) throws SQLException {
+      int[] counts = wrote(USERS, delegate.users().upsert(users));
+      for (UserAccount user : users)
+        userTypes.put(user.login(), user.type());
+      return counts;
+    }
+
+    public int setTypes(List<String> logins, String type)
+        throws SQLException {
+      int rowCount = wrote(USERS, delegate.users().setTypes(logins, type));
+      for (String login : logins) {
+        // only logins already known can have changed
+        if (userTypes.containsKey(login))
+          userTypes.put(login, type);
+      }
+      return rowCount;
+    }
+
+    public int changeType(String fromType, String toType)
+        throws SQLException {
+      int rowCount = wrote(USERS, delegate.users().changeType(fromType, toType));
+      userTypes.replaceAll((login, type) -> type.equals(fromType) ? toType : type);
+      return rowCount;
+    }
+
+    public int setFavItems(Map<String, String> favItems) throws SQLException {
+      return wrote(USERS, delegate.users().setFavItems(favItems));
+    }
+  }
+
+  private class Menu implements MenuRepository {
+
+    private Map<String, MenuItem> items() throws SQLException {
+      Map<String, MenuItem> current = menuItems;
+      if (current == null) {
+        seedMenu(delegate.menu().all());
+        current = menuItems;
+      }
+      return current;
+    }
+
+    private synchronized void update(String itemName,
+        UnaryOperator<MenuItem> change) {
+      Map<String, MenuItem> current = menuItems;
+      if (current == null)
+        return;
+      Map<String, MenuItem> next = new LinkedHashMap<String, MenuItem>(current);
+      MenuItem item = next.get(itemName);
+      MenuItem changed = change.apply(item);
+      if (changed == null)
+        next.remove(itemName);
+      else
+        next.put(itemName, changed);
+      menuItems = Collections.unmodifiableMap(next);
+    }
+
+    public MenuItem find(String itemName) throws SQLException {
+      return items().get(itemName);
+    }
+
+    public List<MenuItem> all() throws SQLException {
+      return new ArrayList<MenuItem>(items().values());
+    }
+
+    public List<MenuItem> byType(String type) throws SQLException {
+      List<MenuItem> result = new ArrayList<MenuItem>();
+      for (MenuItem item : items().values()) {
+        if (item.type().equals(type))
+          result.add(item);
+      }
+      return result;
+    }
+
+    public void add(MenuItem item) throws SQLException {
+      delegate.menu().add(item);
+      wrote(MENU, null);
+      update(item.itemName(), old -> item);
+    }
+
+    public int delete(String itemName) throws SQLException {
+      int rowCount = wrote(MENU, delegate.menu().delete(itemName));
+      update(itemName, old -> null);
+      return rowCount;
+    }
+
+    public int setType(String itemName, String type) throws SQLException {
+      int rowCount = wrote(MENU, delegate.menu().setType(itemName, type));
+      update(itemName, old -> old == null ? null : new MenuItem(
+          old.itemName(), type, old.price(), old.description(), old.imageURL()));
+      return rowCount;
+    }
+
+    public int setPrice(String itemName, float price) throws SQLException {
+      int rowCount = wrote(MENU, delegate.menu().setPrice(itemName, price));
+      update(itemName, old -> old == null ? null : new MenuItem(
+          old.itemName(), old.type(), price, old.description(), old.imageURL()));
+      return rowCount;
+    }
+
+    public int setDescription(String itemName, String description)
+        throws SQLException {
+      int rowCount = wrote(MENU,
+          delegate.menu().setDescription(itemName, description));
+      update(itemName, old -> old == null ? null : new MenuItem(
+          old.itemName(), old.type(), old.price(), description, old.imageURL()));
+      return rowCount;
+    }
+
+    public int setImageURL(String itemName, String imageURL)
+        throws SQLException {
+      int rowCount = wrote(MENU, delegate.menu().setImageURL(itemName, imageURL));
+      update(itemName, old -> old == null ? null : new MenuItem(
+          old.itemName(), old.type(), old.price(), old.description(), imageURL));
+      return rowCount;
+    }
+
+    public int[] apply(List<MenuChange> changes) throws SQLException {
+      try {
+        return wrote(MENU, delegate.menu().apply(changes));
+      } finally {
+        // referenced items may have been kept, read it all again
+        invalidateMenu();
+      }
+    }
+  }
+} // end CachingStore
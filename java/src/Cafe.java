@@ -11,17 +11,26 @@
  */
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileReader;
 import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Function;
 
 /**
  * This class defines a simple embedded SQL utility class that is designed to
@@ -32,20 +41,60 @@ public class Cafe {
 
   private static String authorisedUser = null;
 
-  private static String createdAt = new java.text.SimpleDateFormat(
-      "yyyy-MM-dd HH:mm:ss")
-      .format(new java.util.Date());
+  // optional local order journal, see OrderJournal
+  private static OrderJournal journal = null;
+
 
   // reference to physical database connection.
   private Connection _connection = null;
 
+  // statement currently executing, so another thread can cancel it
+  private volatile Statement _current = null;
+
+  // connection settings, kept so that extra connections can be opened
+  private String _url = null;
+  private String _user = null;
+  private String _passwd = null;
+
+  // routes read-only queries to replicas, null when none are configured
+  private ReadRouter _router = null;
+
+  // the other stores' shards, null unless -Dcafe.shards
+  private ShardRouter _shards = null;
+
+  // the store orders are taken for, see ShardRouter
+  private static final int _storeId = ShardRouter.homeStoreId();
+
+  // repositories the operations go through, see store()
+  private CafeStore _store = null;
+  private boolean _hotChecked = false;
+
+  // local cache file, see CacheSnapshot
+  private CacheSnapshot _snapshot = null;
+
+  // connection the open order table is refreshed on, see HotOrderStore
+  private Cafe _hotSource = null;
+
+  // read results shared by all connections, null unless -Dcafe.queryCache
+  private static final QueryCache _queryCache =
+      Boolean.getBoolean("cafe.queryCache")
+          ? new QueryCache(Integer.getInteger("cafe.queryCache.size", 256),
+              Long.getLong("cafe.queryCache.ttlMs", 2000))
+          : null;
+
+  // admission control shared by all connections, null unless -Dcafe.bulkhead
+  private static final Bulkhead _bulkhead = Bulkhead.shared();
+
   // handling the keyboard inputs through a BufferedReader
   // This variable can be global for convenience.
-  static BufferedReader in = new BufferedReader(
-      new InputStreamReader(System.in));
+  static BufferedReader in = Tracer.console(new InputStreamReader(System.in));
 
   /**
-   * Creates a new instance of Cafe
+   * Creates a new instance of Cafe. The primary endpoint can be moved off
+   * localhost with -Dcafe.primary=host:port, and read-only queries can be
+   * spread over replicas with -Dcafe.replicas=host:port[,host:port...].
+   * With -Dcafe.shards the primary is the home store's shard and the
+   * other shards are connected too, see ShardRouter.
    *
    * @param hostname the MySQL or PostgreSQL server hostname
    * @param database the name of the database
@@ -58,11 +107,34 @@ public class Cafe {
     System.out.print("Connecting to database...");
     try {
       // constructs the connection URL
-      String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
+      String url = ShardRouter.homeUrl(dbname);
+      if (url == null)
+        url = "jdbc:postgresql://"
+            + System.getProperty("cafe.primary", "localhost:" + dbport)
+            + "/" + dbname;
       System.out.println("Connection URL: " + url + "\n");
 
       // obtain a physical connection
       this._connection = DriverManager.getConnection(url, user, passwd);
+      this._url = url;
+      this._user = user;
+      this._passwd = passwd;
+      String replicas = System.getProperty("cafe.replicas");
+      if (replicas != null && replicas.length() > 0) {
+        List<Cafe> connected = new ArrayList<Cafe>();
+        for (String endpoint : replicas.split(",")) {
+          try {
+            connected.add(openSibling(
+                "jdbc:postgresql://" + endpoint.trim() + "/" + dbname));
+          } catch (SQLException e) {
+            System.err.println("Skipping replica " + endpoint + ": "
+                + e.getMessage());
+          }
+        }
+        if (connected.size() > 0)
+          this._router = new ReadRouter(this, connected);
+      }
+      this._shards = ShardRouter.open(this, dbname);
       System.out.println("Done");
     } catch (Exception e) {
       System.err.println(
@@ -72,24 +144,303 @@ public class Cafe {
     } // end catch
   } // end Cafe
 
+  private Cafe() {
+  }
+
+  /**
+   * Creates a Cafe with no database connection whose operations run
+   * against the given store, e.g. an InMemoryStore.
+   *
+   * @param store the repositories to use
+   * @return a Cafe in embedded mode
+   */
+  public static Cafe embedded(CafeStore store) {
+    Cafe esql = new Cafe();
+    esql._store = store;
+    return esql;
+  } // end embedded
+
+  /**
+   * Embedded stores are wrapped the first time this is called.
+   *
+   * @return the repositories used by the operations; a JdbcStore over
+   *         this connection unless the Cafe was created embedded, kept
+   *         behind a HotOrderStore when -Dcafe.hotOrders=true and behind
+   *         the snapshot caches when -Dcafe.snapshot=file, the open order
+   *         table of either refreshed in the background, all of it behind
+   *         a WaitTimeEstimator when -Dcafe.eta=true; a ShardedStore over
+   *         the shards when -Dcafe.shards is set
+   */
+  public synchronized CafeStore store() {
+    if (this._store == null)
+      this._store = new JdbcStore(this);
+    if (!this._hotChecked) {
+      this._hotChecked = true;
+      if (this._shards != null)
+        this._store = new ShardedStore(this._store, this._shards);
+      CafeStore base = this._store;
+      String snapshot = System.getProperty("cafe.snapshot");
+      if (snapshot != null && !isEmbedded()) {
+        try {
+          this._snapshot = CacheSnapshot.open(new File(snapshot), this);
+          this._store = this._snapshot.wrap(this._store);
+          this._snapshot.watch();
+        } catch (SQLException e) {
+          System.err.println("Cache snapshot disabled: " + e.getMessage());
+        }
+      } else if (Boolean.getBoolean("cafe.hotOrders")) {
+        try {
+          this._store = new HotOrderStore(this._store);
+        } catch (SQLException e) {
+          System.err.println("Open order cache disabled: " + e.getMessage());
+        }
+      }
+      HotOrderStore hot = hotStore(this._store);
+      if (hot != null) {
+        try {
+          // current orders are the home shard's, a plain store over a
+          // connection of its own reads the same rows
+          if (isEmbedded()) {
+            hot.refresh(base);
+          } else {
+            this._hotSource = openSibling();
+            hot.refresh(new JdbcStore(this._hotSource));
+          }
+        } catch (SQLException e) {
+          System.err.println("Open order refresh disabled: " + e.getMessage());
+        }
+      }
+      if (Boolean.getBoolean("cafe.eta")) {
+        try {
+          this._store = new WaitTimeEstimator(this._store);
+        } catch (SQLException e) {
+          System.err.println("Wait time estimates disabled: " + e.getMessage());
+        }
+      }
+    }
+    return this._store;
+  } // end store
+
+  /**
+   * @return the shards of the chain, or null when -Dcafe.shards is not set
+   */
+  public ShardRouter shards() {
+    return this._shards;
+  }
+
+  /**
+   * @return the store this process takes orders for, 1 unless set with
+   *         -Dcafe.store.id
+   */
+  public static int storeId() {
+    return _storeId;
+  }
+
+  /**
+   * @return the wait time estimator in front of the store, or null when
+   *         -Dcafe.eta is not set
+   */
+  public WaitTimeEstimator estimator() {
+    CafeStore store = store();
+    if (store instanceof WaitTimeEstimator)
+      return (WaitTimeEstimator) store;
+    return null;
+  }
+
+  /**
+   * @return the open order table kept by the store, or null when the
+   *         store does not keep one
+   */
+  public OpenOrders openOrders() {
+    HotOrderStore hot = hotStore(store());
+    return hot == null ? null : hot.open();
+  }
+
+  private static HotOrderStore hotStore(CafeStore store) {
+    if (store instanceof WaitTimeEstimator)
+      store = ((WaitTimeEstimator) store).delegate();
+    if (store instanceof CachingStore)
+      store = ((CachingStore) store).delegate();
+    if (store instanceof HotOrderStore)
+      return (HotOrderStore) store;
+    return null;
+  }
+
+  /**
+   * Writes the cache snapshot file, if one is in use.
+   */
+  public void saveSnapshot() {
+    if (this._snapshot != null)
+      this._snapshot.save();
+  }
+
+  /**
+   * @return true when there is no database behind this Cafe
+   */
+  public boolean isEmbedded() {
+    return this._connection == null;
+  }
+
+  /**
+   * Opens another physical connection to the same database. Background
+   * jobs use this so they never share the interactive connection.
+   *
+   * @return a new Cafe bound to its own connection
+   * @throws java.sql.SQLException when failed to make a connection.
+   */
+  public Cafe openSibling() throws SQLException {
+    return openSibling(this._url);
+  } // end openSibling
+
+  /**
+   * @return the URL this Cafe is connected to
+   */
+  String url() {
+    return this._url;
+  }
+
+  Cafe openSibling(String url) throws SQLException {
+    Cafe sibling = new Cafe();
+    sibling._url = url;
+    sibling._user = this._user;
+    sibling._passwd = this._passwd;
+    sibling._connection = DriverManager.getConnection(
+        url, this._user, this._passwd);
+    return sibling;
+  }
+
+  /**
+   * Replaces a connection the server dropped with a new one to the same
+   * database, along with any shard connection found dropped too. The
+   * statement that failed is not run again.
+   *
+   * @throws java.sql.SQLException when failed to make a connection.
+   */
+  public void reconnect() throws SQLException {
+    reopen();
+    if (this._shards != null) {
+      for (Cafe shard : this._shards.shards()) {
+        if (shard != this && !shard._connection.isValid(2))
+          shard.reopen();
+      }
+    }
+  } // end reconnect
+
+  private void reopen() throws SQLException {
+    Connection fresh = DriverManager.getConnection(
+        this._url, this._user, this._passwd);
+    try {
+      this._connection.close();
+    } catch (SQLException e) {
+      // already gone
+    }
+    this._connection = fresh;
+  }
+
   /**
    * Method to execute an update SQL statement. Update SQL instructions
    * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
    *
    * @param sql the input SQL string
+   * @return the number of rows affected
    * @throws java.sql.SQLException when update failed
    */
-  public void executeUpdate(String sql) throws SQLException {
-    // creates a statement object
-    Statement stmt = this._connection.createStatement();
+  public int executeUpdate(String sql) throws SQLException {
+    Bulkhead.Lane lane = admit(true, sql);
+    try {
+      // creates a statement object
+      Statement stmt = createStatement(lane);
+      this._current = stmt;
 
-    // issues the update instruction
-    stmt.executeUpdate(sql);
+      // issues the update instruction
+      int rowCount;
+      try {
+        rowCount = stmt.executeUpdate(sql);
+      } catch (SQLException e) {
+        failed(e);
+        throw e;
+      } finally {
+        this._current = null;
+        if (_queryCache != null)
+          _queryCache.wrote(sql);
+      }
+      if (this._router != null)
+        this._router.wrote();
 
-    // close the instruction
-    stmt.close();
+      // close the instruction
+      stmt.close();
+      rows(rowCount);
+      return rowCount;
+    } finally {
+      release(lane);
+    }
   } // end executeUpdate
 
+  /**
+   * Method to execute several update SQL statements as one transaction.
+   * The statements are sent to the DBMS in a single batch; if any of them
+   * fails the whole batch is rolled back.
+   *
+   * @param sql the input SQL strings, executed in order
+   * @return the update count of each statement
+   * @throws java.sql.SQLException when the batch failed
+   */
+  public int[] executeUpdateBatch(List<String> sql) throws SQLException {
+    Bulkhead.Lane lane = admit(true, String.join(";\n", sql));
+    boolean autoCommit;
+    Statement stmt;
+    try {
+      autoCommit = this._connection.getAutoCommit();
+      this._connection.setAutoCommit(false);
+      stmt = createStatement(lane);
+    } catch (SQLException e) {
+      release(lane);
+      throw e;
+    }
+    this._current = stmt;
+    try {
+      for (String s : sql)
+        stmt.addBatch(s);
+      int[] counts = stmt.executeBatch();
+      this._connection.commit();
+      if (this._router != null)
+        this._router.wrote();
+      rows(java.util.Arrays.stream(counts).sum());
+      return counts;
+    } catch (SQLException e) {
+      failed(e);
+      try {
+        this._connection.rollback();
+      } catch (SQLException ignored) {
+        // the original failure is more useful
+      }
+      throw e;
+    } finally {
+      this._current = null;
+      try {
+        stmt.close();
+        this._connection.setAutoCommit(autoCommit);
+      } finally {
+        release(lane);
+        if (_queryCache != null) {
+          for (String s : sql)
+            _queryCache.wrote(s);
+        }
+      }
+    }
+  } // end executeUpdateBatch
+
+  /**
+   * Escapes a value so it can be placed inside a quoted SQL string
+   * literal.
+   *
+   * @param value the raw value
+   * @return the value with single quotes doubled
+   */
+  public static String escape(String value) {
+    return value == null ? null : value.replace("'", "''");
+  } // end escape
+
   /**
    * Method to execute an input query SQL instruction (i.e. SELECT). This
    * method issues the query to the DBMS and outputs the results to
@@ -100,38 +451,49 @@ public class Cafe {
    * @throws java.sql.SQLException when failed to execute the query
    */
   public int executeQueryAndPrintResult(String query) throws SQLException {
-    // creates a statement object
-    Statement stmt = this._connection.createStatement();
+    return executeQueryAndPrintResult(query, System.out);
+  } // end executeQueryAndPrintResult
 
-    // issues the query instruction
-    ResultSet rs = stmt.executeQuery(query);
-
-    /*
-     ** obtains the metadata object for the returned result set. The metadata
-     ** contains row and column info.
-     */
-    ResultSetMetaData rsmd = rs.getMetaData();
-    int numCol = rsmd.getColumnCount();
-    int rowCount = 0;
-
-    // iterates through the result set and output them to standard out.
-    boolean outputHeader = true;
-    while (rs.next()) {
-      if (outputHeader) {
-        for (int i = 1; i <= numCol; i++) {
-          System.out.print(rsmd.getColumnName(i) + "\t");
+  private int executeQueryAndPrintResult(String query, PrintStream out)
+      throws SQLException {
+    Bulkhead.Lane lane = admit(false, query);
+    try {
+      // creates a statement object
+      Statement stmt = createStatement(lane);
+
+      // issues the query instruction
+      ResultSet rs = execute(stmt, query);
+
+      /*
+       ** obtains the metadata object for the returned result set. The metadata
+       ** contains row and column info.
+       */
+      ResultSetMetaData rsmd = rs.getMetaData();
+      int numCol = rsmd.getColumnCount();
+      int rowCount = 0;
+
+      // iterates through the result set and output them to standard out.
+      boolean outputHeader = true;
+      while (rs.next()) {
+        if (outputHeader) {
+          for (int i = 1; i <= numCol; i++) {
+            out.print(rsmd.getColumnName(i) + "\t");
+          }
+          out.println();
+          outputHeader = false;
         }
-        System.out.println();
-        outputHeader = false;
-      }
-      for (int i = 1; i <= numCol; ++i)
-        System.out.print(
-            rs.getString(i) + "\t");
-      System.out.println();
-      ++rowCount;
-    } // end while
-    stmt.close();
-    return rowCount;
+        for (int i = 1; i <= numCol; ++i)
+          out.print(
+              rs.getString(i) + "\t");
+        out.println();
+        ++rowCount;
+      } // end while
+      stmt.close();
+      rows(rowCount);
+      return rowCount;
+    } finally {
+      release(lane);
+    }
   } // end executeQuery
 
   /**
@@ -145,33 +507,69 @@ public class Cafe {
    */
   public List<List<String>> executeQueryAndReturnResult(String query)
       throws SQLException {
-    // creates a statement object
-    Statement stmt = this._connection.createStatement();
-
-    // issues the query instruction
-    ResultSet rs = stmt.executeQuery(query);
-
-    /*
-     ** obtains the metadata object for the returned result set. The metadata
-     ** contains row and column info.
-     */
-    ResultSetMetaData rsmd = rs.getMetaData();
-    int numCol = rsmd.getColumnCount();
-    int rowCount = 0;
-
-    // iterates through the result set and saves the data returned by the query.
-    boolean outputHeader = false;
-    List<List<String>> result = new ArrayList<List<String>>();
-    while (rs.next()) {
-      List<String> record = new ArrayList<String>();
-      for (int i = 1; i <= numCol; ++i)
-        record.add(rs.getString(i));
-      result.add(record);
-    } // end while
-    stmt.close();
-    return result;
+    Bulkhead.Lane lane = admit(false, query);
+    try {
+      // creates a statement object
+      Statement stmt = createStatement(lane);
+
+      // issues the query instruction
+      ResultSet rs = execute(stmt, query);
+
+      /*
+       ** obtains the metadata object for the returned result set. The metadata
+       ** contains row and column info.
+       */
+      ResultSetMetaData rsmd = rs.getMetaData();
+      int numCol = rsmd.getColumnCount();
+      int rowCount = 0;
+
+      // iterates through the result set and saves the data returned by the query.
+      boolean outputHeader = false;
+      List<List<String>> result = new ArrayList<List<String>>();
+      while (rs.next()) {
+        List<String> record = new ArrayList<String>();
+        for (int i = 1; i <= numCol; ++i)
+          record.add(rs.getString(i));
+        result.add(record);
+      } // end while
+      stmt.close();
+      rows(result.size());
+      return result;
+    } finally {
+      release(lane);
+    }
   } // end executeQueryAndReturnResult
 
+  /**
+   * Method to execute an input query SQL instruction (i.e. SELECT). This
+   * method issues the query to the DBMS and returns one value per record,
+   * built by the mapper straight from the ResultSet.
+   *
+   * @param query the input query string
+   * @param mapper builds one value per row
+   * @return the mapped rows
+   * @throws java.sql.SQLException when failed to execute the query
+   */
+  public <T> List<T> executeQueryAndMap(String query, RowMapper<T> mapper)
+      throws SQLException {
+    Bulkhead.Lane lane = admit(false, query);
+    try {
+      Statement stmt = createStatement(lane);
+      try {
+        ResultSet rs = execute(stmt, query);
+        List<T> result = new ArrayList<T>();
+        while (rs.next())
+          result.add(mapper.map(rs));
+        rows(result.size());
+        return result;
+      } finally {
+        stmt.close();
+      }
+    } finally {
+      release(lane);
+    }
+  } // end executeQueryAndMap
+
   /**
    * Method to execute an input query SQL instruction (i.e. SELECT). This
    * method issues the query to the DBMS and returns the number of results
@@ -181,20 +579,238 @@ public class Cafe {
    * @throws java.sql.SQLException when failed to execute the query
    */
   public int executeQuery(String query) throws SQLException {
-    // creates a statement object
+    Bulkhead.Lane lane = admit(false, query);
+    try {
+      // creates a statement object
+      Statement stmt = createStatement(lane);
+
+      // issues the query instruction
+      ResultSet rs = execute(stmt, query);
+
+      int rowCount = 0;
+
+      // iterates through the result set and count nuber of results.
+      while (rs.next()) {
+        rowCount++;
+      } // end while
+      stmt.close();
+      rows(rowCount);
+      return rowCount;
+    } finally {
+      release(lane);
+    }
+  }
+
+  /*
+   * The current time to the second, as order and item times are kept.
+   */
+  private static Timestamp now() {
+    return new Timestamp(System.currentTimeMillis() / 1000 * 1000);
+  }
+
+  /*
+   * Opens the statement's trace span and flight recorder event and waits
+   * for room in its Bulkhead lane. Returns null when the bulkhead is
+   * disabled. Every successful call must be followed by release(lane).
+   */
+  private static Bulkhead.Lane admit(boolean update, String sql)
+      throws SQLException {
+    Tracer.statement(sql, update);
+    CafeEvents.statement(sql, update ? "update" : "query");
+    if (_bulkhead == null)
+      return null;
+    Bulkhead.Lane lane = Bulkhead.laneOf(update);
+    Tracer.lane(lane);
+    CafeEvents.lane(lane);
+    try {
+      _bulkhead.acquire(lane);
+    } catch (SQLException e) {
+      failed(e);
+      endStatement();
+      throw e;
+    }
+    return lane;
+  }
+
+  private static void release(Bulkhead.Lane lane) {
+    if (lane != null)
+      _bulkhead.release(lane);
+    endStatement();
+  }
+
+  /*
+   * Notes the rows the open statement returned or changed.
+   */
+  private static void rows(int rows) {
+    Tracer.rows(rows);
+    CafeEvents.rows(rows);
+  }
+
+  private static void failed(SQLException e) {
+    Tracer.failed(e);
+    CafeEvents.failed(e);
+  }
+
+  private static void endStatement() {
+    Tracer.endStatement();
+    CafeEvents.endStatement();
+  }
+
+  /*
+   * Creates a statement carrying the lane's query timeout.
+   */
+  private Statement createStatement(Bulkhead.Lane lane) throws SQLException {
     Statement stmt = this._connection.createStatement();
+    if (lane != null)
+      stmt.setQueryTimeout(_bulkhead.timeoutSeconds(lane));
+    return stmt;
+  }
+
+  /*
+   * Runs a query while publishing the statement for cancel().
+   */
+  private ResultSet execute(Statement stmt, String query) throws SQLException {
+    this._current = stmt;
+    try {
+      return stmt.executeQuery(query);
+    } catch (SQLException e) {
+      failed(e);
+      throw e;
+    } finally {
+      this._current = null;
+    }
+  }
 
-    // issues the query instruction
-    ResultSet rs = stmt.executeQuery(query);
+  /**
+   * Cancels the statement this connection is currently executing, if
+   * any. Safe to call from another thread; the cancelled call fails with
+   * an SQLException.
+   */
+  public void cancel() {
+    Statement stmt = this._current;
+    if (stmt != null) {
+      try {
+        stmt.cancel();
+      } catch (SQLException e) {
+        // ignored, the statement may already have finished
+      }
+    }
+  } // end cancel
 
-    int rowCount = 0;
+  /**
+   * Same as executeQueryAndPrintResult, but for read-only queries that may
+   * run on a replica. Falls back to the primary when no replica is usable
+   * or the replica fails. A replica's rows are printed only once it has
+   * returned all of them, so a replica failing part way through prints
+   * nothing before the primary's rows.
+   *
+   * @param query the input query string
+   * @return the number of rows returned
+   * @throws java.sql.SQLException when failed to execute the query
+   */
+  public int executeReadQueryAndPrintResult(String query) throws SQLException {
+    if (this._router != null) {
+      Cafe replica = this._router.pick();
+      if (replica != this) {
+        try {
+          ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+          int rowCount = replica.executeQueryAndPrintResult(query,
+              new PrintStream(buffer, false, StandardCharsets.UTF_8));
+          System.out.print(buffer.toString(StandardCharsets.UTF_8));
+          return rowCount;
+        } catch (SQLException e) {
+          this._router.failed(replica);
+        }
+      }
+    }
+    return executeQueryAndPrintResult(query);
+  } // end executeReadQueryAndPrintResult
 
-    // iterates through the result set and count nuber of results.
-    while (rs.next()) {
-      rowCount++;
-    } // end while
-    stmt.close();
-    return rowCount;
+  /**
+   * Same as executeQueryAndReturnResult, but for read-only queries that
+   * may run on a replica. Falls back to the primary when no replica is
+   * usable or the replica fails. With -Dcafe.queryCache=true the result
+   * may come from the QueryCache.
+   *
+   * @param query the input query string
+   * @return the query result as a list of records, unmodifiable when cached
+   * @throws java.sql.SQLException when failed to execute the query
+   */
+  public List<List<String>> executeReadQueryAndReturnResult(String query)
+      throws SQLException {
+    if (_queryCache != null) {
+      return _queryCache.get(query, STRING_ROWS, () -> {
+        List<List<String>> rows = readQueryAndReturnResult(query);
+        for (int i = 0; i < rows.size(); i++)
+          rows.set(i, Collections.unmodifiableList(rows.get(i)));
+        return rows;
+      });
+    }
+    return readQueryAndReturnResult(query);
+  } // end executeReadQueryAndReturnResult
+
+  // cache kind of the rows of executeReadQueryAndReturnResult
+  private static final Object STRING_ROWS = new Object();
+
+  private List<List<String>> readQueryAndReturnResult(String query)
+      throws SQLException {
+    if (this._router != null) {
+      Cafe replica = this._router.pick();
+      if (replica != this) {
+        try {
+          return replica.executeQueryAndReturnResult(query);
+        } catch (SQLException e) {
+          this._router.failed(replica);
+        }
+      }
+    }
+    return executeQueryAndReturnResult(query);
+  }
+
+  /**
+   * Same as executeQueryAndMap, but for read-only queries that may run on
+   * a replica or be served from the QueryCache, as with
+   * executeReadQueryAndReturnResult.
+   *
+   * @param query the input query string
+   * @param mapper builds one value per row
+   * @return the mapped rows, unmodifiable when cached
+   * @throws java.sql.SQLException when failed to execute the query
+   */
+  public <T> List<T> executeReadQueryAndMap(String query, RowMapper<T> mapper)
+      throws SQLException {
+    if (_queryCache != null)
+      return _queryCache.get(query, mapper, () -> readQueryAndMap(query, mapper));
+    return readQueryAndMap(query, mapper);
+  } // end executeReadQueryAndMap
+
+  private <T> List<T> readQueryAndMap(String query, RowMapper<T> mapper)
+      throws SQLException {
+    if (this._router != null) {
+      Cafe replica = this._router.pick();
+      if (replica != this) {
+        try {
+          return replica.executeQueryAndMap(query, mapper);
+        } catch (SQLException e) {
+          this._router.failed(replica);
+        }
+      }
+    }
+    return executeQueryAndMap(query, mapper);
+  }
+
+  /**
+   * @return the process-wide query result cache, or null when disabled
+   */
+  public static QueryCache queryCache() {
+    return _queryCache;
+  }
+
+  /**
+   * @return the process-wide admission control, or null when disabled
+   */
+  public static Bulkhead bulkhead() {
+    return _bulkhead;
   }
 
   /**
@@ -207,20 +823,57 @@ public class Cafe {
    * @throws java.sql.SQLException when failed to execute the query
    */
   public int getCurrSeqVal(String sequence) throws SQLException {
-    Statement stmt = this._connection.createStatement();
+    String query = String.format("Select currval('%s')", sequence);
+    Bulkhead.Lane lane = admit(false, query);
+    try {
+      Statement stmt = createStatement(lane);
 
-    ResultSet rs = stmt.executeQuery(
-        String.format("Select currval('%s')", sequence));
-    if (rs.next())
-      return rs.getInt(1);
-    return -1;
+      ResultSet rs = execute(stmt, query);
+      if (rs.next())
+        return rs.getInt(1);
+      return -1;
+    } finally {
+      release(lane);
+    }
   }
 
+  /**
+   * Takes an order id from the process-wide OrderIdAllocator, to be bound
+   * explicitly in the INSERT INTO Orders.
+   *
+   * @return an unused order id
+   * @throws java.sql.SQLException when failed to reserve a block of ids
+   */
+  public int nextOrderId() throws SQLException {
+    return OrderIdAllocator.shared().next(this);
+  } // end nextOrderId
+
+  /**
+   * @param count the number of ids wanted
+   * @return count unused order ids in increasing order
+   * @throws java.sql.SQLException when failed to reserve a block of ids
+   */
+  public int[] nextOrderIds(int count) throws SQLException {
+    return OrderIdAllocator.shared().next(this, count);
+  } // end nextOrderIds
+
   /**
    * Method to close the physical connection if it is open.
    */
   public void cleanup() {
     try {
+      if (this._hotSource != null) {
+        HotOrderStore hot = hotStore(this._store);
+        if (hot != null)
+          hot.stop();
+        this._hotSource.cleanup();
+      } // end if
+      if (this._router != null) {
+        this._router.cleanup();
+      } // end if
+      if (this._shards != null) {
+        this._shards.cleanup();
+      } // end if
       if (this._connection != null) {
         this._connection.close();
       } // end if
@@ -237,7 +890,8 @@ public class Cafe {
    */
 
   public static void main(String[] args) {
-    if (args.length != 3) {
+    boolean inMemory = "memory".equals(System.getProperty("cafe.store"));
+    if (!inMemory && args.length != 3) {
       System.err.println(
           "Usage: " +
               "java [-classpath <classpath>] " +
@@ -246,16 +900,57 @@ public class Cafe {
       return;
     }
 
-    Greeting();
+    // -Dcafe.batch=file (or - for stdin) runs commands instead of the menus
+    String batch = System.getProperty("cafe.batch");
+    // -Dcafe.checkTotals=report|repair checks order totals instead
+    String checkTotals = System.getProperty("cafe.checkTotals");
+    if (batch == null && checkTotals == null)
+      Greeting();
     Cafe esql = null;
+    PartitionMaintenance maintenance = null;
+    ItemStatusEvents itemEvents = null;
+    PrepTimes prepTimes = null;
+    String journalPath = System.getProperty("cafe.journal");
     try {
-      Class.forName("org.postgresql.Driver").newInstance();
-      String dbname = args[0];
-      String dbport = args[1];
-      String user = args[2];
-      esql = new Cafe(dbname, dbport, user, "");
+      if (inMemory) {
+        // embedded mode: no database, menu and users loaded from csv files
+        File data = new File(System.getProperty("cafe.store.data", "data"));
+        InMemoryStore store = new InMemoryStore();
+        store.load(new File(data, "menu.csv"), new File(data, "users.csv"));
+        esql = embedded(store);
+        journalPath = null;
+      } else {
+        Class.forName("org.postgresql.Driver").newInstance();
+        String dbname = args[0];
+        String dbport = args[1];
+        String user = args[2];
+        esql = new Cafe(dbname, dbport, user, "");
+      }
+      if (!inMemory && Boolean.getBoolean("cafe.maintenance")) {
+        maintenance = PartitionMaintenance.start(esql.openSibling());
+      }
+      if (!inMemory && Boolean.getBoolean("cafe.itemEvents")) {
+        itemEvents = ItemStatusEvents.start(esql.openSibling());
+        prepTimes = PrepTimes.start(esql.openSibling());
+      }
+      if (journalPath != null) {
+        journal = OrderJournal.open(new File(journalPath), esql.openSibling());
+      }
 
       boolean keepon = true;
+      int choice;
+      String op;
+      if (batch != null) {
+        runBatch(esql, batch);
+        keepon = false;
+      }
+      if (checkTotals != null) {
+        if (esql.isEmbedded())
+          System.err.println("Checking totals needs a database connection");
+        else
+          TotalsChecker.run(esql, checkTotals);
+        keepon = false;
+      }
       while (keepon) {
         System.out.println("MAIN MENU");
         System.out.println("---------");
@@ -263,23 +958,34 @@ public class Cafe {
         System.out.println("2. Log in");
         System.out.println("9. < EXIT");
         authorisedUser = null;
-        switch (readChoice()) {
-          case 1:
-            CreateUser(esql);
-            break;
-          case 2:
-            authorisedUser = LogIn(esql);
-            break;
-          case 9:
-            keepon = false;
-            break;
-          default:
-            System.out.println("Unrecognized choice!");
-            break;
+        CafeEvents.loggedIn(null);
+        choice = readChoice();
+        op = operation(MAIN_OPERATIONS, choice);
+        Tracer.Span loginSpan = Tracer.begin(op);
+        CafeEvents.Operation loginEvent = CafeEvents.operation(op);
+        try {
+          switch (choice) {
+            case 1:
+              CreateUser(esql);
+              break;
+            case 2:
+              authorisedUser = LogIn(esql);
+              break;
+            case 9:
+              keepon = false;
+              break;
+            default:
+              System.out.println("Unrecognized choice!");
+              break;
+          }
+        } finally {
+          CafeEvents.end(loginEvent);
+          Tracer.end(loginSpan);
         }
         if (authorisedUser != null) {
           boolean isActive = true;
           String usertype = UserType(esql);
+          CafeEvents.loggedIn(usertype);
           switch (usertype) {
             case "Customer":
               while (isActive) {
@@ -295,37 +1001,46 @@ public class Cafe {
                 System.out.println("7. Update user information");
                 System.out.println(".........................");
                 System.out.println("9. Log out");
-                switch (readChoice()) {
-                  case 0:
-                    Menu(esql);
-                    break;
-                  case 1:
-                    SearchMenuByName(esql);
-                    break;
-                  case 2:
-                    SearchMenuByType(esql);
-                    break;
-                  case 3:
-                    PlaceOrder(esql);
-                    break;
-                  case 4:
-                    UpdateOrder(esql);
-                    break;
-                  case 5:
-                    ViewOrderHistory(esql);
-                    break;
-                  case 6:
-                    ViewOrderStatus(esql);
-                    break;
-                  case 7:
-                    UpdateUserInformation(esql);
-                    break;
-                  case 9:
-                    isActive = false;
-                    break;
-                  default:
-                    System.out.println("Unrecognized choice!");
-                    break;
+                choice = readChoice();
+                op = operation(CUSTOMER_OPERATIONS, choice);
+                Tracer.Span span = Tracer.begin(op);
+                CafeEvents.Operation event = CafeEvents.operation(op);
+                try {
+                  switch (choice) {
+                    case 0:
+                      Menu(esql);
+                      break;
+                    case 1:
+                      SearchMenuByName(esql);
+                      break;
+                    case 2:
+                      SearchMenuByType(esql);
+                      break;
+                    case 3:
+                      PlaceOrder(esql);
+                      break;
+                    case 4:
+                      UpdateOrder(esql);
+                      break;
+                    case 5:
+                      ViewOrderHistory(esql);
+                      break;
+                    case 6:
+                      ViewOrderStatus(esql);
+                      break;
+                    case 7:
+                      UpdateUserInformation(esql);
+                      break;
+                    case 9:
+                      isActive = false;
+                      break;
+                    default:
+                      System.out.println("Unrecognized choice!");
+                      break;
+                  }
+                } finally {
+                  CafeEvents.end(event);
+                  Tracer.end(span);
                 }
               }
               break;
@@ -343,41 +1058,50 @@ public class Cafe {
                 System.out.println("7. Update user information");
                 System.out.println(".........................");
                 System.out.println("9. Log out");
-                switch (readChoice()) {
-                  case 0:
-                    Menu(esql);
-                    break;
-                  case 1:
-                    SearchMenuByName(esql);
-                    break;
-                  case 2:
-                    SearchMenuByType(esql);
-                    break;
-                  case 3:
-                    PlaceOrder(esql);
-                    break;
-                  case 4:
-                    UpdateOrderByCafe(esql);
-                    break;
-                  case 5:
-                    ViewCurrentOrders(esql);
-                    break;
-                  case 6:
-                    ViewOrderStatus(esql);
-                    break;
-                  case 7:
-                    UpdateUserInformation(esql);
-                    break;
-                  case 9:
-                    isActive = false;
-                    break;
-                  default:
-                    System.out.println("Unrecognized choice!");
-                    break;
+                choice = readChoice();
+                op = operation(EMPLOYEE_OPERATIONS, choice);
+                Tracer.Span span = Tracer.begin(op);
+                CafeEvents.Operation event = CafeEvents.operation(op);
+                try {
+                  switch (choice) {
+                    case 0:
+                      Menu(esql);
+                      break;
+                    case 1:
+                      SearchMenuByName(esql);
+                      break;
+                    case 2:
+                      SearchMenuByType(esql);
+                      break;
+                    case 3:
+                      PlaceOrder(esql);
+                      break;
+                    case 4:
+                      UpdateOrderByCafe(esql);
+                      break;
+                    case 5:
+                      ViewCurrentOrders(esql);
+                      break;
+                    case 6:
+                      ViewOrderStatus(esql);
+                      break;
+                    case 7:
+                      UpdateUserInformation(esql);
+                      break;
+                    case 9:
+                      isActive = false;
+                      break;
+                    default:
+                      System.out.println("Unrecognized choice!");
+                      break;
+                  }
+                } finally {
+                  CafeEvents.end(event);
+                  Tracer.end(span);
                 }
               }
               break;
-            case "Manager ":
+            case "Manager":
               while (isActive) {
                 System.out.println("MAIN MENU for Manager");
                 System.out.println("------------------------");
@@ -390,42 +1114,63 @@ public class Cafe {
                 System.out.println("6. View Order Status");
                 System.out.println("7. Update user information");
                 System.out.println("8. Update menu");
+                System.out.println("10. Sales reports");
+                System.out.println("11. Server load");
+                System.out.println("12. Preparation times");
                 System.out.println(".........................");
                 System.out.println("9. Log out");
-                switch (readChoice()) {
-                  case 0:
-                    Menu(esql);
-                    break;
-                  case 1:
-                    SearchMenuByName(esql);
-                    break;
-                  case 2:
-                    SearchMenuByType(esql);
-                    break;
-                  case 3:
-                    PlaceOrder(esql);
-                    break;
-                  case 4:
-                    UpdateOrderByCafe(esql);
-                    break;
-                  case 5:
-                    ViewCurrentOrders(esql);
-                    break;
-                  case 6:
-                    ViewOrderStatus(esql);
-                    break;
-                  case 7:
-                    UpdateUserInformationByManager(esql);
-                    break;
-                  case 8:
-                    UpdateMenu(esql);
-                    break;
-                  case 9:
-                    isActive = false;
-                    break;
-                  default:
-                    System.out.println("Unrecognized choice!");
-                    break;
+                choice = readChoice();
+                op = operation(MANAGER_OPERATIONS, choice);
+                Tracer.Span span = Tracer.begin(op);
+                CafeEvents.Operation event = CafeEvents.operation(op);
+                try {
+                  switch (choice) {
+                    case 0:
+                      Menu(esql);
+                      break;
+                    case 1:
+                      SearchMenuByName(esql);
+                      break;
+                    case 2:
+                      SearchMenuByType(esql);
+                      break;
+                    case 3:
+                      PlaceOrder(esql);
+                      break;
+                    case 4:
+                      UpdateOrderByCafe(esql);
+                      break;
+                    case 5:
+                      ViewCurrentOrders(esql);
+                      break;
+                    case 6:
+                      ViewOrderStatus(esql);
+                      break;
+                    case 7:
+                      UpdateUserInformationByManager(esql);
+                      break;
+                    case 8:
+                      UpdateMenu(esql);
+                      break;
+                    case 10:
+                      SalesReports(esql);
+                      break;
+                    case 11:
+                      ServerLoad(esql);
+                      break;
+                    case 12:
+                      PrepTimeReport(esql);
+                      break;
+                    case 9:
+                      isActive = false;
+                      break;
+                    default:
+                      System.out.println("Unrecognized choice!");
+                      break;
+                  }
+                } finally {
+                  CafeEvents.end(event);
+                  Tracer.end(span);
                 }
               }
               break;
@@ -439,43 +1184,305 @@ public class Cafe {
       System.err.println(e.getMessage());
     } finally {
       try {
+        if (maintenance != null) {
+          maintenance.stop();
+        }
+        if (prepTimes != null) {
+          prepTimes.stop();
+        }
+        if (itemEvents != null) {
+          itemEvents.close();
+        }
+        Tracer.close();
+        if (journal != null) {
+          journal.close();
+        }
         if (esql != null) {
+          esql.saveSnapshot();
           System.out.print("Disconnecting from database...");
           esql.cleanup();
           System.out.println("Done\n\nBye !");
         }
       } catch (Exception e) {
       }
-    }
+    }
+  }
+
+  /*
+   * Runs the commands in the given file, or stdin for "-", through a
+   * BatchRunner. See BatchRunner for the command format.
+   **/
+  public static void runBatch(Cafe esql, String source) throws Exception {
+    if (esql.isEmbedded()) {
+      System.err.println("Batch mode needs a database connection");
+      return;
+    }
+    BufferedReader reader = source.equals("-") ? in
+        : new BufferedReader(new FileReader(source));
+    try {
+      new BatchRunner(esql, System.out,
+          Integer.getInteger("cafe.batch.size", 100)).run(reader);
+    } finally {
+      if (reader != in)
+        reader.close();
+    }
+  }
+
+  public static void Greeting() {
+    System.out.println(
+        "\n\n*******************************************************\n" +
+            "              User Interface      	               \n" +
+            "*******************************************************\n");
+  } // end Greeting
+
+  // the operation behind each menu choice, traced by name
+  private static final String[] MAIN_OPERATIONS = { null, "CreateUser",
+      "LogIn" };
+
+  private static final String[] CUSTOMER_OPERATIONS = { "Menu",
+      "SearchMenuByName", "SearchMenuByType", "PlaceOrder", "UpdateOrder",
+      "ViewOrderHistory", "ViewOrderStatus", "UpdateUserInformation" };
+
+  private static final String[] EMPLOYEE_OPERATIONS = { "Menu",
+      "SearchMenuByName", "SearchMenuByType", "PlaceOrder",
+      "UpdateOrderByCafe", "ViewCurrentOrders", "ViewOrderStatus",
+      "UpdateUserInformation" };
+
+  private static final String[] MANAGER_OPERATIONS = { "Menu",
+      "SearchMenuByName", "SearchMenuByType", "PlaceOrder",
+      "UpdateOrderByCafe", "ViewCurrentOrders", "ViewOrderStatus",
+      "UpdateUserInformationByManager", "UpdateMenu", null, "SalesReports",
+      "ServerLoad", "PrepTimeReport" };
+
+  /*
+   * The operation of a menu choice, null for logging out or an unknown
+   * choice.
+   */
+  private static String operation(String[] operations, int choice) {
+    if (choice < 0 || choice >= operations.length)
+      return null;
+    return operations[choice];
+  }
+
+  /*
+   * Reads the users choice given from the keyboard
+   *
+   * @int
+   **/
+  public static int readChoice() {
+    int input;
+    // returns only if a correct value is given.
+    do {
+      System.out.print("Please make your choice: ");
+      try { // read the integer, parse it and break.
+        input = Integer.parseInt(in.readLine());
+        break;
+      } catch (Exception e) {
+        System.out.println("Your input is invalid!");
+        continue;
+      } // end try
+    } while (true);
+    return input;
+  } // end readChoice
+
+  /*
+   * Reads how many units of an item to order; an empty line means one
+   *
+   * @int
+   **/
+  public static int readQuantity() {
+    int input;
+    // returns only if a correct value is given.
+    do {
+      System.out.print("Enter quantity (default 1): ");
+      try {
+        String line = in.readLine().trim();
+        input = line.length() == 0 ? 1 : Integer.parseInt(line);
+        if (input > 0)
+          break;
+        System.out.println("Your input is invalid!");
+      } catch (Exception e) {
+        System.out.println("Your input is invalid!");
+      } // end try
+    } while (true);
+    return input;
+  } // end readQuantity
+
+  interface OrderRequest {
+    OrderReceipt send() throws SQLException;
+  }
+
+  // the last order request that failed and its key; placing the same
+  // request again reuses the key, so one that went through before the
+  // failure is not made twice
+  private static String failedRequest = null;
+  private static UUID failedKey = null;
+
+  /*
+   * Sends a keyed order request, and sends it again with the same keys when
+   * it was rolled back in a way another try may get past (deadlocked,
+   * serialization failure, statement timeout) or the connection was lost
+   * (class 08), up to cafe.requestKeys.attempts tries (default 3). A lost
+   * connection is opened again before the next try. A try that went
+   * through before the failure is replayed, not repeated.
+   **/
+  static OrderReceipt submit(Cafe esql, OrderRequest request)
+      throws SQLException {
+    int attempts = Math.max(1,
+        Integer.getInteger("cafe.requestKeys.attempts", 3));
+    for (int i = 1;; i++) {
+      try {
+        return request.send();
+      } catch (SQLException e) {
+        String state = e.getSQLState();
+        boolean lost = state != null && state.startsWith("08");
+        if (i >= attempts || state == null || !(lost
+            || state.startsWith("40") || state.equals("57014")))
+          throw e;
+        System.err.println(e.getMessage() + " (trying again)");
+        if (lost)
+          esql.reconnect();
+      }
+    }
+  } // end submit
+
+  /*
+   * Submits an interactive order request under the key of the same request
+   * if it failed last time, or under a new one.
+   **/
+  private static OrderReceipt submit(Cafe esql, String request,
+      Function<UUID, OrderRequest> keyed) throws SQLException {
+    UUID key = request.equals(failedRequest) ? failedKey : UUID.randomUUID();
+    try {
+      OrderReceipt receipt = submit(esql, keyed.apply(key));
+      failedRequest = null;
+      return receipt;
+    } catch (SQLException e) {
+      failedRequest = request;
+      failedKey = key;
+      throw e;
+    }
+  } // end submit
+
+  /*
+   * Creates an order with units of a menu item in it, in one transaction.
+   *
+   * @return the new order and its total, or null when the item is no
+   *         longer on the menu
+   **/
+  private static OrderReceipt placeOrder(Cafe esql, CafeStore store,
+      String login, MenuItem item, int quantity, Timestamp now)
+      throws SQLException {
+    return submit(esql, "order " + login + " " + item.itemName() + " "
+        + quantity, key -> () -> store.orders().create(key, login, now,
+            item.itemName(), quantity, OrderLine.NOT_STARTED));
+  } // end placeOrder
+
+  /*
+   * Adds units of a menu item to an unpaid order and charges them.
+   *
+   * @return the order's new total, or null when the order is gone or paid
+   **/
+  private static OrderReceipt addItem(Cafe esql, CafeStore store,
+      int orderid, MenuItem item, int quantity, Timestamp now)
+      throws SQLException {
+    return submit(esql, "add " + orderid + " " + item.itemName() + " "
+        + quantity, key -> () -> store.items().add(key, orderid,
+            item.itemName(), quantity, now, OrderLine.NOT_STARTED));
+  } // end addItem
+
+  /*
+   * Marks an order paid or not paid, as of the total last shown to the
+   * user. Changes made since that left the total alone are merged by
+   * trying again on the order as it is now; a changed total is a
+   * conflict, reported so the user can check the order again.
+   *
+   * @return true when the order now has the paid status asked for
+   **/
+  private static boolean setPaid(CafeStore store, Order shown, boolean paid)
+      throws SQLException {
+    Order[] order = { shown };
+    int written = OptimisticRetry.run(() -> {
+      if (order[0] == null) {
+        order[0] = store.orders().find(shown.orderid());
+        if (order[0] == null || order[0].total() != shown.total())
+          return OptimisticRetry.GIVE_UP;
+        if (order[0].paid() == paid)
+          return 1;
+      }
+      int count = store.orders().setPaid(shown.orderid(), paid,
+          order[0].version());
+      if (count == 0)
+        order[0] = null;
+      return count;
+    });
+    if (written > 0)
+      return true;
+    Order now = order[0] == null ? store.orders().find(shown.orderid())
+        : order[0];
+    if (now == null)
+      System.out.println("ERROR: order id not found");
+    else if (now.total() != shown.total())
+      System.out.printf(
+          "ERROR: the total changed from $%.2f to $%.2f, please check the order again\n",
+          shown.total(), now.total());
+    else
+      System.out.println("ERROR: the order is being changed, please try again");
+    return false;
+  } // end setPaid
+
+  private interface LineChange {
+    int to(OrderLine line) throws SQLException;
   }
 
-  public static void Greeting() {
-    System.out.println(
-        "\n\n*******************************************************\n" +
-            "              User Interface      	               \n" +
-            "*******************************************************\n");
-  } // end Greeting
-
   /*
-   * Reads the users choice given from the keyboard
+   * Changes an order line with an update conditional on the version last
+   * shown to the user. A change made since that left the line's units as
+   * shown (new comments, say) is merged by making the change again on the
+   * line as it is now; any other change is a conflict, reported with the
+   * line as it is now so the user can decide again.
    *
-   * @int
+   * @param shown the lines last shown by item name, refreshed with the line
+   * @return true when the change was made
    **/
-  public static int readChoice() {
-    int input;
-    // returns only if a correct value is given.
-    do {
-      System.out.print("Please make your choice: ");
-      try { // read the integer, parse it and break.
-        input = Integer.parseInt(in.readLine());
-        break;
-      } catch (Exception e) {
-        System.out.println("Your input is invalid!");
-        continue;
-      } // end try
-    } while (true);
-    return input;
-  } // end readChoice
+  private static boolean changeLine(CafeStore store,
+      Map<String, OrderLine> shown, String itemName, LineChange change)
+      throws SQLException {
+    OrderLine seen = shown.get(itemName);
+    if (seen == null) {
+      System.out.println("ERROR: item not found in this order");
+      return false;
+    }
+    OrderLine[] line = { seen };
+    int written = OptimisticRetry.run(() -> {
+      if (line[0] == null) {
+        line[0] = store.items().find(seen.orderid(), itemName);
+        if (line[0] == null || line[0].quantity() != seen.quantity()
+            || line[0].startedQty() != seen.startedQty()
+            || line[0].finishedQty() != seen.finishedQty())
+          return OptimisticRetry.GIVE_UP;
+      }
+      int count = change.to(line[0]);
+      if (count == 0)
+        line[0] = null;
+      return count;
+    });
+    OrderLine now = written > 0 || line[0] == null
+        ? store.items().find(seen.orderid(), itemName) : line[0];
+    if (now == null) {
+      shown.remove(itemName);
+      System.out.println("ERROR: item is no longer in this order");
+      return false;
+    }
+    shown.put(itemName, now);
+    if (written > 0)
+      return true;
+    System.out.printf(
+        "ERROR: %s was changed by someone else; it is now %s (%d of %d started, %d finished)\n",
+        itemName, now.status(), now.startedQty(), now.quantity(),
+        now.finishedQty());
+    return false;
+  } // end changeLine
 
   /*
    * Creates a new user with privided login, passowrd and phoneNum
@@ -489,18 +1496,11 @@ public class Cafe {
       System.out.print("\tEnter user phone: ");
       String phone = in.readLine();
 
-      String type = "Customer";
+      String type = UserAccount.CUSTOMER;
       String favItems = "";
 
-      String query = String.format(
-          "INSERT INTO USERS (phoneNum, login, password, favItems, type) VALUES ('%s','%s','%s','%s','%s')",
-          phone,
-          login,
-          password,
-          favItems,
-          type);
-
-      esql.executeUpdate(query);
+      esql.store().users().create(
+          new UserAccount(login, phone, password, favItems, type));
       System.out.println("User successfully created!");
     } catch (Exception e) {
       System.err.println(e.getMessage());
@@ -519,12 +1519,7 @@ public class Cafe {
       System.out.print("\tEnter user password: ");
       String password = in.readLine();
 
-      String query = String.format(
-          "SELECT * FROM USERS WHERE login = '%s' AND password = '%s'",
-          login,
-          password);
-      int userNum = esql.executeQuery(query);
-      if (userNum > 0)
+      if (esql.store().users().checkPassword(login, password))
         return login;
       else {
         System.out.println("Incorrect login or password!");
@@ -539,14 +1534,10 @@ public class Cafe {
   // Rest of the functions definition go in here
 
   public static String UserType(Cafe esql) {
-    String type;
     try {
-      String query = String.format(
-          "SELECT type FROM Users WHERE login = '%s';",
-          authorisedUser);
-      List<List<String>> result = esql.executeQueryAndReturnResult(query);
-      if (result.size() > 0) {
-        type = result.get(0).get(0);
+      String type = esql.store().users().type(authorisedUser);
+      if (type != null) {
+        return type;
       } else {
         System.err.println("Error: User not found");
         return null;
@@ -555,14 +1546,58 @@ public class Cafe {
       System.err.println(e.getMessage());
       return null;
     }
-    return type;
+  }
+
+  /*
+   * Prints rows in the same layout as executeQueryAndPrintResult: a line
+   * of column names followed by one tab separated line per row.
+   *
+   * @return the number of rows printed
+   **/
+  static int printRows(String[] columns, List<Object[]> rows) {
+    if (rows.size() > 0) {
+      for (String column : columns)
+        System.out.print(column + "\t");
+      System.out.println();
+    }
+    for (Object[] row : rows) {
+      for (Object value : row)
+        System.out.print(value + "\t");
+      System.out.println();
+    }
+    return rows.size();
+  }
+
+  static int printMenu(List<MenuItem> items) {
+    List<Object[]> rows = new ArrayList<Object[]>();
+    for (MenuItem m : items) {
+      rows.add(new Object[] { m.itemName(), m.type(), m.price(),
+          m.description(), m.imageURL() });
+    }
+    return printRows(new String[] { "itemname", "type", "price",
+        "description", "imageurl" }, rows);
+  }
+
+  static int printOrders(List<Order> orders) {
+    List<Object[]> rows = new ArrayList<Object[]>();
+    for (Order o : orders) {
+      rows.add(new Object[] { o.orderid(), o.login(), o.paid(),
+          o.timeStampRecieved(), o.total() });
+    }
+    return printRows(new String[] { "orderid", "login", "paid",
+        "timestamprecieved", "total" }, rows);
+  }
+
+  static int printFavItems(UserAccount user) {
+    List<Object[]> rows = new ArrayList<Object[]>();
+    if (user != null)
+      rows.add(new Object[] { user.favItems() });
+    return printRows(new String[] { "favitems" }, rows);
   }
 
   public static void Menu(Cafe esql) {
     try {
-      String query = "SELECT * FROM Menu";
-
-      int rowCount = esql.executeQueryAndPrintResult(query);
+      printMenu(esql.store().menu().all());
     } catch (Exception e) {
       System.err.println(e.getMessage());
     }
@@ -570,13 +1605,12 @@ public class Cafe {
 
   public static void SearchMenuByName(Cafe esql) {
     try {
-      String query = "SELECT * FROM Menu WHERE itemName= ";
       System.out.print("\tEnter itemName: ");
       String input = in.readLine();
-      input = "'" + input + "';";
-      query += input;
 
-      int rowCount = esql.executeQueryAndPrintResult(query);
+      MenuItem item = esql.store().menu().find(input);
+      if (item != null)
+        printMenu(Collections.singletonList(item));
     } catch (Exception e) {
       System.err.println(e.getMessage());
     }
@@ -584,13 +1618,10 @@ public class Cafe {
 
   public static void SearchMenuByType(Cafe esql) {
     try {
-      String query = "SELECT * FROM Menu WHERE type= ";
       System.out.print("\tEnter type: ");
       String input = in.readLine();
-      input = "'" + input + "';";
-      query += input;
 
-      int rowCount = esql.executeQueryAndPrintResult(query);
+      printMenu(esql.store().menu().byType(input));
     } catch (Exception e) {
       System.err.println(e.getMessage());
     }
@@ -621,15 +1652,19 @@ public class Cafe {
    */
 
   public static Integer PlaceOrder(Cafe esql) {
+    if (journal != null)
+      return PlaceJournaledOrder(esql);
+
     /* declare variables */
     boolean isOrdering = true;
     boolean orderPlaced = false;
     Integer orderid = 0;
-    int querySize;
-    String query;
     String item;
-    float price;
+    MenuItem menuItem;
+    int quantity;
     float OrderTotal = 0;
+    Timestamp now;
+    CafeStore store = esql.store();
 
     try {
       while (isOrdering) {
@@ -658,45 +1693,24 @@ public class Cafe {
               System.out.println("ERROR: no input detected.");
               break;
             }
-            query = "SELECT * FROM Menu WHERE itemName=";
-            query += "'" + item + "';";
-            querySize = esql.executeQuery(query);
-            if (querySize > 0) {
-              query = "SELECT price FROM Menu WHERE itemName=";
-              query += "'" + item + "';";
-              List<List<String>> result = esql.executeQueryAndReturnResult(
-                  query);
-              if (result.size() > 0) {
-                String temp = result.get(0).get(0);
-                price = Float.parseFloat(temp);
-              } else {
+            menuItem = store.menu().find(item);
+            if (menuItem != null) {
+              quantity = readQuantity();
+              now = now();
+              System.out.println(now);
+              OrderReceipt receipt = placeOrder(esql, store, authorisedUser,
+                  menuItem, quantity, now);
+              if (receipt == null) {
                 System.out.println("ERROR: item not found");
                 break;
               }
-              System.out.println(createdAt);
-              query = String.format(
-                  "INSERT INTO Orders (login, paid, timeStampRecieved, total) VALUES ('%s', 'false', '%s', '%s')",
-                  authorisedUser,
-                  createdAt,
-                  price);
-              esql.executeUpdate(query);
-
-              String sequence = "Orders_orderid_seq";
-              orderid = esql.getCurrSeqVal(sequence);
-
-              query = String.format(
-                  "INSERT INTO ItemStatus (orderid, itemName, lastUpdated, status) VALUES ('%s', '%s', '%s', 'Hasn''t started')",
-                  orderid,
-                  item,
-                  createdAt);
-
-              esql.executeUpdate(query);
+              orderid = receipt.orderid();
               System.out.printf(
                   "Success! Item %s has been added to orderID %s at %s.\n",
                   item,
                   orderid,
-                  createdAt);
-              OrderTotal += price;
+                  now);
+              OrderTotal = receipt.total();
               System.out.printf("Your current total is: $%.2f\n", OrderTotal);
               orderPlaced = true;
               break;
@@ -717,53 +1731,23 @@ public class Cafe {
                 System.out.println("ERROR: no input detected.");
                 break;
               }
-              query = String.format("SELECT * FROM Menu WHERE itemName='%s'", item);
-              querySize = esql.executeQuery(query);
-              if (querySize > 0) {
-                String sequence = "Orders_orderid_seq";
-                orderid = esql.getCurrSeqVal(sequence);
-                query = String.format(
-                    "INSERT INTO ItemStatus (orderid, itemName, lastUpdated, status) VALUES ('%s', '%s', '%s', 'Hasn''t Started')",
-                    orderid,
-                    item,
-                    createdAt);
-                esql.executeUpdate(query);
-
-                query = String.format(
-                    "SELECT price FROM Menu WHERE itemName='%s'",
-                    item);
-                List<List<String>> result = esql.executeQueryAndReturnResult(
-                    query);
-                if (result.size() > 0) {
-                  String temp = result.get(0).get(0);
-                  price = Float.parseFloat(temp);
-                } else {
-                  System.out.println("ERROR: item not found");
-                  break;
-                }
-
-                query = String.format(
-                    "SELECT total FROM Orders WHERE orderid='%s'",
-                    orderid);
-                result = esql.executeQueryAndReturnResult(query);
-                if (result.size() > 0) {
-                  String temp = result.get(0).get(0);
-                  OrderTotal = Float.parseFloat(temp);
-                } else {
-                  System.out.println("ERROR: Could not update total");
+              menuItem = store.menu().find(item);
+              if (menuItem != null) {
+                quantity = readQuantity();
+                now = now();
+                OrderReceipt receipt = addItem(esql, store, orderid,
+                    menuItem, quantity, now);
+                if (receipt == null) {
+                  System.out.println(
+                      "ERROR: Could not update total, the order was paid");
                   break;
                 }
-                OrderTotal = OrderTotal + price;
-                query = String.format(
-                    "UPDATE Orders SET total='%s' WHERE orderid='%s'",
-                    OrderTotal,
-                    orderid);
-                esql.executeUpdate(query);
+                OrderTotal = receipt.total();
                 System.out.printf(
                     "Success! Item %s has been added to orderID %s at %s.\n",
                     item,
                     orderid,
-                    createdAt);
+                    now);
                 System.out.printf("Your current total is: $%.2f\n", OrderTotal);
                 break;
               } else {
@@ -792,14 +1776,94 @@ public class Cafe {
     return orderid;
   }
 
+  /*
+   * PlaceOrder when the order journal is enabled: items are collected
+   * locally and the whole order is appended to the journal on finish, so
+   * the customer is not kept waiting on the database. The order id is
+   * assigned when the journal is drained; the receipt number identifies
+   * the order until then.
+   *
+   * @return 0 once the order is accepted, or null on error
+   */
+  public static Integer PlaceJournaledOrder(Cafe esql) {
+    boolean isOrdering = true;
+    String item;
+    MenuItem menuItem;
+    OrderJournal.Entry order = new OrderJournal.Entry();
+    order.login = authorisedUser;
+
+    try {
+      while (isOrdering) {
+        System.out.println("\nPLACE AN ORDER");
+        System.out.println("----------------");
+        System.out.println("0. View Menu");
+        System.out.println("1. Add an item to your order");
+        System.out.println("---------------------------------");
+        System.out.println("9. Finish Ordering");
+
+        switch (readChoice()) {
+          case 0:
+            Menu(esql);
+            break;
+          case 1:
+            System.out.println(
+                "Please enter the ITEM NAME you would like to add to your order");
+            System.out.println(
+                "Note: item names are case sensitive and must be spelled correctly, refer to menu if needed");
+            System.out.print("Enter item name: ");
+            item = in.readLine();
+            System.out.print("\n");
+            if (item.length() == 0) {
+              System.out.println("ERROR: no input detected.");
+              break;
+            }
+            menuItem = esql.store().menu().find(item);
+            if (menuItem == null) {
+              System.out.println("ERROR: item not found");
+              break;
+            }
+            // the journal keeps one entry per unit
+            for (int i = readQuantity(); i > 0; i--) {
+              order.items.add(item);
+              order.prices.add(menuItem.price());
+            }
+            System.out.printf("Success! Item %s has been added to your order.\n", item);
+            System.out.printf("Your current total is: $%.2f\n", order.total());
+            break;
+          case 9:
+            isOrdering = false;
+            break;
+          default:
+            System.out.println("Unrecognized choice!");
+            break;
+        }
+      }
+      if (order.items.size() == 0)
+        return 0;
+      try {
+        long receipt = journal.append(order);
+        System.out.printf("Order accepted, receipt number %d.\n", receipt);
+      } catch (java.io.IOException e) {
+        // journal unavailable, write the order directly
+        System.out.printf("Order placed as orderID %s.\n",
+            OrderJournal.insert(esql, order));
+      }
+      System.out.printf("Grand total: $%.2f\n", order.total());
+    } catch (Exception e) {
+      System.err.println(e.getMessage());
+      return null;
+    }
+    return 0;
+  }
+
+
   public static void UpdateOrder(Cafe esql) {
     boolean isMenuOpen = true;
-    String query;
-    int querySize;
     String item;
-    String status;
-    float price;
+    MenuItem menuItem;
     float OrderTotal = 0;
+    Timestamp now;
+    CafeStore store = esql.store();
 
     try {
       while (isMenuOpen) {
@@ -818,25 +1882,25 @@ public class Cafe {
               System.out.print("ERROR: invalid input");
               break;
             }
-            query = String.format(
-                "SELECT * FROM Orders WHERE login = '%s' AND orderid = '%s' AND paid='false'",
-                authorisedUser,
-                inputOrderID);
-            int check = esql.executeQuery(query);
-            if (check <= 0) {
+            Order order = store.orders().find(inputOrderID);
+            if (order == null || order.paid()
+                || !order.login().equals(authorisedUser)) {
               System.out.println("ERROR: order not found");
               break;
             } else {
-              query = String.format(
-                  "SELECT I.itemName, I.comments FROM ItemStatus I, Orders O WHERE I.orderid=O.orderid AND O.login = '%s' AND O.orderid='%s' AND I.status='Hasn''t Started'",
-                  authorisedUser,
-                  inputOrderID);
+              List<Object[]> rows = new ArrayList<Object[]>();
+              for (OrderLine line : store.items().byOrder(inputOrderID)) {
+                if (OrderLine.NOT_STARTED.equalsIgnoreCase(line.status()))
+                  rows.add(new Object[] { line.itemName(), line.quantity(),
+                      line.comments() });
+              }
               System.out.println("THIS IS YOUR CURRENT ORDER");
               System.out.println(
                   "NOTE: Only items that can be updated are displayed");
               System.out.println(
                   "-------------------------------------------------------");
-              int temp1 = esql.executeQueryAndPrintResult(query);
+              int temp1 = printRows(
+                  new String[] { "itemname", "quantity", "comments" }, rows);
               if (!(temp1 > 0)) {
                 System.out.println("No items to update");
                 break;
@@ -866,51 +1930,23 @@ public class Cafe {
                     System.out.println("ERROR: no input detected.");
                     break;
                   }
-                  query = String.format("SELECT * FROM Menu WHERE itemName='%s'", item);
-                  querySize = esql.executeQuery(query);
-                  if (querySize > 0) {
-                    query = String.format(
-                        "INSERT INTO ItemStatus (orderid, itemName, lastUpdated, status) VALUES ('%s', '%s', '%s', 'Hasn''t Started')",
-                        inputOrderID,
-                        item,
-                        createdAt);
-                    esql.executeUpdate(query);
-
-                    query = String.format(
-                        "SELECT price FROM Menu WHERE itemName='%s'",
-                        item);
-                    List<List<String>> result = esql.executeQueryAndReturnResult(
-                        query);
-                    if (result.size() > 0) {
-                      String temp = result.get(0).get(0);
-                      price = Float.parseFloat(temp);
-                    } else {
-                      System.out.println("ERROR: item not found");
-                      break;
-                    }
-
-                    query = String.format(
-                        "SELECT total FROM Orders WHERE orderid='%s'",
-                        inputOrderID);
-                    result = esql.executeQueryAndReturnResult(query);
-                    if (result.size() > 0) {
-                      String temp = result.get(0).get(0);
-                      OrderTotal = Float.parseFloat(temp);
-                    } else {
-                      System.out.println("ERROR: Could not update total");
+                  menuItem = store.menu().find(item);
+                  if (menuItem != null) {
+                    int quantity = readQuantity();
+                    now = now();
+                    OrderReceipt receipt = addItem(esql, store,
+                        inputOrderID, menuItem, quantity, now);
+                    if (receipt == null) {
+                      System.out.println(
+                          "ERROR: Could not update total, the order was paid");
                       break;
                     }
-                    OrderTotal = OrderTotal + price;
-                    query = String.format(
-                        "UPDATE Orders SET total='%s' WHERE orderid='%s'",
-                        OrderTotal,
-                        inputOrderID);
-                    esql.executeUpdate(query);
+                    OrderTotal = receipt.total();
                     System.out.printf(
                         "Success! Item %s has been added to orderID %s at %s.\n",
                         item,
                         inputOrderID,
-                        createdAt);
+                        now);
                     System.out.printf("Your current total is: $%.2f\n", OrderTotal);
                     break;
                   } else {
@@ -921,24 +1957,26 @@ public class Cafe {
                   System.out.print(
                       "Please enter the item name that you would like to update: ");
                   item = in.readLine();
-                  query = String.format(
-                      "SELECT * FROM ItemStatus WHERE orderid='%s' AND itemName='%s'",
-                      inputOrderID,
-                      item);
-                  int check2 = esql.executeQuery(query);
-                  if (!(check2 > 0)) {
+                  if (store.items().find(inputOrderID, item) == null) {
                     System.out.println(
                         "ERROR: item does not exist/cannot be updated");
                     break;
                   }
                   System.out.print("Please enter the new comment: ");
                   String userInput = in.readLine();
-                  query = String.format(
-                      "UPDATE ItemStatus SET comments='%s' WHERE orderid = '%s' AND itemName='%s'",
-                      userInput,
-                      inputOrderID,
-                      item);
-                  esql.executeUpdate(query);
+                  int id = inputOrderID;
+                  String name = item;
+                  // comments are the customer's own, so staff changes to
+                  // the line in between are merged by trying again
+                  int written = OptimisticRetry.run(() -> {
+                    OrderLine line = store.items().find(id, name);
+                    return line == null ? OptimisticRetry.GIVE_UP
+                        : store.items().setComments(id, name, userInput,
+                            line.version());
+                  });
+                  if (written <= 0)
+                    System.out.println(
+                        "ERROR: comments not saved, please try again");
                   break;
                 case 9:
                   ismodding = false;
@@ -964,10 +2002,7 @@ public class Cafe {
 
   public static void ViewOrderHistory(Cafe esql) {
     try {
-      String query = String.format(
-          "SELECT * FROM Orders WHERE login = '%s' ORDER BY orderid desc LIMIT 5",
-          authorisedUser);
-      int rowCount = esql.executeQueryAndPrintResult(query);
+      printOrders(esql.store().orders().recentByLogin(authorisedUser, 5));
     } catch (Exception e) {
       System.err.println(e.getMessage());
     }
@@ -976,44 +2011,253 @@ public class Cafe {
   public static void ViewOrderStatus(Cafe esql) {
     try {
       String type = UserType(esql);
-      if (type.equals("Customer")) {
-        String query = String.format(
-            "SELECT I.orderid, I.itemName, I.status FROM ItemStatus I, Orders O WHERE I.orderid=O.orderid AND O.login = '%s' AND O.orderid= ",
-            authorisedUser);
-        System.out.print("Please enter your orderid: ");
-        String input = in.readLine();
-        query += input;
-        int rowCount = esql.executeQueryAndPrintResult(query);
+      CafeStore store = esql.store();
+      System.out.print("Please enter your orderid: ");
+      int orderid;
+      try {
+        orderid = Integer.parseInt(in.readLine().trim());
+      } catch (NumberFormatException e) {
+        orderid = -1;
+      }
+      List<Object[]> rows = new ArrayList<Object[]>();
+      WaitTimeEstimator estimator = esql.estimator();
+      if (type.equals(UserAccount.CUSTOMER)) {
+        if (estimator != null && estimator.knows(orderid)
+            && authorisedUser.equals(estimator.loginOf(orderid))) {
+          final int id = orderid;
+          estimator.forEachLine(orderid,
+              (itemName, quantity, started, finished, eta) ->
+                  rows.add(new Object[] { id, itemName, quantity,
+                      OrderLine.statusOf(quantity, started, finished),
+                      minutes(eta) }));
+          printRows(new String[] { "orderid", "itemname", "quantity", "status",
+              "ready in" }, rows);
+          printEstimate(estimator.etaMillis(orderid));
+          return;
+        }
+        Order order = store.orders().find(orderid);
+        if (order != null && order.login().equals(authorisedUser)) {
+          for (OrderLine line : store.items().byOrder(orderid))
+            rows.add(new Object[] { line.orderid(), line.itemName(),
+                line.quantity(), line.status() });
+        }
+        int rowCount = printRows(
+            new String[] { "orderid", "itemname", "quantity", "status" }, rows);
         if (rowCount == 0) {
           System.out.println(
               "ERROR: order not found or you have not placed that orders");
         }
       } else {
-        String query = "SELECT itemName, status FROM ItemStatus WHERE orderid= ";
-        System.out.print("Please enter your orderid: ");
-        String input = in.readLine();
-        query += input;
-        int rowCount = esql.executeQueryAndPrintResult(query);
+        OpenOrders open = esql.openOrders();
+        if (open != null && open.contains(orderid)) {
+          System.out.println("itemname\tquantity\tstarted\tfinished\tstatus\t");
+          open.forEachLine(orderid,
+              (id, itemName, status, quantity, started, finished, updated) ->
+                  System.out.println(itemName + "\t" + quantity + "\t" + started
+                      + "\t" + finished + "\t" + status + "\t"));
+          if (estimator != null)
+            printEstimate(estimator.etaMillis(orderid));
+          return;
+        }
+        for (OrderLine line : store.items().byOrder(orderid))
+          rows.add(new Object[] { line.itemName(), line.quantity(),
+              line.startedQty(), line.finishedQty(), line.status() });
+        printRows(new String[] { "itemname", "quantity", "started", "finished",
+            "status" }, rows);
+        if (estimator != null)
+          printEstimate(estimator.etaMillis(orderid));
       }
     } catch (Exception e) {
       System.err.println(e.getMessage());
     }
   }
 
+  private static String minutes(long millis) {
+    if (millis <= 0)
+      return "ready";
+    return ((millis + 59999) / 60000) + " min";
+  }
+
+  /*
+   * Prints the estimate of an order tracked by the WaitTimeEstimator.
+   */
+  private static void printEstimate(long etaMillis) {
+    if (etaMillis > 0)
+      System.out.println("Estimated ready in " + minutes(etaMillis));
+    else if (etaMillis == 0)
+      System.out.println("Your order is ready.");
+  }
+
   public static void ViewCurrentOrders(Cafe esql) {
     try {
-      String query = "SELECT * FROM Orders WHERE paid=false AND timeStampRecieved>=NOW()-'1 day'::INTERVAL";
-      int rowCount = esql.executeQueryAndPrintResult(query);
+      OpenOrders open = esql.openOrders();
+      if (open != null) {
+        long since = System.currentTimeMillis() - HotOrderStore.DAY_MILLIS;
+        if (open.countCurrent(since) > 0)
+          System.out.println("orderid\tlogin\tpaid\ttimestamprecieved\ttotal\t");
+        open.forEachCurrent(since, (orderid, login, paid, received, cents) ->
+            System.out.printf("%d\t%s\t%s\t%s\t%d.%02d\t\n", orderid, login,
+                paid, new Timestamp(received), cents / 100, cents % 100));
+        return;
+      }
+      printOrders(esql.store().orders().current());
+    } catch (Exception e) {
+      System.err.println(e.getMessage());
+    }
+  }
+
+  public static void SalesReports(Cafe esql) {
+    String from, to;
+    boolean isActive = true;
+    if (esql.isEmbedded()) {
+      System.out.println("Sales reports need the database.");
+      return;
+    }
+    ShardRouter shards = esql.shards();
+    Bulkhead.Lane lane = Bulkhead.use(Bulkhead.Lane.REPORT);
+    while (isActive) {
+      try {
+        System.out.println("SALES REPORTS");
+        System.out.println("---------------");
+        System.out.println("1. Revenue by hour");
+        System.out.println("2. Revenue by day");
+        System.out.println("3. Units per item");
+        System.out.println("4. Units per type");
+        System.out.println("5. Summary");
+        if (shards != null) {
+          System.out.println("6. Chain revenue by store");
+          System.out.println("7. Chain units per item");
+        }
+        System.out.println(".................");
+        System.out.println("9. Done");
+        int choice = readChoice();
+        switch (choice) {
+          case 1:
+            System.out.print("Please enter the day (yyyy-mm-dd): ");
+            from = in.readLine();
+            if (esql.executeReadQueryAndPrintResult(
+                String.format(SalesReport.REVENUE_BY_HOUR,
+                    SalesReport.day(from))) == 0) {
+              System.out.println("No sales on that day.");
+            }
+            break;
+          case 2:
+            System.out.print("Please enter the first day (yyyy-mm-dd): ");
+            from = in.readLine();
+            System.out.print("Please enter the last day (yyyy-mm-dd): ");
+            to = in.readLine();
+            if (esql.executeReadQueryAndPrintResult(
+                String.format(SalesReport.REVENUE_BY_DAY,
+                    SalesReport.day(from), SalesReport.day(to))) == 0) {
+              System.out.println("No sales in that range.");
+            }
+            break;
+          case 3:
+            esql.executeReadQueryAndPrintResult(SalesReport.ITEM_MIX);
+            break;
+          case 4:
+            esql.executeReadQueryAndPrintResult(SalesReport.TYPE_MIX);
+            break;
+          case 5:
+            esql.executeReadQueryAndPrintResult(SalesReport.SUMMARY);
+            break;
+          case 6:
+          case 7:
+            if (shards == null) {
+              System.out.println("Unrecognized choice!");
+              break;
+            }
+            List<SalesReport.ChainRow> rows;
+            if (choice == 6) {
+              System.out.print("Please enter the first day (yyyy-mm-dd): ");
+              from = in.readLine();
+              System.out.print("Please enter the last day (yyyy-mm-dd): ");
+              to = in.readLine();
+              rows = SalesReport.chainByStore(esql, from, to);
+              System.out.println("storeId\torders\trevenue");
+            } else {
+              rows = SalesReport.chainItemMix(esql);
+              System.out.println("itemName\tunits\trevenue");
+            }
+            for (SalesReport.ChainRow row : rows)
+              System.out.println(row.key() + "\t" + row.count() + "\t"
+                  + row.revenue());
+            if (!shards.missing().isEmpty())
+              System.out.println("Not included, shard unreachable: stores "
+                  + shards.missing());
+            break;
+          case 9:
+            isActive = false;
+            break;
+          default:
+            System.out.println("Unrecognized choice!");
+            break;
+        }
+      } catch (Exception e) {
+        System.err.println(e.getMessage());
+      }
+    }
+    Bulkhead.restore(lane);
+  }
+
+  /**
+   * Shows the admission control lanes and the query cache counters.
+   */
+  public static void ServerLoad(Cafe esql) {
+    Bulkhead bulkhead = bulkhead();
+    if (bulkhead == null)
+      System.out.println("Admission control is off (-Dcafe.bulkhead=true).");
+    else
+      System.out.print(bulkhead);
+    QueryCache cache = queryCache();
+    if (cache != null)
+      System.out.println("query cache hits " + cache.hits() + " misses "
+          + cache.misses());
+    ItemStatusEvents events = ItemStatusEvents.active();
+    if (events != null)
+      System.out.println("item status events written " + events.written()
+          + " dropped " + events.dropped());
+    Tracer tracer = Tracer.active();
+    if (tracer != null)
+      System.out.println("trace spans exported " + tracer.exported()
+          + " dropped " + tracer.dropped());
+    System.out.println("update conflicts " + OptimisticRetry.conflicts()
+        + " given up after retries " + OptimisticRetry.exhausted());
+  }
+
+  /**
+   * Shows the p50, p95 and p99 seconds from an order being received to
+   * its units being started and finished, per menu type and per item.
+   * The figures lag the event log by up to a couple of minutes, see
+   * PrepTimes.
+   */
+  public static void PrepTimeReport(Cafe esql) {
+    if (esql.isEmbedded()) {
+      System.out.println("Preparation times need the database.");
+      return;
+    }
+    Bulkhead.Lane lane = Bulkhead.use(Bulkhead.Lane.REPORT);
+    try {
+      System.out.println("Seconds from order to start and finish, by type");
+      if (esql.executeReadQueryAndPrintResult(PrepTimes.BY_TYPE) == 0) {
+        System.out.println("No preparation times recorded yet"
+            + " (run with -Dcafe.itemEvents=true).");
+        return;
+      }
+      System.out.println("By item");
+      esql.executeReadQueryAndPrintResult(PrepTimes.BY_ITEM);
     } catch (Exception e) {
       System.err.println(e.getMessage());
+    } finally {
+      Bulkhead.restore(lane);
     }
   }
 
+
   public static void UpdateMenu(Cafe esql) {
-    String query;
     String itemName, itemDescription, itemType, itemImageURL;
     float itemPrice;
-    int value;
+    MenuRepository menu = esql.store().menu();
     boolean isActive = true;
     while (isActive) {
       try {
@@ -1022,6 +2266,8 @@ public class Cafe {
         System.out.println("1. Add item");
         System.out.println("2. Delete item");
         System.out.println("3. Update item");
+        System.out.println("4. Reprice items by type");
+        System.out.println("5. Import menu file");
         System.out.println(".................");
         System.out.println("9. Done updating");
         switch (readChoice()) {
@@ -1050,24 +2296,15 @@ public class Cafe {
             System.out.println("Enter the image URL: ");
             itemImageURL = in.readLine();
 
-            query = String.format(
-                "INSERT INTO Menu (itemName, type, price, description, imageURL) VALUES ('%s', '%s', '%s', '%s', '%s')",
-                itemName,
-                itemType,
-                itemPrice,
-                itemDescription,
-                itemImageURL);
-            esql.executeUpdate(query);
+            menu.add(new MenuItem(itemName, itemType, itemPrice,
+                itemDescription, itemImageURL));
             System.out.println("Added item to menu.");
             break;
           case 2:
             System.out.print("Please enter the item name: ");
             itemName = in.readLine();
-            query = String.format("SELECT * FROM Menu WHERE itemName='%s'", itemName);
-            value = esql.executeQuery(query);
-            if (value > 0) {
-              query = String.format("DELETE FROM Menu WHERE itemName='%s'", itemName);
-              esql.executeUpdate(query);
+            if (menu.find(itemName) != null) {
+              menu.delete(itemName);
               System.out.println("Item deleted from menu.");
               break;
             } else {
@@ -1077,9 +2314,7 @@ public class Cafe {
           case 3:
             System.out.print("Please enter the item name: ");
             itemName = in.readLine();
-            query = String.format("SELECT * FROM Menu WHERE itemName='%s'", itemName);
-            value = esql.executeQuery(query);
-            if (value > 0) {
+            if (menu.find(itemName) != null) {
               boolean up_menu = true;
               while (up_menu) {
                 System.out.println("UPDATE ITEM");
@@ -1098,11 +2333,7 @@ public class Cafe {
                       System.out.println("ERROR: no input provided");
                       break;
                     }
-                    query = String.format(
-                        "UPDATE Menu SET type='%s' WHERE itemName='%s'",
-                        itemType,
-                        itemName);
-                    esql.executeUpdate(query);
+                    menu.setType(itemName, itemType);
                     System.out.println("Item type updated.");
                     break;
                   case 2:
@@ -1113,31 +2344,19 @@ public class Cafe {
                       System.out.println("ERROR: invalid input");
                       break;
                     }
-                    query = String.format(
-                        "UPDATE Menu SET price='%s' WHERE itemName='%s'",
-                        itemPrice,
-                        itemName);
-                    esql.executeUpdate(query);
+                    menu.setPrice(itemName, itemPrice);
                     System.out.print("Item price updated.");
                     break;
                   case 3:
                     System.out.print("Please enter the new description: ");
                     itemDescription = in.readLine();
-                    query = String.format(
-                        "UPDATE Menu SET description='%s' WHERE itemName='%s'",
-                        itemDescription,
-                        itemName);
-                    esql.executeUpdate(query);
+                    menu.setDescription(itemName, itemDescription);
                     System.out.println("Item description updated.");
                     break;
                   case 4:
                     System.out.print("Please enter the new image URL: ");
                     itemImageURL = in.readLine();
-                    query = String.format(
-                        "UPDATE Menu SET imageURL='%s' WHERE itemName='%s'",
-                        itemImageURL,
-                        itemName);
-                    esql.executeUpdate(query);
+                    menu.setImageURL(itemName, itemImageURL);
                     System.out.println("Item image URL updated.");
                     break;
                   case 9:
@@ -1150,8 +2369,45 @@ public class Cafe {
               }
             } else {
               System.out.println("ERROR: item does not exist");
+            }
+            break;
+          case 4:
+            System.out.print("Please enter the item type (empty for all items): ");
+            itemType = in.readLine().trim();
+            System.out.println("1. Change by percentage");
+            System.out.println("2. Change by fixed amount");
+            int mode = readChoice();
+            if (mode != 1 && mode != 2) {
+              System.out.println("Unrecognized choice!");
+              break;
+            }
+            System.out.print(mode == 1 ? "Please enter the percentage (e.g. 10 or -5): "
+                : "Please enter the amount (e.g. 0.25 or -0.10): ");
+            float amount;
+            try {
+              amount = Float.parseFloat(in.readLine());
+            } catch (Exception e) {
+              System.out.println("ERROR: invalid input");
+              break;
+            }
+            applyMenuChanges(menu, MenuChange.repricing(menu.all(),
+                itemType.length() == 0 ? null : itemType, mode == 1, amount));
+            break;
+          case 5:
+            System.out.print("Please enter the menu file path: ");
+            String path = in.readLine().trim();
+            List<MenuItem> imported;
+            try {
+              imported = MenuChange.readMenu(new File(path));
+            } catch (java.io.IOException e) {
+              System.out.println("ERROR: " + e.getMessage());
               break;
             }
+            System.out.print("Delete items missing from the file? (y/n): ");
+            boolean deleteMissing = in.readLine().trim().equalsIgnoreCase("y");
+            applyMenuChanges(menu,
+                MenuChange.importing(menu.all(), imported, deleteMissing));
+            break;
           case 9:
             isActive = false;
             break;
@@ -1165,11 +2421,39 @@ public class Cafe {
     }
   }
 
+  /*
+   * Shows a planned bulk menu change and applies it in one transaction
+   * once confirmed; answering no leaves it as a dry run.
+   */
+  private static void applyMenuChanges(MenuRepository menu,
+      List<MenuChange> changes) throws Exception {
+    if (changes.isEmpty()) {
+      System.out.println("The menu is already up to date.");
+      return;
+    }
+    int deletes = 0;
+    for (MenuChange change : changes) {
+      System.out.println(change.describe());
+      if (change.after() == null)
+        deletes++;
+    }
+    System.out.printf("Apply these %d changes? (y/n): ", changes.size());
+    if (!in.readLine().trim().equalsIgnoreCase("y")) {
+      System.out.println("Nothing changed.");
+      return;
+    }
+    int[] counts = menu.apply(changes);
+    System.out.printf("Added or updated %d items, deleted %d.\n", counts[0],
+        counts[1]);
+    if (counts[1] < deletes)
+      System.out.printf("%d items were kept because orders refer to them.\n",
+          deletes - counts[1]);
+  }
+
   public static void UpdateUserInformation(Cafe esql) {
     boolean isActive = true;
     String inputString;
-    String query;
-    int value;
+    UserRepository users = esql.store().users();
     while (isActive) {
       try {
         System.out.println("UPDATE USER PROFILE");
@@ -1181,43 +2465,27 @@ public class Cafe {
         System.out.println("9. Done updating");
         switch (readChoice()) {
           case 1:
-            query = String.format(
-                "SELECT favItems FROM Users WHERE login='%s'",
-                authorisedUser);
             System.out.println("FAVORITE ITEMS");
             System.out.println("---------------------");
-            esql.executeQueryAndPrintResult(query);
+            printFavItems(users.find(authorisedUser));
             System.out.print("\n");
             System.out.println(
                 "Please enter the your new favorite item name: ");
             inputString = in.readLine();
-            query = String.format(
-                "UPDATE Users SET favItems='%s' WHERE login='%s'",
-                inputString,
-                authorisedUser);
-            esql.executeUpdate(query);
+            users.setFavItems(authorisedUser, inputString);
             System.out.println("Favorite item updated.");
             break;
           case 2:
             System.out.println("Please enter the old password: ");
             inputString = in.readLine();
-            query = String.format(
-                "SELECT * FROM Users WHERE login='%s' AND password='%s'",
-                authorisedUser,
-                inputString);
-            value = esql.executeQuery(query);
-            if (value > 0) {
+            if (users.checkPassword(authorisedUser, inputString)) {
               System.out.println("Please enter the new password: ");
               inputString = in.readLine();
               if (inputString.length() == 0) {
                 System.out.println("ERROR: no input provided");
                 break;
               }
-              query = String.format(
-                  "UPDATE Users SET password='%s' WHERE login='%s'",
-                  inputString,
-                  authorisedUser);
-              esql.executeUpdate(query);
+              users.setPassword(authorisedUser, inputString);
               System.out.println("Password updated.");
               break;
             } else {
@@ -1227,11 +2495,7 @@ public class Cafe {
           case 3:
             System.out.println("Please enter the new phone number: ");
             inputString = in.readLine();
-            query = String.format(
-                "UPDATE Users SET phoneNum='%s' WHERE login='%s'",
-                inputString,
-                authorisedUser);
-            esql.executeUpdate(query);
+            users.setPhoneNum(authorisedUser, inputString);
             System.out.println("Phone number updated.");
             break;
           case 9:
@@ -1248,10 +2512,10 @@ public class Cafe {
   }
 
   public static void UpdateUserInformationByManager(Cafe esql) {
-    String query;
     String input;
     String userName;
-    int value;
+    UserAccount user;
+    UserRepository users = esql.store().users();
     boolean isActive = true;
     while (isActive) {
       try {
@@ -1260,54 +2524,129 @@ public class Cafe {
         System.out.println("1. Change favorite items");
         System.out.println("2. Change password");
         System.out.println("3. Change user type");
+        System.out.println("4. Import users file");
+        System.out.println("5. Change user types in bulk");
+        System.out.println("6. Set favorite items from file");
+        System.out.println("7. Assign staff to a store");
         System.out.println("........................");
         System.out.println("9. Done updating");
         switch (readChoice()) {
           case 1:
             System.out.println("Please enter the user name: ");
             userName = in.readLine();
-            query = String.format("SELECT * FROM Users WHERE login='%s'", userName);
-            value = esql.executeQuery(query);
-            if (value > 0) {
-              query = String.format(
-                  "SELECT favItems FROM Users WHERE login='%s'",
-                  userName);
+            user = users.find(userName);
+            if (user != null) {
               System.out.println("FAVORITE ITEMS");
               System.out.println("---------------------");
-              esql.executeQueryAndPrintResult(query);
+              printFavItems(user);
               System.out.println("\n");
 
               System.out.println(
                   "Please enter the your new favorite input name: ");
               input = in.readLine();
-              query = String.format(
-                  "UPDATE Users SET favItems='%s' WHERE login='%s'",
-                  input,
-                  userName);
-              esql.executeUpdate(query);
+              users.setFavItems(userName, input);
               System.out.println("Favorite item updated.");
               break;
             } else {
               System.out.println("This user does not exist.");
               break;
             }
+          // bulk operations, kept ahead of 2 and 3 which fall through to 9
+          case 4:
+            System.out.print("Please enter the users file path: ");
+            List<UserAccount> imported;
+            try {
+              imported = UserAccount.readUsers(new File(in.readLine().trim()));
+            } catch (java.io.IOException e) {
+              System.out.println("ERROR: " + e.getMessage());
+              break;
+            }
+            int[] counts = users.upsert(imported);
+            System.out.printf("Added %d users, updated %d, %d unchanged.\n",
+                counts[0], counts[1], imported.size() - counts[0] - counts[1]);
+            break;
+          case 5:
+            System.out.println("1. All users of a type");
+            System.out.println("2. Users listed in a file");
+            int mode = readChoice();
+            String fromType = null;
+            List<String> logins = null;
+            if (mode == 1) {
+              System.out.print("Please enter the current type: ");
+              fromType = UserAccount.typeOf(in.readLine().trim());
+              if (fromType == null) {
+                System.out.println("ERROR: unknown user type");
+                break;
+              }
+            } else if (mode == 2) {
+              System.out.print("Please enter the file path (one login per line): ");
+              logins = new ArrayList<String>();
+              try {
+                for (String[] row : InMemoryStore.readCsv(
+                    new File(in.readLine().trim()), 1))
+                  logins.add(row[0]);
+              } catch (java.io.IOException e) {
+                System.out.println("ERROR: " + e.getMessage());
+                break;
+              }
+            } else {
+              System.out.println("Unrecognized choice!");
+              break;
+            }
+            System.out.print("Please enter the new type: ");
+            String toType = UserAccount.typeOf(in.readLine().trim());
+            if (toType == null) {
+              System.out.println("ERROR: unknown user type");
+              break;
+            }
+            int changed = fromType != null ? users.changeType(fromType, toType)
+                : users.setTypes(logins, toType);
+            System.out.printf("%d users changed to %s.\n", changed, toType);
+            break;
+          case 6:
+            System.out.print("Please enter the users file path: ");
+            java.util.Map<String, String> favItems =
+                new java.util.LinkedHashMap<String, String>();
+            try {
+              for (String[] row : InMemoryStore.readCsv(
+                  new File(in.readLine().trim()), 5))
+                favItems.put(row[0], row[3]);
+            } catch (java.io.IOException e) {
+              System.out.println("ERROR: " + e.getMessage());
+              break;
+            }
+            int found = users.setFavItems(favItems);
+            System.out.printf("Favorite items set for %d users, %d not found.\n",
+                found, favItems.size() - found);
+            break;
+          case 7:
+            System.out.println("Please enter the user name: ");
+            userName = in.readLine();
+            user = users.find(userName);
+            if (user == null) {
+              System.out.println("This user does not exist.");
+              break;
+            }
+            if (user.type().equals(UserAccount.CUSTOMER)) {
+              System.out.println("ERROR: customers do not work at a store");
+              break;
+            }
+            System.out.print("Please enter the store id (0 for none): ");
+            int storeId = Integer.parseInt(in.readLine().trim());
+            users.setStore(userName, storeId);
+            System.out.println("Store updated.");
+            break;
           case 2:
             System.out.println("Please enter the user name: ");
             userName = in.readLine();
-            query = String.format("SELECT * FROM Users WHERE login='%s'", userName);
-            value = esql.executeQuery(query);
-            if (value > 0) {
+            if (users.find(userName) != null) {
               System.out.println("Please enter the new password: ");
               input = in.readLine();
               if (input.length() == 0) {
                 System.out.println("ERROR: no input provided");
                 break;
               }
-              query = String.format(
-                  "UPDATE Users SET password='%s' WHERE login='%s'",
-                  input,
-                  userName);
-              esql.executeUpdate(query);
+              users.setPassword(userName, input);
               System.out.println("Password updated.");
             } else {
               System.out.println("This user does not exist.");
@@ -1316,9 +2655,7 @@ public class Cafe {
           case 3:
             System.out.println("Please enter the user name: ");
             userName = in.readLine();
-            query = String.format("SELECT * FROM Users WHERE login='%s'", userName);
-            value = esql.executeQuery(query);
-            if (value > 0) {
+            if (users.find(userName) != null) {
               boolean isSubMenuActive = true;
               while (isSubMenuActive) {
                 System.out.println("UPDATE USER TYPE for " + userName);
@@ -1330,24 +2667,15 @@ public class Cafe {
                 System.out.println("9. Done updating");
                 switch (readChoice()) {
                   case 1:
-                    query = String.format(
-                        "UPDATE Users SET type='Customer' WHERE login='%s'",
-                        userName);
-                    esql.executeUpdate(query);
+                    users.setType(userName, UserAccount.CUSTOMER);
                     System.out.println("User type updated to Customer.");
                     break;
                   case 2:
-                    query = String.format(
-                        "UPDATE Users SET type='Employee' WHERE login='%s'",
-                        userName);
-                    esql.executeUpdate(query);
+                    users.setType(userName, UserAccount.EMPLOYEE);
                     System.out.println("User type updated to Employee.");
                     break;
                   case 3:
-                    query = String.format(
-                        "UPDATE Users SET type='Manager' WHERE login='%s'",
-                        userName);
-                    esql.executeUpdate(query);
+                    users.setType(userName, UserAccount.MANAGER);
                     System.out.println("User type updated to Manager.");
                     break;
                   case 9:
@@ -1377,7 +2705,8 @@ public class Cafe {
   public static void UpdateOrderByCafe(Cafe esql) {
     boolean isActive = true;
     int orderid;
-    String query;
+    Order order;
+    CafeStore store = esql.store();
     try {
       while (isActive) {
         System.out.println("UPDATE ORDER");
@@ -1395,17 +2724,19 @@ public class Cafe {
               System.out.println("ERROR: invalid order id");
               break;
             }
-            query = String.format(
-                "SELECT * FROM Orders WHERE orderid = '%s'",
-                orderid);
-            int value = esql.executeQuery(query);
-            if (value > 0) {
-              query = String.format(
-                  "SELECT itemName,status FROM ItemStatus WHERE orderid = '%s'",
-                  orderid);
+            if (store.orders().find(orderid) != null) {
+              List<Object[]> rows = new ArrayList<Object[]>();
+              Map<String, OrderLine> shown =
+                  new LinkedHashMap<String, OrderLine>();
+              for (OrderLine line : store.items().byOrder(orderid)) {
+                shown.put(line.itemName(), line);
+                rows.add(new Object[] { line.itemName(), line.quantity(),
+                    line.startedQty(), line.finishedQty(), line.status() });
+              }
               System.out.println("ITEMS IN THIS ORDER ID " + orderid);
               System.out.println("---------------------------------");
-              int value1 = esql.executeQueryAndPrintResult(query);
+              int value1 = printRows(new String[] { "itemname", "quantity",
+                  "started", "finished", "status" }, rows);
               if (!(value1 > 0)) {
                 System.out.println("ERROR: no items found in this order id");
                 break;
@@ -1418,38 +2749,63 @@ public class Cafe {
                 System.out.println("1. Hasn't started");
                 System.out.println("2. Started");
                 System.out.println("3. Finished");
+                System.out.println("4. Update unit counts");
                 System.out.println(".................");
                 System.out.println("9. Done updating");
                 switch (readChoice()) {
                   case 1:
                     System.out.println("Please enter the item name: ");
                     String input = in.readLine();
-                    query = String.format(
-                        "UPDATE ItemStatus SET status='Hasn''t Started' WHERE orderid='%s' AND itemName='%s'",
-                        orderid,
-                        input);
-                    esql.executeUpdate(query);
-                    System.out.println("Item status updated to hasn't started");
+                    if (changeLine(store, shown, input,
+                        line -> store.items().setStatus(line.orderid(),
+                            line.itemName(), OrderLine.NOT_STARTED, line.version())))
+                      System.out.println("Item status updated to hasn't started");
                     break;
                   case 2:
                     System.out.println("Please enter the item name: ");
                     input = in.readLine();
-                    query = String.format(
-                        "UPDATE ItemStatus SET status='Started' WHERE orderid='%s' AND itemName='%s'",
-                        orderid,
-                        input);
-                    esql.executeUpdate(query);
-                    System.out.println("Item status updated to started");
+                    if (changeLine(store, shown, input,
+                        line -> store.items().setStatus(line.orderid(),
+                            line.itemName(), OrderLine.STARTED, line.version())))
+                      System.out.println("Item status updated to started");
                     break;
                   case 3:
                     System.out.println("Please enter the item name: ");
                     input = in.readLine();
-                    query = String.format(
-                        "UPDATE ItemStatus SET status='Finished' WHERE orderid='%s' AND itemName='%s'",
-                        orderid,
-                        input);
-                    esql.executeUpdate(query);
-                    System.out.println("Item status updated to finished");
+                    if (changeLine(store, shown, input,
+                        line -> store.items().setStatus(line.orderid(),
+                            line.itemName(), OrderLine.FINISHED, line.version())))
+                      System.out.println("Item status updated to finished");
+                    break;
+                  case 4:
+                    System.out.println("Please enter the item name: ");
+                    input = in.readLine();
+                    int started, finished;
+                    try {
+                      System.out.println("Please enter the number of units started: ");
+                      started = Integer.parseInt(in.readLine().trim());
+                      System.out.println("Please enter the number of units finished: ");
+                      finished = Integer.parseInt(in.readLine().trim());
+                    } catch (NumberFormatException e) {
+                      System.out.println("ERROR: invalid unit count");
+                      break;
+                    }
+                    OrderLine seen = shown.get(input);
+                    if (seen == null) {
+                      System.out.println("ERROR: item not found in this order");
+                      break;
+                    }
+                    if (started < 0 || finished < 0
+                        || started + finished > seen.quantity()) {
+                      System.out.printf(
+                          "ERROR: %d started and %d finished do not fit the %d units ordered\n",
+                          started, finished, seen.quantity());
+                      break;
+                    }
+                    if (changeLine(store, shown, input,
+                        line -> store.items().setProgress(line.orderid(),
+                            line.itemName(), started, finished, line.version())))
+                      System.out.println("Item unit counts updated");
                     break;
                   case 9:
                     isItemActive = false;
@@ -1472,14 +2828,13 @@ public class Cafe {
               System.out.println("Your input is invalid!");
               break;
             }
-            query = String.format(
-                "SELECT paid FROM Orders WHERE orderid='%s'",
-                orderid);
-            value = esql.executeQuery(query);
-            if (value > 0) {
+            order = store.orders().find(orderid);
+            if (order != null) {
               System.out.println(
                   "-----------------------------------------------");
-              esql.executeQueryAndPrintResult(query);
+              printRows(new String[] { "paid", "total" },
+                  Collections.singletonList(
+                      new Object[] { order.paid(), order.total() }));
               System.out.println(
                   "-----------------------------------------------");
               System.out.println("UPDATE ORDER PAID STATUS");
@@ -1492,19 +2847,13 @@ public class Cafe {
               while (isOrderActive) {
                 switch (readChoice()) {
                   case 1:
-                    query = String.format(
-                        "UPDATE Orders SET paid='true' WHERE orderid='%s'",
-                        orderid);
-                    esql.executeUpdate(query);
-                    System.out.println("Order paid status updated to paid");
+                    if (setPaid(store, order, true))
+                      System.out.println("Order paid status updated to paid");
                     isOrderActive = false;
                     break;
                   case 2:
-                    query = String.format(
-                        "UPDATE Orders SET paid='false' WHERE orderid='%s'",
-                        orderid);
-                    esql.executeUpdate(query);
-                    System.out.println("Order paid status updated to not paid");
+                    if (setPaid(store, order, false))
+                      System.out.println("Order paid status updated to not paid");
                     isOrderActive = false;
                     break;
                   case 9:
@@ -0,0 +1,391 @@
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Non-blocking facade over the Cafe operations. Each call returns a
+ * CompletableFuture of its result instead of printing it, so a screen can
+ * issue independent queries together, e.g.
+ *
+ * <pre>
+ * CompletableFuture&lt;List&lt;MenuItem&gt;&gt; menu = cafe.menu();
+ * CompletableFuture&lt;List&lt;Order&gt;&gt; history = cafe.orderHistory(login);
+ * CompletableFuture.allOf(menu, history).join();
+ * </pre>
+ *
+ * Calls run on virtual threads when the JVM has them (a cached thread
+ * pool otherwise), each borrowing a connection from a CafePool, so at most
+ * cafe.async.connections (default 4) statements run at once. At most
+ * cafe.async.maxPending (default 256) calls may be queued; further calls
+ * fail fast with RejectedExecutionException. Every call has a timeout
+ * (cafe.async.timeoutMs, default 5000); when it expires or the future is
+ * cancelled, the running statement is cancelled on the server.
+ */
+public class CafeAsync {
+
+  /**
+   * Work run against a borrowed connection.
+   */
+  public interface SqlWork<T> {
+    T run(Cafe esql) throws SQLException;
+  }
+
+  private final CafePool pool;
+  private final ExecutorService executor;
+  private final Semaphore pending;
+  private final long timeoutMs;
+
+  /**
+   * Opens the facade's connections next to esql.
+   *
+   * @throws java.sql.SQLException when failed to make a connection.
+   */
+  public CafeAsync(Cafe esql) throws SQLException {
+    this(new CafePool(esql, Integer.getInteger("cafe.async.connections", 4)),
+        Integer.getInteger("cafe.async.maxPending", 256),
+        Long.getLong("cafe.async.timeoutMs", 5000));
+  }
+
+  public CafeAsync(CafePool pool, int maxPending, long timeoutMs) {
+    this.pool = pool;
+    this.pending = new Semaphore(maxPending);
+    this.timeoutMs = timeoutMs;
+    this.executor = newExecutor();
+  }
+
+  /*
+   * Virtual threads (Java 21+) are looked up reflectively so the class
+   * still runs on older JVMs.
+   */
+  private static ExecutorService newExecutor() {
+    try {
+      return (ExecutorService) Executors.class
+          .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException e) {
+      return Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "cafe-async");
+        t.setDaemon(true);
+        return t;
+      });
+    }
+  }
+
+  /**
+   * Runs work on a pooled connection with the default timeout.
+   */
+  public <T> CompletableFuture<T> submit(SqlWork<T> work) {
+    return submit(work, timeoutMs);
+  }
+
+  /**
+   * Runs work on a pooled connection. The future fails with a
+   * TimeoutException after timeoutMs, and cancelling it cancels the
+   * statement that is running.
+   */
+  public <T> CompletableFuture<T> submit(SqlWork<T> work, long timeoutMs) {
+    CompletableFuture<T> result = new CompletableFuture<T>();
+    if (!pending.tryAcquire()) {
+      result.completeExceptionally(
+          new RejectedExecutionException("Too many pending cafe calls"));
+      return result;
+    }
+    Cafe[] running = new Cafe[1];
+    Future<?> task;
+    try {
+      task = executor.submit(() -> {
+        Cafe esql = null;
+        try {
+          esql = pool.take();
+          synchronized (running) {
+            if (result.isDone())
+              return;
+            running[0] = esql;
+          }
+          result.complete(work.run(esql));
+        } catch (Throwable e) {
+          result.completeExceptionally(e);
+        } finally {
+          synchronized (running) {
+            running[0] = null;
+          }
+          if (esql != null)
+            pool.release(esql);
+          pending.release();
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      pending.release();
+      result.completeExceptionally(e);
+      return result;
+    }
+    result.orTimeout(timeoutMs, TimeUnit.MILLISECONDS);
+    result.whenComplete((value, error) -> {
+      if (error instanceof CancellationException
+          || error instanceof TimeoutException) {
+        synchronized (running) {
+          if (running[0] != null)
+            running[0].cancel();
+        }
+        task.cancel(true);
+      }
+    });
+    return result;
+  } // end submit
+
+  /**
+   * Stops accepting calls and closes the pooled connections.
+   */
+  public void close() {
+    executor.shutdownNow();
+    pool.close();
+  }
+
+  // Menu
+
+  public CompletableFuture<List<MenuItem>> menu() {
+    return submit(esql -> esql.executeReadQueryAndMap(
+        JdbcStore.Menu.COLUMNS, JdbcStore.Menu.ROW));
+  }
+
+  public CompletableFuture<List<MenuItem>> searchMenuByName(String itemName) {
+    return submit(esql -> esql.executeReadQueryAndMap(String.format(
+        JdbcStore.Menu.COLUMNS + " WHERE itemName='%s'",
+        Cafe.escape(itemName)), JdbcStore.Menu.ROW));
+  }
+
+  public CompletableFuture<List<MenuItem>> searchMenuByType(String type) {
+    return submit(esql -> esql.executeReadQueryAndMap(String.format(
+        JdbcStore.Menu.BY_TYPE,
+        Cafe.escape(type)), JdbcStore.Menu.ROW));
+  }
+
+  public CompletableFuture<Integer> addMenuItem(String itemName, String type,
+      float price, String description, String imageURL) {
+    return submit(esql -> esql.executeUpdate(String.format(
+        "INSERT INTO Menu (itemName, type, price, description, imageURL) VALUES ('%s', '%s', '%s', '%s', '%s')",
+        Cafe.escape(itemName),
+        Cafe.escape(type),
+        price,
+        Cafe.escape(description),
+        Cafe.escape(imageURL))));
+  }
+
+  public CompletableFuture<Integer> deleteMenuItem(String itemName) {
+    return submit(esql -> esql.executeUpdate(String.format(
+        "DELETE FROM Menu WHERE itemName='%s'",
+        Cafe.escape(itemName))));
+  }
+
+  public CompletableFuture<Integer> updateMenuPrice(String itemName, float price) {
+    return submit(esql -> esql.executeUpdate(String.format(
+        "UPDATE Menu SET price='%s' WHERE itemName='%s'",
+        price,
+        Cafe.escape(itemName))));
+  }
+
+  public CompletableFuture<Integer> updateMenuType(String itemName, String type) {
+    return submit(esql -> esql.executeUpdate(String.format(
+        "UPDATE Menu SET type='%s' WHERE itemName='%s'",
+        Cafe.escape(type),
+        Cafe.escape(itemName))));
+  }
+
+  // Orders
+
+  public CompletableFuture<Integer> placeOrder(String login, List<String> items) {
+    return placeOrder(UUID.randomUUID(), login, items);
+  }
+
+  /**
+   * Places an order for the given items in one transaction. An item listed
+   * more than once is ordered with that quantity. The request is sent
+   * again under the same key when it fails in a way another try may get
+   * past, the connection being lost included (see Cafe.submit), and a
+   * request repeated with a remembered key places nothing.
+   *
+   * @param requestKey the key the caller chose for the request
+   * @return the id of the order placed under the key
+   */
+  public CompletableFuture<Integer> placeOrder(UUID requestKey, String login,
+      List<String> items) {
+    return submit(ordering(esql -> Cafe.submit(esql, () -> {
+      List<String> statements = new ArrayList<String>();
+      Map<String, Integer> quantities = OrderLine.quantities(items);
+      int orderid = esql.nextOrderId();
+      statements.add(JdbcStore.keyedOrder(requestKey, orderid,
+          "(SELECT coalesce(sum(M.price * Q.quantity), 0) FROM Menu M, ("
+              + JdbcStore.unitsOf(quantities)
+              + ") AS Q(itemName, quantity) WHERE M.itemName=Q.itemName)",
+          "", login, "date_trunc('second', now())"));
+      for (Map.Entry<String, Integer> item : quantities.entrySet()) {
+        statements.add(String.format(
+            "INSERT INTO ItemStatus (orderid, itemName, lastUpdated, status, timeStampRecieved, quantity, unitPrice) SELECT orderid, '%1$s', timeStampRecieved, 'Hasn''t Started', timeStampRecieved, %2$d, (SELECT price FROM Menu WHERE itemName='%1$s') FROM Orders WHERE orderid=%3$d",
+            Cafe.escape(item.getKey()),
+            item.getValue(),
+            orderid));
+      }
+      int[] counts = esql.executeUpdateBatch(statements);
+      return JdbcStore.receipt(esql, requestKey, counts[0] == 0);
+    }).orderid()));
+  }
+
+  public CompletableFuture<Float> addItem(int orderid, String itemName) {
+    return addItem(orderid, itemName, 1);
+  }
+
+  public CompletableFuture<Float> addItem(int orderid, String itemName,
+      int quantity) {
+    return addItem(UUID.randomUUID(), orderid, itemName, quantity);
+  }
+
+  /**
+   * Adds units of an item to an unpaid order and updates its total, as
+   * one statement of the store's (see JdbcStore.Items.add), so a paid or
+   * missing order is left as it was. If the item is already on the order
+   * its quantity is raised. Sent again under the same key as placeOrder
+   * is.
+   *
+   * @param requestKey the key the caller chose for the request
+   * @return the new order total
+   */
+  public CompletableFuture<Float> addItem(UUID requestKey, int orderid,
+      String itemName, int quantity) {
+    return submit(ordering(esql -> {
+      OrderReceipt receipt = Cafe.submit(esql,
+          () -> new JdbcStore(esql).items().add(requestKey, orderid, itemName,
+              quantity, new Timestamp(System.currentTimeMillis()),
+              OrderLine.NOT_STARTED));
+      if (receipt == null)
+        throw new SQLException("Order " + orderid
+            + " not found or already paid, or " + itemName + " not on the menu");
+      return receipt.total();
+    }));
+  }
+
+  /*
+   * Runs order work in the Bulkhead's WRITE lane, its reads included.
+   */
+  private static <T> SqlWork<T> ordering(SqlWork<T> work) {
+    return esql -> {
+      Bulkhead.Lane previous = Bulkhead.use(Bulkhead.Lane.WRITE);
+      try {
+        return work.run(esql);
+      } finally {
+        Bulkhead.restore(previous);
+      }
+    };
+  }
+
+  public CompletableFuture<List<Order>> orderHistory(String login) {
+    return submit(esql -> esql.executeReadQueryAndMap(String.format(
+        JdbcStore.Orders.ALL_COLUMNS + " WHERE login = '%s' ORDER BY orderid desc LIMIT 5",
+        Cafe.escape(login)), JdbcStore.Orders.ROW));
+  }
+
+  /**
+   * Lines of an order. When login is not null only an order placed by that
+   * user is returned, as customers see it.
+   */
+  public CompletableFuture<List<OrderLine>> orderStatus(String login,
+      int orderid) {
+    if (login == null) {
+      return submit(esql -> esql.executeReadQueryAndMap(String.format(
+          JdbcStore.Items.BY_ORDER,
+          orderid), JdbcStore.Items.ROW));
+    }
+    return submit(esql -> esql.executeReadQueryAndMap(String.format(
+        "SELECT I.orderid, I.itemName, I.lastUpdated, I.status, I.comments, I.quantity, I.startedQty, I.finishedQty, I.unitPrice, I.version FROM AllItemStatus I, AllOrders O WHERE I.orderid=O.orderid AND O.login = '%s' AND O.orderid='%s'",
+        Cafe.escape(login),
+        orderid), JdbcStore.Items.ROW));
+  }
+
+  public CompletableFuture<List<Order>> currentOrders() {
+    return submit(esql -> esql.executeReadQueryAndMap(
+        JdbcStore.Orders.CURRENT, JdbcStore.Orders.ROW));
+  }
+
+  public CompletableFuture<Integer> updateItemStatus(int orderid,
+      String itemName, String status) {
+    return submit(esql -> {
+      int rowCount = esql.executeUpdate(String.format(
+          "UPDATE ItemStatus SET status='%s', %s, lastUpdated=now(), version=version+1 WHERE orderid='%s' AND itemName='%s'",
+          Cafe.escape(status),
+          JdbcStore.countsFor(status),
+          orderid,
+          Cafe.escape(itemName)));
+      if (rowCount > 0)
+        ItemStatusEvents.status(orderid, itemName, status);
+      return rowCount;
+    });
+  }
+
+  public CompletableFuture<Integer> addComment(int orderid, String itemName,
+      String comment) {
+    return submit(esql -> esql.executeUpdate(String.format(
+        "UPDATE ItemStatus SET comments='%s', version=version+1 WHERE orderid='%s' AND itemName='%s'",
+        Cafe.escape(comment),
+        orderid,
+        Cafe.escape(itemName))));
+  }
+
+  public CompletableFuture<Integer> setPaid(int orderid, boolean paid) {
+    return submit(esql -> esql.executeUpdate(String.format(
+        "UPDATE Orders SET paid='%s', version=version+1 WHERE orderid='%s'",
+        paid,
+        orderid)));
+  }
+
+  // Users
+
+  /**
+   * @return the user's type, or null if the login does not exist
+   */
+  public CompletableFuture<String> userType(String login) {
+    return submit(esql -> {
+      List<String> result = esql.executeQueryAndMap(String.format(
+          "SELECT type FROM Users WHERE login = '%s'",
+          Cafe.escape(login)), RowMapper.TEXT);
+      return result.size() > 0 ? result.get(0) : null;
+    });
+  }
+
+  public CompletableFuture<Integer> setFavItems(String login, String favItems) {
+    return submit(esql -> esql.executeUpdate(String.format(
+        "UPDATE Users SET favItems='%s' WHERE login='%s'",
+        Cafe.escape(favItems),
+        Cafe.escape(login))));
+  }
+
+  public CompletableFuture<Integer> setPassword(String login, String password) {
+    return submit(esql -> esql.executeUpdate(String.format(
+        "UPDATE Users SET password='%s' WHERE login='%s'",
+        Cafe.escape(password),
+        Cafe.escape(login))));
+  }
+
+  public CompletableFuture<Integer> setPhoneNum(String login, String phoneNum) {
+    return submit(esql -> esql.executeUpdate(String.format(
+        "UPDATE Users SET phoneNum='%s' WHERE login='%s'",
+        Cafe.escape(phoneNum),
+        Cafe.escape(login))));
+  }
+
+  public CompletableFuture<Integer> setUserType(String login, String type) {
+    return submit(esql -> esql.executeUpdate(String.format(
+        "UPDATE Users SET type='%s' WHERE login='%s'",
+        Cafe.escape(type),
+        Cafe.escape(login))));
+  }
+} // end CafeAsync
@@ -0,0 +1,210 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder events for the Cafe, so a recording can tie CPU,
+ * allocation and lock samples to the menu operation and statement that
+ * caused them:
+ *
+ * cafe.Operation  one user-facing menu operation (PlaceOrder, LogIn, ...)
+ *                 with the role of the user, the statements it ran and
+ *                 the rows they returned or changed
+ * cafe.Statement  one statement run by the Cafe execute helpers, with its
+ *                 shape (the text with its literals replaced by ?), the
+ *                 rows, its Bulkhead lane and the enclosing operation
+ *
+ * Each is in its own category (Cafe/Operation, Cafe/SQL) and is switched
+ * on and off, or given a threshold, like any JFR event; java/cafe.jfc
+ * has a control for each. When an event is disabled it costs one check
+ * per operation or statement; the shape is only built for statements
+ * that are recorded.
+ *
+ * <pre>
+ * java -XX:StartFlightRecording:settings=default,settings=java/cafe.jfc ...
+ * </pre>
+ */
+public final class CafeEvents {
+
+  @Name("cafe.Operation")
+  @Label("Cafe Operation")
+  @Category({ "Cafe", "Operation" })
+  @Description("A user-facing menu operation")
+  @StackTrace(false)
+  public static class Operation extends Event implements AutoCloseable {
+    @Label("Operation")
+    String operation;
+
+    @Label("Role")
+    String role;
+
+    @Label("Statements")
+    int statements;
+
+    @Label("Rows")
+    long rows;
+
+    // the operation this one runs in, if any
+    transient Operation outer;
+
+    public void close() {
+      end();
+      OPERATION.set(outer);
+      if (outer == null)
+        OPERATION.remove();
+      if (shouldCommit())
+        commit();
+    }
+  }
+
+  @Name("cafe.Statement")
+  @Label("Cafe Statement")
+  @Category({ "Cafe", "SQL" })
+  @Description("A statement run through the Cafe execute helpers")
+  @StackTrace(false)
+  public static class Statement extends Event {
+    @Label("Kind")
+    String kind;
+
+    @Label("Shape")
+    @Description("The statement with its string and number literals replaced by ?")
+    String shape;
+
+    @Label("Rows")
+    @Description("Rows returned or changed, -1 when it failed")
+    int rows = -1;
+
+    @Label("Lane")
+    String lane;
+
+    @Label("Role")
+    String role;
+
+    @Label("Operation")
+    String operation;
+
+    @Label("Error")
+    String error;
+
+    transient String sql;
+    // the statement this one runs in, e.g. on a replica
+    transient Statement outer;
+  }
+
+  // the role of the logged-in user, null when nobody is logged in
+  private static volatile String role = null;
+
+  private static final ThreadLocal<Operation> OPERATION =
+      new ThreadLocal<Operation>();
+
+  private static final ThreadLocal<Statement> STATEMENT =
+      new ThreadLocal<Statement>();
+
+  private CafeEvents() {
+  }
+
+  /**
+   * Sets the role recorded with the events, null on log out.
+   */
+  public static void loggedIn(String userType) {
+    role = userType;
+  }
+
+  /**
+   * Starts the event of a menu operation.
+   *
+   * <pre>
+   * CafeEvents.Operation event = CafeEvents.operation("PlaceOrder");
+   * try {
+   *   ...
+   * } finally {
+   *   CafeEvents.end(event);
+   * }
+   * </pre>
+   *
+   * @param name the operation, null for none
+   * @return the started event, or null when none is recorded
+   */
+  public static Operation operation(String name) {
+    if (name == null)
+      return null;
+    Operation event = new Operation();
+    if (!event.isEnabled())
+      return null;
+    event.operation = name;
+    event.role = role;
+    event.outer = OPERATION.get();
+    OPERATION.set(event);
+    event.begin();
+    return event;
+  }
+
+  /**
+   * Ends and records an event returned by operation.
+   *
+   * @param event the event, null when none is recorded
+   */
+  public static void end(Operation event) {
+    if (event != null)
+      event.close();
+  }
+
+  /**
+   * Starts the event of a statement. Must be followed by endStatement().
+   */
+  static void statement(String sql, String kind) {
+    Statement event = new Statement();
+    Operation operation = OPERATION.get();
+    if (operation != null)
+      operation.statements++;
+    if (!event.isEnabled())
+      return;
+    event.kind = kind;
+    event.sql = sql;
+    event.outer = STATEMENT.get();
+    STATEMENT.set(event);
+    event.begin();
+  }
+
+  static void lane(Bulkhead.Lane lane) {
+    Statement event = STATEMENT.get();
+    if (event != null && lane != null)
+      event.lane = lane.name().toLowerCase();
+  }
+
+  static void rows(int rows) {
+    Operation operation = OPERATION.get();
+    if (operation != null)
+      operation.rows += rows;
+    Statement event = STATEMENT.get();
+    if (event != null)
+      event.rows = rows;
+  }
+
+  static void failed(Exception e) {
+    Statement event = STATEMENT.get();
+    if (event != null)
+      event.error = e.getMessage();
+  }
+
+  static void endStatement() {
+    Statement event = STATEMENT.get();
+    if (event == null)
+      return;
+    event.end();
+    STATEMENT.set(event.outer);
+    if (event.outer == null)
+      STATEMENT.remove();
+    if (event.shouldCommit()) {
+      event.shape = QueryCache.shapeOf(event.sql);
+      event.role = role;
+      Operation operation = OPERATION.get();
+      if (operation != null)
+        event.operation = operation.operation;
+      event.commit();
+    }
+  }
+} // end CafeEvents
@@ -0,0 +1,66 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A fixed set of extra connections to the same database, handed out one
+ * caller at a time. Cafe connections are not safe for concurrent use, so
+ * code that runs work on several threads borrows one per task.
+ */
+public class CafePool {
+
+  private final List<Cafe> all = new ArrayList<Cafe>();
+  private final BlockingQueue<Cafe> idle;
+
+  /**
+   * Opens size connections alongside esql.
+   *
+   * @param esql an open connection whose settings are reused
+   * @param size the number of connections to open
+   * @throws java.sql.SQLException when failed to make a connection.
+   */
+  public CafePool(Cafe esql, int size) throws SQLException {
+    idle = new ArrayBlockingQueue<Cafe>(size);
+    try {
+      for (int i = 0; i < size; i++) {
+        Cafe sibling = esql.openSibling();
+        all.add(sibling);
+        idle.add(sibling);
+      }
+    } catch (SQLException e) {
+      close();
+      throw e;
+    }
+  }
+
+  /**
+   * Waits for a free connection.
+   */
+  public Cafe take() throws InterruptedException {
+    return idle.take();
+  }
+
+  /**
+   * Returns a connection taken with take().
+   */
+  public void release(Cafe esql) {
+    idle.offer(esql);
+  }
+
+  /**
+   * @return the number of connections in the pool
+   */
+  public int size() {
+    return all.size();
+  }
+
+  /**
+   * Closes every connection in the pool.
+   */
+  public void close() {
+    for (Cafe esql : all)
+      esql.cleanup();
+  }
+} // end CafePool
@@ -0,0 +1,14 @@
+/**
+ * The repositories the Cafe operations are written against. JdbcStore
+ * keeps the data in PostgreSQL; InMemoryStore keeps it in the process.
+ */
+public interface CafeStore {
+
+  UserRepository users();
+
+  MenuRepository menu();
+
+  OrderRepository orders();
+
+  ItemStatusRepository items();
+}
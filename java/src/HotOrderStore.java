@@ -0,0 +1,275 @@
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CafeStore decorator that mirrors every order and item status mutation
+ * into an OpenOrders table, so current orders and item statuses can be
+ * read without going to the underlying store. The table is warmed from the
+ * underlying store on creation. Writes made by other processes, by
+ * CafeAsync or by the order journal drainer are picked up by reload(),
+ * which refresh() runs in the background every cafe.hotOrders.refreshSeconds
+ * (default 30) seconds; orders paid elsewhere drop out then as well.
+ */
+public class HotOrderStore implements CafeStore {
+
+  public static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+  private final CafeStore delegate;
+  private final OpenOrders open;
+  private final OrderRepository orders;
+  private final ItemStatusRepository items;
+  private ScheduledExecutorService scheduler = null;
+
+  public HotOrderStore(CafeStore delegate) throws SQLException {
+    this(delegate, new OpenOrders());
+    reload();
+  }
+
+  /**
+   * Uses an already filled table, e.g. one restored from a CacheSnapshot,
+   * instead of reading current orders from the underlying store.
+   */
+  public HotOrderStore(CafeStore delegate, OpenOrders open) {
+    this.delegate = delegate;
+    this.open = open;
+    this.orders = new Orders();
+    this.items = new Items();
+  }
+
+  /**
+   * @return the table of open orders kept by this store
+   */
+  public OpenOrders open() {
+    return open;
+  }
+
+  /**
+   * Refills the table with the current orders of the underlying store.
+   *
+   * @throws java.sql.SQLException when failed to read the underlying store
+   */
+  public void reload() throws SQLException {
+    reload(delegate);
+  }
+
+  /**
+   * Refills the table with the current orders read through source, which
+   * holds the same data as the underlying store. The table is read into
+   * a new one and swapped in, so readers never see it half filled and
+   * changes made through this store in the meantime are kept.
+   *
+   * @throws java.sql.SQLException when failed to read source
+   */
+  public void reload(CafeStore source) throws SQLException {
+    OpenOrders fresh = new OpenOrders(open.size());
+    open.startTracking();
+    try {
+      for (Order order : source.orders().current()) {
+        fresh.put(order.orderid(), order.login(), order.paid(),
+            order.timeStampRecieved().getTime(),
+            OpenOrders.cents(order.total()));
+        for (OrderLine line : source.items().byOrder(order.orderid())) {
+          fresh.putLine(line.orderid(), line.itemName(), line.status(),
+              line.quantity(), line.startedQty(), line.finishedQty(),
+              line.lastUpdated().getTime());
+        }
+      }
+      fresh.evictBefore(System.currentTimeMillis() - DAY_MILLIS);
+      open.replace(fresh);
+    } finally {
+      open.stopTracking();
+    }
+  } // end reload
+
+  /**
+   * Starts reloading the table in the background every
+   * cafe.hotOrders.refreshSeconds seconds; 0 or less turns it off.
+   *
+   * @param source the store to read, on a connection of its own
+   */
+  public void refresh(final CafeStore source) {
+    long interval = Long.getLong("cafe.hotOrders.refreshSeconds", 30);
+    if (interval <= 0)
+      return;
+    scheduler = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "cafe-open-orders-refresh");
+            t.setDaemon(true);
+            return t;
+          }
+        });
+    scheduler.scheduleWithFixedDelay(() -> {
+      try {
+        reload(source);
+      } catch (SQLException e) {
+        System.err.println("Open order refresh failed: " + e.getMessage());
+      }
+    }, interval, interval, TimeUnit.SECONDS);
+  } // end refresh
+
+  /**
+   * Stops the background reloads.
+   */
+  public void stop() {
+    if (scheduler != null)
+      scheduler.shutdownNow();
+  }
+
+  private void track(Order order) {
+    open.put(order.orderid(), order.login(), order.paid(),
+        order.timeStampRecieved().getTime(), OpenOrders.cents(order.total()));
+  }
+
+  public UserRepository users() {
+    return delegate.users();
+  }
+
+  public MenuRepository menu() {
+    return delegate.menu();
+  }
+
+  public OrderRepository orders() {
+    return orders;
+  }
+
+  public ItemStatusRepository items() {
+    return items;
+  }
+
+  private class Orders implements OrderRepository {
+
+    public int create(String login, Timestamp received, float total)
+        throws SQLException {
+      int orderid = delegate.orders().create(login, received, total);
+      open.put(orderid, login, false, received.getTime(),
+          OpenOrders.cents(total));
+      return orderid;
+    }
+
+    public OrderReceipt create(UUID requestKey, String login,
+        Timestamp received, String itemName, int quantity, String status)
+        throws SQLException {
+      OrderReceipt receipt = delegate.orders().create(requestKey, login,
+          received, itemName, quantity, status);
+      if (receipt != null && !receipt.replayed()) {
+        open.put(receipt.orderid(), login, false, received.getTime(),
+            OpenOrders.cents(receipt.total()));
+        open.addUnits(receipt.orderid(), itemName, quantity, status,
+            received.getTime());
+      }
+      return receipt;
+    }
+
+    public Order find(int orderid) throws SQLException {
+      return delegate.orders().find(orderid);
+    }
+
+    public List<Order> recentByLogin(String login, int limit)
+        throws SQLException {
+      return delegate.orders().recentByLogin(login, limit);
+    }
+
+    public List<Order> current() throws SQLException {
+      final List<Order> result = new ArrayList<Order>(open.size());
+      open.evictBefore(System.currentTimeMillis() - DAY_MILLIS);
+      open.forEachCurrent(System.currentTimeMillis() - DAY_MILLIS,
+          (orderid, login, paid, received, totalCents) -> result.add(
+              new Order(orderid, login, paid, new Timestamp(received),
+                  totalCents / 100f, Order.ANY_VERSION)));
+      return result;
+    }
+
+    public int setTotal(int orderid, float total, int version)
+        throws SQLException {
+      int rowCount = delegate.orders().setTotal(orderid, total, version);
+      if (rowCount > 0)
+        open.setTotal(orderid, OpenOrders.cents(total));
+      return rowCount;
+    }
+
+    public int setPaid(int orderid, boolean paid, int version)
+        throws SQLException {
+      int rowCount = delegate.orders().setPaid(orderid, paid, version);
+      if (rowCount > 0 && paid) {
+        open.remove(orderid);
+      } else if (rowCount > 0 && !open.contains(orderid)) {
+        // reopened, bring it back with its lines
+        Order order = delegate.orders().find(orderid);
+        if (order != null
+            && order.timeStampRecieved().getTime()
+                >= System.currentTimeMillis() - DAY_MILLIS) {
+          track(order);
+          for (OrderLine line : delegate.items().byOrder(orderid)) {
+            open.putLine(orderid, line.itemName(), line.status(),
+                line.quantity(), line.startedQty(), line.finishedQty(),
+                line.lastUpdated().getTime());
+          }
+        }
+      }
+      return rowCount;
+    }
+  }
+
+  private class Items implements ItemStatusRepository {
+
+    public void add(int orderid, String itemName, int quantity,
+        Timestamp lastUpdated, String status) throws SQLException {
+      delegate.items().add(orderid, itemName, quantity, lastUpdated, status);
+      open.addUnits(orderid, itemName, quantity, status, lastUpdated.getTime());
+    }
+
+    public OrderReceipt add(UUID requestKey, int orderid, String itemName,
+        int quantity, Timestamp lastUpdated, String status)
+        throws SQLException {
+      OrderReceipt receipt = delegate.items().add(requestKey, orderid,
+          itemName, quantity, lastUpdated, status);
+      if (receipt != null && !receipt.replayed()) {
+        open.addUnits(orderid, itemName, quantity, status,
+            lastUpdated.getTime());
+        open.setTotal(orderid, OpenOrders.cents(receipt.total()));
+      }
+      return receipt;
+    }
+
+    public OrderLine find(int orderid, String itemName) throws SQLException {
+      return delegate.items().find(orderid, itemName);
+    }
+
+    public List<OrderLine> byOrder(int orderid) throws SQLException {
+      return delegate.items().byOrder(orderid);
+    }
+
+    public int setStatus(int orderid, String itemName, String status,
+        int version) throws SQLException {
+      int rowCount = delegate.items().setStatus(orderid, itemName, status,
+          version);
+      if (rowCount > 0)
+        open.setStatus(orderid, itemName, status, System.currentTimeMillis());
+      return rowCount;
+    }
+
+    public int setProgress(int orderid, String itemName, int startedQty,
+        int finishedQty, int version) throws SQLException {
+      int rowCount = delegate.items().setProgress(orderid, itemName,
+          startedQty, finishedQty, version);
+      if (rowCount > 0)
+        open.setProgress(orderid, itemName, startedQty, finishedQty,
+            System.currentTimeMillis());
+      return rowCount;
+    }
+
+    public int setComments(int orderid, String itemName, String comments,
+        int version) throws SQLException {
+      return delegate.items().setComments(orderid, itemName, comments,
+          version);
+    }
+  }
+} // end HotOrderStore
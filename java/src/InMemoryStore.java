@@ -0,0 +1,712 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Repositories kept entirely in the process, for tests, benchmarks and the
+ * embedded single-store mode (-Dcafe.store=memory). Orders live in int
+ * keyed open-addressing maps split over lock stripes by order id, so
+ * operations on different orders rarely contend; an order's items are
+ * kept with the order and guarded by the same stripe. The same
+ * constraints as the SQL schema are enforced and reported as
+ * SQLExceptions.
+ */
+public class InMemoryStore implements CafeStore {
+
+  private static final int STRIPES = 64;
+  private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+  private static class OrderRow {
+    final int orderid;
+    final String login;
+    final Timestamp received;
+    boolean paid;
+    float total;
+    int version;
+    final Map<String, OrderLine> lines = new LinkedHashMap<String, OrderLine>();
+
+    OrderRow(int orderid, String login, Timestamp received, float total) {
+      this.orderid = orderid;
+      this.login = login;
+      this.received = received;
+      this.total = total;
+    }
+
+    Order toOrder() {
+      return new Order(orderid, login, paid, received, total, version);
+    }
+  }
+
+  // the orders whose ids fall in one stripe, guarded by the stripe
+  private static final class Stripe {
+    final IntObjectMap<OrderRow> rows = new IntObjectMap<OrderRow>();
+  }
+
+  private final Stripe[] stripes = new Stripe[STRIPES];
+  private final AtomicInteger nextOrderId;
+  private final Map<String, List<Integer>> ordersByLogin =
+      new ConcurrentHashMap<String, List<Integer>>();
+  private final Map<String, AtomicInteger> menuReferences =
+      new ConcurrentHashMap<String, AtomicInteger>();
+  private final Map<String, UserAccount> userTable =
+      new LinkedHashMap<String, UserAccount>();
+  // login -> store of the staff assigned to one, guarded by userTable
+  private final Map<String, Integer> userStores =
+      new LinkedHashMap<String, Integer>();
+  private final Map<String, MenuItem> menuTable =
+      new LinkedHashMap<String, MenuItem>();
+
+  // request key -> receipt of the keyed requests of the last
+  // OrderReceipt.ttlMillis(); older ones are removed by SWEEPER
+  private final ConcurrentHashMap<UUID, Keyed> requestKeys =
+      new ConcurrentHashMap<UUID, Keyed>();
+
+  // removes the expired request keys of every in-memory store
+  private static final ScheduledExecutorService SWEEPER =
+      Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "cafe-request-key-sweep");
+        t.setDaemon(true);
+        return t;
+      });
+
+  private record Keyed(OrderReceipt receipt, long created) {
+  }
+
+  private interface KeyedRequest {
+    OrderReceipt apply() throws SQLException;
+  }
+
+  private final UserRepository users = new Users();
+  private final MenuRepository menu = new Menu();
+  private final OrderRepository orders = new Orders();
+  private final ItemStatusRepository items = new Items();
+
+  public InMemoryStore() {
+    this(1);
+  }
+
+  /**
+   * @param firstOrderId the id given to the first order created
+   */
+  public InMemoryStore(int firstOrderId) {
+    for (int i = 0; i < STRIPES; i++)
+      stripes[i] = new Stripe();
+    nextOrderId = new AtomicInteger(firstOrderId);
+    sweepRequestKeys(this);
+  }
+
+  /*
+   * Removes the store's expired request keys every
+   * cafe.requestKeys.sweepSeconds (default 60) until the store is garbage.
+   */
+  private static void sweepRequestKeys(InMemoryStore store) {
+    long seconds = Math.max(1, Long.getLong("cafe.requestKeys.sweepSeconds", 60));
+    WeakReference<InMemoryStore> ref = new WeakReference<InMemoryStore>(store);
+    ScheduledFuture<?>[] task = new ScheduledFuture<?>[1];
+    task[0] = SWEEPER.scheduleWithFixedDelay(() -> {
+      InMemoryStore live = ref.get();
+      if (live == null)
+        task[0].cancel(false);
+      else
+        live.expireRequestKeys(System.currentTimeMillis()
+            - OrderReceipt.ttlMillis());
+    }, seconds, seconds, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Forgets the request keys used before a time.
+   *
+   * @param before the time in milliseconds
+   * @return the number of keys forgotten
+   */
+  public int expireRequestKeys(long before) {
+    int expired = 0;
+    Iterator<Keyed> keyed = requestKeys.values().iterator();
+    while (keyed.hasNext()) {
+      if (keyed.next().created() < before) {
+        keyed.remove();
+        expired++;
+      }
+    }
+    return expired;
+  }
+
+  /**
+   * Loads the menu and users from files in the data/menu.csv and
+   * data/users.csv format (';' separated).
+   */
+  public void load(File menuFile, File usersFile)
+      throws IOException, SQLException {
+    for (String[] row : readCsv(menuFile, 5)) {
+      menu.add(new MenuItem(row[0], row[1], Float.parseFloat(row[2]),
+          row[3], row[4]));
+    }
+    for (String[] row : readCsv(usersFile, 5)) {
+      users.create(new UserAccount(row[0], row[1], row[2], row[3], row[4]));
+    }
+  }
+
+  static List<String[]> readCsv(File file, int columns) throws IOException {
+    List<String[]> rows = new ArrayList<String[]>();
+    BufferedReader reader = new BufferedReader(new FileReader(file));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.trim().length() == 0)
+          continue;
+        String[] parts = line.split(";", -1);
+        String[] row = new String[columns];
+        for (int i = 0; i < columns; i++)
+          row[i] = i < parts.length ? parts[i].trim() : "";
+        rows.add(row);
+      }
+    } finally {
+      reader.close();
+    }
+    return rows;
+  }
+
+  public UserRepository users() {
+    return users;
+  }
+
+  public MenuRepository menu() {
+    return menu;
+  }
+
+  public OrderRepository orders() {
+    return orders;
+  }
+
+  public ItemStatusRepository items() {
+    return items;
+  }
+
+  private Object lock(int orderid) {
+    return stripes[orderid & (STRIPES - 1)];
+  }
+
+  private IntObjectMap<OrderRow> stripe(int orderid) {
+    return stripes[orderid & (STRIPES - 1)].rows;
+  }
+
+  /*
+   * Applies a keyed request, or replays the receipt of its key when the key
+   * was used before. Only requests with the same key wait for each other.
+   * A request that applied nothing (returned null) leaves its key unused.
+   */
+  private OrderReceipt once(UUID requestKey, KeyedRequest request)
+      throws SQLException {
+    boolean[] applied = { false };
+    Keyed keyed;
+    try {
+      keyed = requestKeys.computeIfAbsent(requestKey, key -> {
+        applied[0] = true;
+        try {
+          OrderReceipt receipt = request.apply();
+          return receipt == null ? null
+              : new Keyed(receipt, System.currentTimeMillis());
+        } catch (SQLException e) {
+          throw new RuntimeException(e);
+        }
+      });
+    } catch (RuntimeException e) {
+      if (e.getCause() instanceof SQLException)
+        throw (SQLException) e.getCause();
+      throw e;
+    }
+    if (keyed == null)
+      return null;
+    return applied[0] ? keyed.receipt() : keyed.receipt().replay();
+  }
+
+  // true when a row at version may be updated by a write expecting one
+  private static boolean at(int version, int expected) {
+    return expected < 0 || version == expected;
+  }
+
+  private class Users implements UserRepository {
+
+    public UserAccount find(String login) {
+      synchronized (userTable) {
+        return userTable.get(login);
+      }
+    }
+
+    public boolean checkPassword(String login, String password) {
+      UserAccount user = find(login);
+      return user != null && user.password().equals(password);
+    }
+
+    public void create(UserAccount user) throws SQLException {
+      synchronized (userTable) {
+        if (userTable.containsKey(user.login()))
+          throw new SQLException("User " + user.login() + " already exists");
+        if (user.phoneNum() != null && user.phoneNum().length() > 0) {
+          for (UserAccount other : userTable.values()) {
+            if (user.phoneNum().equals(other.phoneNum()))
+              throw new SQLException("Phone number " + user.phoneNum()
+                  + " is already used");
+          }
+        }
+        userTable.put(user.login(), user);
+      }
+    }
+
+    private int replace(String login, UserAccount updated) {
+      synchronized (userTable) {
+        if (!userTable.containsKey(login))
+          return 0;
+        userTable.put(login, updated);
+        return 1;
+      }
+    }
+
+    public int setFavItems(String login, String favItems) {
+      synchronized (userTable) {
+        UserAccount u = userTable.get(login);
+        return u == null ? 0 : replace(login, new UserAccount(u.login(),
+            u.phoneNum(), u.password(), favItems, u.type()));
+      }
+    }
+
+    public int setPassword(String login, String password) {
+      synchronized (userTable) {
+        UserAccount u = userTable.get(login);
+        return u == null ? 0 : replace(login, new UserAccount(u.login(),
+            u.phoneNum(), password, u.favItems(), u.type()));
+      }
+    }
+
+    public int setPhoneNum(String login, String phoneNum) {
+      synchronized (userTable) {
+        UserAccount u = userTable.get(login);
+        return u == null ? 0 : replace(login, new UserAccount(u.login(),
+            phoneNum, u.password(), u.favItems(), u.type()));
+      }
+    }
+
+    public int setType(String login, String type) {
+      synchronized (userTable) {
+        UserAccount u = userTable.get(login);
+        return u == null ? 0 : replace(login, new UserAccount(u.login(),
+            u.phoneNum(), u.password(), u.favItems(), type));
+      }
+    }
+
+    public int setStore(String login, int storeId) {
+      synchronized (userTable) {
+        if (!userTable.containsKey(login))
+          return 0;
+        if (storeId == 0)
+          userStores.remove(login);
+        else
+          userStores.put(login, storeId);
+        return 1;
+      }
+    }
+
+    public int[] upsert(List<UserAccount> users) throws SQLException {
+      int[] result = new int[2];
+      synchronized (userTable) {
+        Map<String, UserAccount> next =
+            new LinkedHashMap<String, UserAccount>(userTable);
+        Map<String, String> phones = new HashMap<String, String>();
+        for (UserAccount user : users) {
+          UserAccount old = next.put(user.login(), user);
+          if (old == null)
+            result[0]++;
+          else if (!old.equals(user))
+            result[1]++;
+        }
+        for (UserAccount user : next.values()) {
+          String phone = user.phoneNum();
+          if (phone != null && phone.length() > 0
+              && phones.put(phone, user.login()) != null)
+            throw new SQLException("Phone number " + phone + " is already used");
+        }
+        userTable.clear();
+        userTable.putAll(next);
+      }
+      return result;
+    }
+
+    public int setTypes(List<String> logins, String type) {
+      int rowCount = 0;
+      synchronized (userTable) {
+        for (String login : logins) {
+          UserAccount u = userTable.get(login);
+          if (u != null && !u.type().equals(type))
+            rowCount += setType(login, type);
+        }
+      }
+      return rowCount;
+    }
+
+    public int changeType(String fromType, String toType) {
+      List<String> logins = new ArrayList<String>();
+      synchronized (userTable) {
+        for (UserAccount u : userTable.values()) {
+          if (u.type().equals(fromType))
+            logins.add(u.login());
+        }
+        for (String login : logins)
+          setType(login, toType);
+      }
+      return logins.size();
+    }
+
+    public int setFavItems(Map<String, String> favItems) {
+      int rowCount = 0;
+      synchronized (userTable) {
+        for (Map.Entry<String, String> entry : favItems.entrySet())
+          rowCount += setFavItems(entry.getKey(), entry.getValue());
+      }
+      return rowCount;
+    }
+  }
+
+  private class Menu implements MenuRepository {
+
+    public MenuItem find(String itemName) {
+      synchronized (menuTable) {
+        return menuTable.get(itemName);
+      }
+    }
+
+    public List<MenuItem> all() {
+      synchronized (menuTable) {
+        return new ArrayList<MenuItem>(menuTable.values());
+      }
+    }
+
+    public List<MenuItem> byType(String type) {
+      List<MenuItem> result = new ArrayList<MenuItem>();
+      synchronized (menuTable) {
+        for (MenuItem item : menuTable.values()) {
+          if (item.type().equals(type))
+            result.add(item);
+        }
+      }
+      return result;
+    }
+
+    public void add(MenuItem item) throws SQLException {
+      synchronized (menuTable) {
+        if (menuTable.containsKey(item.itemName()))
+          throw new SQLException("Item " + item.itemName() + " already exists");
+        menuTable.put(item.itemName(), item);
+      }
+    }
+
+    public int delete(String itemName) throws SQLException {
+      synchronized (menuTable) {
+        AtomicInteger references = menuReferences.get(itemName);
+        if (references != null && references.get() > 0)
+          throw new SQLException("Item " + itemName + " is referenced by orders");
+        return menuTable.remove(itemName) == null ? 0 : 1;
+      }
+    }
+
+    public int[] apply(List<MenuChange> changes) {
+      int[] result = new int[2];
+      synchronized (menuTable) {
+        for (MenuChange change : changes) {
+          if (change.after() != null) {
+            menuTable.put(change.itemName(), change.after());
+            result[0]++;
+            continue;
+          }
+          AtomicInteger references = menuReferences.get(change.itemName());
+          if ((references == null || references.get() == 0)
+              && menuTable.remove(change.itemName()) != null)
+            result[1]++;
+        }
+      }
+      return result;
+    }
+
+    public int setType(String itemName, String type) {
+      synchronized (menuTable) {
+        MenuItem m = menuTable.get(itemName);
+        if (m == null)
+          return 0;
+        menuTable.put(itemName, new MenuItem(itemName, type, m.price(),
+            m.description(), m.imageURL()));
+        return 1;
+      }
+    }
+
+    public int setPrice(String itemName, float price) {
+      synchronized (menuTable) {
+        MenuItem m = menuTable.get(itemName);
+        if (m == null)
+          return 0;
+        menuTable.put(itemName, new MenuItem(itemName, m.type(), price,
+            m.description(), m.imageURL()));
+        return 1;
+      }
+    }
+
+    public int setDescription(String itemName, String description) {
+      synchronized (menuTable) {
+        MenuItem m = menuTable.get(itemName);
+        if (m == null)
+          return 0;
+        menuTable.put(itemName, new MenuItem(itemName, m.type(), m.price(),
+            description, m.imageURL()));
+        return 1;
+      }
+    }
+
+    public int setImageURL(String itemName, String imageURL) {
+      synchronized (menuTable) {
+        MenuItem m = menuTable.get(itemName);
+        if (m == null)
+          return 0;
+        menuTable.put(itemName, new MenuItem(itemName, m.type(), m.price(),
+            m.description(), imageURL));
+        return 1;
+      }
+    }
+  }
+
+  private class Orders implements OrderRepository {
+
+    public int create(String login, Timestamp received, float total) {
+      int orderid = nextOrderId.getAndIncrement();
+      synchronized (lock(orderid)) {
+        stripe(orderid).put(orderid, new OrderRow(orderid, login, received, total));
+      }
+      List<Integer> ids = ordersByLogin.get(login);
+      if (ids == null) {
+        ordersByLogin.putIfAbsent(login,
+            Collections.synchronizedList(new ArrayList<Integer>()));
+        ids = ordersByLogin.get(login);
+      }
+      ids.add(orderid);
+      return orderid;
+    }
+
+    /*
+     * The order is only known to this thread until it returns, so its line
+     * and total are filled in before anybody can read it.
+     */
+    public OrderReceipt create(UUID requestKey, String login,
+        Timestamp received, String itemName, int quantity, String status)
+        throws SQLException {
+      if (quantity <= 0)
+        throw new SQLException("Quantity must be positive");
+      return once(requestKey, () -> {
+        MenuItem item = menu.find(itemName);
+        if (item == null)
+          return null;
+        float total = item.price() * quantity;
+        int orderid = create(login, received, total);
+        items.add(orderid, itemName, quantity, received, status);
+        return new OrderReceipt(orderid, total, false);
+      });
+    }
+
+    public Order find(int orderid) {
+      synchronized (lock(orderid)) {
+        OrderRow row = stripe(orderid).get(orderid);
+        return row == null ? null : row.toOrder();
+      }
+    }
+
+    public List<Order> recentByLogin(String login, int limit) {
+      List<Order> result = new ArrayList<Order>();
+      List<Integer> ids = ordersByLogin.get(login);
+      if (ids == null)
+        return result;
+      List<Integer> snapshot;
+      synchronized (ids) {
+        snapshot = new ArrayList<Integer>(ids);
+      }
+      Collections.sort(snapshot, Collections.reverseOrder());
+      for (int i = 0; i < snapshot.size() && result.size() < limit; i++) {
+        Order order = find(snapshot.get(i));
+        if (order != null)
+          result.add(order);
+      }
+      return result;
+    }
+
+    public List<Order> current() {
+      long since = System.currentTimeMillis() - DAY_MILLIS;
+      List<Order> result = new ArrayList<Order>();
+      for (int s = 0; s < STRIPES; s++) {
+        synchronized (stripes[s]) {
+          for (OrderRow row : stripes[s].rows.values()) {
+            if (!row.paid && row.received.getTime() >= since)
+              result.add(row.toOrder());
+          }
+        }
+      }
+      return result;
+    }
+
+    public int setTotal(int orderid, float total, int version) {
+      synchronized (lock(orderid)) {
+        OrderRow row = stripe(orderid).get(orderid);
+        if (row == null || !at(row.version, version))
+          return 0;
+        row.total = total;
+        row.version++;
+        return 1;
+      }
+    }
+
+    public int setPaid(int orderid, boolean paid, int version) {
+      synchronized (lock(orderid)) {
+        OrderRow row = stripe(orderid).get(orderid);
+        if (row == null || !at(row.version, version))
+          return 0;
+        row.paid = paid;
+        row.version++;
+        return 1;
+      }
+    }
+  }
+
+  private class Items implements ItemStatusRepository {
+
+    public void add(int orderid, String itemName, int quantity,
+        Timestamp lastUpdated, String status) throws SQLException {
+      MenuItem item = menu.find(itemName);
+      if (item == null)
+        throw new SQLException("Item " + itemName + " is not on the menu");
+      if (quantity <= 0)
+        throw new SQLException("Quantity must be positive");
+      synchronized (lock(orderid)) {
+        OrderRow row = stripe(orderid).get(orderid);
+        if (row == null)
+          throw new SQLException("Order " + orderid + " does not exist");
+        OrderLine line = row.lines.get(itemName);
+        if (line != null) {
+          int total = line.quantity() + quantity;
+          row.lines.put(itemName, new OrderLine(orderid, itemName,
+              lastUpdated, OrderLine.statusOf(total, line.startedQty(),
+                  line.finishedQty()),
+              line.comments(), total, line.startedQty(), line.finishedQty(),
+              line.unitPrice(), line.version() + 1));
+          return;
+        }
+        row.lines.put(itemName, new OrderLine(orderid, itemName, lastUpdated,
+            status, null, quantity, 0, 0, item.price(), 0));
+      }
+      AtomicInteger references = menuReferences.get(itemName);
+      if (references == null) {
+        menuReferences.putIfAbsent(itemName, new AtomicInteger());
+        references = menuReferences.get(itemName);
+      }
+      references.incrementAndGet();
+    }
+
+    public OrderReceipt add(UUID requestKey, int orderid, String itemName,
+        int quantity, Timestamp lastUpdated, String status)
+        throws SQLException {
+      return once(requestKey, () -> {
+        MenuItem item = menu.find(itemName);
+        if (item == null)
+          return null;
+        synchronized (lock(orderid)) {
+          OrderRow row = stripe(orderid).get(orderid);
+          if (row == null || row.paid)
+            return null;
+          add(orderid, itemName, quantity, lastUpdated, status);
+          row.total += item.price() * quantity;
+          row.version++;
+          return new OrderReceipt(orderid, row.total, false);
+        }
+      });
+    }
+
+    public OrderLine find(int orderid, String itemName) {
+      synchronized (lock(orderid)) {
+        OrderRow row = stripe(orderid).get(orderid);
+        return row == null ? null : row.lines.get(itemName);
+      }
+    }
+
+    public List<OrderLine> byOrder(int orderid) {
+      synchronized (lock(orderid)) {
+        OrderRow row = stripe(orderid).get(orderid);
+        if (row == null)
+          return new ArrayList<OrderLine>();
+        return new ArrayList<OrderLine>(row.lines.values());
+      }
+    }
+
+    public int setStatus(int orderid, String itemName, String status,
+        int version) {
+      synchronized (lock(orderid)) {
+        OrderRow row = stripe(orderid).get(orderid);
+        OrderLine line = row == null ? null : row.lines.get(itemName);
+        if (line == null || !at(line.version(), version))
+          return 0;
+        int[] counts = OrderLine.countsOf(status, line.quantity());
+        row.lines.put(itemName, new OrderLine(orderid, itemName,
+            new Timestamp(System.currentTimeMillis()), status,
+            line.comments(), line.quantity(), counts[0], counts[1],
+            line.unitPrice(), line.version() + 1));
+        return 1;
+      }
+    }
+
+    public int setProgress(int orderid, String itemName, int startedQty,
+        int finishedQty, int version) throws SQLException {
+      synchronized (lock(orderid)) {
+        OrderRow row = stripe(orderid).get(orderid);
+        OrderLine line = row == null ? null : row.lines.get(itemName);
+        if (line == null || !at(line.version(), version))
+          return 0;
+        if (startedQty < 0 || finishedQty < 0
+            || startedQty + finishedQty > line.quantity())
+          throw new SQLException("Unit counts " + startedQty + " started and "
+              + finishedQty + " finished do not fit quantity "
+              + line.quantity());
+        row.lines.put(itemName, new OrderLine(orderid, itemName,
+            new Timestamp(System.currentTimeMillis()),
+            OrderLine.statusOf(line.quantity(), startedQty, finishedQty),
+            line.comments(), line.quantity(), startedQty, finishedQty,
+            line.unitPrice(), line.version() + 1));
+        return 1;
+      }
+    }
+
+    public int setComments(int orderid, String itemName, String comments,
+        int version) {
+      synchronized (lock(orderid)) {
+        OrderRow row = stripe(orderid).get(orderid);
+        OrderLine line = row == null ? null : row.lines.get(itemName);
+        if (line == null || !at(line.version(), version))
+          return 0;
+        row.lines.put(itemName, new OrderLine(orderid, itemName,
+            line.lastUpdated(), line.status(), comments, line.quantity(),
+            line.startedQty(), line.finishedQty(), line.unitPrice(),
+            line.version() + 1));
+        return 1;
+      }
+    }
+  }
+} // end InMemoryStore
@@ -0,0 +1,126 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Open-addressing hash map from int keys to objects, with linear probing
+ * and backward-shift deletion. Keys are stored unboxed, so lookups do not
+ * allocate. Not thread-safe; callers provide their own locking.
+ */
+public class IntObjectMap<V> {
+
+  private int[] keys;
+  private Object[] values;
+  private int size = 0;
+  private int mask;
+
+  public IntObjectMap() {
+    this(16);
+  }
+
+  public IntObjectMap(int expected) {
+    int capacity = 16;
+    while (capacity * 3 / 4 < expected)
+      capacity <<= 1;
+    keys = new int[capacity];
+    values = new Object[capacity];
+    mask = capacity - 1;
+  }
+
+  private static int slot(int key, int mask) {
+    int h = key * 0x9E3779B9;
+    return (h ^ (h >>> 16)) & mask;
+  }
+
+  @SuppressWarnings("unchecked")
+  public V get(int key) {
+    for (int i = slot(key, mask); values[i] != null; i = (i + 1) & mask) {
+      if (keys[i] == key)
+        return (V) values[i];
+    }
+    return null;
+  }
+
+  /**
+   * @return the previous value, or null if there was none
+   */
+  @SuppressWarnings("unchecked")
+  public V put(int key, V value) {
+    if (value == null)
+      throw new IllegalArgumentException("null values are not supported");
+    int i = slot(key, mask);
+    for (; values[i] != null; i = (i + 1) & mask) {
+      if (keys[i] == key) {
+        V previous = (V) values[i];
+        values[i] = value;
+        return previous;
+      }
+    }
+    keys[i] = key;
+    values[i] = value;
+    if (++size > (mask + 1) * 3 / 4)
+      resize();
+    return null;
+  }
+
+  /**
+   * @return the removed value, or null if the key was absent
+   */
+  @SuppressWarnings("unchecked")
+  public V remove(int key) {
+    int i = slot(key, mask);
+    for (; values[i] != null; i = (i + 1) & mask) {
+      if (keys[i] == key)
+        break;
+    }
+    if (values[i] == null)
+      return null;
+    V removed = (V) values[i];
+    // shift later entries of the probe run back into the gap
+    int gap = i;
+    for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+      int home = slot(keys[j], mask);
+      if (((j - home) & mask) >= ((j - gap) & mask)) {
+        keys[gap] = keys[j];
+        values[gap] = values[j];
+        gap = j;
+      }
+    }
+    values[gap] = null;
+    size--;
+    return removed;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return a snapshot of the values, in no particular order
+   */
+  @SuppressWarnings("unchecked")
+  public List<V> values() {
+    List<V> result = new ArrayList<V>(size);
+    for (Object value : values) {
+      if (value != null)
+        result.add((V) value);
+    }
+    return result;
+  }
+
+  private void resize() {
+    int[] oldKeys = keys;
+    Object[] oldValues = values;
+    keys = new int[oldKeys.length * 2];
+    values = new Object[oldValues.length * 2];
+    mask = keys.length - 1;
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldValues[i] == null)
+        continue;
+      int j = slot(oldKeys[i], mask);
+      while (values[j] != null)
+        j = (j + 1) & mask;
+      keys[j] = oldKeys[i];
+      values[j] = oldValues[i];
+    }
+  }
+} // end IntObjectMap
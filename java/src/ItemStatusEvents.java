@@ -0,0 +1,219 @@
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes every item status change to the append-only ItemStatusEvents
+ * table (see item_events.sql) without slowing the update that made it.
+ * Changes are put on a bounded in-memory queue and a writer thread on its
+ * own connection inserts them in batches, one multi-row INSERT per batch.
+ * When the queue is full the change is dropped and counted rather than
+ * making the caller wait. A batch that fails is retried with backoff.
+ *
+ * Enabled with -Dcafe.itemEvents=true. Tunables: cafe.itemEvents.queue
+ * (changes held in memory, default 10000), cafe.itemEvents.batch (changes
+ * per INSERT, default 200) and cafe.itemEvents.flushMs (longest time a
+ * change waits for a batch, default 200).
+ */
+public class ItemStatusEvents implements Runnable {
+
+  private static final class Event {
+    final int orderid;
+    final String itemName;
+    // null when the unit counts were set
+    final String status;
+    // -1 when the whole line was put in status
+    final int startedQty;
+    final int finishedQty;
+    final long occurredAt;
+
+    Event(int orderid, String itemName, String status, int startedQty,
+        int finishedQty) {
+      this.orderid = orderid;
+      this.itemName = itemName;
+      this.status = status;
+      this.startedQty = startedQty;
+      this.finishedQty = finishedQty;
+      this.occurredAt = System.currentTimeMillis();
+    }
+  }
+
+  // the running writer, null when events are not recorded
+  private static volatile ItemStatusEvents active = null;
+
+  private final BlockingQueue<Event> queue;
+  private final int batchSize;
+  private final long flushMs;
+  private final AtomicLong written = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private volatile boolean running = true;
+  private Cafe esql;
+  private Thread writer;
+
+  private ItemStatusEvents(Cafe esql, int capacity, int batchSize,
+      long flushMs) {
+    this.esql = esql;
+    this.queue = new ArrayBlockingQueue<Event>(capacity);
+    this.batchSize = batchSize;
+    this.flushMs = flushMs;
+  }
+
+  /**
+   * Starts recording status changes using the system property settings.
+   *
+   * @param esql a connection reserved for the writer
+   * @return the running writer
+   */
+  public static ItemStatusEvents start(Cafe esql) {
+    ItemStatusEvents events = new ItemStatusEvents(esql,
+        Integer.getInteger("cafe.itemEvents.queue", 10000),
+        Integer.getInteger("cafe.itemEvents.batch", 200),
+        Long.getLong("cafe.itemEvents.flushMs", 200));
+    events.writer = new Thread(events, "cafe-item-events");
+    events.writer.setDaemon(true);
+    events.writer.start();
+    active = events;
+    return events;
+  } // end start
+
+  /**
+   * Records that every unit of a line was put in a status.
+   */
+  public static void status(int orderid, String itemName, String status) {
+    record(new Event(orderid, itemName, status, -1, -1));
+  }
+
+  /**
+   * Records new unit counts of a line.
+   */
+  public static void progress(int orderid, String itemName, int startedQty,
+      int finishedQty) {
+    record(new Event(orderid, itemName, null, startedQty, finishedQty));
+  }
+
+  private static void record(Event event) {
+    ItemStatusEvents events = active;
+    if (events != null && !events.queue.offer(event))
+      events.dropped.incrementAndGet();
+  }
+
+  /**
+   * @return the running writer, or null when events are not recorded
+   */
+  public static ItemStatusEvents active() {
+    return active;
+  }
+
+  /**
+   * @return the number of changes written to the database
+   */
+  public long written() {
+    return written.get();
+  }
+
+  /**
+   * @return the number of changes dropped because the queue was full
+   */
+  public long dropped() {
+    return dropped.get();
+  }
+
+  /**
+   * Stops recording, writes what is still queued and closes the writer's
+   * connection.
+   */
+  public void close() {
+    active = null;
+    running = false;
+    writer.interrupt();
+    try {
+      writer.join(5000);
+    } catch (InterruptedException e) {
+      // closing anyway
+    }
+    esql.cleanup();
+  } // end close
+
+  public void run() {
+    long backoff = 100;
+    List<Event> batch = new ArrayList<Event>(batchSize);
+    while (running || !queue.isEmpty() || !batch.isEmpty()) {
+      if (batch.isEmpty()) {
+        try {
+          Event first = queue.poll(flushMs, TimeUnit.MILLISECONDS);
+          if (first == null)
+            continue;
+          batch.add(first);
+          if (running)
+            Thread.sleep(flushMs); // gather the changes that follow
+        } catch (InterruptedException e) {
+          // stopping, write what is queued
+        }
+        queue.drainTo(batch, batchSize - batch.size());
+        if (batch.isEmpty())
+          continue;
+      }
+      try {
+        esql.executeUpdate(insert(batch));
+        written.addAndGet(batch.size());
+        batch.clear();
+        backoff = 100;
+      } catch (SQLException e) {
+        System.err.println("Item status events not written: " + e.getMessage());
+        if (!running) {
+          dropped.addAndGet(batch.size());
+          batch.clear();
+          continue;
+        }
+        reconnectIfBroken();
+        try {
+          Thread.sleep(backoff);
+        } catch (InterruptedException ie) {
+          // retried once more before stopping
+        }
+        backoff = Math.min(backoff * 2, 10000);
+      }
+    }
+  } // end run
+
+  /*
+   * Reopens the writer's connection when the database stopped answering
+   * on it, e.g. after a failover.
+   */
+  private void reconnectIfBroken() {
+    try {
+      esql.executeQuery("SELECT 1");
+    } catch (SQLException e) {
+      try {
+        Cafe fresh = esql.openSibling();
+        esql.cleanup();
+        esql = fresh;
+      } catch (SQLException ignored) {
+        // retried after the next failure
+      }
+    }
+  }
+
+  static String insert(List<Event> batch) {
+    StringBuilder sql = new StringBuilder(
+        "INSERT INTO ItemStatusEvents (orderid, itemName, status, startedQty, finishedQty, occurredAt) VALUES ");
+    for (int i = 0; i < batch.size(); i++) {
+      Event event = batch.get(i);
+      if (i > 0)
+        sql.append(", ");
+      sql.append(String.format("(%d, '%s', %s, %s, %s, '%s')",
+          event.orderid,
+          Cafe.escape(event.itemName),
+          event.status == null ? "NULL" : "'" + Cafe.escape(event.status) + "'",
+          event.startedQty < 0 ? "NULL" : Integer.toString(event.startedQty),
+          event.finishedQty < 0 ? "NULL" : Integer.toString(event.finishedQty),
+          new Timestamp(event.occurredAt)));
+    }
+    return sql.toString();
+  }
+} // end ItemStatusEvents
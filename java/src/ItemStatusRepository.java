@@ -0,0 +1,73 @@
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Access to ItemStatus, the items of each order.
+ */
+public interface ItemStatusRepository {
+
+  /**
+   * Adds units of an item to an existing order. If the item is already in
+   * the order its quantity is raised and its status follows the counts.
+   *
+   * @throws java.sql.SQLException when the order or menu item does not
+   *                               exist
+   */
+  void add(int orderid, String itemName, int quantity, Timestamp lastUpdated,
+      String status) throws SQLException;
+
+  /**
+   * Adds units of an item to an unpaid order and their price at the menu
+   * price to its total, together and once per request key. A repeat of a
+   * request whose key is remembered changes nothing and gets the first
+   * one's receipt.
+   *
+   * @param requestKey the key the client chose for the request
+   * @return the order's total after the units were added, or null if the
+   *         order does not exist or is paid or the item is not on the menu
+   */
+  OrderReceipt add(UUID requestKey, int orderid, String itemName,
+      int quantity, Timestamp lastUpdated, String status) throws SQLException;
+
+  /**
+   * @return the line, or null if the item is not in the order
+   */
+  OrderLine find(int orderid, String itemName) throws SQLException;
+
+  /**
+   * @return the lines of the order, archived or not
+   */
+  List<OrderLine> byOrder(int orderid) throws SQLException;
+
+  /**
+   * Puts every unit of the line in the given status.
+   *
+   * @param version the version the line must still have, or
+   *        OrderLine.ANY_VERSION
+   * @return 0 if the line does not exist or has another version
+   */
+  int setStatus(int orderid, String itemName, String status, int version)
+      throws SQLException;
+
+  /**
+   * Sets how many units are started and finished; the status follows.
+   *
+   * @param version the version the line must still have, or
+   *        OrderLine.ANY_VERSION
+   * @return 0 if the line does not exist or has another version
+   * @throws java.sql.SQLException when a count is negative or the counts
+   *                               exceed the line's quantity
+   */
+  int setProgress(int orderid, String itemName, int startedQty,
+      int finishedQty, int version) throws SQLException;
+
+  /**
+   * @param version the version the line must still have, or
+   *        OrderLine.ANY_VERSION
+   * @return 0 if the line does not exist or has another version
+   */
+  int setComments(int orderid, String itemName, String comments, int version)
+      throws SQLException;
+}
@@ -0,0 +1,615 @@
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Repositories backed by the PostgreSQL tables through a Cafe connection.
+ * Listing queries shown on screens go through the read helpers so they
+ * may be served by a replica; lookups made before a write use the primary.
+ */
+public class JdbcStore implements CafeStore {
+
+  private final UserRepository users;
+  private final MenuRepository menu;
+  private final OrderRepository orders;
+  private final ItemStatusRepository items;
+
+  static {
+    QueryCache cache = Cafe.queryCache();
+    if (cache != null) {
+      // the menu rarely changes, while a watched order should move quickly
+      cache.ttl(Menu.COLUMNS, 30000);
+      cache.ttl(Menu.BY_TYPE, 30000);
+      cache.ttl(Orders.CURRENT, 2000);
+      cache.ttl(Items.BY_ORDER, 1000);
+    }
+  }
+
+  public JdbcStore(Cafe esql) {
+    this.users = new Users(esql);
+    this.menu = new Menu(esql);
+    this.orders = new Orders(esql);
+    this.items = new Items(esql);
+  }
+
+  public UserRepository users() {
+    return users;
+  }
+
+  public MenuRepository menu() {
+    return menu;
+  }
+
+  public OrderRepository orders() {
+    return orders;
+  }
+
+  public ItemStatusRepository items() {
+    return items;
+  }
+
+  private static String text(String value) {
+    return RowMapper.text(value);
+  }
+
+  /**
+   * Appended to an INSERT INTO ItemStatus AS I: when the item is already
+   * on the order, adds the new units to that line instead.
+   */
+  static final String ADD_UNITS =
+      " ON CONFLICT (orderid, itemName, timeStampRecieved) DO UPDATE SET quantity = I.quantity + EXCLUDED.quantity, lastUpdated = EXCLUDED.lastUpdated, version = I.version + 1, status = "
+          + String.format(Items.STATUS_OF, "I.quantity + EXCLUDED.quantity",
+              "I.startedQty", "I.finishedQty");
+
+  /**
+   * @return the SET assignments of the unit counts that put a whole line
+   *         in the given status, see OrderLine.countsOf
+   */
+  static String countsFor(String status) {
+    if (OrderLine.FINISHED.equalsIgnoreCase(status))
+      return "startedQty=0, finishedQty=quantity";
+    if (OrderLine.STARTED.equalsIgnoreCase(status))
+      return "startedQty=quantity, finishedQty=0";
+    return "startedQty=0, finishedQty=0";
+  }
+
+  /**
+   * @return the condition an update appends to its WHERE clause so it only
+   *         applies to a row still at the given version
+   */
+  static String versionIs(int version) {
+    return version < 0 ? "" : " AND version=" + version;
+  }
+
+  static final String RECEIPT =
+      "SELECT orderid, total FROM OrderRequestKeys WHERE requestKey = '%s'";
+
+  /**
+   * Reads the receipt remembered for a request key.
+   *
+   * @param replayed whether the request being answered changed nothing
+   * @return the receipt, or null when the key is not remembered
+   */
+  static OrderReceipt receipt(Cafe esql, UUID requestKey, boolean replayed)
+      throws SQLException {
+    List<OrderReceipt> receipts = esql.executeQueryAndMap(
+        String.format(RECEIPT, requestKey),
+        rs -> new OrderReceipt(rs.getInt(1), rs.getFloat(2), replayed));
+    return receipts.size() > 0 ? receipts.get(0) : null;
+  }
+
+  /**
+   * An order insert that stores the request key first: the key is
+   * inserted with the order id and total, and the order only when the key
+   * was new, so a repeated request inserts nothing. Lines inserted after
+   * it by reading the order back from Orders are skipped with it.
+   *
+   * @param total the SQL expression of the order's total
+   * @param from a FROM clause the key's row is selected from, e.g. to
+   *        require the user to exist, or ""
+   * @param received the SQL expression of the time the order was placed
+   */
+  static String keyedOrder(UUID requestKey, int orderid, String total,
+      String from, String login, String received) {
+    return String.format(
+        "WITH K AS (INSERT INTO OrderRequestKeys (requestKey, orderid, total) SELECT '%s', %d, %s%s ON CONFLICT (requestKey) DO NOTHING RETURNING orderid, total)"
+            + " INSERT INTO Orders (orderid, storeId, login, paid, timeStampRecieved, total) SELECT orderid, %d, '%s', 'false', %s, total FROM K",
+        requestKey,
+        orderid,
+        total,
+        from,
+        Cafe.storeId(),
+        Cafe.escape(login),
+        received);
+  }
+
+  /**
+   * @return a VALUES list of (itemName, quantity) rows
+   */
+  static String unitsOf(Map<String, Integer> quantities) {
+    StringBuilder values = new StringBuilder("VALUES ");
+    for (Map.Entry<String, Integer> entry : quantities.entrySet()) {
+      if (values.length() > 7)
+        values.append(", ");
+      values.append("('").append(Cafe.escape(entry.getKey())).append("', ")
+          .append(entry.getValue().intValue()).append(')');
+    }
+    return values.toString();
+  }
+
+  // a quoted string literal, or NULL
+  private static String literal(String value) {
+    return value == null ? "NULL" : "'" + Cafe.escape(value) + "'";
+  }
+
+  static class Users implements UserRepository {
+    private final Cafe esql;
+
+    Users(Cafe esql) {
+      this.esql = esql;
+    }
+
+    static final String COLUMNS =
+        "SELECT login, phoneNum, password, favItems, type FROM Users";
+    static final RowMapper<UserAccount> ROW = rs -> new UserAccount(
+        text(rs.getString(1)), text(rs.getString(2)), text(rs.getString(3)),
+        text(rs.getString(4)), text(rs.getString(5)));
+
+    public UserAccount find(String login) throws SQLException {
+      List<UserAccount> result = esql.executeQueryAndMap(String.format(
+          COLUMNS + " WHERE login='%s'",
+          Cafe.escape(login)), ROW);
+      return result.size() > 0 ? result.get(0) : null;
+    }
+
+    public boolean checkPassword(String login, String password)
+        throws SQLException {
+      return esql.executeQuery(String.format(
+          "SELECT * FROM USERS WHERE login = '%s' AND password = '%s'",
+          Cafe.escape(login),
+          Cafe.escape(password))) > 0;
+    }
+
+    public void create(UserAccount user) throws SQLException {
+      esql.executeUpdate(String.format(
+          "INSERT INTO USERS (phoneNum, login, password, favItems, type) VALUES ('%s','%s','%s','%s','%s')",
+          Cafe.escape(user.phoneNum()),
+          Cafe.escape(user.login()),
+          Cafe.escape(user.password()),
+          Cafe.escape(user.favItems()),
+          Cafe.escape(user.type())));
+    }
+
+    private int set(String column, String login, String value)
+        throws SQLException {
+      return esql.executeUpdate(String.format(
+          "UPDATE Users SET %s='%s' WHERE login='%s'",
+          column,
+          Cafe.escape(value),
+          Cafe.escape(login)));
+    }
+
+    public int setFavItems(String login, String favItems) throws SQLException {
+      return set("favItems", login, favItems);
+    }
+
+    public int setPassword(String login, String password) throws SQLException {
+      return set("password", login, password);
+    }
+
+    public int setPhoneNum(String login, String phoneNum) throws SQLException {
+      return set("phoneNum", login, phoneNum);
+    }
+
+    public int setType(String login, String type) throws SQLException {
+      return set("type", login, type);
+    }
+
+    public int setStore(String login, int storeId) throws SQLException {
+      return esql.executeUpdate(String.format(
+          "UPDATE Users SET storeId=%s WHERE login='%s'",
+          storeId == 0 ? "NULL" : Integer.toString(storeId),
+          Cafe.escape(login)));
+    }
+
+    public int[] upsert(List<UserAccount> users) throws SQLException {
+      int[] result = new int[2];
+      if (users.isEmpty())
+        return result;
+      StringBuilder values = new StringBuilder();
+      for (UserAccount user : users) {
+        values.append(values.length() > 0 ? ", " : "").append(String.format(
+            "('%s', %s, '%s', '%s', '%s')",
+            Cafe.escape(user.login()),
+            user.phoneNum() == null || user.phoneNum().length() == 0 ? "NULL"
+                : literal(user.phoneNum()),
+            Cafe.escape(user.password()),
+            Cafe.escape(user.favItems()),
+            Cafe.escape(user.type())));
+      }
+      // the insert reports new users, the update only rows that differ
+      List<String> statements = new ArrayList<String>();
+      statements.add("INSERT INTO Users (login, phoneNum, password, favItems, type) VALUES "
+          + values + " ON CONFLICT (login) DO NOTHING");
+      statements.add("UPDATE Users U SET phoneNum = V.phoneNum, password = V.password, favItems = V.favItems, type = V.type FROM (VALUES "
+          + values
+          + ") AS V(login, phoneNum, password, favItems, type) WHERE U.login = V.login AND (trim(U.phoneNum), trim(U.password), trim(U.favItems), trim(U.type)) IS DISTINCT FROM (V.phoneNum, V.password, V.favItems, V.type)");
+      int[] counts = esql.executeUpdateBatch(statements);
+      result[0] = counts[0];
+      result[1] = counts[1];
+      return result;
+    }
+
+    public int setTypes(List<String> logins, String type) throws SQLException {
+      if (logins.isEmpty())
+        return 0;
+      StringBuilder names = new StringBuilder();
+      for (String login : logins)
+        names.append(names.length() > 0 ? ", " : "").append(literal(login));
+      return esql.executeUpdate(String.format(
+          "UPDATE Users SET type='%s' WHERE login IN (%s) AND type <> '%s'",
+          Cafe.escape(type),
+          names,
+          Cafe.escape(type)));
+    }
+
+    public int changeType(String fromType, String toType) throws SQLException {
+      return esql.executeUpdate(String.format(
+          "UPDATE Users SET type='%s' WHERE type='%s'",
+          Cafe.escape(toType),
+          Cafe.escape(fromType)));
+    }
+
+    public int setFavItems(Map<String, String> favItems) throws SQLException {
+      if (favItems.isEmpty())
+        return 0;
+      StringBuilder values = new StringBuilder();
+      for (Map.Entry<String, String> entry : favItems.entrySet()) {
+        values.append(values.length() > 0 ? ", " : "").append('(')
+            .append(literal(entry.getKey())).append(", ")
+            .append(literal(entry.getValue())).append(')');
+      }
+      return esql.executeUpdate(
+          "UPDATE Users U SET favItems = V.favItems FROM (VALUES " + values
+              + ") AS V(login, favItems) WHERE U.login = V.login");
+    }
+  }
+
+  static class Menu implements MenuRepository {
+    static final String COLUMNS =
+        "SELECT itemName, type, price, description, imageURL FROM Menu";
+    static final String BY_TYPE = COLUMNS + " WHERE type='%s'";
+
+    private final Cafe esql;
+
+    Menu(Cafe esql) {
+      this.esql = esql;
+    }
+
+    static final RowMapper<MenuItem> ROW = rs -> new MenuItem(
+        text(rs.getString(1)), text(rs.getString(2)), rs.getFloat(3),
+        text(rs.getString(4)), text(rs.getString(5)));
+
+    public MenuItem find(String itemName) throws SQLException {
+      List<MenuItem> items = esql.executeQueryAndMap(String.format(
+          COLUMNS + " WHERE itemName='%s'",
+          Cafe.escape(itemName)), ROW);
+      return items.size() > 0 ? items.get(0) : null;
+    }
+
+    public List<MenuItem> all() throws SQLException {
+      return esql.executeReadQueryAndMap(COLUMNS, ROW);
+    }
+
+    public List<MenuItem> byType(String type) throws SQLException {
+      return esql.executeReadQueryAndMap(String.format(
+          BY_TYPE,
+          Cafe.escape(type)), ROW);
+    }
+
+    public int[] apply(List<MenuChange> changes) throws SQLException {
+      StringBuilder upserts = new StringBuilder();
+      StringBuilder deletes = new StringBuilder();
+      for (MenuChange change : changes) {
+        MenuItem item = change.after();
+        if (item != null) {
+          upserts.append(upserts.length() > 0 ? ", " : "").append(String.format(
+              "('%s', '%s', '%s', %s, %s)",
+              Cafe.escape(item.itemName()),
+              Cafe.escape(item.type()),
+              item.price(),
+              literal(item.description()),
+              literal(item.imageURL())));
+        } else {
+          deletes.append(deletes.length() > 0 ? ", " : "").append('\'')
+              .append(Cafe.escape(change.itemName())).append('\'');
+        }
+      }
+      List<String> statements = new ArrayList<String>();
+      if (upserts.length() > 0) {
+        statements.add(
+            "INSERT INTO Menu (itemName, type, price, description, imageURL) VALUES "
+                + upserts
+                + " ON CONFLICT (itemName) DO UPDATE SET type = EXCLUDED.type, price = EXCLUDED.price, description = EXCLUDED.description, imageURL = EXCLUDED.imageURL");
+      }
+      if (deletes.length() > 0) {
+        statements.add("DELETE FROM Menu M WHERE itemName IN (" + deletes
+            + ") AND NOT EXISTS (SELECT 1 FROM ItemStatus I WHERE I.itemName = M.itemName)");
+      }
+      int[] result = new int[2];
+      if (statements.isEmpty())
+        return result;
+      int[] counts = esql.executeUpdateBatch(statements);
+      if (upserts.length() > 0)
+        result[0] = counts[0];
+      if (deletes.length() > 0)
+        result[1] = counts[counts.length - 1];
+      return result;
+    }
+
+    public void add(MenuItem item) throws SQLException {
+      esql.executeUpdate(String.format(
+          "INSERT INTO Menu (itemName, type, price, description, imageURL) VALUES ('%s', '%s', '%s', '%s', '%s')",
+          Cafe.escape(item.itemName()),
+          Cafe.escape(item.type()),
+          item.price(),
+          Cafe.escape(item.description()),
+          Cafe.escape(item.imageURL())));
+    }
+
+    public int delete(String itemName) throws SQLException {
+      return esql.executeUpdate(String.format(
+          "DELETE FROM Menu WHERE itemName='%s'",
+          Cafe.escape(itemName)));
+    }
+
+    private int set(String column, String itemName, String value)
+        throws SQLException {
+      return esql.executeUpdate(String.format(
+          "UPDATE Menu SET %s='%s' WHERE itemName='%s'",
+          column,
+          Cafe.escape(value),
+          Cafe.escape(itemName)));
+    }
+
+    public int setType(String itemName, String type) throws SQLException {
+      return set("type", itemName, type);
+    }
+
+    public int setPrice(String itemName, float price) throws SQLException {
+      return set("price", itemName, String.valueOf(price));
+    }
+
+    public int setDescription(String itemName, String description)
+        throws SQLException {
+      return set("description", itemName, description);
+    }
+
+    public int setImageURL(String itemName, String imageURL)
+        throws SQLException {
+      return set("imageURL", itemName, imageURL);
+    }
+  }
+
+  static class Orders implements OrderRepository {
+    static final String COLUMNS =
+        "SELECT orderid, login, paid, timeStampRecieved, total, version FROM Orders";
+    static final String CURRENT = COLUMNS
+        + " WHERE paid=false AND timeStampRecieved>=NOW()-'1 day'::INTERVAL";
+    // archived orders too, see AllOrders in create_tables.sql
+    static final String ALL_COLUMNS =
+        "SELECT orderid, login, paid, timeStampRecieved, total, version FROM AllOrders";
+
+    private final Cafe esql;
+
+    Orders(Cafe esql) {
+      this.esql = esql;
+    }
+
+    static final RowMapper<Order> ROW = rs -> new Order(rs.getInt(1),
+        text(rs.getString(2)), rs.getBoolean(3), rs.getTimestamp(4),
+        rs.getFloat(5), rs.getInt(6));
+
+    public int create(String login, Timestamp received, float total)
+        throws SQLException {
+      int orderid = esql.nextOrderId();
+      esql.executeUpdate(String.format(
+          "INSERT INTO Orders (orderid, storeId, login, paid, timeStampRecieved, total) VALUES (%d, %d, '%s', 'false', '%s', '%s')",
+          orderid,
+          Cafe.storeId(),
+          Cafe.escape(login),
+          received,
+          total));
+      return orderid;
+    }
+
+    /*
+     * The key, the order and its line are inserted by one statement, which
+     * inserts none of them when the key is already there or the item is
+     * not on the menu.
+     */
+    public OrderReceipt create(UUID requestKey, String login,
+        Timestamp received, String itemName, int quantity, String status)
+        throws SQLException {
+      if (quantity <= 0)
+        throw new SQLException("Quantity must be positive");
+      int orderid = esql.nextOrderId();
+      int rowCount = esql.executeUpdate(String.format(
+          "WITH M AS (SELECT itemName, price FROM Menu WHERE itemName = '%1$s'),"
+              + " K AS (INSERT INTO OrderRequestKeys (requestKey, orderid, total) SELECT '%2$s', %3$d, price * %4$d FROM M ON CONFLICT (requestKey) DO NOTHING RETURNING orderid, total),"
+              + " O AS (INSERT INTO Orders (orderid, storeId, login, paid, timeStampRecieved, total) SELECT orderid, %5$d, '%6$s', 'false', '%7$s', total FROM K)"
+              + " INSERT INTO ItemStatus (orderid, itemName, lastUpdated, status, timeStampRecieved, quantity, unitPrice) SELECT K.orderid, M.itemName, '%7$s', '%8$s', '%7$s', %4$d, M.price FROM K, M",
+          Cafe.escape(itemName),
+          requestKey,
+          orderid,
+          quantity,
+          Cafe.storeId(),
+          Cafe.escape(login),
+          received,
+          Cafe.escape(status)));
+      return receipt(esql, requestKey, rowCount == 0);
+    }
+
+    public Order find(int orderid) throws SQLException {
+      List<Order> orders = esql.executeQueryAndMap(String.format(
+          ALL_COLUMNS + " WHERE orderid='%s'",
+          orderid), ROW);
+      return orders.size() > 0 ? orders.get(0) : null;
+    }
+
+    public List<Order> recentByLogin(String login, int limit)
+        throws SQLException {
+      return esql.executeReadQueryAndMap(String.format(
+          ALL_COLUMNS + " WHERE login = '%s' ORDER BY orderid desc LIMIT %d",
+          Cafe.escape(login),
+          limit), ROW);
+    }
+
+    public List<Order> current() throws SQLException {
+      return esql.executeReadQueryAndMap(CURRENT, ROW);
+    }
+
+    public int setTotal(int orderid, float total, int version)
+        throws SQLException {
+      return esql.executeUpdate(String.format(
+          "UPDATE Orders SET total='%s', version=version+1 WHERE orderid='%s'%s",
+          total,
+          orderid,
+          versionIs(version)));
+    }
+
+    public int setPaid(int orderid, boolean paid, int version)
+        throws SQLException {
+      return esql.executeUpdate(String.format(
+          "UPDATE Orders SET paid='%s', version=version+1 WHERE orderid='%s'%s",
+          paid,
+          orderid,
+          versionIs(version)));
+    }
+  }
+
+  static class Items implements ItemStatusRepository {
+    static final String COLUMNS =
+        "SELECT orderid, itemName, lastUpdated, status, comments, quantity, startedQty, finishedQty, unitPrice, version FROM ItemStatus";
+    // archived lines too, see AllItemStatus in create_tables.sql
+    static final String ALL_COLUMNS =
+        "SELECT orderid, itemName, lastUpdated, status, comments, quantity, startedQty, finishedQty, unitPrice, version FROM AllItemStatus";
+    static final String BY_ORDER = ALL_COLUMNS + " WHERE orderid='%s'";
+
+    // status of a line from its unit counts, see OrderLine.statusOf
+    static final String STATUS_OF =
+        "CASE WHEN %3$s >= %1$s THEN 'Finished' WHEN %2$s + %3$s > 0 THEN 'Started' ELSE 'Hasn''t Started' END";
+
+    private final Cafe esql;
+
+    Items(Cafe esql) {
+      this.esql = esql;
+    }
+
+    static final RowMapper<OrderLine> ROW = rs -> new OrderLine(rs.getInt(1),
+        text(rs.getString(2)), rs.getTimestamp(3), text(rs.getString(4)),
+        text(rs.getString(5)), rs.getInt(6), rs.getInt(7), rs.getInt(8),
+        rs.getFloat(9), rs.getInt(10));
+
+    public void add(int orderid, String itemName, int quantity,
+        Timestamp lastUpdated, String status) throws SQLException {
+      int rowCount = esql.executeUpdate(String.format(
+          "INSERT INTO ItemStatus AS I (orderid, itemName, lastUpdated, status, timeStampRecieved, quantity, unitPrice) SELECT orderid, '%1$s', '%2$s', '%3$s', timeStampRecieved, %4$d, (SELECT price FROM Menu WHERE itemName='%1$s') FROM Orders WHERE orderid='%5$s'"
+              + ADD_UNITS,
+          Cafe.escape(itemName),
+          lastUpdated,
+          Cafe.escape(status),
+          quantity,
+          orderid));
+      if (rowCount == 0)
+        throw new SQLException("Order " + orderid + " does not exist");
+    }
+
+    /*
+     * One statement locks the order, inserts the key, raises the total and
+     * adds the units. Nothing but the lock happens when the key is already
+     * there, and nothing at all when the order is paid or missing or the
+     * item is not on the menu.
+     */
+    public OrderReceipt add(UUID requestKey, int orderid, String itemName,
+        int quantity, Timestamp lastUpdated, String status)
+        throws SQLException {
+      int rowCount = esql.executeUpdate(addStatement(requestKey, orderid,
+          itemName, quantity, lastUpdated, status));
+      return receipt(esql, requestKey, rowCount == 0);
+    }
+
+    static String addStatement(UUID requestKey, int orderid, String itemName,
+        int quantity, Timestamp lastUpdated, String status) {
+      return String.format(
+          "WITH C AS (SELECT O.orderid, O.timeStampRecieved, O.total + M.price * %4$d AS total, M.price FROM Orders O, Menu M WHERE O.orderid = %5$d AND O.paid = false AND M.itemName = '%1$s' FOR UPDATE OF O),"
+              + " K AS (INSERT INTO OrderRequestKeys (requestKey, orderid, total) SELECT '%6$s', orderid, total FROM C ON CONFLICT (requestKey) DO NOTHING RETURNING orderid),"
+              + " T AS (UPDATE Orders SET total = C.total, version = version + 1 FROM C, K WHERE Orders.orderid = K.orderid AND Orders.timeStampRecieved = C.timeStampRecieved)"
+              + " INSERT INTO ItemStatus AS I (orderid, itemName, lastUpdated, status, timeStampRecieved, quantity, unitPrice) SELECT C.orderid, '%1$s', '%2$s', '%3$s', C.timeStampRecieved, %4$d, C.price FROM C, K"
+              + ADD_UNITS,
+          Cafe.escape(itemName),
+          lastUpdated,
+          Cafe.escape(status),
+          quantity,
+          orderid,
+          requestKey);
+    }
+
+    public OrderLine find(int orderid, String itemName) throws SQLException {
+      List<OrderLine> lines = esql.executeQueryAndMap(String.format(
+          COLUMNS + " WHERE orderid='%s' AND itemName='%s'",
+          orderid,
+          Cafe.escape(itemName)), ROW);
+      return lines.size() > 0 ? lines.get(0) : null;
+    }
+
+    public List<OrderLine> byOrder(int orderid) throws SQLException {
+      return esql.executeReadQueryAndMap(String.format(
+          BY_ORDER,
+          orderid), ROW);
+    }
+
+    public int setStatus(int orderid, String itemName, String status,
+        int version) throws SQLException {
+      int rowCount = esql.executeUpdate(String.format(
+          "UPDATE ItemStatus SET status='%s', %s, lastUpdated=now(), version=version+1 WHERE orderid='%s' AND itemName='%s'%s",
+          Cafe.escape(status),
+          countsFor(status),
+          orderid,
+          Cafe.escape(itemName),
+          versionIs(version)));
+      if (rowCount > 0)
+        ItemStatusEvents.status(orderid, itemName, status);
+      return rowCount;
+    }
+
+    public int setProgress(int orderid, String itemName, int startedQty,
+        int finishedQty, int version) throws SQLException {
+      int rowCount = esql.executeUpdate(String.format(
+          "UPDATE ItemStatus SET startedQty=%d, finishedQty=%d, lastUpdated=now(), version=version+1, status="
+              + String.format(STATUS_OF, "quantity", "%1$d", "%2$d")
+              + " WHERE orderid='%3$s' AND itemName='%4$s'%5$s",
+          startedQty,
+          finishedQty,
+          orderid,
+          Cafe.escape(itemName),
+          versionIs(version)));
+      if (rowCount > 0)
+        ItemStatusEvents.progress(orderid, itemName, startedQty, finishedQty);
+      return rowCount;
+    }
+
+    public int setComments(int orderid, String itemName, String comments,
+        int version) throws SQLException {
+      return esql.executeUpdate(String.format(
+          "UPDATE ItemStatus SET comments='%s', version=version+1 WHERE orderid = '%s' AND itemName='%s'%s",
+          Cafe.escape(comments),
+          orderid,
+          Cafe.escape(itemName),
+          versionIs(version)));
+    }
+  }
+} // end JdbcStore
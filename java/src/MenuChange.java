@@ -0,0 +1,142 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One step of a bulk menu change: before is null for an item to add and
+ * after is null for an item to delete. Plans are built from the current
+ * menu so they can be shown as a diff before they are applied with
+ * MenuRepository.apply.
+ */
+public record MenuChange(MenuItem before, MenuItem after) {
+
+  /**
+   * @return the name of the item changed
+   */
+  public String itemName() {
+    return after != null ? after.itemName() : before.itemName();
+  }
+
+  /**
+   * @return one line describing the change, prefixed with +, - or ~
+   */
+  public String describe() {
+    if (before == null)
+      return String.format("+ %s\t%s\t%.2f", after.itemName(), after.type(),
+          after.price());
+    if (after == null)
+      return "- " + before.itemName();
+    StringBuilder line = new StringBuilder("~ " + after.itemName() + ":");
+    if (!before.type().equals(after.type()))
+      line.append(" type ").append(before.type()).append(" -> ")
+          .append(after.type()).append(';');
+    if (before.price() != after.price())
+      line.append(String.format(" price %.2f -> %.2f;", before.price(),
+          after.price()));
+    if (!text(before.description()).equals(text(after.description())))
+      line.append(" description;");
+    if (!text(before.imageURL()).equals(text(after.imageURL())))
+      line.append(" image URL;");
+    return line.toString();
+  }
+
+  // a missing description or image URL reads as empty, as in menu.csv
+  private static String text(String value) {
+    return value == null ? "" : value;
+  }
+
+  private static boolean same(MenuItem a, MenuItem b) {
+    return a.type().equals(b.type()) && a.price() == b.price()
+        && text(a.description()).equals(text(b.description()))
+        && text(a.imageURL()).equals(text(b.imageURL()));
+  }
+
+  /**
+   * Plans a price change of every item of a type.
+   *
+   * @param menu the current menu
+   * @param type the type to reprice, or null for the whole menu
+   * @param percent true to change prices by amount percent, false to add
+   *        amount to them
+   * @param amount the change, negative to lower prices
+   * @return one change per item whose price moves; prices are rounded to
+   *         cents and never go below zero
+   */
+  public static List<MenuChange> repricing(List<MenuItem> menu, String type,
+      boolean percent, float amount) {
+    List<MenuChange> changes = new ArrayList<MenuChange>();
+    for (MenuItem item : menu) {
+      if (type != null && !item.type().equals(type))
+        continue;
+      double price = percent ? item.price() * (1 + amount / 100.0)
+          : item.price() + amount;
+      float cents = Math.max(0, Math.round(price * 100)) / 100f;
+      if (cents != item.price()) {
+        changes.add(new MenuChange(item, new MenuItem(item.itemName(),
+            item.type(), cents, item.description(), item.imageURL())));
+      }
+    }
+    return changes;
+  }
+
+  /**
+   * Plans bringing the menu in line with an imported one: new items are
+   * added and differing ones updated. Items missing from the import are
+   * deleted when deleteMissing is set.
+   *
+   * @param menu the current menu
+   * @param imported the wanted menu; for repeated names the last one wins
+   * @return the changes, unchanged items left out
+   */
+  public static List<MenuChange> importing(List<MenuItem> menu,
+      List<MenuItem> imported, boolean deleteMissing) {
+    Map<String, MenuItem> current = new LinkedHashMap<String, MenuItem>();
+    for (MenuItem item : menu)
+      current.put(item.itemName(), item);
+    Map<String, MenuItem> wanted = new LinkedHashMap<String, MenuItem>();
+    for (MenuItem item : imported)
+      wanted.put(item.itemName(), item);
+
+    List<MenuChange> changes = new ArrayList<MenuChange>();
+    for (MenuItem item : wanted.values()) {
+      MenuItem old = current.get(item.itemName());
+      if (old == null || !same(old, item))
+        changes.add(new MenuChange(old, item));
+    }
+    if (deleteMissing) {
+      for (MenuItem item : current.values()) {
+        if (!wanted.containsKey(item.itemName()))
+          changes.add(new MenuChange(item, null));
+      }
+    }
+    return changes;
+  }
+
+  /**
+   * Reads a file in the data/menu.csv format (';' separated itemName,
+   * type, price, description, imageURL).
+   *
+   * @throws java.io.IOException when the file cannot be read or a row is
+   *         invalid
+   */
+  public static List<MenuItem> readMenu(File file) throws IOException {
+    List<MenuItem> items = new ArrayList<MenuItem>();
+    int line = 0;
+    for (String[] row : InMemoryStore.readCsv(file, 5)) {
+      line++;
+      float price;
+      try {
+        price = Float.parseFloat(row[2]);
+      } catch (NumberFormatException e) {
+        price = -1;
+      }
+      if (row[0].length() == 0 || row[1].length() == 0 || price < 0)
+        throw new IOException(file + ": invalid menu entry " + line);
+      items.add(new MenuItem(row[0], row[1], price, row[3], row[4]));
+    }
+    return items;
+  }
+}
@@ -0,0 +1,6 @@
+/**
+ * A row of Menu.
+ */
+public record MenuItem(String itemName, String type, float price,
+    String description, String imageURL) {
+}
@@ -0,0 +1,40 @@
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Access to Menu.
+ */
+public interface MenuRepository {
+
+  /**
+   * @return the item, or null if it is not on the menu
+   */
+  MenuItem find(String itemName) throws SQLException;
+
+  List<MenuItem> all() throws SQLException;
+
+  List<MenuItem> byType(String type) throws SQLException;
+
+  /**
+   * @throws java.sql.SQLException when the item already exists
+   */
+  void add(MenuItem item) throws SQLException;
+
+  int delete(String itemName) throws SQLException;
+
+  int setType(String itemName, String type) throws SQLException;
+
+  int setPrice(String itemName, float price) throws SQLException;
+
+  int setDescription(String itemName, String description) throws SQLException;
+
+  int setImageURL(String itemName, String imageURL) throws SQLException;
+
+  /**
+   * Applies a bulk change in one transaction. Items still referenced by
+   * orders are not deleted.
+   *
+   * @return the number of items added or updated and the number deleted
+   */
+  int[] apply(List<MenuChange> changes) throws SQLException;
+}
@@ -0,0 +1,565 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compact table of open (unpaid) orders and their item statuses, kept in
+ * flat primitive arrays. Each order is a fixed-width record: login symbol,
+ * paid flag, received time in millis and total in cents. Item lines live
+ * in a second pool of arrays chained per order, each with its quantity and
+ * started and finished unit counts. Logins, item names and
+ * statuses are interned once into a symbol table, so the visitor reads
+ * below do not allocate.
+ *
+ * Orders are looked up through an int-keyed open-addressing index with
+ * linear probing and backward-shift removal, like IntObjectMap but mapping
+ * straight to record slots. Freed record and line slots are reused.
+ *
+ * A table refilled from the underlying store is swapped in with
+ * replace(), which also drops the symbols no order uses any more;
+ * between startTracking() and replace() the orders changed through this
+ * table are noted, so changes made while the new table was being read
+ * are not lost.
+ */
+public class OpenOrders {
+
+  /**
+   * Receives the orders visited by forEachCurrent.
+   */
+  public interface OrderVisitor {
+    void order(int orderid, String login, boolean paid, long received,
+        long totalCents);
+  }
+
+  /**
+   * Receives the item lines visited by forEachLine.
+   */
+  public interface LineVisitor {
+    void line(int orderid, String itemName, String status, int quantity,
+        int startedQty, int finishedQty, long lastUpdated);
+  }
+
+  private static final int NONE = -1;
+
+  // orderid -> record slot, 0 marks an empty key (order ids start at 1)
+  private int[] keys;
+  private int[] index;
+  private int mask;
+  private int size = 0;
+
+  // order records, one column per field
+  private int[] orderids;
+  private int[] login;
+  private boolean[] paid;
+  private long[] received;
+  private long[] totalCents;
+  private int[] firstLine;
+  private int orderHigh = 0;
+  private int freeOrder = NONE;
+
+  // item lines, chained through lineNext
+  private int[] lineItem;
+  private int[] lineStatus;
+  private int[] lineQty;
+  private int[] lineStarted;
+  private int[] lineFinished;
+  private long[] lineUpdated;
+  private int[] lineNext;
+  private int lineHigh = 0;
+  private int freeLine = NONE;
+
+  // interned strings referenced by the records
+  private String[] symbols = new String[64];
+  private Map<String, Integer> symbolIds = new HashMap<String, Integer>();
+
+  // orders changed since startTracking(), null when not tracking
+  private Set<Integer> changed = null;
+
+  public OpenOrders() {
+    this(256);
+  }
+
+  /**
+   * @param expected the number of open orders to size the arrays for
+   */
+  public OpenOrders(int expected) {
+    int capacity = 16;
+    while (capacity * 3 / 4 < expected)
+      capacity <<= 1;
+    keys = new int[capacity];
+    index = new int[capacity];
+    mask = capacity - 1;
+    orderids = new int[capacity];
+    login = new int[capacity];
+    paid = new boolean[capacity];
+    received = new long[capacity];
+    totalCents = new long[capacity];
+    firstLine = new int[capacity];
+    lineItem = new int[capacity * 4];
+    lineStatus = new int[capacity * 4];
+    lineQty = new int[capacity * 4];
+    lineStarted = new int[capacity * 4];
+    lineFinished = new int[capacity * 4];
+    lineUpdated = new long[capacity * 4];
+    lineNext = new int[capacity * 4];
+  }
+
+  public static long cents(float amount) {
+    return Math.round(amount * 100.0);
+  }
+
+  /**
+   * Adds an order, or resets its record if it is already present.
+   */
+  public synchronized void put(int orderid, String orderLogin,
+      boolean isPaid, long receivedMillis, long cents) {
+    changed(orderid);
+    int slot = slot(orderid);
+    if (slot == NONE) {
+      slot = allocOrder();
+      insertKey(orderid, slot);
+    } else {
+      freeLines(slot);
+    }
+    orderids[slot] = orderid;
+    login[slot] = symbol(orderLogin);
+    paid[slot] = isPaid;
+    received[slot] = receivedMillis;
+    totalCents[slot] = cents;
+    firstLine[slot] = NONE;
+  }
+
+  /**
+   * @return false if the order is not in the table
+   */
+  public synchronized boolean setTotal(int orderid, long cents) {
+    changed(orderid);
+    int slot = slot(orderid);
+    if (slot == NONE)
+      return false;
+    totalCents[slot] = cents;
+    return true;
+  }
+
+  /**
+   * Adds an item line to an order, or replaces it if the item is already
+   * on the order.
+   *
+   * @return false if the order is not in the table
+   */
+  public synchronized boolean putLine(int orderid, String itemName,
+      String status, int quantity, int startedQty, int finishedQty,
+      long updated) {
+    changed(orderid);
+    int slot = slot(orderid);
+    if (slot == NONE)
+      return false;
+    int line = line(slot, symbol(itemName));
+    lineStatus[line] = symbol(status);
+    lineQty[line] = quantity;
+    lineStarted[line] = startedQty;
+    lineFinished[line] = finishedQty;
+    lineUpdated[line] = updated;
+    return true;
+  }
+
+  /**
+   * Adds units of an item to an order, raising the quantity of its line if
+   * the item is already on the order.
+   *
+   * @return false if the order is not in the table
+   */
+  public synchronized boolean addUnits(int orderid, String itemName,
+      int quantity, String status, long updated) {
+    changed(orderid);
+    int slot = slot(orderid);
+    if (slot == NONE)
+      return false;
+    int item = symbol(itemName);
+    int line = findLine(slot, item);
+    if (line == NONE) {
+      line = line(slot, item);
+      lineStatus[line] = symbol(status);
+      lineQty[line] = quantity;
+      lineStarted[line] = 0;
+      lineFinished[line] = 0;
+    } else {
+      lineQty[line] += quantity;
+      lineStatus[line] = symbol(OrderLine.statusOf(lineQty[line],
+          lineStarted[line], lineFinished[line]));
+    }
+    lineUpdated[line] = updated;
+    return true;
+  }
+
+  /**
+   * Puts every unit of a line in the given status.
+   *
+   * @return false if the order or the item is not in the table
+   */
+  public synchronized boolean setStatus(int orderid, String itemName,
+      String status, long updated) {
+    changed(orderid);
+    int line = existingLine(orderid, itemName);
+    if (line == NONE)
+      return false;
+    int[] counts = OrderLine.countsOf(status, lineQty[line]);
+    lineStatus[line] = symbol(status);
+    lineStarted[line] = counts[0];
+    lineFinished[line] = counts[1];
+    lineUpdated[line] = updated;
+    return true;
+  }
+
+  /**
+   * Sets the started and finished unit counts of a line.
+   *
+   * @return false if the order or the item is not in the table
+   */
+  public synchronized boolean setProgress(int orderid, String itemName,
+      int startedQty, int finishedQty, long updated) {
+    changed(orderid);
+    int line = existingLine(orderid, itemName);
+    if (line == NONE)
+      return false;
+    lineStarted[line] = startedQty;
+    lineFinished[line] = finishedQty;
+    lineStatus[line] = symbol(OrderLine.statusOf(lineQty[line], startedQty,
+        finishedQty));
+    lineUpdated[line] = updated;
+    return true;
+  }
+
+  /**
+   * Drops an order and its lines, e.g. once it is paid.
+   *
+   * @return false if the order was not in the table
+   */
+  public synchronized boolean remove(int orderid) {
+    changed(orderid);
+    int i = hash(orderid);
+    for (; keys[i] != 0; i = (i + 1) & mask) {
+      if (keys[i] == orderid)
+        break;
+    }
+    if (keys[i] == 0)
+      return false;
+    int slot = index[i];
+    freeLines(slot);
+    firstLine[slot] = freeOrder;
+    freeOrder = slot;
+    login[slot] = NONE;
+    // shift later entries of the probe run back into the gap
+    int gap = i;
+    for (int j = (i + 1) & mask; keys[j] != 0; j = (j + 1) & mask) {
+      int home = hash(keys[j]);
+      if (((j - home) & mask) >= ((j - gap) & mask)) {
+        keys[gap] = keys[j];
+        index[gap] = index[j];
+        gap = j;
+      }
+    }
+    keys[gap] = 0;
+    size--;
+    return true;
+  }
+
+  /**
+   * Drops every order received before the given time.
+   *
+   * @return the number of orders removed
+   */
+  public synchronized int evictBefore(long millis) {
+    int removed = 0;
+    for (int slot = 0; slot < orderHigh; slot++) {
+      if (login[slot] != NONE && received[slot] < millis) {
+        if (remove(orderids[slot]))
+          removed++;
+      }
+    }
+    return removed;
+  }
+
+  /**
+   * Starts noting the orders changed through this table, for a replace()
+   * with a table read from the underlying store from now on.
+   */
+  public synchronized void startTracking() {
+    changed = new HashSet<Integer>();
+  }
+
+  public synchronized void stopTracking() {
+    changed = null;
+  }
+
+  /**
+   * Takes over the contents of a table refilled from the underlying store.
+   * Orders changed through this table since startTracking() keep their
+   * record here, or stay out if they were removed, since the refilled
+   * table may have been read before the change. Symbols are taken from
+   * the refilled table, so those no order uses any more are dropped.
+   *
+   * @param fresh the refilled table, used by no other thread; it must
+   *        not be used afterwards
+   */
+  public synchronized void replace(OpenOrders fresh) {
+    if (changed != null) {
+      for (int orderid : changed) {
+        int slot = slot(orderid);
+        if (slot == NONE) {
+          fresh.remove(orderid);
+          continue;
+        }
+        fresh.put(orderid, symbols[login[slot]], paid[slot], received[slot],
+            totalCents[slot]);
+        visitLines(orderid, firstLine[slot],
+            (o, itemName, status, quantity, started, finished, updated) ->
+                fresh.putLine(o, itemName, status, quantity, started,
+                    finished, updated));
+      }
+      changed = null;
+    }
+    synchronized (fresh) {
+      keys = fresh.keys;
+      index = fresh.index;
+      mask = fresh.mask;
+      size = fresh.size;
+      orderids = fresh.orderids;
+      login = fresh.login;
+      paid = fresh.paid;
+      received = fresh.received;
+      totalCents = fresh.totalCents;
+      firstLine = fresh.firstLine;
+      orderHigh = fresh.orderHigh;
+      freeOrder = fresh.freeOrder;
+      lineItem = fresh.lineItem;
+      lineStatus = fresh.lineStatus;
+      lineQty = fresh.lineQty;
+      lineStarted = fresh.lineStarted;
+      lineFinished = fresh.lineFinished;
+      lineUpdated = fresh.lineUpdated;
+      lineNext = fresh.lineNext;
+      lineHigh = fresh.lineHigh;
+      freeLine = fresh.freeLine;
+      symbols = fresh.symbols;
+      symbolIds = fresh.symbolIds;
+    }
+  } // end replace
+
+  /**
+   * @return the number of interned logins, item names and statuses
+   */
+  public synchronized int symbolCount() {
+    return symbolIds.size();
+  }
+
+  public synchronized boolean contains(int orderid) {
+    return slot(orderid) != NONE;
+  }
+
+  public synchronized int size() {
+    return size;
+  }
+
+  /**
+   * @return the number of unpaid orders received at or after since
+   */
+  public synchronized int countCurrent(long since) {
+    int count = 0;
+    for (int slot = 0; slot < orderHigh; slot++) {
+      if (login[slot] != NONE && !paid[slot] && received[slot] >= since)
+        count++;
+    }
+    return count;
+  }
+
+  /**
+   * Visits the unpaid orders received at or after since, oldest record
+   * slot first.
+   *
+   * @return the number of orders visited
+   */
+  public synchronized int forEachCurrent(long since, OrderVisitor visitor) {
+    int count = 0;
+    for (int slot = 0; slot < orderHigh; slot++) {
+      if (login[slot] != NONE && !paid[slot] && received[slot] >= since) {
+        visitor.order(orderids[slot], symbols[login[slot]], paid[slot],
+            received[slot], totalCents[slot]);
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Visits the item lines of an order in the order they were added.
+   *
+   * @return the number of lines visited, or -1 if the order is not in
+   *         the table
+   */
+  public synchronized int forEachLine(int orderid, LineVisitor visitor) {
+    int slot = slot(orderid);
+    if (slot == NONE)
+      return -1;
+    return visitLines(orderid, firstLine[slot], visitor);
+  }
+
+  private int visitLines(int orderid, int line, LineVisitor visitor) {
+    // lines are chained newest first, recurse to visit them oldest first
+    if (line == NONE)
+      return 0;
+    int count = visitLines(orderid, lineNext[line], visitor);
+    visitor.line(orderid, symbols[lineItem[line]], symbols[lineStatus[line]],
+        lineQty[line], lineStarted[line], lineFinished[line],
+        lineUpdated[line]);
+    return count + 1;
+  }
+
+  /**
+   * @return the login that placed an open order, or null
+   */
+  public synchronized String loginOf(int orderid) {
+    int slot = slot(orderid);
+    return slot == NONE ? null : symbols[login[slot]];
+  }
+
+  private void changed(int orderid) {
+    if (changed != null)
+      changed.add(orderid);
+  }
+
+  private int hash(int key) {
+    int h = key * 0x9E3779B9;
+    return (h ^ (h >>> 16)) & mask;
+  }
+
+  private int slot(int orderid) {
+    for (int i = hash(orderid); keys[i] != 0; i = (i + 1) & mask) {
+      if (keys[i] == orderid)
+        return index[i];
+    }
+    return NONE;
+  }
+
+  private void insertKey(int orderid, int slot) {
+    if (orderid <= 0)
+      throw new IllegalArgumentException("invalid order id " + orderid);
+    if (size + 1 > (mask + 1) * 3 / 4)
+      rehash();
+    int i = hash(orderid);
+    while (keys[i] != 0)
+      i = (i + 1) & mask;
+    keys[i] = orderid;
+    index[i] = slot;
+    size++;
+  }
+
+  private void rehash() {
+    int[] oldKeys = keys;
+    int[] oldIndex = index;
+    keys = new int[oldKeys.length * 2];
+    index = new int[oldKeys.length * 2];
+    mask = keys.length - 1;
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] == 0)
+        continue;
+      int j = hash(oldKeys[i]);
+      while (keys[j] != 0)
+        j = (j + 1) & mask;
+      keys[j] = oldKeys[i];
+      index[j] = oldIndex[i];
+    }
+  }
+
+  private int allocOrder() {
+    if (freeOrder != NONE) {
+      int slot = freeOrder;
+      freeOrder = firstLine[slot];
+      return slot;
+    }
+    if (orderHigh == login.length) {
+      int capacity = login.length * 2;
+      orderids = Arrays.copyOf(orderids, capacity);
+      login = Arrays.copyOf(login, capacity);
+      paid = Arrays.copyOf(paid, capacity);
+      received = Arrays.copyOf(received, capacity);
+      totalCents = Arrays.copyOf(totalCents, capacity);
+      firstLine = Arrays.copyOf(firstLine, capacity);
+    }
+    return orderHigh++;
+  }
+
+  private int allocLine() {
+    if (freeLine != NONE) {
+      int line = freeLine;
+      freeLine = lineNext[line];
+      return line;
+    }
+    if (lineHigh == lineItem.length) {
+      int capacity = lineItem.length * 2;
+      lineItem = Arrays.copyOf(lineItem, capacity);
+      lineStatus = Arrays.copyOf(lineStatus, capacity);
+      lineQty = Arrays.copyOf(lineQty, capacity);
+      lineStarted = Arrays.copyOf(lineStarted, capacity);
+      lineFinished = Arrays.copyOf(lineFinished, capacity);
+      lineUpdated = Arrays.copyOf(lineUpdated, capacity);
+      lineNext = Arrays.copyOf(lineNext, capacity);
+    }
+    return lineHigh++;
+  }
+
+  private int existingLine(int orderid, String itemName) {
+    int slot = slot(orderid);
+    Integer item = symbolIds.get(itemName);
+    if (slot == NONE || item == null)
+      return NONE;
+    return findLine(slot, item);
+  }
+
+  // the line of item in the order, added if it is not there yet
+  private int line(int slot, int item) {
+    int line = findLine(slot, item);
+    if (line == NONE) {
+      line = allocLine();
+      lineItem[line] = item;
+      lineNext[line] = firstLine[slot];
+      firstLine[slot] = line;
+    }
+    return line;
+  }
+
+  private int findLine(int slot, int item) {
+    for (int line = firstLine[slot]; line != NONE; line = lineNext[line]) {
+      if (lineItem[line] == item)
+        return line;
+    }
+    return NONE;
+  }
+
+  private void freeLines(int slot) {
+    int line = firstLine[slot];
+    while (line != NONE) {
+      int next = lineNext[line];
+      lineNext[line] = freeLine;
+      freeLine = line;
+      line = next;
+    }
+    firstLine[slot] = NONE;
+  }
+
+  private int symbol(String value) {
+    if (value == null)
+      value = "";
+    Integer id = symbolIds.get(value);
+    if (id != null)
+      return id;
+    int next = symbolIds.size();
+    if (next == symbols.length)
+      symbols = Arrays.copyOf(symbols, next * 2);
+    symbols[next] = value;
+    symbolIds.put(value, next);
+    return next;
+  }
+} // end OpenOrders
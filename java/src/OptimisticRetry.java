@@ -0,0 +1,85 @@
+import java.sql.SQLException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded retries of optimistic updates to Orders and ItemStatus. An
+ * attempt reads the row, works out what to write from what it read and
+ * writes with an update conditional on the version it read. When the
+ * update changes no row somebody else updated the row in between; the
+ * attempt is run again on a fresh read after a short random pause, up to
+ * cafe.occ.attempts times (default 3). An attempt that finds the change
+ * no longer applies (the order was paid, the line was started by someone
+ * else) returns GIVE_UP instead and the caller tells the user.
+ *
+ * No lock is held between the read and the write, so staff working on
+ * the same orders never wait for each other. Conflicts are counted for
+ * the server load screen.
+ */
+public final class OptimisticRetry {
+
+  // returned by an attempt that will not write
+  public static final int GIVE_UP = -1;
+
+  /**
+   * One read and conditional write.
+   */
+  @FunctionalInterface
+  public interface Attempt {
+    /**
+     * @return the rows written, 0 when the row had another version, or
+     *         GIVE_UP
+     */
+    int run() throws SQLException;
+  }
+
+  private static final int ATTEMPTS =
+      Math.max(1, Integer.getInteger("cafe.occ.attempts", 3));
+
+  private static final AtomicLong conflicts = new AtomicLong();
+  private static final AtomicLong exhausted = new AtomicLong();
+
+  private OptimisticRetry() {
+  }
+
+  /**
+   * Runs an attempt until it writes or gives up, or every attempt found
+   * another version.
+   *
+   * @return what the last attempt returned
+   * @throws java.sql.SQLException when an attempt failed
+   */
+  public static int run(Attempt attempt) throws SQLException {
+    for (int i = 1;; i++) {
+      int result = attempt.run();
+      if (result != 0)
+        return result;
+      conflicts.incrementAndGet();
+      if (i >= ATTEMPTS) {
+        exhausted.incrementAndGet();
+        return 0;
+      }
+      try {
+        Thread.sleep(ThreadLocalRandom.current().nextInt(1, 10 * i));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return 0;
+      }
+    }
+  } // end run
+
+  /**
+   * @return the number of conditional updates that found another version
+   */
+  public static long conflicts() {
+    return conflicts.get();
+  }
+
+  /**
+   * @return the number of updates abandoned after the last attempt also
+   *         found another version
+   */
+  public static long exhausted() {
+    return exhausted.get();
+  }
+} // end OptimisticRetry
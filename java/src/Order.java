@@ -0,0 +1,12 @@
+import java.sql.Timestamp;
+
+/**
+ * A row of Orders. version goes up by one with every update of the row;
+ * it is ANY_VERSION when the order was not read from the table.
+ */
+public record Order(int orderid, String login, boolean paid,
+    Timestamp timeStampRecieved, float total, int version) {
+
+  // passed as the expected version of an update that applies regardless
+  public static final int ANY_VERSION = -1;
+}
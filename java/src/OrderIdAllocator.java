@@ -0,0 +1,106 @@
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands out order ids from blocks reserved on orders_orderid_seq, so
+ * inserts can bind an explicit orderid instead of taking a nextval and a
+ * currval round trip per order. A block is reserved with one query and
+ * then shared by all threads; taking an id from it is a single atomic
+ * increment. Only refilling an exhausted block takes a lock.
+ *
+ * Ids reserved but never used (the rest of a block at shutdown, or the
+ * ids of a failed transaction) are left as gaps, as with plain nextval.
+ * Ids handed out by one allocator increase in the order they are handed
+ * out. Other processes draw from the same sequence, so their ids
+ * interleave with ours and orderid order is only the order of arrival
+ * within one process.
+ *
+ * One allocator is shared by the whole process; the block size is set
+ * with -Dcafe.orderIdBlock (default 50).
+ */
+public class OrderIdAllocator {
+
+  private static final OrderIdAllocator SHARED =
+      new OrderIdAllocator(Integer.getInteger("cafe.orderIdBlock", 50));
+
+  private static final class Block {
+    final int[] ids;
+    final AtomicInteger taken = new AtomicInteger();
+
+    Block(int[] ids) {
+      this.ids = ids;
+    }
+  }
+
+  private final int blockSize;
+  private volatile Block block = new Block(new int[0]);
+
+  public OrderIdAllocator(int blockSize) {
+    this.blockSize = Math.max(1, blockSize);
+  }
+
+  /**
+   * @return the allocator shared by every connection of this process
+   */
+  public static OrderIdAllocator shared() {
+    return SHARED;
+  }
+
+  /**
+   * @param esql connection used if a new block has to be reserved
+   * @return an unused order id
+   * @throws java.sql.SQLException when failed to reserve a block
+   */
+  public int next(Cafe esql) throws SQLException {
+    while (true) {
+      Block current = block;
+      int index = current.taken.getAndIncrement();
+      if (index < current.ids.length)
+        return current.ids[index];
+      refill(esql, current, blockSize);
+    }
+  }
+
+  /**
+   * @param esql connection used if a new block has to be reserved
+   * @param count the number of ids wanted
+   * @return count unused order ids in increasing order
+   * @throws java.sql.SQLException when failed to reserve a block
+   */
+  public int[] next(Cafe esql, int count) throws SQLException {
+    int[] ids = new int[count];
+    int filled = 0;
+    while (filled < count) {
+      Block current = block;
+      int index = current.taken.getAndIncrement();
+      if (index < current.ids.length)
+        ids[filled++] = current.ids[index];
+      else
+        refill(esql, current, Math.max(blockSize, count - filled));
+    }
+    return ids;
+  }
+
+  private synchronized void refill(Cafe esql, Block exhausted, int size)
+      throws SQLException {
+    if (block != exhausted)
+      return; // another thread got there first
+    // part of placing an order, so it runs with the order writes
+    Bulkhead.Lane previous = Bulkhead.use(Bulkhead.Lane.WRITE);
+    List<Integer> result;
+    try {
+      result = esql.executeQueryAndMap(String.format(
+          "SELECT nextval('orders_orderid_seq') FROM generate_series(1, %d)",
+          size), RowMapper.INT);
+    } finally {
+      Bulkhead.restore(previous);
+    }
+    int[] ids = new int[result.size()];
+    for (int i = 0; i < ids.length; i++)
+      ids[i] = result.get(i);
+    Arrays.sort(ids);
+    block = new Block(ids);
+  }
+} // end OrderIdAllocator
@@ -0,0 +1,544 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+/**
+ * Local write-ahead journal for placed orders. Accepted orders are
+ * appended to a memory-mapped file and acknowledged once the file has been
+ * forced to disk; a drainer thread then writes them to Orders/ItemStatus
+ * in batches on its own connection. Several appenders waiting at the same
+ * time share one fsync (group commit).
+ *
+ * File layout: a 16 byte header (magic, version, journal id) followed by
+ * records of [int length][int crc32][payload], terminated by a zero
+ * length. The payload holds the sequence number, the acceptance time, the
+ * order's request key, the login and the ordered items with their prices.
+ * Version 1 files, written before records held a key, are still read and
+ * are upgraded once everything in them has been drained.
+ *
+ * Replay is idempotent: every drained batch also advances the journal's
+ * row in OrderJournalCheckpoint in the same transaction, and records at or
+ * below that sequence number are skipped after a restart. The order is
+ * also inserted under its request key, so one written before under the
+ * same key, e.g. by insert() when the journal was full, is not written
+ * twice.
+ *
+ * Enabled with -Dcafe.journal=path. Tunables: cafe.journal.sizeMB (size of
+ * a new journal file, default 64), cafe.journal.groupCommitMs (how long
+ * the flusher waits to gather more appends, default 2) and
+ * cafe.journal.batch (records per drained transaction, default 100).
+ */
+public class OrderJournal {
+
+  private static final int MAGIC = 0x43414645; // "CAFE"
+  private static final int VERSION = 2;
+  private static final int HEADER = 16;
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /**
+   * An order accepted by the journal.
+   */
+  public static class Entry {
+    public long seq;
+    public long timestamp;
+    // set by the caller to repeat a request under its key
+    public UUID requestKey = UUID.randomUUID();
+    public String login;
+    public List<String> items = new ArrayList<String>();
+    public List<Float> prices = new ArrayList<Float>();
+    // offset just past this record in the journal file
+    int end;
+
+    public float total() {
+      float total = 0;
+      for (Float price : prices)
+        total += price;
+      return total;
+    }
+
+    /**
+     * Statements that insert this order under the given id and its items,
+     * one line per distinct item with the number of times it was ordered.
+     * They insert nothing when the request key is already remembered.
+     */
+    public List<String> toStatements(int orderid) {
+      String ts = new Timestamp(timestamp).toString();
+      List<String> statements = new ArrayList<String>();
+      statements.add(JdbcStore.keyedOrder(requestKey, orderid,
+          "'" + total() + "'", "", login, "'" + ts + "'"));
+      for (Map.Entry<String, Integer> item
+          : OrderLine.quantities(items).entrySet()) {
+        statements.add(String.format(
+            "INSERT INTO ItemStatus (orderid, itemName, lastUpdated, status, timeStampRecieved, quantity, unitPrice) SELECT orderid, '%s', '%s', 'Hasn''t Started', '%s', %d, '%s' FROM Orders WHERE orderid=%d",
+            Cafe.escape(item.getKey()),
+            ts,
+            ts,
+            item.getValue(),
+            prices.get(items.indexOf(item.getKey())),
+            orderid));
+      }
+      return statements;
+    }
+  }
+
+  private final File file;
+  private final RandomAccessFile raf;
+  private final MappedByteBuffer buffer;
+  private final long journalId;
+  private final Object lock = new Object();
+
+  // guarded by lock, the format of the records in the file
+  private int version;
+
+  // guarded by lock
+  private int writeOffset;
+  private int drainOffset;
+  private long lastSeq;
+  private long durableSeq;
+  private long drainedSeq;
+  private boolean running = true;
+
+  private final int groupCommitMs;
+  private final int batchSize;
+  private Cafe esql;
+  private Thread flusher;
+  private Thread drainer;
+
+  private OrderJournal(File file, Cafe esql) throws IOException, SQLException {
+    this.file = file;
+    this.esql = esql;
+    this.groupCommitMs = Integer.getInteger("cafe.journal.groupCommitMs", 2);
+    this.batchSize = Integer.getInteger("cafe.journal.batch", 100);
+
+    boolean fresh = !file.exists() || file.length() < HEADER;
+    raf = new RandomAccessFile(file, "rw");
+    if (fresh) {
+      raf.setLength(Integer.getInteger("cafe.journal.sizeMB", 64) * 1024L * 1024L);
+    }
+    buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+    if (fresh) {
+      buffer.putInt(0, MAGIC);
+      buffer.putInt(4, VERSION);
+      buffer.putLong(8, new Random().nextLong());
+      buffer.putInt(HEADER, 0);
+      buffer.force();
+    } else if (buffer.getInt(0) != MAGIC || buffer.getInt(4) < 1
+        || buffer.getInt(4) > VERSION) {
+      raf.close();
+      throw new IOException(file + " is not an order journal");
+    }
+    journalId = buffer.getLong(8);
+    version = buffer.getInt(4);
+
+    drainedSeq = readCheckpoint();
+    writeOffset = HEADER;
+    drainOffset = -1;
+    // find the end of the journal and the first record not yet drained
+    long previous = 0;
+    Entry entry;
+    while ((entry = read(writeOffset)) != null && entry.seq > previous) {
+      if (entry.seq > drainedSeq && drainOffset < 0)
+        drainOffset = writeOffset;
+      previous = entry.seq;
+      writeOffset = entry.end;
+    }
+    if (drainOffset < 0)
+      drainOffset = writeOffset;
+    lastSeq = Math.max(previous, drainedSeq);
+    durableSeq = lastSeq;
+    if (version != VERSION && drainOffset == writeOffset) {
+      // everything is drained, start over in the current format
+      writeOffset = HEADER;
+      drainOffset = HEADER;
+      upgrade();
+    }
+  }
+
+  /*
+   * Rewrites the header of an empty journal in the current format.
+   */
+  private void upgrade() {
+    buffer.putInt(HEADER, 0);
+    buffer.putInt(4, VERSION);
+    buffer.force();
+    version = VERSION;
+  }
+
+  /**
+   * Opens (or creates) a journal and starts its flusher and drainer
+   * threads. Records left over from a previous run are drained first.
+   *
+   * @param file the journal file
+   * @param esql a connection reserved for the drainer
+   * @return the open journal
+   */
+  public static OrderJournal open(File file, Cafe esql)
+      throws IOException, SQLException {
+    final OrderJournal journal = new OrderJournal(file, esql);
+    journal.flusher = new Thread(new Runnable() {
+      public void run() {
+        journal.flushLoop();
+      }
+    }, "cafe-journal-flusher");
+    journal.drainer = new Thread(new Runnable() {
+      public void run() {
+        journal.drainLoop();
+      }
+    }, "cafe-journal-drainer");
+    journal.flusher.setDaemon(true);
+    journal.drainer.setDaemon(true);
+    journal.flusher.start();
+    journal.drainer.start();
+    return journal;
+  } // end open
+
+  /**
+   * Appends an order and waits until it is on disk. The sequence number
+   * and timestamp of the entry are assigned here.
+   *
+   * @return the sequence number, used as the customer's receipt
+   * @throws java.io.IOException when the journal is full or closed
+   */
+  public long append(Entry entry) throws IOException {
+    long seq;
+    synchronized (lock) {
+      if (!running)
+        throw new IOException("Order journal is closed");
+      entry.seq = lastSeq + 1;
+      entry.timestamp = System.currentTimeMillis();
+      byte[] payload = encode(entry, version);
+      int size = 8 + payload.length;
+      if (writeOffset + size + 4 > buffer.capacity()) {
+        // recycle the file once everything in it has been drained
+        if (drainedSeq != lastSeq || HEADER + size + 4 > buffer.capacity())
+          throw new IOException("Order journal is full");
+        writeOffset = HEADER;
+        drainOffset = HEADER;
+        if (version != VERSION) {
+          upgrade();
+          payload = encode(entry, version);
+          size = 8 + payload.length;
+        }
+      }
+      CRC32 crc = new CRC32();
+      crc.update(payload, 0, payload.length);
+      ByteBuffer out = buffer.duplicate();
+      out.position(writeOffset + 8);
+      out.put(payload);
+      out.putInt(0);
+      buffer.putInt(writeOffset + 4, (int) crc.getValue());
+      buffer.putInt(writeOffset, payload.length);
+      writeOffset += size;
+      lastSeq = entry.seq;
+      seq = lastSeq;
+      lock.notifyAll();
+      while (durableSeq < seq) {
+        try {
+          lock.wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted while waiting for the journal");
+        }
+      }
+    }
+    return seq;
+  } // end append
+
+  /**
+   * @return the number of accepted orders not yet written to the database
+   */
+  public long backlog() {
+    synchronized (lock) {
+      return lastSeq - drainedSeq;
+    }
+  }
+
+  /**
+   * Stops the background threads after pending appends are flushed and
+   * closes the file and the drainer's connection. Undrained records stay
+   * in the file and are replayed on the next start.
+   */
+  public void close() {
+    synchronized (lock) {
+      running = false;
+      lock.notifyAll();
+    }
+    try {
+      flusher.join();
+      drainer.join();
+      buffer.force();
+      raf.close();
+    } catch (Exception e) {
+      // ignored.
+    }
+    esql.cleanup();
+  } // end close
+
+  /**
+   * Writes an order straight to the database, bypassing the journal. Used
+   * when the journal cannot accept it.
+   *
+   * @return the id of the order placed under the entry's request key
+   */
+  public static int insert(Cafe esql, Entry entry) throws SQLException {
+    return Cafe.submit(esql, () -> {
+      int orderid = esql.nextOrderId();
+      int[] counts = esql.executeUpdateBatch(entry.toStatements(orderid));
+      return JdbcStore.receipt(esql, entry.requestKey, counts[0] == 0);
+    }).orderid();
+  }
+
+  private void flushLoop() {
+    while (true) {
+      long target;
+      synchronized (lock) {
+        while (running && durableSeq == lastSeq) {
+          try {
+            lock.wait();
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+        if (!running && durableSeq == lastSeq)
+          return;
+      }
+      if (groupCommitMs > 0) {
+        try {
+          Thread.sleep(groupCommitMs);
+        } catch (InterruptedException e) {
+          // flush what we have
+        }
+      }
+      synchronized (lock) {
+        target = lastSeq;
+      }
+      buffer.force();
+      synchronized (lock) {
+        durableSeq = Math.max(durableSeq, target);
+        lock.notifyAll();
+      }
+    }
+  } // end flushLoop
+
+  private void drainLoop() {
+    long backoff = 100;
+    while (true) {
+      List<Entry> batch = new ArrayList<Entry>();
+      synchronized (lock) {
+        while (running && drainedSeq == durableSeq) {
+          try {
+            lock.wait(1000);
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+        if (drainedSeq == durableSeq)
+          return;
+        int offset = drainOffset;
+        Entry entry;
+        while (batch.size() < batchSize && (entry = read(offset)) != null
+            && entry.seq <= durableSeq) {
+          batch.add(entry);
+          offset = entry.end;
+        }
+      }
+      try {
+        apply(batch);
+        backoff = 100;
+      } catch (SQLException e) {
+        System.err.println("Order journal drain failed: " + e.getMessage());
+        synchronized (lock) {
+          if (!running)
+            return;
+        }
+        try {
+          Thread.sleep(backoff);
+        } catch (InterruptedException ie) {
+          return;
+        }
+        backoff = Math.min(backoff * 2, 10000);
+      }
+    }
+  } // end drainLoop
+
+  /*
+   * Writes a batch in one transaction together with the checkpoint. If the
+   * batch is rejected while the database is reachable, the records are
+   * retried one by one and any that still fail are set aside in the
+   * .rejected file so they cannot block the journal.
+   */
+  private void apply(List<Entry> batch) throws SQLException {
+    Entry last = batch.get(batch.size() - 1);
+    try {
+      esql.executeUpdateBatch(statements(batch, last.seq));
+      drained(last);
+      return;
+    } catch (SQLException e) {
+      reconnectIfBroken(e);
+    }
+    for (Entry entry : batch) {
+      List<Entry> single = new ArrayList<Entry>();
+      single.add(entry);
+      try {
+        esql.executeUpdateBatch(statements(single, entry.seq));
+      } catch (SQLException e) {
+        reconnectIfBroken(e);
+        reject(entry, e);
+        List<String> skip = new ArrayList<String>();
+        skip.add(checkpointStatement(entry.seq));
+        esql.executeUpdateBatch(skip);
+      }
+      drained(entry);
+    }
+  } // end apply
+
+  private void drained(Entry entry) {
+    synchronized (lock) {
+      drainOffset = entry.end;
+      drainedSeq = entry.seq;
+      lock.notifyAll();
+    }
+  }
+
+  private List<String> statements(List<Entry> batch, long upTo)
+      throws SQLException {
+    List<String> statements = new ArrayList<String>();
+    int[] ids = esql.nextOrderIds(batch.size());
+    for (int i = 0; i < batch.size(); i++)
+      statements.addAll(batch.get(i).toStatements(ids[i]));
+    statements.add(checkpointStatement(upTo));
+    return statements;
+  }
+
+  private String checkpointStatement(long seq) {
+    return String.format(
+        "INSERT INTO OrderJournalCheckpoint (journal, lastSeq) VALUES (%d, %d) ON CONFLICT (journal) DO UPDATE SET lastSeq = EXCLUDED.lastSeq",
+        journalId,
+        seq);
+  }
+
+  private long readCheckpoint() throws SQLException {
+    List<Long> result = esql.executeQueryAndMap(String.format(
+        "SELECT lastSeq FROM OrderJournalCheckpoint WHERE journal = %d",
+        journalId), RowMapper.LONG);
+    if (result.size() > 0)
+      return result.get(0);
+    return 0;
+  }
+
+  /*
+   * Rethrows when the database itself is unreachable, reopening the
+   * drainer's connection so the next attempt can succeed after a failover.
+   */
+  private void reconnectIfBroken(SQLException cause) throws SQLException {
+    try {
+      esql.executeQuery("SELECT 1");
+    } catch (SQLException e) {
+      Cafe fresh = esql.openSibling();
+      esql.cleanup();
+      esql = fresh;
+      throw cause;
+    }
+  }
+
+  private void reject(Entry entry, SQLException cause) {
+    System.err.println("Order journal rejected entry " + entry.seq + ": "
+        + cause.getMessage());
+    try {
+      FileWriter out = new FileWriter(file.getPath() + ".rejected", true);
+      out.write(entry.seq + ";" + new Timestamp(entry.timestamp) + ";"
+          + entry.login + ";" + entry.items + ";" + cause.getMessage() + "\n");
+      out.close();
+    } catch (IOException e) {
+      // already reported on stderr
+    }
+  }
+
+  /*
+   * Reads the record at offset, or returns null at the end of the journal
+   * or at the first torn or corrupt record.
+   */
+  private Entry read(int offset) {
+    if (offset + 8 > buffer.capacity())
+      return null;
+    int length = buffer.getInt(offset);
+    if (length <= 0 || offset + 8 + length > buffer.capacity())
+      return null;
+    byte[] payload = new byte[length];
+    ByteBuffer in = buffer.duplicate();
+    in.position(offset + 8);
+    in.get(payload);
+    CRC32 crc = new CRC32();
+    crc.update(payload, 0, length);
+    if ((int) crc.getValue() != buffer.getInt(offset + 4))
+      return null;
+    Entry entry = decode(ByteBuffer.wrap(payload), version);
+    entry.end = offset + 8 + length;
+    return entry;
+  }
+
+  private static byte[] encode(Entry entry, int version) {
+    byte[] login = entry.login.getBytes(UTF8);
+    List<byte[]> items = new ArrayList<byte[]>();
+    int size = 8 + 8 + (version > 1 ? 16 : 0) + 2 + login.length + 2;
+    for (String item : entry.items) {
+      byte[] name = item.getBytes(UTF8);
+      items.add(name);
+      size += 2 + name.length + 4;
+    }
+    ByteBuffer out = ByteBuffer.allocate(size);
+    out.putLong(entry.seq);
+    out.putLong(entry.timestamp);
+    if (version > 1) {
+      out.putLong(entry.requestKey.getMostSignificantBits());
+      out.putLong(entry.requestKey.getLeastSignificantBits());
+    }
+    out.putShort((short) login.length);
+    out.put(login);
+    out.putShort((short) items.size());
+    for (int i = 0; i < items.size(); i++) {
+      out.putShort((short) items.get(i).length);
+      out.put(items.get(i));
+      out.putFloat(entry.prices.get(i));
+    }
+    return out.array();
+  }
+
+  private Entry decode(ByteBuffer in, int version) {
+    Entry entry = new Entry();
+    entry.seq = in.getLong();
+    entry.timestamp = in.getLong();
+    if (version > 1)
+      entry.requestKey = new UUID(in.getLong(), in.getLong());
+    else
+      // the same key on every replay of the record
+      entry.requestKey = UUID.nameUUIDFromBytes(
+          (journalId + ":" + entry.seq).getBytes(UTF8));
+    entry.login = readString(in);
+    int count = in.getShort();
+    for (int i = 0; i < count; i++) {
+      entry.items.add(readString(in));
+      entry.prices.add(in.getFloat());
+    }
+    return entry;
+  }
+
+  private static String readString(ByteBuffer in) {
+    byte[] bytes = new byte[in.getShort()];
+    in.get(bytes);
+    return new String(bytes, UTF8);
+  }
+} // end OrderJournal
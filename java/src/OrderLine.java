@@ -0,0 +1,57 @@
+import java.sql.Timestamp;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A row of ItemStatus: one distinct item of an order and how far it has
+ * got. quantity units were ordered, startedQty of them are being made and
+ * finishedQty are done. unitPrice is the menu price when the line was
+ * ordered; units added to the line later keep it. version goes up by
+ * one with every update of the row.
+ */
+public record OrderLine(int orderid, String itemName, Timestamp lastUpdated,
+    String status, String comments, int quantity, int startedQty,
+    int finishedQty, float unitPrice, int version) {
+
+  // passed as the expected version of an update that applies regardless
+  public static final int ANY_VERSION = -1;
+
+  public static final String NOT_STARTED = "Hasn't Started";
+  public static final String STARTED = "Started";
+  public static final String FINISHED = "Finished";
+
+  /**
+   * @return the status that matches the unit counts of a line
+   */
+  public static String statusOf(int quantity, int startedQty, int finishedQty) {
+    if (finishedQty >= quantity)
+      return FINISHED;
+    if (startedQty + finishedQty > 0)
+      return STARTED;
+    return NOT_STARTED;
+  }
+
+  /**
+   * @return the started and finished counts that put a whole line of
+   *         quantity units in the given status
+   */
+  public static int[] countsOf(String status, int quantity) {
+    if (FINISHED.equalsIgnoreCase(status))
+      return new int[] { 0, quantity };
+    if (STARTED.equalsIgnoreCase(status))
+      return new int[] { quantity, 0 };
+    return new int[] { 0, 0 };
+  }
+
+  /**
+   * @return each distinct item of a list with the number of times it
+   *         appears, in order of first appearance
+   */
+  public static Map<String, Integer> quantities(List<String> items) {
+    Map<String, Integer> quantities = new LinkedHashMap<String, Integer>();
+    for (String item : items)
+      quantities.merge(item, 1, Integer::sum);
+    return quantities;
+  }
+}
@@ -0,0 +1,23 @@
+/**
+ * What an order request made with a request key did: the order it created
+ * or added to and the order's total afterwards. Keys are remembered for
+ * cafe.requestKeys.ttlHours (default 24); repeating a request with a
+ * remembered key changes nothing and returns the first request's receipt,
+ * with replayed set.
+ */
+public record OrderReceipt(int orderid, float total, boolean replayed) {
+
+  /**
+   * @return how long a request key is remembered, in milliseconds
+   */
+  public static long ttlMillis() {
+    return Long.getLong("cafe.requestKeys.ttlHours", 24) * 3600000L;
+  }
+
+  /**
+   * @return the receipt as a repeat of the request gets it
+   */
+  public OrderReceipt replay() {
+    return new OrderReceipt(orderid, total, true);
+  }
+}
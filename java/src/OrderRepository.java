@@ -0,0 +1,63 @@
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Access to Orders.
+ */
+public interface OrderRepository {
+
+  /**
+   * Creates an unpaid order.
+   *
+   * @return the new order id
+   */
+  int create(String login, Timestamp received, float total) throws SQLException;
+
+  /**
+   * Creates an unpaid order with units of one menu item in it, charged at
+   * the menu price, once per request key. The order, its line and the key
+   * are written together or not at all. A repeat of a request whose key is
+   * remembered creates nothing and gets the first one's receipt.
+   *
+   * @param requestKey the key the client chose for the request
+   * @return the order created for the key and its total, or null if the
+   *         item is not on the menu
+   * @throws java.sql.SQLException when the quantity is not positive
+   */
+  OrderReceipt create(UUID requestKey, String login, Timestamp received,
+      String itemName, int quantity, String status) throws SQLException;
+
+  /**
+   * Order ids are unique across partitions only because every order takes
+   * its id from the order id sequence, see create_tables.sql.
+   *
+   * @return the order, archived or not, or null if it does not exist
+   */
+  Order find(int orderid) throws SQLException;
+
+  /**
+   * @return the user's most recent orders, archived or not, newest first
+   */
+  List<Order> recentByLogin(String login, int limit) throws SQLException;
+
+  /**
+   * @return unpaid orders received during the last day
+   */
+  List<Order> current() throws SQLException;
+
+  /**
+   * @param version the version the order must still have, or
+   *        Order.ANY_VERSION
+   * @return 0 if the order does not exist or has another version
+   */
+  int setTotal(int orderid, float total, int version) throws SQLException;
+
+  /**
+   * @param version the version the order must still have, or
+   *        Order.ANY_VERSION
+   * @return 0 if the order does not exist or has another version
+   */
+  int setPaid(int orderid, boolean paid, int version) throws SQLException;
+}
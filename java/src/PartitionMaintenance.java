@@ -0,0 +1,142 @@
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background job that keeps the monthly Orders/ItemStatus partitions
+ * created ahead of time, moves old paid orders into the archive tables and
+ * deletes order request keys older than cafe.requestKeys.ttlHours.
+ * The work itself is done by the functions in partition_maintenance.sql;
+ * this class only schedules them on a dedicated connection.
+ *
+ * Enabled with -Dcafe.maintenance=true. Tunables (system properties):
+ * cafe.partitions.ahead (months, default 3), cafe.archive.keepMonths
+ * (default 3), cafe.archive.batch (default 1000) and
+ * cafe.maintenance.intervalMinutes (default 60).
+ */
+public class PartitionMaintenance implements Runnable {
+
+  private final Cafe esql;
+  private final int monthsAhead;
+  private final int keepMonths;
+  private final int batchSize;
+  private ScheduledExecutorService scheduler = null;
+
+  public PartitionMaintenance(Cafe esql, int monthsAhead, int keepMonths,
+      int batchSize) {
+    this.esql = esql;
+    this.monthsAhead = monthsAhead;
+    this.keepMonths = keepMonths;
+    this.batchSize = batchSize;
+  }
+
+  /**
+   * Starts the job on its own daemon thread using the system property
+   * settings. The first run happens immediately.
+   *
+   * @param esql a connection reserved for the job
+   * @return the running job
+   */
+  public static PartitionMaintenance start(Cafe esql) {
+    PartitionMaintenance job = new PartitionMaintenance(
+        esql,
+        Integer.getInteger("cafe.partitions.ahead", 3),
+        Integer.getInteger("cafe.archive.keepMonths", 3),
+        Integer.getInteger("cafe.archive.batch", 1000));
+    long interval = Integer.getInteger("cafe.maintenance.intervalMinutes", 60);
+    job.scheduler = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "cafe-partition-maintenance");
+            t.setDaemon(true);
+            return t;
+          }
+        });
+    job.scheduler.scheduleWithFixedDelay(job, 0, interval, TimeUnit.MINUTES);
+    return job;
+  } // end start
+
+  /**
+   * Stops the schedule and closes the job's connection.
+   */
+  public void stop() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+    }
+    esql.cleanup();
+  } // end stop
+
+  public void run() {
+    try {
+      ensurePartitions();
+      archivePaidOrders();
+      expireRequestKeys();
+    } catch (SQLException e) {
+      System.err.println("Partition maintenance failed: " + e.getMessage());
+    }
+  } // end run
+
+  /**
+   * Creates any missing partitions from the current month up to
+   * monthsAhead months from now.
+   *
+   * @return the number of months whose partitions were created
+   * @throws java.sql.SQLException when the maintenance function fails
+   */
+  public int ensurePartitions() throws SQLException {
+    String query = String.format(
+        "SELECT cafe_ensure_partitions(now()::date, %d)",
+        monthsAhead);
+    return firstInt(esql.executeQueryAndMap(query, RowMapper.INT));
+  } // end ensurePartitions
+
+  /**
+   * Moves paid orders older than keepMonths into the archive tier, one
+   * batch (and one transaction) at a time.
+   *
+   * @return the number of orders archived
+   * @throws java.sql.SQLException when the maintenance function fails
+   */
+  public int archivePaidOrders() throws SQLException {
+    String query = String.format(
+        "SELECT cafe_archive_paid_orders(%d, %d)",
+        keepMonths,
+        batchSize);
+    int total = 0;
+    int moved;
+    do {
+      moved = firstInt(esql.executeQueryAndMap(query, RowMapper.INT));
+      total += moved;
+    } while (moved >= batchSize);
+    return total;
+  } // end archivePaidOrders
+
+  /**
+   * Deletes the order request keys that are older than
+   * OrderReceipt.ttlMillis(), one batch at a time.
+   *
+   * @return the number of keys deleted
+   * @throws java.sql.SQLException when the maintenance function fails
+   */
+  public int expireRequestKeys() throws SQLException {
+    String query = String.format(
+        "SELECT cafe_expire_request_keys('%d milliseconds'::interval, %d)",
+        OrderReceipt.ttlMillis(),
+        batchSize);
+    int total = 0;
+    int deleted;
+    do {
+      deleted = firstInt(esql.executeQueryAndMap(query, RowMapper.INT));
+      total += deleted;
+    } while (deleted >= batchSize);
+    return total;
+  } // end expireRequestKeys
+
+  // a NULL result reads as 0
+  private static int firstInt(List<Integer> result) {
+    return result.size() > 0 ? result.get(0) : 0;
+  }
+} // end PartitionMaintenance
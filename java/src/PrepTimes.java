@@ -0,0 +1,115 @@
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Preparation time percentiles from the item status event log. A
+ * background job calls cafe_aggregate_prep_times() (see item_events.sql)
+ * on a dedicated connection, which folds the events written since its
+ * watermark into per-item and per-type histograms of the time from an
+ * order being received to each unit being started and finished. The
+ * reports read the p50, p95 and p99 of those histograms, in seconds, to
+ * 10 second resolution.
+ *
+ * Runs with -Dcafe.itemEvents=true. Tunables: cafe.prepTimes.intervalSeconds
+ * (default 60), cafe.prepTimes.batch (events folded per call, default
+ * 10000) and cafe.prepTimes.settleSeconds (how long events are left to
+ * settle before they are folded, default 60).
+ */
+public class PrepTimes implements Runnable {
+
+  public static final String BY_ITEM = percentiles("item");
+
+  public static final String BY_TYPE = percentiles("type");
+
+  private static String percentiles(String scope) {
+    return "WITH H AS (SELECT name, phase, bucket, units, sum(units) OVER (PARTITION BY name, phase ORDER BY bucket) AS upTo, sum(units) OVER (PARTITION BY name, phase) AS total FROM PrepTimeHistogram WHERE scope = '"
+        + scope
+        + "') SELECT trim(name) AS " + scope
+        + ", trim(phase) AS phase, max(total) AS units, (min(bucket) FILTER (WHERE upTo >= 0.50 * total) + 1) * 10 AS p50, (min(bucket) FILTER (WHERE upTo >= 0.95 * total) + 1) * 10 AS p95, (min(bucket) FILTER (WHERE upTo >= 0.99 * total) + 1) * 10 AS p99 FROM H GROUP BY name, phase ORDER BY name, phase DESC";
+  }
+
+  private final Cafe esql;
+  private final int batchSize;
+  private final int settleSeconds;
+  private ScheduledExecutorService scheduler = null;
+
+  public PrepTimes(Cafe esql, int batchSize, int settleSeconds) {
+    this.esql = esql;
+    this.batchSize = batchSize;
+    this.settleSeconds = settleSeconds;
+  }
+
+  /**
+   * Starts the job on its own daemon thread using the system property
+   * settings.
+   *
+   * @param esql a connection reserved for the job
+   * @return the running job
+   */
+  public static PrepTimes start(Cafe esql) {
+    PrepTimes job = new PrepTimes(esql,
+        Integer.getInteger("cafe.prepTimes.batch", 10000),
+        Integer.getInteger("cafe.prepTimes.settleSeconds", 60));
+    long interval = Integer.getInteger("cafe.prepTimes.intervalSeconds", 60);
+    job.scheduler = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "cafe-prep-times");
+            t.setDaemon(true);
+            return t;
+          }
+        });
+    job.scheduler.scheduleWithFixedDelay(job, interval, interval,
+        TimeUnit.SECONDS);
+    return job;
+  } // end start
+
+  /**
+   * Stops the schedule and closes the job's connection.
+   */
+  public void stop() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+    }
+    esql.cleanup();
+  } // end stop
+
+  public void run() {
+    try {
+      aggregate();
+    } catch (SQLException e) {
+      System.err.println("Prep time aggregation failed: " + e.getMessage());
+    }
+  } // end run
+
+  /**
+   * Folds every settled event past the watermark into the histograms, one
+   * batch (and one transaction) at a time.
+   *
+   * @return the number of events folded
+   * @throws java.sql.SQLException when the aggregation function fails
+   */
+  public int aggregate() throws SQLException {
+    String query = String.format(
+        "SELECT cafe_aggregate_prep_times(%d, '%d seconds')",
+        batchSize,
+        settleSeconds);
+    int total = 0;
+    int folded;
+    Bulkhead.Lane previous = Bulkhead.use(Bulkhead.Lane.REPORT);
+    try {
+      do {
+        List<Integer> result = esql.executeQueryAndMap(query, RowMapper.INT);
+        folded = result.size() > 0 ? result.get(0) : 0;
+        total += folded;
+      } while (folded >= batchSize);
+    } finally {
+      Bulkhead.restore(previous);
+    }
+    return total;
+  } // end aggregate
+} // end PrepTimes
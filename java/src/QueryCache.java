@@ -0,0 +1,268 @@
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Short lived cache of read query results shared by every connection of
+ * the process, for screens several people keep refreshing (current
+ * orders, the menu by type, the status of a watched order).
+ *
+ * Entries are keyed by the query's shape, its text with whitespace
+ * collapsed and its literals replaced by ?, together with the literals.
+ * The shape also selects the time to live; shapes without one of their
+ * own use the default. Concurrent misses on the same query share one
+ * database read, and the least recently used entries are dropped beyond
+ * the size limit.
+ *
+ * Each entry is tagged with the tables it reads among Orders, ItemStatus,
+ * Menu and Users, a read of AllOrders or AllItemStatus counting as one of
+ * the table it covers. Every write made through Cafe.executeUpdate or
+ * executeUpdateBatch bumps a generation counter for the tables it
+ * mentions, and entries read under an older generation are not served
+ * again. Queries reading none of those tables are never cached, and writes
+ * made by other processes are only seen when the entry expires.
+ *
+ * Enabled with -Dcafe.queryCache=true. Tunables: cafe.queryCache.size
+ * (entries, default 256) and cafe.queryCache.ttlMs (default 2000).
+ */
+public class QueryCache {
+
+  /**
+   * Reads a query result on a miss.
+   */
+  public interface Loader<T> {
+    List<T> load() throws SQLException;
+  }
+
+  private static final String[] TABLES = { "orders", "itemstatus", "menu",
+      "users" };
+  // AllOrders and AllItemStatus read the tables and their archives, so
+  // the views and the archives carry the tags of the tables
+  private static final Pattern TABLE = Pattern.compile(
+      "\\b(?:all)?(orders|itemstatus|menu|users)(?:archive)?\\b",
+      Pattern.CASE_INSENSITIVE);
+  private static final Pattern LITERAL = Pattern.compile(
+      "'(?:[^']|'')*'|%[0-9$]*[sd]|\\b\\d+(?:\\.\\d+)?\\b");
+
+  private static final class Entry {
+    final List<?> rows;
+    final long expires;
+    final int tags;
+    final long[] generations;
+
+    Entry(List<?> rows, long expires, int tags, long[] generations) {
+      this.rows = rows;
+      this.expires = expires;
+      this.tags = tags;
+      this.generations = generations;
+    }
+  }
+
+  private final int maxEntries;
+  private final long defaultTtlMs;
+  private final Map<String, Long> ttls = new ConcurrentHashMap<String, Long>();
+  private final AtomicLong[] generations = new AtomicLong[TABLES.length];
+  private final Map<String, CompletableFuture<Entry>> loading =
+      new ConcurrentHashMap<String, CompletableFuture<Entry>>();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  // access ordered, so the eldest entry is the least recently used
+  private final LinkedHashMap<String, Entry> entries;
+
+  public QueryCache(int maxEntries, long defaultTtlMs) {
+    this.maxEntries = maxEntries;
+    this.defaultTtlMs = defaultTtlMs;
+    for (int i = 0; i < generations.length; i++)
+      generations[i] = new AtomicLong();
+    this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+        return size() > QueryCache.this.maxEntries;
+      }
+    };
+  }
+
+  /**
+   * Sets the time to live of every query with the same shape as the given
+   * one. Format strings may be passed as they are, e.g.
+   * "SELECT ... WHERE orderid='%s'". A time of 0 keeps the shape out of
+   * the cache.
+   */
+  public void ttl(String query, long ttlMs) {
+    ttls.put(shapeOf(query), ttlMs);
+  }
+
+  /**
+   * @return the query with its whitespace collapsed and its string and
+   *         number literals replaced by ?
+   */
+  static String shapeOf(String query) {
+    return keyOf(query, null);
+  }
+
+  /*
+   * Builds the shape of a query, and appends its literals to params when
+   * given, without touching the whitespace inside them.
+   */
+  private static String keyOf(String query, StringBuilder params) {
+    StringBuilder shape = new StringBuilder(query.length());
+    Matcher m = LITERAL.matcher(query);
+    int from = 0;
+    while (m.find()) {
+      shape.append(query, from, m.start()).append('?');
+      if (params != null)
+        params.append('\u0000').append(m.group());
+      from = m.end();
+    }
+    shape.append(query, from, query.length());
+    return shape.toString().trim().replaceAll("\\s+", " ");
+  }
+
+  /*
+   * Bit set of the tracked tables mentioned in a statement.
+   */
+  private static int tagsOf(String sql) {
+    int tags = 0;
+    Matcher m = TABLE.matcher(sql);
+    while (m.find()) {
+      String table = m.group(1).toLowerCase(Locale.ROOT);
+      for (int i = 0; i < TABLES.length; i++) {
+        if (TABLES[i].equals(table))
+          tags |= 1 << i;
+      }
+    }
+    return tags;
+  }
+
+  private long[] generations(int tags) {
+    long[] seen = new long[TABLES.length];
+    for (int i = 0; i < TABLES.length; i++) {
+      if ((tags & (1 << i)) != 0)
+        seen[i] = generations[i].get();
+    }
+    return seen;
+  }
+
+  private boolean fresh(Entry entry, long now) {
+    if (entry.expires <= now)
+      return false;
+    for (int i = 0; i < TABLES.length; i++) {
+      if ((entry.tags & (1 << i)) != 0
+          && entry.generations[i] != generations[i].get())
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * @param query the read query
+   * @param kind what the rows are mapped to, e.g. the RowMapper; results
+   *        of the same query under different kinds are kept apart
+   * @param loader reads the result on a miss
+   * @return the cached result, or the one read by the loader
+   * @throws java.sql.SQLException when the loader failed
+   */
+  @SuppressWarnings("unchecked")
+  public <T> List<T> get(String query, Object kind, Loader<T> loader)
+      throws SQLException {
+    StringBuilder params = new StringBuilder();
+    String shape = keyOf(query, params);
+    String key = kind.getClass().getName() + '\u0000' + shape + params;
+    int tags = tagsOf(shape);
+    Long ttl = ttls.get(shape);
+    long ttlMs = ttl != null ? ttl : defaultTtlMs;
+    if (tags == 0 || ttlMs <= 0)
+      return loader.load();
+
+    Entry entry;
+    synchronized (entries) {
+      entry = entries.get(key);
+    }
+    if (entry != null && fresh(entry, System.currentTimeMillis())) {
+      hits.incrementAndGet();
+      return (List<T>) entry.rows;
+    }
+
+    CompletableFuture<Entry> mine = new CompletableFuture<Entry>();
+    CompletableFuture<Entry> flight = loading.putIfAbsent(key, mine);
+    if (flight != null) {
+      // someone is already reading it, share their result
+      try {
+        List<T> rows = (List<T>) flight.get().rows;
+        hits.incrementAndGet();
+        return rows;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new SQLException("Interrupted waiting for " + query);
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof SQLException)
+          throw (SQLException) e.getCause();
+        throw new SQLException(e.getCause());
+      }
+    }
+    misses.incrementAndGet();
+    try {
+      // taken before the read, so a write during it leaves the entry stale
+      long[] seen = generations(tags);
+      List<T> rows = Collections.unmodifiableList(loader.load());
+      entry = new Entry(rows, System.currentTimeMillis() + ttlMs, tags, seen);
+      synchronized (entries) {
+        entries.put(key, entry);
+      }
+      mine.complete(entry);
+      return rows;
+    } catch (SQLException | RuntimeException e) {
+      mine.completeExceptionally(e);
+      throw e;
+    } finally {
+      loading.remove(key, mine);
+    }
+  }
+
+  /**
+   * Makes every entry reading a table mentioned by the statement stale.
+   *
+   * @param sql a statement that was just run
+   */
+  public void wrote(String sql) {
+    int tags = tagsOf(sql);
+    for (int i = 0; i < TABLES.length; i++) {
+      if ((tags & (1 << i)) != 0)
+        generations[i].incrementAndGet();
+    }
+  }
+
+  /**
+   * Drops every entry.
+   */
+  public void clear() {
+    for (AtomicLong generation : generations)
+      generation.incrementAndGet();
+    synchronized (entries) {
+      entries.clear();
+    }
+  }
+
+  /**
+   * @return the number of reads served from the cache
+   */
+  public long hits() {
+    return hits.get();
+  }
+
+  /**
+   * @return the number of reads that went to the database
+   */
+  public long misses() {
+    return misses.get();
+  }
+} // end QueryCache
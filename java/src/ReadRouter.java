@@ -0,0 +1,123 @@
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Chooses where read-only queries run when replica endpoints are
+ * configured. Replicas are used round-robin; one is skipped while it
+ * lags the primary by more than cafe.replica.maxLagMs (default 5000) or
+ * for cafe.replica.retryMs (default 30000) after a connection error.
+ *
+ * Reads stay consistent with this session's own writes: after a write the
+ * primary's WAL position is recorded, and a replica is only used once it
+ * has replayed up to that position. Until then reads go to the primary.
+ */
+public class ReadRouter {
+
+  private static final String CURRENT_LSN = "SELECT pg_current_wal_lsn()";
+  private static final String REPLAY_LAG =
+      "SELECT CASE WHEN pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() THEN 0 ELSE coalesce(extract(epoch FROM now() - pg_last_xact_replay_timestamp()) * 1000, 0) END";
+  private static final String CAUGHT_UP =
+      "SELECT pg_last_wal_replay_lsn() >= '%s'::pg_lsn";
+
+  private final Cafe primary;
+  private final List<Cafe> replicas;
+  private final long maxLagMs;
+  private final long retryMs;
+  private final long lagCheckMs = 1000;
+
+  private final long[] downUntil;
+  private final long[] lagCheckedAt;
+  private final boolean[] lagging;
+  private final boolean[] confirmed;
+  private int next = 0;
+  private boolean pendingWrite = false;
+  private String requiredLsn = null;
+
+  public ReadRouter(Cafe primary, List<Cafe> replicas) {
+    this.primary = primary;
+    this.replicas = replicas;
+    this.maxLagMs = Long.getLong("cafe.replica.maxLagMs", 5000);
+    this.retryMs = Long.getLong("cafe.replica.retryMs", 30000);
+    this.downUntil = new long[replicas.size()];
+    this.lagCheckedAt = new long[replicas.size()];
+    this.lagging = new boolean[replicas.size()];
+    this.confirmed = new boolean[replicas.size()];
+  }
+
+  /**
+   * Records that the session wrote to the primary. The WAL position is
+   * fetched lazily on the next read, which is never earlier than the
+   * write itself.
+   */
+  public synchronized void wrote() {
+    pendingWrite = true;
+  }
+
+  /**
+   * Marks a replica unusable for a while after a failed query.
+   */
+  public synchronized void failed(Cafe replica) {
+    int r = replicas.indexOf(replica);
+    if (r >= 0)
+      downUntil[r] = System.currentTimeMillis() + retryMs;
+  }
+
+  /**
+   * @return the connection the next read-only query should use
+   */
+  public synchronized Cafe pick() {
+    if (pendingWrite) {
+      try {
+        requiredLsn = first(primary.executeQueryAndReturnResult(CURRENT_LSN));
+      } catch (SQLException e) {
+        return primary;
+      }
+      pendingWrite = false;
+      for (int r = 0; r < confirmed.length; r++)
+        confirmed[r] = false;
+    }
+    long now = System.currentTimeMillis();
+    for (int i = 0; i < replicas.size(); i++) {
+      int r = (next + i) % replicas.size();
+      if (downUntil[r] > now)
+        continue;
+      Cafe replica = replicas.get(r);
+      try {
+        if (now - lagCheckedAt[r] >= lagCheckMs) {
+          lagging[r] = Double.parseDouble(
+              first(replica.executeQueryAndReturnResult(REPLAY_LAG))) > maxLagMs;
+          lagCheckedAt[r] = now;
+        }
+        if (lagging[r])
+          continue;
+        if (requiredLsn != null && !confirmed[r]) {
+          String caughtUp = first(replica.executeQueryAndReturnResult(
+              String.format(CAUGHT_UP, requiredLsn)));
+          if (!"t".equals(caughtUp) && !"true".equals(caughtUp))
+            continue;
+          confirmed[r] = true;
+        }
+      } catch (SQLException e) {
+        downUntil[r] = now + retryMs;
+        continue;
+      }
+      next = r + 1;
+      return replica;
+    }
+    return primary;
+  } // end pick
+
+  /**
+   * Closes the replica connections.
+   */
+  public void cleanup() {
+    for (Cafe replica : replicas)
+      replica.cleanup();
+  }
+
+  private static String first(List<List<String>> result) {
+    if (result.size() > 0)
+      return result.get(0).get(0);
+    return null;
+  }
+} // end ReadRouter
@@ -0,0 +1,26 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Builds one value from the current row of a ResultSet. Mappers read
+ * columns by position, in the order of the query's select list, with the
+ * typed accessors (getInt, getFloat, getBoolean, getTimestamp), so numbers
+ * and times never go through a String.
+ */
+@FunctionalInterface
+public interface RowMapper<T> {
+
+  RowMapper<Integer> INT = rs -> rs.getInt(1);
+  RowMapper<Long> LONG = rs -> rs.getLong(1);
+  RowMapper<Float> FLOAT = rs -> rs.getFloat(1);
+  RowMapper<String> TEXT = rs -> text(rs.getString(1));
+
+  T map(ResultSet rs) throws SQLException;
+
+  /**
+   * @return a char(n) value without its padding, or null
+   */
+  static String text(String value) {
+    return value == null ? null : value.trim();
+  }
+}
@@ -0,0 +1,199 @@
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Read-only report API over the sales rollup tables maintained by the
+ * triggers in sales_rollups.sql. Every report reads a bounded number of
+ * rollup rows (a few stripes per hour of a day, one per menu item, or the
+ * stripes of the totals) and adds up the stripes, so its cost does not
+ * grow with order history. Reports run in the Bulkhead's REPORT lane.
+ * Days are checked with day() before they go into a query.
+ *
+ * When the chain is sharded the chain reports run on every shard in
+ * parallel (see ShardRouter.gather) and add up the shards' rows.
+ */
+public class SalesReport {
+
+  public static final String REVENUE_BY_HOUR =
+      "SELECT hour, sum(orders) AS orders, sum(items) AS items, sum(revenue) AS revenue FROM SalesByHour WHERE day='%s' GROUP BY hour ORDER BY hour";
+
+  public static final String REVENUE_BY_DAY =
+      "SELECT day, sum(orders) AS orders, sum(items) AS items, sum(revenue) AS revenue FROM SalesByHour WHERE day BETWEEN '%s' AND '%s' GROUP BY day ORDER BY day";
+
+  public static final String ITEM_MIX =
+      "SELECT itemName, type, units, revenue FROM ItemSales ORDER BY units DESC";
+
+  public static final String TYPE_MIX =
+      "SELECT type, sum(units) AS units, sum(revenue) AS revenue FROM ItemSales GROUP BY type ORDER BY units DESC";
+
+  public static final String CHAIN_BY_STORE =
+      "SELECT storeId::text, count(*), round(sum(total)::numeric, 2) FROM AllOrders WHERE timeStampRecieved >= '%s' AND timeStampRecieved < '%s'::date + 1 GROUP BY storeId";
+
+  public static final String CHAIN_ITEM_MIX =
+      "SELECT itemName, units, revenue FROM ItemSales";
+
+  public static final String SUMMARY =
+      "SELECT sum(orders) AS orders, sum(items) AS items, sum(revenue) AS revenue, CASE WHEN sum(orders) > 0 THEN round(sum(items)::numeric / sum(orders), 2) ELSE 0 END AS avgItemsPerOrder, sum(unpaidOrders) AS unpaidOrders, sum(unpaidTotal) AS unpaidTotal FROM SalesTotals";
+
+  /**
+   * @param text a day as yyyy-MM-dd
+   * @return the day, safe to put in a query
+   * @throws IllegalArgumentException when text is not a day
+   */
+  public static LocalDate day(String text) {
+    try {
+      return LocalDate.parse(text == null ? "" : text.trim());
+    } catch (DateTimeParseException e) {
+      throw new IllegalArgumentException(
+          "Invalid day, expected yyyy-mm-dd: " + text);
+    }
+  }
+
+  /**
+   * Revenue, order and item counts for each hour of one day.
+   *
+   * @param day the day as yyyy-MM-dd
+   * @return rows of hour, orders, items, revenue
+   * @throws IllegalArgumentException when day is not a day
+   * @throws java.sql.SQLException when failed to execute the query
+   */
+  public static List<List<String>> revenueByHour(Cafe esql, String day)
+      throws SQLException {
+    return report(esql,
+        String.format(REVENUE_BY_HOUR, day(day)));
+  }
+
+  /**
+   * Revenue, order and item counts per day for an inclusive date range.
+   *
+   * @param from first day as yyyy-MM-dd
+   * @param to   last day as yyyy-MM-dd
+   * @return rows of day, orders, items, revenue
+   * @throws IllegalArgumentException when from or to is not a day
+   * @throws java.sql.SQLException when failed to execute the query
+   */
+  public static List<List<String>> revenueByDay(Cafe esql, String from,
+      String to) throws SQLException {
+    return report(esql,
+        String.format(REVENUE_BY_DAY, day(from), day(to)));
+  }
+
+  /**
+   * Units sold and revenue per menu item, best sellers first.
+   *
+   * @return rows of itemName, type, units, revenue
+   * @throws java.sql.SQLException when failed to execute the query
+   */
+  public static List<List<String>> itemMix(Cafe esql) throws SQLException {
+    return report(esql, ITEM_MIX);
+  }
+
+  /**
+   * Units sold and revenue per menu type.
+   *
+   * @return rows of type, units, revenue
+   * @throws java.sql.SQLException when failed to execute the query
+   */
+  public static List<List<String>> typeMix(Cafe esql) throws SQLException {
+    return report(esql, TYPE_MIX);
+  }
+
+  /**
+   * All-time totals: orders, items, revenue, average items per order,
+   * and the number and value of orders not yet paid.
+   *
+   * @return a single row of orders, items, revenue, avgItemsPerOrder,
+   *         unpaidOrders, unpaidTotal
+   * @throws java.sql.SQLException when failed to execute the query
+   */
+  public static List<String> summary(Cafe esql) throws SQLException {
+    List<List<String>> result = report(esql, SUMMARY);
+    if (result.size() > 0)
+      return result.get(0);
+    return null;
+  }
+
+  /**
+   * A store's or an item's figures over the whole chain.
+   */
+  public record ChainRow(String key, long count, BigDecimal revenue) {
+  }
+
+  private static final RowMapper<ChainRow> CHAIN_ROW = rs -> new ChainRow(
+      RowMapper.text(rs.getString(1)), rs.getLong(2), rs.getBigDecimal(3));
+
+  /**
+   * Orders and revenue per store for an inclusive date range, over every
+   * shard. Reads the orders of the range, archived ones included like
+   * the rollups include them, not the rollups themselves, since a
+   * shard's rollups do not tell its stores apart.
+   *
+   * @param from first day as yyyy-MM-dd
+   * @param to   last day as yyyy-MM-dd
+   * @return rows of storeId, orders, revenue by store id
+   * @throws IllegalArgumentException when from or to is not a day
+   * @throws java.sql.SQLException when failed on a shard
+   */
+  public static List<ChainRow> chainByStore(Cafe esql, String from, String to)
+      throws SQLException {
+    List<ChainRow> stores = chain(esql,
+        String.format(CHAIN_BY_STORE, day(from), day(to)));
+    stores.sort((a, b) -> Integer.compare(Integer.parseInt(a.key()),
+        Integer.parseInt(b.key())));
+    return stores;
+  }
+
+  /**
+   * Units sold and revenue per menu item over every shard, best sellers
+   * first.
+   *
+   * @return rows of itemName, units, revenue
+   * @throws java.sql.SQLException when failed on a shard
+   */
+  public static List<ChainRow> chainItemMix(Cafe esql) throws SQLException {
+    List<ChainRow> items = chain(esql, CHAIN_ITEM_MIX);
+    items.sort((a, b) -> Long.compare(b.count(), a.count()));
+    return items;
+  }
+
+  /*
+   * Gathers a query's rows from every shard and adds up the rows with the
+   * same key.
+   */
+  private static List<ChainRow> chain(Cafe esql, String query)
+      throws SQLException {
+    ShardRouter shards = esql.shards();
+    if (shards == null)
+      throw new SQLException("The chain is not sharded (-Dcafe.shards)");
+    List<ChainRow> rows;
+    Bulkhead.Lane previous = Bulkhead.use(Bulkhead.Lane.REPORT);
+    try {
+      rows = shards.gather(query, CHAIN_ROW);
+    } finally {
+      Bulkhead.restore(previous);
+    }
+    Map<String, ChainRow> merged = new TreeMap<String, ChainRow>();
+    for (ChainRow row : rows) {
+      ChainRow seen = merged.get(row.key());
+      merged.put(row.key(), seen == null ? row : new ChainRow(row.key(),
+          seen.count() + row.count(), seen.revenue().add(row.revenue())));
+    }
+    return new ArrayList<ChainRow>(merged.values());
+  }
+
+  private static List<List<String>> report(Cafe esql, String query)
+      throws SQLException {
+    Bulkhead.Lane previous = Bulkhead.use(Bulkhead.Lane.REPORT);
+    try {
+      return esql.executeReadQueryAndReturnResult(query);
+    } finally {
+      Bulkhead.restore(previous);
+    }
+  }
+} // end SalesReport
@@ -0,0 +1,256 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Maps the stores of the chain to the PostgreSQL instances holding their
+ * orders. Every instance has the full schema; the orders and item status
+ * of a store live only on its instance (its shard), and several stores
+ * may share one. Menu and Users are kept on a directory instance, which
+ * is the authority for them, and copied to every shard (see
+ * ShardedStore).
+ *
+ * <pre>
+ * -Dcafe.shards=1=host:port/db,2=host:port/db,3=host:port/db
+ * -Dcafe.store.id=2
+ * -Dcafe.directory=host:port/db
+ * </pre>
+ *
+ * cafe.store.id is the store this process takes orders for (default 1);
+ * its shard becomes the Cafe's own connection, so background jobs, batch
+ * mode and the totals checker work on the home shard only. The database
+ * name may be left out of an endpoint, in which case the one on the
+ * command line is used. The directory defaults to the shard of the
+ * lowest store id.
+ *
+ * Chain-wide reports run one query on every shard in parallel and
+ * concatenate the rows (gather). Shards that could not be connected are
+ * skipped and listed by missing(), so a report can say it is partial.
+ */
+public class ShardRouter {
+
+  private final Cafe home;
+  private final int homeStore;
+  private final Cafe directory;
+  // store id -> shard connection, in store id order
+  private final Map<Integer, Cafe> stores;
+  // distinct shard connections, the home one first
+  private final List<Cafe> shards;
+  private final List<Integer> missing;
+  private final ExecutorService workers;
+
+  private ShardRouter(Cafe home, int homeStore, Cafe directory,
+      Map<Integer, Cafe> stores, List<Cafe> shards, List<Integer> missing) {
+    this.home = home;
+    this.homeStore = homeStore;
+    this.directory = directory;
+    this.stores = stores;
+    this.shards = shards;
+    this.missing = missing;
+    this.workers = Executors.newFixedThreadPool(shards.size(), r -> {
+      Thread thread = new Thread(r, "cafe-shard-gather");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * @return the store this process takes orders for
+   */
+  public static int homeStoreId() {
+    return Integer.getInteger("cafe.store.id", 1);
+  }
+
+  /**
+   * @param dbname the database named on the command line
+   * @return the connection URL of the home store's shard, or null when
+   *         -Dcafe.shards does not name it
+   */
+  public static String homeUrl(String dbname) {
+    String endpoint = endpoints().get(homeStoreId());
+    return endpoint == null ? null : url(endpoint, dbname);
+  }
+
+  /**
+   * Connects to the other shards and the directory.
+   *
+   * @param home the connection to the home store's shard
+   * @param dbname the database named on the command line
+   * @return the router, or null when -Dcafe.shards is not set
+   * @throws java.sql.SQLException when the directory cannot be connected
+   */
+  public static ShardRouter open(Cafe home, String dbname)
+      throws SQLException {
+    Map<Integer, String> endpoints = endpoints();
+    if (endpoints.isEmpty())
+      return null;
+    int homeStore = homeStoreId();
+    String homeUrl = endpoints.containsKey(homeStore)
+        ? url(endpoints.get(homeStore), dbname) : home.url();
+    Map<String, Cafe> byUrl = new LinkedHashMap<String, Cafe>();
+    byUrl.put(homeUrl, home);
+    Map<Integer, Cafe> stores = new LinkedHashMap<Integer, Cafe>();
+    List<Integer> missing = new ArrayList<Integer>();
+    stores.put(homeStore, home);
+    for (Map.Entry<Integer, String> entry : endpoints.entrySet()) {
+      String url = url(entry.getValue(), dbname);
+      Cafe shard = byUrl.get(url);
+      if (shard == null) {
+        try {
+          shard = home.openSibling(url);
+          byUrl.put(url, shard);
+        } catch (SQLException e) {
+          System.err.println("Skipping store " + entry.getKey() + " at "
+              + entry.getValue() + ": " + e.getMessage());
+        }
+      }
+      if (shard == null)
+        missing.add(entry.getKey());
+      else
+        stores.put(entry.getKey(), shard);
+    }
+    String directoryAt = System.getProperty("cafe.directory",
+        endpoints.values().iterator().next());
+    String directoryUrl = url(directoryAt, dbname);
+    Cafe directory = byUrl.get(directoryUrl);
+    if (directory == null)
+      directory = home.openSibling(directoryUrl);
+    return new ShardRouter(home, homeStore, directory,
+        new TreeMap<Integer, Cafe>(stores),
+        new ArrayList<Cafe>(byUrl.values()), missing);
+  } // end open
+
+  /*
+   * Reads -Dcafe.shards as store id -> host:port[/db], lowest id first.
+   */
+  private static Map<Integer, String> endpoints() {
+    Map<Integer, String> endpoints = new TreeMap<Integer, String>();
+    String shards = System.getProperty("cafe.shards");
+    if (shards == null || shards.trim().length() == 0)
+      return endpoints;
+    for (String entry : shards.split(",")) {
+      int eq = entry.indexOf('=');
+      if (eq < 0)
+        throw new IllegalArgumentException(
+            "cafe.shards entries are store=host:port[/db]: " + entry);
+      endpoints.put(Integer.parseInt(entry.substring(0, eq).trim()),
+          entry.substring(eq + 1).trim());
+    }
+    return endpoints;
+  }
+
+  private static String url(String endpoint, String dbname) {
+    return "jdbc:postgresql://" + endpoint
+        + (endpoint.indexOf('/') < 0 ? "/" + dbname : "");
+  }
+
+  /**
+   * @return the store this process takes orders for
+   */
+  public int homeStore() {
+    return homeStore;
+  }
+
+  /**
+   * @return the connection to the home store's shard
+   */
+  public Cafe home() {
+    return home;
+  }
+
+  /**
+   * @return the connection to the directory
+   */
+  public Cafe directory() {
+    return directory;
+  }
+
+  /**
+   * @return the connection to a store's shard, or null when it is not
+   *         configured or could not be connected
+   */
+  public Cafe shardOf(int store) {
+    return stores.get(store);
+  }
+
+  /**
+   * @return the distinct shard connections, the home one first
+   */
+  public List<Cafe> shards() {
+    return shards;
+  }
+
+  /**
+   * @return the ids of the connected stores, lowest first
+   */
+  public List<Integer> stores() {
+    return new ArrayList<Integer>(stores.keySet());
+  }
+
+  /**
+   * @return the ids of the stores whose shard could not be connected
+   */
+  public List<Integer> missing() {
+    return missing;
+  }
+
+  /**
+   * Runs a read-only query on every shard in parallel, each on its own
+   * thread in the caller's Bulkhead lane.
+   *
+   * @param query the query, the same on every shard
+   * @param mapper builds a value from each row
+   * @return the rows of every shard, the home one's first
+   * @throws java.sql.SQLException when the query failed on a shard
+   */
+  public <T> List<T> gather(String query, RowMapper<T> mapper)
+      throws SQLException {
+    Bulkhead.Lane lane = Bulkhead.laneOf(false);
+    List<Future<List<T>>> parts = new ArrayList<Future<List<T>>>();
+    for (Cafe shard : shards) {
+      parts.add(workers.submit(() -> {
+        Bulkhead.Lane previous = Bulkhead.use(lane);
+        try {
+          return shard.executeQueryAndMap(query, mapper);
+        } finally {
+          Bulkhead.restore(previous);
+        }
+      }));
+    }
+    List<T> rows = new ArrayList<T>();
+    for (int i = 0; i < parts.size(); i++) {
+      try {
+        rows.addAll(parts.get(i).get());
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof SQLException)
+          throw new SQLException(shards.get(i).url() + ": "
+              + e.getCause().getMessage(), e.getCause());
+        throw new SQLException(e.getCause());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new SQLException("Interrupted waiting for the shards");
+      }
+    }
+    return rows;
+  } // end gather
+
+  /**
+   * Closes the connections other than the home one.
+   */
+  public void cleanup() {
+    workers.shutdownNow();
+    for (Cafe shard : shards) {
+      if (shard != home)
+        shard.cleanup();
+    }
+    if (directory != home && !shards.contains(directory))
+      directory.cleanup();
+  }
+} // end ShardRouter
@@ -0,0 +1,427 @@
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * CafeStore over the shards of a ShardRouter. Orders and item status are
+ * written to the home store's shard. An order placed at another store is
+ * found by asking the other shards in turn when the home shard does not
+ * have it, and the shard it was found on is remembered for the order's
+ * later reads and writes. A customer's order history is gathered from
+ * every shard.
+ *
+ * Logins and user lookups go to the directory, so an account created at
+ * one store works at all of them. The menu is read from the home shard.
+ * Writes to Users and Menu are made on the directory first and then
+ * repeated on every shard, whose copies the order statements join
+ * against; a shard that misses a write is reported and brought back in
+ * line for the menu the next time it starts as a home shard.
+ */
+public class ShardedStore implements CafeStore {
+
+  // foreign orders whose shard is remembered
+  private static final int LOCATED = 1024;
+
+  private final ShardRouter router;
+  private final CafeStore home;
+  private final CafeStore directory;
+  // a store per distinct shard other than the home one
+  private final List<CafeStore> others = new ArrayList<CafeStore>();
+  // the shards a write to Users or Menu is repeated on
+  private final List<CafeStore> copies = new ArrayList<CafeStore>();
+  private final UserRepository users = new Users();
+  private final MenuRepository menu = new Menu();
+  private final OrderRepository orders = new Orders();
+  private final ItemStatusRepository items = new Items();
+
+  // orderid -> the store of a shard other than the home one
+  private final Map<Integer, CafeStore> located =
+      new LinkedHashMap<Integer, CafeStore>(64, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<Integer, CafeStore> e) {
+          return size() > LOCATED;
+        }
+      };
+
+  /**
+   * Copies the directory's menu to the home shard.
+   *
+   * @param home the store over the home shard
+   * @param router the shards
+   */
+  public ShardedStore(CafeStore home, ShardRouter router) {
+    this.router = router;
+    this.home = home;
+    this.directory = router.directory() == router.home() ? home
+        : new JdbcStore(router.directory());
+    for (Cafe shard : router.shards()) {
+      if (shard == router.home())
+        continue;
+      CafeStore store = shard == router.directory() ? directory
+          : new JdbcStore(shard);
+      others.add(store);
+    }
+    if (directory != home)
+      copies.add(home);
+    for (CafeStore store : others) {
+      if (store != directory)
+        copies.add(store);
+    }
+    if (directory != home) {
+      try {
+        home.menu().apply(MenuChange.importing(home.menu().all(),
+            directory.menu().all(), true));
+      } catch (SQLException e) {
+        System.err.println("Menu not copied from the directory: "
+            + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * @return the shards this store routes to
+   */
+  public ShardRouter router() {
+    return router;
+  }
+
+  public UserRepository users() {
+    return users;
+  }
+
+  public MenuRepository menu() {
+    return menu;
+  }
+
+  public OrderRepository orders() {
+    return orders;
+  }
+
+  public ItemStatusRepository items() {
+    return items;
+  }
+
+  private interface Write<T> {
+    T to(CafeStore store) throws SQLException;
+  }
+
+  /*
+   * Makes a write on the directory, then on every shard; the directory's
+   * result is returned.
+   */
+  private <T> T everywhere(Write<T> write) throws SQLException {
+    T result = write.to(directory);
+    for (CafeStore store : copies) {
+      try {
+        write.to(store);
+      } catch (SQLException e) {
+        System.err.println("Shard not updated: " + e.getMessage());
+      }
+    }
+    return result;
+  }
+
+  /*
+   * @return the store of the shard holding an order, the home one when
+   *         it is not known to be elsewhere
+   */
+  private CafeStore on(int orderid) {
+    synchronized (located) {
+      CafeStore store = located.get(orderid);
+      return store == null ? home : store;
+    }
+  }
+
+  /*
+   * Asks the other shards for an order the home shard does not have.
+   *
+   * @return the store of the shard holding it, or null
+   */
+  private CafeStore locate(int orderid) throws SQLException {
+    for (CafeStore store : others) {
+      if (store.orders().find(orderid) != null) {
+        synchronized (located) {
+          located.put(orderid, store);
+        }
+        return store;
+      }
+    }
+    return null;
+  }
+
+  private class Users implements UserRepository {
+
+    public UserAccount find(String login) throws SQLException {
+      return directory.users().find(login);
+    }
+
+    public String type(String login) throws SQLException {
+      return directory.users().type(login);
+    }
+
+    public boolean checkPassword(String login, String password)
+        throws SQLException {
+      return directory.users().checkPassword(login, password);
+    }
+
+    public void create(UserAccount user) throws SQLException {
+      everywhere(store -> {
+        store.users().create(user);
+        return null;
+      });
+    }
+
+    public int setFavItems(String login, String favItems) throws SQLException {
+      return everywhere(store -> store.users().setFavItems(login, favItems));
+    }
+
+    public int setPassword(String login, String password) throws SQLException {
+      return everywhere(store -> store.users().setPassword(login, password));
+    }
+
+    public int setPhoneNum(String login, String phoneNum) throws SQLException {
+      return everywhere(store -> store.users().setPhoneNum(login, phoneNum));
+    }
+
+    public int setType(String login, String type) throws SQLException {
+      return everywhere(store -> store.users().setType(login, type));
+    }
+
+    public int setStore(String login, int storeId) throws SQLException {
+      return everywhere(store -> store.users().setStore(login, storeId));
+    }
+
+    public int[] upsert(List<UserAccount> users) throws SQLException {
+      return everywhere(store -> store.users().upsert(users));
+    }
+
+    public int setTypes(List<String> logins, String type)
+        throws SQLException {
+      return everywhere(store -> store.users().setTypes(logins, type));
+    }
+
+    public int changeType(String fromType, String toType)
+        throws SQLException {
+      return everywhere(store -> store.users().changeType(fromType, toType));
+    }
+
+    public int setFavItems(Map<String, String> favItems) throws SQLException {
+      return everywhere(store -> store.users().setFavItems(favItems));
+    }
+  }
+
+  private class Menu implements MenuRepository {
+
+    public MenuItem find(String itemName) throws SQLException {
+      return home.menu().find(itemName);
+    }
+
+    public List<MenuItem> all() throws SQLException {
+      return home.menu().all();
+    }
+
+    public List<MenuItem> byType(String type) throws SQLException {
+      return home.menu().byType(type);
+    }
+
+    public void add(MenuItem item) throws SQLException {
+      everywhere(store -> {
+        store.menu().add(item);
+        return null;
+      });
+    }
+
+    public int delete(String itemName) throws SQLException {
+      return everywhere(store -> store.menu().delete(itemName));
+    }
+
+    public int setType(String itemName, String type) throws SQLException {
+      return everywhere(store -> store.menu().setType(itemName, type));
+    }
+
+    public int setPrice(String itemName, float price) throws SQLException {
+      return everywhere(store -> store.menu().setPrice(itemName, price));
+    }
+
+    public int setDescription(String itemName, String description)
+        throws SQLException {
+      return everywhere(
+          store -> store.menu().setDescription(itemName, description));
+    }
+
+    public int setImageURL(String itemName, String imageURL)
+        throws SQLException {
+      return everywhere(store -> store.menu().setImageURL(itemName, imageURL));
+    }
+
+    public int[] apply(List<MenuChange> changes) throws SQLException {
+      return everywhere(store -> store.menu().apply(changes));
+    }
+  }
+
+  private class Orders implements OrderRepository {
+
+    public int create(String login, Timestamp received, float total)
+        throws SQLException {
+      return home.orders().create(login, received, total);
+    }
+
+    public OrderReceipt create(UUID requestKey, String login,
+        Timestamp received, String itemName, int quantity, String status)
+        throws SQLException {
+      return home.orders().create(requestKey, login, received, itemName,
+          quantity, status);
+    }
+
+    public Order find(int orderid) throws SQLException {
+      Order order = on(orderid).orders().find(orderid);
+      if (order == null && on(orderid) == home) {
+        CafeStore store = locate(orderid);
+        if (store != null)
+          order = store.orders().find(orderid);
+      }
+      return order;
+    }
+
+    /*
+     * Every shard's most recent orders of the login, newest first.
+     */
+    public List<Order> recentByLogin(String login, int limit)
+        throws SQLException {
+      List<Order> recent = router.gather(String.format(
+          JdbcStore.Orders.ALL_COLUMNS
+              + " WHERE login = '%s' ORDER BY timeStampRecieved desc, orderid desc LIMIT %d",
+          Cafe.escape(login),
+          limit), JdbcStore.Orders.ROW);
+      recent.sort(Comparator.comparing(Order::timeStampRecieved)
+          .thenComparingInt(Order::orderid).reversed());
+      return recent.size() > limit ? new ArrayList<Order>(recent.subList(0, limit))
+          : recent;
+    }
+
+    public List<Order> current() throws SQLException {
+      return home.orders().current();
+    }
+
+    public int setTotal(int orderid, float total, int version)
+        throws SQLException {
+      int rowCount = on(orderid).orders().setTotal(orderid, total, version);
+      if (rowCount == 0 && on(orderid) == home) {
+        CafeStore store = locate(orderid);
+        if (store != null)
+          rowCount = store.orders().setTotal(orderid, total, version);
+      }
+      return rowCount;
+    }
+
+    public int setPaid(int orderid, boolean paid, int version)
+        throws SQLException {
+      int rowCount = on(orderid).orders().setPaid(orderid, paid, version);
+      if (rowCount == 0 && on(orderid) == home) {
+        CafeStore store = locate(orderid);
+        if (store != null)
+          rowCount = store.orders().setPaid(orderid, paid, version);
+      }
+      return rowCount;
+    }
+  }
+
+  private class Items implements ItemStatusRepository {
+
+    public void add(int orderid, String itemName, int quantity,
+        Timestamp lastUpdated, String status) throws SQLException {
+      CafeStore store = on(orderid);
+      try {
+        store.items().add(orderid, itemName, quantity, lastUpdated, status);
+      } catch (SQLException e) {
+        // the order is not on the home shard (foreign key violation)
+        CafeStore elsewhere = store == home && "23503".equals(e.getSQLState())
+            ? locate(orderid) : null;
+        if (elsewhere == null)
+          throw e;
+        elsewhere.items().add(orderid, itemName, quantity, lastUpdated, status);
+      }
+    }
+
+    /*
+     * The key is remembered on the shard holding the order, so a repeat
+     * finds it there too.
+     */
+    public OrderReceipt add(UUID requestKey, int orderid, String itemName,
+        int quantity, Timestamp lastUpdated, String status)
+        throws SQLException {
+      OrderReceipt receipt = on(orderid).items().add(requestKey, orderid,
+          itemName, quantity, lastUpdated, status);
+      if (receipt == null && on(orderid) == home) {
+        CafeStore store = locate(orderid);
+        if (store != null)
+          receipt = store.items().add(requestKey, orderid, itemName, quantity,
+              lastUpdated, status);
+      }
+      return receipt;
+    }
+
+    public OrderLine find(int orderid, String itemName) throws SQLException {
+      OrderLine line = on(orderid).items().find(orderid, itemName);
+      if (line == null && on(orderid) == home) {
+        CafeStore store = locate(orderid);
+        if (store != null)
+          line = store.items().find(orderid, itemName);
+      }
+      return line;
+    }
+
+    public List<OrderLine> byOrder(int orderid) throws SQLException {
+      List<OrderLine> lines = on(orderid).items().byOrder(orderid);
+      if (lines.isEmpty() && on(orderid) == home) {
+        CafeStore store = locate(orderid);
+        if (store != null)
+          lines = store.items().byOrder(orderid);
+      }
+      return lines;
+    }
+
+    public int setStatus(int orderid, String itemName, String status,
+        int version) throws SQLException {
+      int rowCount = on(orderid).items().setStatus(orderid, itemName, status,
+          version);
+      if (rowCount == 0 && on(orderid) == home) {
+        CafeStore store = locate(orderid);
+        if (store != null)
+          rowCount = store.items().setStatus(orderid, itemName, status,
+              version);
+      }
+      return rowCount;
+    }
+
+    public int setProgress(int orderid, String itemName, int startedQty,
+        int finishedQty, int version) throws SQLException {
+      int rowCount = on(orderid).items().setProgress(orderid, itemName,
+          startedQty, finishedQty, version);
+      if (rowCount == 0 && on(orderid) == home) {
+        CafeStore store = locate(orderid);
+        if (store != null)
+          rowCount = store.items().setProgress(orderid, itemName, startedQty,
+              finishedQty, version);
+      }
+      return rowCount;
+    }
+
+    public int setComments(int orderid, String itemName, String comments,
+        int version) throws SQLException {
+      int rowCount = on(orderid).items().setComments(orderid, itemName,
+          comments, version);
+      if (rowCount == 0 && on(orderid) == home) {
+        CafeStore store = locate(orderid);
+        if (store != null)
+          rowCount = store.items().setComments(orderid, itemName, comments,
+              version);
+      }
+      return rowCount;
+    }
+  }
+} // end ShardedStore
@@ -0,0 +1,237 @@
+import java.io.PrintStream;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Checks Orders.total against the order's lines. Totals are float sums
+ * kept up by the order screens, so they drift from their lines when an
+ * update is lost half way or items are added some other way. The
+ * expected total of an order is the sum of quantity times unit price over
+ * its ItemStatus lines, worked out in whole cents.
+ *
+ * The orderid range is split in chunks that are checked in parallel on a
+ * ForkJoinPool, each chunk reading its orders with their lines in one
+ * query on a connection borrowed from a CafePool. Mismatches are printed
+ * as they are found. In repair mode each chunk sets the totals it found
+ * wrong in batches of updates, each guarded by the total it read, so an
+ * order changed since is left alone. Archived orders are not checked.
+ *
+ * Run with -Dcafe.checkTotals=report or -Dcafe.checkTotals=repair instead
+ * of the menus. Tunables: cafe.checkTotals.threads (connections used,
+ * default the number of processors), cafe.checkTotals.chunk (orderids per
+ * chunk, default 10000) and cafe.checkTotals.batch (updates per batch,
+ * default 500).
+ */
+public class TotalsChecker {
+
+  static final String RANGE = "SELECT min(orderid), max(orderid) FROM Orders";
+
+  static final String CHUNK =
+      "SELECT O.orderid, O.timeStampRecieved, O.total, I.quantity, I.unitPrice FROM Orders O LEFT JOIN ItemStatus I ON I.orderid = O.orderid AND I.timeStampRecieved = O.timeStampRecieved WHERE O.orderid >= %d AND O.orderid < %d ORDER BY O.orderid";
+
+  static final String REPAIR =
+      "UPDATE Orders SET total = %d.%02d, version = version + 1 WHERE orderid = %d AND timeStampRecieved = '%s' AND total = '%s'::real";
+
+  /*
+   * One line of an order, or the order alone when it has no lines
+   * (quantity 0).
+   */
+  private record Row(int orderid, Timestamp received, float total,
+      int quantity, float unitPrice) {
+  }
+
+  private static final RowMapper<Row> ROW = rs -> new Row(rs.getInt(1),
+      rs.getTimestamp(2), rs.getFloat(3), rs.getInt(4), rs.getFloat(5));
+
+  /**
+   * What a check found.
+   */
+  public static final class Tally {
+    public long orders;
+    public long mismatched;
+    public long repaired;
+
+    void add(Tally other) {
+      orders += other.orders;
+      mismatched += other.mismatched;
+      repaired += other.repaired;
+    }
+  }
+
+  private final CafePool pool;
+  private final boolean repair;
+  private final int chunkSize;
+  private final int batchSize;
+  private final PrintStream out;
+
+  public TotalsChecker(CafePool pool, boolean repair, int chunkSize,
+      int batchSize, PrintStream out) {
+    this.pool = pool;
+    this.repair = repair;
+    this.chunkSize = Math.max(1, chunkSize);
+    this.batchSize = Math.max(1, batchSize);
+    this.out = out;
+  }
+
+  /**
+   * Checks every order using the system property settings and prints a
+   * summary.
+   *
+   * @param esql an open connection whose settings the checker's
+   *        connections reuse
+   * @param mode report or repair
+   * @throws java.sql.SQLException when a chunk could not be checked
+   */
+  public static void run(Cafe esql, String mode) throws SQLException {
+    if (!mode.equals("report") && !mode.equals("repair")) {
+      System.err.println("cafe.checkTotals must be report or repair");
+      return;
+    }
+    CafePool pool = new CafePool(esql, Integer.getInteger(
+        "cafe.checkTotals.threads", Runtime.getRuntime().availableProcessors()));
+    try {
+      long started = System.currentTimeMillis();
+      TotalsChecker checker = new TotalsChecker(pool, mode.equals("repair"),
+          Integer.getInteger("cafe.checkTotals.chunk", 10000),
+          Integer.getInteger("cafe.checkTotals.batch", 500), System.out);
+      System.out.println("orderid\ttotal\texpected");
+      Tally tally = checker.check(esql);
+      long ms = Math.max(1, System.currentTimeMillis() - started);
+      System.out.printf(
+          "%d orders checked in %d ms (%d/s): %d mismatched, %d repaired\n",
+          tally.orders, ms, tally.orders * 1000 / ms, tally.mismatched,
+          tally.repaired);
+    } finally {
+      pool.close();
+    }
+  } // end run
+
+  /**
+   * Checks every order in Orders.
+   *
+   * @param esql the connection that reads the orderid range
+   * @return what was found
+   * @throws java.sql.SQLException when a chunk could not be checked
+   */
+  public Tally check(Cafe esql) throws SQLException {
+    List<List<String>> range = esql.executeQueryAndReturnResult(RANGE);
+    if (range.isEmpty() || range.get(0).get(0) == null)
+      return new Tally();
+    long first = Long.parseLong(range.get(0).get(0).trim());
+    long last = Long.parseLong(range.get(0).get(1).trim());
+    ForkJoinPool workers = new ForkJoinPool(pool.size());
+    try {
+      return workers.invoke(new Range(first, last + 1));
+    } catch (RuntimeException e) {
+      for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+        if (cause instanceof SQLException)
+          throw (SQLException) cause;
+      }
+      throw e;
+    } finally {
+      workers.shutdown();
+    }
+  } // end check
+
+  /*
+   * Orderids from (inclusive) to to (exclusive), halved until a chunk.
+   */
+  private class Range extends RecursiveTask<Tally> {
+    private static final long serialVersionUID = 1L;
+
+    final long from;
+    final long to;
+
+    Range(long from, long to) {
+      this.from = from;
+      this.to = to;
+    }
+
+    protected Tally compute() {
+      if (to - from <= chunkSize) {
+        try {
+          return chunk(from, to);
+        } catch (SQLException e) {
+          throw new RuntimeException(e);
+        }
+      }
+      long middle = from + (to - from) / 2;
+      Range left = new Range(from, middle);
+      left.fork();
+      Tally tally = new Range(middle, to).compute();
+      tally.add(left.join());
+      return tally;
+    }
+  }
+
+  /*
+   * Checks, and in repair mode fixes, the orders of one chunk on a
+   * borrowed connection.
+   */
+  private Tally chunk(long from, long to) throws SQLException {
+    Cafe esql;
+    try {
+      esql = pool.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted waiting for a connection");
+    }
+    try {
+      Tally tally = new Tally();
+      List<String> repairs = new ArrayList<String>();
+      List<Row> rows = esql.executeQueryAndMap(
+          String.format(CHUNK, from, to), ROW);
+      int i = 0;
+      while (i < rows.size()) {
+        Row order = rows.get(i);
+        long cents = 0;
+        for (; i < rows.size() && rows.get(i).orderid() == order.orderid(); i++) {
+          Row line = rows.get(i);
+          cents += line.quantity() * Math.round(line.unitPrice() * 100.0);
+        }
+        tally.orders++;
+        long recorded = Math.round(order.total() * 100.0);
+        if (recorded != cents) {
+          tally.mismatched++;
+          report(order, recorded, cents);
+          if (repair)
+            repairs.add(String.format(REPAIR, cents / 100, cents % 100,
+                order.orderid(), order.received(), order.total()));
+        }
+        if (repairs.size() >= batchSize)
+          tally.repaired += apply(esql, repairs);
+      }
+      if (!repairs.isEmpty())
+        tally.repaired += apply(esql, repairs);
+      return tally;
+    } finally {
+      pool.release(esql);
+    }
+  } // end chunk
+
+  private void report(Row order, long recorded, long expected) {
+    String line = String.format("%d\t%d.%02d\t%d.%02d", order.orderid(),
+        recorded / 100, recorded % 100, expected / 100, expected % 100);
+    synchronized (out) {
+      out.println(line);
+    }
+  }
+
+  /*
+   * Runs and clears a batch of repairs.
+   *
+   * @return the number of orders updated
+   */
+  private static int apply(Cafe esql, List<String> repairs)
+      throws SQLException {
+    int updated = 0;
+    for (int count : esql.executeUpdateBatch(repairs))
+      updated += Math.max(0, count);
+    repairs.clear();
+    return updated;
+  }
+} // end TotalsChecker
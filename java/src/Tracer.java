@@ -0,0 +1,414 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.regex.Pattern;
+
+/**
+ * Sampled tracing of user-facing operations. A sampled operation (LogIn,
+ * PlaceOrder, UpdateOrderByCafe, ...) gets a span; every SQL statement run
+ * on its thread while it is open gets a child span with the statement
+ * text, its Bulkhead lane and the rows it returned or changed, and every
+ * line read from the console gets a child span, so time spent waiting
+ * for the user is told apart from time spent in the database. The
+ * statements are built with their values in place, so the statement text
+ * carries the bind values, except in statements naming a password column:
+ * those are kept as their shape, every literal replaced by ?, so no
+ * password reaches the trace file.
+ *
+ * Finished spans are put in a fixed-size ring without locking; when the
+ * exporter falls a whole ring behind the oldest spans are overwritten and
+ * counted as dropped. The exporter thread writes them once a second to a
+ * file in the Chrome trace event format, one event per line, which
+ * chrome://tracing and Perfetto import as is. The file is rotated to
+ * file.1, file.2, ... when it grows past its size limit.
+ *
+ * Enabled with -Dcafe.trace=file. Tunables: cafe.trace.sample (share of
+ * operations traced, default 0.1), cafe.trace.ring (spans held, default
+ * 4096), cafe.trace.maxBytes (file size before rotating, default 16 MB),
+ * cafe.trace.files (rotated files kept, default 4) and cafe.trace.sqlChars
+ * (statement text kept per span, default 500).
+ */
+public class Tracer implements Runnable {
+
+  /**
+   * A timed part of an operation. Closing it records it.
+   */
+  public static final class Span implements AutoCloseable {
+    final String name;
+    final String category;
+    final long trace;
+    final long thread;
+    final long start = System.nanoTime();
+    final Span parent;
+    long end;
+    String sql;
+    String lane;
+    int rows = -1;
+    String error;
+
+    Span(String name, String category, long trace, Span parent) {
+      this.name = name;
+      this.category = category;
+      this.trace = trace;
+      this.thread = Thread.currentThread().getId();
+      this.parent = parent;
+    }
+
+    public void close() {
+      end = System.nanoTime();
+      CURRENT.set(parent);
+      if (parent == null)
+        CURRENT.remove();
+      ACTIVE.publish(this);
+    }
+  }
+
+  private static final String OPERATION = "operation";
+  private static final String STATEMENT = "sql";
+  private static final String CONSOLE = "console";
+
+  // the innermost open span of the thread, null when not traced
+  private static final ThreadLocal<Span> CURRENT = new ThreadLocal<Span>();
+
+  // wall clock time of a nanoTime reading, for the event timestamps
+  private static final long BASE_NANOS = System.nanoTime();
+  private static final Pattern SECRET = Pattern.compile("\\bpassword\\b",
+      Pattern.CASE_INSENSITIVE);
+
+  private static final long BASE_MICROS = System.currentTimeMillis() * 1000;
+
+  private static final Tracer ACTIVE = System.getProperty("cafe.trace") != null
+      ? new Tracer(new File(System.getProperty("cafe.trace")))
+      : null;
+
+  private final File file;
+  private final double sample;
+  private final long maxBytes;
+  private final int files;
+  private final int sqlChars;
+  private final long pid = ProcessHandle.current().pid();
+  private final AtomicReferenceArray<Span> ring;
+  private final int mask;
+  // sequence number of the next span to be put in the ring
+  private final AtomicLong head = new AtomicLong();
+  private final AtomicLong traces = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  // sequence number of the next span to export, exporter thread only
+  private long tail = 0;
+  private volatile long exported = 0;
+  private Writer out = null;
+  private long written = 0;
+  private final Thread exporter;
+  private volatile boolean running = true;
+
+  private Tracer(File file) {
+    this.file = file;
+    this.sample = Double.parseDouble(System.getProperty("cafe.trace.sample", "0.1"));
+    this.maxBytes = Long.getLong("cafe.trace.maxBytes", 16L * 1024 * 1024);
+    this.files = Math.max(1, Integer.getInteger("cafe.trace.files", 4));
+    this.sqlChars = Integer.getInteger("cafe.trace.sqlChars", 500);
+    int size = Integer.highestOneBit(
+        Math.max(2, Integer.getInteger("cafe.trace.ring", 4096) - 1)) << 1;
+    this.ring = new AtomicReferenceArray<Span>(size);
+    this.mask = size - 1;
+    this.exporter = new Thread(this, "cafe-trace-export");
+    this.exporter.setDaemon(true);
+    this.exporter.start();
+  }
+
+  /**
+   * @return the running tracer, or null when tracing is disabled
+   */
+  public static Tracer active() {
+    return ACTIVE;
+  }
+
+  /**
+   * Opens the span of a user-facing operation, nested in the operation
+   * already open on this thread if there is one.
+   *
+   * <pre>
+   * Tracer.Span span = Tracer.begin("PlaceOrder");
+   * try {
+   *   ...
+   * } finally {
+   *   Tracer.end(span);
+   * }
+   * </pre>
+   *
+   * @param name the operation, null for none
+   * @return the open span, or null when the operation is not sampled
+   */
+  public static Span begin(String name) {
+    if (ACTIVE == null || name == null)
+      return null;
+    Span parent = CURRENT.get();
+    Span span;
+    if (parent != null)
+      span = new Span(name, OPERATION, parent.trace, parent);
+    else if (ThreadLocalRandom.current().nextDouble() < ACTIVE.sample)
+      span = new Span(name, OPERATION, ACTIVE.traces.incrementAndGet(), null);
+    else
+      return null;
+    CURRENT.set(span);
+    return span;
+  }
+
+  /**
+   * Closes a span returned by begin.
+   *
+   * @param span the span, null when the operation was not sampled
+   */
+  public static void end(Span span) {
+    if (span != null)
+      span.close();
+  }
+
+  /**
+   * Opens the span of a statement when the thread's operation is traced.
+   * Must be followed by endStatement().
+   */
+  static void statement(String sql, boolean update) {
+    Span parent = CURRENT.get();
+    if (parent == null)
+      return;
+    Span span = new Span(update ? "update" : "query", STATEMENT, parent.trace,
+        parent);
+    if (SECRET.matcher(sql).find())
+      sql = QueryCache.shapeOf(sql);
+    span.sql = sql.length() > ACTIVE.sqlChars
+        ? sql.substring(0, ACTIVE.sqlChars) + "..." : sql;
+    CURRENT.set(span);
+  }
+
+  /**
+   * Notes the Bulkhead lane the open statement was admitted to.
+   */
+  static void lane(Bulkhead.Lane lane) {
+    Span span = CURRENT.get();
+    if (span != null && span.category == STATEMENT && lane != null)
+      span.lane = lane.name().toLowerCase();
+  }
+
+  /**
+   * Notes the rows the open statement returned or changed.
+   */
+  static void rows(int rows) {
+    Span span = CURRENT.get();
+    if (span != null && span.category == STATEMENT)
+      span.rows = rows;
+  }
+
+  /**
+   * Notes why the open statement failed.
+   */
+  static void failed(Exception e) {
+    Span span = CURRENT.get();
+    if (span != null && span.category == STATEMENT)
+      span.error = e.getMessage();
+  }
+
+  static void endStatement() {
+    Span span = CURRENT.get();
+    if (span != null && span.category == STATEMENT)
+      span.close();
+  }
+
+  /**
+   * @return a reader whose readLine() is traced as waiting for the user
+   */
+  public static BufferedReader console(Reader reader) {
+    if (ACTIVE == null)
+      return new BufferedReader(reader);
+    return new BufferedReader(reader) {
+      public String readLine() throws IOException {
+        Span parent = CURRENT.get();
+        if (parent == null)
+          return super.readLine();
+        Span span = new Span("readLine", CONSOLE, parent.trace, parent);
+        CURRENT.set(span);
+        try {
+          return super.readLine();
+        } finally {
+          span.close();
+        }
+      }
+    };
+  }
+
+  /*
+   * Puts a finished span in the ring, overwriting the oldest one if the
+   * exporter is a whole ring behind.
+   */
+  private void publish(Span span) {
+    long seq = head.getAndIncrement();
+    if (ring.getAndSet((int) (seq & mask), span) != null)
+      dropped.incrementAndGet();
+  }
+
+  /**
+   * @return the number of spans written to the trace file
+   */
+  public long exported() {
+    return exported;
+  }
+
+  /**
+   * @return the number of spans overwritten before they were exported
+   */
+  public long dropped() {
+    return dropped.get();
+  }
+
+  /**
+   * Stops the exporter after it has written the spans still in the ring.
+   */
+  public static void close() {
+    if (ACTIVE == null)
+      return;
+    ACTIVE.running = false;
+    ACTIVE.exporter.interrupt();
+    try {
+      ACTIVE.exporter.join(5000);
+    } catch (InterruptedException e) {
+      // closing anyway
+    }
+  } // end close
+
+  public void run() {
+    while (running) {
+      try {
+        Thread.sleep(1000);
+      } catch (InterruptedException e) {
+        // stopping, export what is left
+      }
+      try {
+        export();
+      } catch (IOException e) {
+        System.err.println("Trace export failed: " + e.getMessage());
+        closeFile();
+      }
+    }
+    closeFile();
+  } // end run
+
+  /*
+   * Writes the spans put in the ring since the last export. A slot that
+   * is still empty belongs to a span being put in; it is left for the
+   * next export.
+   */
+  private void export() throws IOException {
+    long end = head.get();
+    if (end - tail > ring.length())
+      tail = end - ring.length(); // the ones before were overwritten
+    for (; tail < end; tail++) {
+      Span span = ring.getAndSet((int) (tail & mask), null);
+      if (span == null)
+        break;
+      write(event(span));
+      exported++;
+    }
+    if (out != null)
+      out.flush();
+  } // end export
+
+  private void write(String event) throws IOException {
+    if (out == null || written >= maxBytes) {
+      closeFile();
+      rotate();
+      out = new OutputStreamWriter(new FileOutputStream(file),
+          StandardCharsets.UTF_8);
+      out.write("[\n");
+      written = 2;
+    }
+    out.write(event);
+    written += event.length();
+  }
+
+  /*
+   * Shifts file to file.1, file.1 to file.2, ..., dropping the oldest.
+   */
+  private void rotate() {
+    if (!file.exists())
+      return;
+    new File(file.getPath() + "." + files).delete();
+    for (int i = files - 1; i >= 1; i--)
+      new File(file.getPath() + "." + i)
+          .renameTo(new File(file.getPath() + "." + (i + 1)));
+    file.renameTo(new File(file.getPath() + ".1"));
+  }
+
+  private void closeFile() {
+    if (out == null)
+      return;
+    try {
+      out.close();
+    } catch (IOException e) {
+      // nothing more to write
+    }
+    out = null;
+  }
+
+  /*
+   * One complete ("X") event of the Chrome trace event format, with its
+   * trailing comma; the closing bracket of the array may be left out.
+   */
+  private String event(Span span) {
+    StringBuilder json = new StringBuilder(160);
+    json.append("{\"name\":").append(quote(span.name))
+        .append(",\"cat\":\"").append(span.category)
+        .append("\",\"ph\":\"X\",\"ts\":")
+        .append(BASE_MICROS + (span.start - BASE_NANOS) / 1000)
+        .append(",\"dur\":").append((span.end - span.start) / 1000)
+        .append(",\"pid\":").append(pid)
+        .append(",\"tid\":").append(span.thread)
+        .append(",\"args\":{\"trace\":").append(span.trace);
+    if (span.sql != null)
+      json.append(",\"sql\":").append(quote(span.sql));
+    if (span.lane != null)
+      json.append(",\"lane\":\"").append(span.lane).append('"');
+    if (span.rows >= 0)
+      json.append(",\"rows\":").append(span.rows);
+    if (span.error != null)
+      json.append(",\"error\":").append(quote(span.error));
+    return json.append("}},\n").toString();
+  }
+
+  static String quote(String value) {
+    StringBuilder json = new StringBuilder(value.length() + 2).append('"');
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      switch (c) {
+        case '"':
+          json.append("\\\"");
+          break;
+        case '\\':
+          json.append("\\\\");
+          break;
+        case '\n':
+          json.append("\\n");
+          break;
+        case '\r':
+          json.append("\\r");
+          break;
+        case '\t':
+          json.append("\\t");
+          break;
+        default:
+          if (c < 0x20)
+            json.append(String.format("\\u%04x", (int) c));
+          else
+            json.append(c);
+      }
+    }
+    return json.append('"').toString();
+  }
+} // end Tracer
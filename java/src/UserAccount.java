@@ -0,0 +1,46 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A row of Users. type is one of Customer, Employee or Manager.
+ */
+public record UserAccount(String login, String phoneNum, String password,
+    String favItems, String type) {
+
+  public static final String CUSTOMER = "Customer";
+  public static final String EMPLOYEE = "Employee";
+  public static final String MANAGER = "Manager";
+
+  /**
+   * @return the user type matching value regardless of case, or null
+   */
+  public static String typeOf(String value) {
+    for (String type : new String[] { CUSTOMER, EMPLOYEE, MANAGER }) {
+      if (type.equalsIgnoreCase(value))
+        return type;
+    }
+    return null;
+  }
+
+  /**
+   * Reads a file in the data/users.csv format (';' separated login,
+   * phoneNum, password, favItems, type).
+   *
+   * @throws java.io.IOException when the file cannot be read or a row is
+   *         invalid
+   */
+  public static List<UserAccount> readUsers(File file) throws IOException {
+    List<UserAccount> users = new ArrayList<UserAccount>();
+    int line = 0;
+    for (String[] row : InMemoryStore.readCsv(file, 5)) {
+      line++;
+      String type = typeOf(row[4]);
+      if (row[0].length() == 0 || row[2].length() == 0 || type == null)
+        throw new IOException(file + ": invalid user entry " + line);
+      users.add(new UserAccount(row[0], row[1], row[2], row[3], type));
+    }
+    return users;
+  }
+}
@@ -0,0 +1,75 @@
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Access to Users.
+ */
+public interface UserRepository {
+
+  /**
+   * @return the user, or null if the login does not exist
+   */
+  UserAccount find(String login) throws SQLException;
+
+  /**
+   * @return the user's type, or null if the login does not exist
+   */
+  default String type(String login) throws SQLException {
+    UserAccount user = find(login);
+    return user == null ? null : user.type();
+  }
+
+  /**
+   * @return true when the login exists and the password matches
+   */
+  boolean checkPassword(String login, String password) throws SQLException;
+
+  /**
+   * @throws java.sql.SQLException when the login or phone number is taken
+   */
+  void create(UserAccount user) throws SQLException;
+
+  int setFavItems(String login, String favItems) throws SQLException;
+
+  int setPassword(String login, String password) throws SQLException;
+
+  int setPhoneNum(String login, String phoneNum) throws SQLException;
+
+  int setType(String login, String type) throws SQLException;
+
+  /**
+   * Sets the store a member of staff works at.
+   *
+   * @param storeId the store, 0 for none
+   */
+  int setStore(String login, int storeId) throws SQLException;
+
+  /**
+   * Adds or replaces users in one transaction. Existing users get every
+   * column from the given row.
+   *
+   * @return the number of users added and the number changed
+   * @throws java.sql.SQLException when a phone number is taken; nothing is
+   *         changed then
+   */
+  int[] upsert(List<UserAccount> users) throws SQLException;
+
+  /**
+   * @return the number of the given users whose type changed
+   */
+  int setTypes(List<String> logins, String type) throws SQLException;
+
+  /**
+   * Gives every user of one type another type.
+   *
+   * @return the number of users changed
+   */
+  int changeType(String fromType, String toType) throws SQLException;
+
+  /**
+   * @param favItems login to favorite items
+   * @return the number of users found
+   */
+  int setFavItems(Map<String, String> favItems) throws SQLException;
+}
@@ -0,0 +1,499 @@
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * CafeStore decorator that keeps live wait time estimates for the items
+ * being prepared. Every order, item and status change made through it
+ * updates, per menu type, the backlog of units not yet started (first
+ * come, first served) and two rolling statistics learned from the changes
+ * themselves:
+ *
+ * prep  time from a unit being started to it being finished
+ * gap   time between successive starts while units of the type are
+ *       waiting, i.e. how fast the station takes on new work
+ *
+ * Both are exponentially weighted averages (weight cafe.eta.alpha,
+ * default 0.2) starting from cafe.eta.prepSeconds (default 240) and
+ * cafe.eta.gapSeconds (default 60). A line with n units not started
+ * behind k waiting units of its type is estimated ready (k + n) gaps plus
+ * one prep from now; started units are ready one prep after they were
+ * started. An order is ready when its last line is.
+ *
+ * The estimates are answered from memory, so the status screen does not
+ * read ItemStatus. The state is warmed from the underlying store on
+ * creation; changes made by other processes, by CafeAsync or by the order
+ * journal drainer are not seen until reload(). Enabled with
+ * -Dcafe.eta=true.
+ */
+public class WaitTimeEstimator implements CafeStore {
+
+  /**
+   * Receives the item lines visited by forEachLine.
+   */
+  public interface LineVisitor {
+    void line(String itemName, int quantity, int startedQty, int finishedQty,
+        long etaMillis);
+  }
+
+  private static final class Line {
+    final String itemName;
+    final String type;
+    int quantity;
+    int started;
+    int finished;
+    long lastStart;
+
+    Line(String itemName, String type) {
+      this.itemName = itemName;
+      this.type = type;
+    }
+
+    int waiting() {
+      return Math.max(0, quantity - started - finished);
+    }
+  }
+
+  private static final class Tracked {
+    final String login;
+    final long received;
+    final Map<String, Line> lines = new LinkedHashMap<String, Line>();
+
+    Tracked(String login, long received) {
+      this.login = login;
+      this.received = received;
+    }
+  }
+
+  private static final class Station {
+    double prepMs;
+    double gapMs;
+    long lastStart = 0;
+    // whether units were still waiting after the last start
+    boolean busy = false;
+    int waiting = 0;
+    // lines with units not yet started, in arrival order
+    final LinkedHashSet<Line> queue = new LinkedHashSet<Line>();
+  }
+
+  private final CafeStore delegate;
+  private final OrderRepository orders;
+  private final Items items;
+  private final double alpha;
+  private final double defaultPrepMs;
+  private final double defaultGapMs;
+
+  // guarded by this, orders in arrival order
+  private final Map<Integer, Tracked> tracked =
+      new LinkedHashMap<Integer, Tracked>();
+  private final Map<String, Station> stations = new HashMap<String, Station>();
+  private final Map<String, String> typeOf = new HashMap<String, String>();
+
+  public WaitTimeEstimator(CafeStore delegate) throws SQLException {
+    this.delegate = delegate;
+    this.orders = new Orders();
+    this.items = new Items();
+    this.alpha = Double.parseDouble(System.getProperty("cafe.eta.alpha", "0.2"));
+    this.defaultPrepMs = Integer.getInteger("cafe.eta.prepSeconds", 240) * 1000.0;
+    this.defaultGapMs = Integer.getInteger("cafe.eta.gapSeconds", 60) * 1000.0;
+    reload();
+  }
+
+  /**
+   * @return the store the changes are passed on to
+   */
+  public CafeStore delegate() {
+    return delegate;
+  }
+
+  public UserRepository users() {
+    return delegate.users();
+  }
+
+  public MenuRepository menu() {
+    return delegate.menu();
+  }
+
+  public OrderRepository orders() {
+    return orders;
+  }
+
+  public ItemStatusRepository items() {
+    return items;
+  }
+
+  /**
+   * Rebuilds the backlog from the current orders of the underlying store.
+   * Lines already started are taken to have started at their lastUpdated
+   * time. The learned statistics are kept.
+   *
+   * @throws java.sql.SQLException when failed to read the underlying store
+   */
+  public void reload() throws SQLException {
+    List<Order> current = delegate.orders().current();
+    Map<Order, List<OrderLine>> lines = new LinkedHashMap<Order, List<OrderLine>>();
+    for (Order order : current) {
+      List<OrderLine> orderLines = delegate.items().byOrder(order.orderid());
+      for (OrderLine line : orderLines)
+        typeOf(line.itemName()); // looked up before taking the lock
+      lines.put(order, orderLines);
+    }
+    synchronized (this) {
+      tracked.clear();
+      for (Station station : stations.values()) {
+        station.queue.clear();
+        station.waiting = 0;
+      }
+      for (Map.Entry<Order, List<OrderLine>> entry : lines.entrySet()) {
+        Order order = entry.getKey();
+        tracked.put(order.orderid(), new Tracked(order.login(),
+            order.timeStampRecieved().getTime()));
+        for (OrderLine line : entry.getValue()) {
+          Line tracking = line(order.orderid(), line.itemName(),
+              typeOf.get(line.itemName()));
+          if (tracking == null)
+            continue;
+          tracking.quantity = line.quantity();
+          tracking.started = line.startedQty();
+          tracking.finished = line.finishedQty();
+          if (tracking.started > 0)
+            tracking.lastStart = line.lastUpdated().getTime();
+          queued(tracking);
+        }
+      }
+    }
+  } // end reload
+
+  /**
+   * @return true when the order is tracked, i.e. it is current and not
+   *         all of it is finished
+   */
+  public synchronized boolean knows(int orderid) {
+    return tracked.containsKey(orderid);
+  }
+
+  /**
+   * @return the login that placed a tracked order, or null
+   */
+  public synchronized String loginOf(int orderid) {
+    Tracked order = tracked.get(orderid);
+    return order == null ? null : order.login;
+  }
+
+  /**
+   * @return the estimated time until every item of the order is finished,
+   *         0 when it is, or -1 when the order is not tracked
+   */
+  public synchronized long etaMillis(int orderid) {
+    Tracked order = tracked.get(orderid);
+    if (order == null)
+      return -1;
+    long now = System.currentTimeMillis();
+    long eta = 0;
+    for (Line line : order.lines.values())
+      eta = Math.max(eta, eta(line, now));
+    return eta;
+  }
+
+  /**
+   * Visits the lines of a tracked order with their estimates.
+   *
+   * @return the number of lines visited
+   */
+  public synchronized int forEachLine(int orderid, LineVisitor visitor) {
+    Tracked order = tracked.get(orderid);
+    if (order == null)
+      return 0;
+    long now = System.currentTimeMillis();
+    for (Line line : order.lines.values())
+      visitor.line(line.itemName, line.quantity, line.started, line.finished,
+          eta(line, now));
+    return order.lines.size();
+  }
+
+  /**
+   * @return the number of units of a menu type not yet started
+   */
+  public synchronized int backlog(String type) {
+    Station station = stations.get(type);
+    return station == null ? 0 : station.waiting;
+  }
+
+  /**
+   * @return the estimated time a waiting line has to wait before it is
+   *         finished
+   */
+  private long eta(Line line, long now) {
+    if (line.finished >= line.quantity)
+      return 0;
+    Station station = station(line.type);
+    double eta = 0;
+    int waiting = line.waiting();
+    if (waiting > 0) {
+      int ahead = 0;
+      for (Line other : station.queue) {
+        if (other == line)
+          break;
+        ahead += other.waiting();
+      }
+      eta = (ahead + waiting) * station.gapMs + station.prepMs;
+    }
+    if (line.started > 0)
+      eta = Math.max(eta, line.lastStart + station.prepMs - now);
+    return Math.max(0, Math.round(eta));
+  }
+
+  private Station station(String type) {
+    Station station = stations.get(type);
+    if (station == null) {
+      station = new Station();
+      station.prepMs = defaultPrepMs;
+      station.gapMs = defaultGapMs;
+      stations.put(type, station);
+    }
+    return station;
+  }
+
+  /*
+   * The menu type of an item, looked up once. Items no longer on the menu
+   * are given their own name as type.
+   */
+  private String typeOf(String itemName) throws SQLException {
+    synchronized (this) {
+      String type = typeOf.get(itemName);
+      if (type != null)
+        return type;
+    }
+    MenuItem item = delegate.menu().find(itemName);
+    String type = item != null ? item.type() : itemName;
+    synchronized (this) {
+      typeOf.put(itemName, type);
+    }
+    return type;
+  }
+
+  private Line line(int orderid, String itemName, String type) {
+    Tracked order = tracked.get(orderid);
+    if (order == null)
+      return null;
+    Line line = order.lines.get(itemName);
+    if (line == null) {
+      line = new Line(itemName, type);
+      order.lines.put(itemName, line);
+    }
+    return line;
+  }
+
+  /*
+   * Puts a line at the back of its type's queue when it has units
+   * waiting, or takes it out when it has none.
+   */
+  private void queued(Line line) {
+    Station station = station(line.type);
+    station.waiting = 0;
+    if (line.waiting() > 0)
+      station.queue.add(line);
+    else
+      station.queue.remove(line);
+    for (Line other : station.queue)
+      station.waiting += other.waiting();
+  }
+
+  /*
+   * Applies new unit counts to a line, learning from the units started
+   * and finished.
+   */
+  private void progressed(int orderid, Line line, int started, int finished) {
+    long now = System.currentTimeMillis();
+    Station station = station(line.type);
+    int begun = started + finished - line.started - line.finished;
+    int done = finished - line.finished;
+    if (begun > 0) {
+      if (station.busy && station.lastStart > 0)
+        station.gapMs += alpha * ((now - station.lastStart) / (double) begun
+            - station.gapMs);
+      station.lastStart = now;
+      line.lastStart = now;
+    }
+    if (done > 0 && line.lastStart > 0)
+      station.prepMs += alpha * ((now - line.lastStart) - station.prepMs);
+    line.started = started;
+    line.finished = finished;
+    queued(line);
+    if (begun > 0)
+      station.busy = station.waiting > 0;
+    finishedOrder(orderid);
+  }
+
+  /*
+   * Stops tracking an order once every item of it is finished.
+   */
+  private void finishedOrder(int orderid) {
+    Tracked order = tracked.get(orderid);
+    if (order == null)
+      return;
+    for (Line line : order.lines.values()) {
+      if (line.finished < line.quantity)
+        return;
+    }
+    tracked.remove(orderid);
+  }
+
+  /*
+   * Drops orders received more than a day ago, which are no longer
+   * current.
+   */
+  private void evictOld() {
+    long cutoff = System.currentTimeMillis() - HotOrderStore.DAY_MILLIS;
+    Iterator<Tracked> it = tracked.values().iterator();
+    while (it.hasNext()) {
+      Tracked order = it.next();
+      if (order.received >= cutoff)
+        break;
+      for (Line line : order.lines.values()) {
+        line.quantity = 0;
+        queued(line);
+      }
+      it.remove();
+    }
+  }
+
+  private class Orders implements OrderRepository {
+
+    public int create(String login, Timestamp received, float total)
+        throws SQLException {
+      int orderid = delegate.orders().create(login, received, total);
+      created(orderid, login, received);
+      return orderid;
+    }
+
+    public OrderReceipt create(UUID requestKey, String login,
+        Timestamp received, String itemName, int quantity, String status)
+        throws SQLException {
+      OrderReceipt receipt = delegate.orders().create(requestKey, login,
+          received, itemName, quantity, status);
+      if (receipt != null && !receipt.replayed()) {
+        created(receipt.orderid(), login, received);
+        items.added(receipt.orderid(), itemName, quantity, status);
+      }
+      return receipt;
+    }
+
+    private void created(int orderid, String login, Timestamp received) {
+      synchronized (WaitTimeEstimator.this) {
+        evictOld();
+        tracked.put(orderid, new Tracked(login, received.getTime()));
+      }
+    }
+
+    public Order find(int orderid) throws SQLException {
+      return delegate.orders().find(orderid);
+    }
+
+    public List<Order> recentByLogin(String login, int limit)
+        throws SQLException {
+      return delegate.orders().recentByLogin(login, limit);
+    }
+
+    public List<Order> current() throws SQLException {
+      return delegate.orders().current();
+    }
+
+    public int setTotal(int orderid, float total, int version)
+        throws SQLException {
+      return delegate.orders().setTotal(orderid, total, version);
+    }
+
+    public int setPaid(int orderid, boolean paid, int version)
+        throws SQLException {
+      return delegate.orders().setPaid(orderid, paid, version);
+    }
+  }
+
+  private class Items implements ItemStatusRepository {
+
+    public void add(int orderid, String itemName, int quantity,
+        Timestamp lastUpdated, String status) throws SQLException {
+      delegate.items().add(orderid, itemName, quantity, lastUpdated, status);
+      added(orderid, itemName, quantity, status);
+    }
+
+    public OrderReceipt add(UUID requestKey, int orderid, String itemName,
+        int quantity, Timestamp lastUpdated, String status)
+        throws SQLException {
+      OrderReceipt receipt = delegate.items().add(requestKey, orderid,
+          itemName, quantity, lastUpdated, status);
+      if (receipt != null && !receipt.replayed())
+        added(orderid, itemName, quantity, status);
+      return receipt;
+    }
+
+    private void added(int orderid, String itemName, int quantity,
+        String status) throws SQLException {
+      String type = typeOf(itemName);
+      synchronized (WaitTimeEstimator.this) {
+        Line line = line(orderid, itemName, type);
+        if (line == null)
+          return;
+        line.quantity += quantity;
+        int[] counts = OrderLine.countsOf(status, line.quantity);
+        if (OrderLine.NOT_STARTED.equalsIgnoreCase(status))
+          queued(line);
+        else
+          progressed(orderid, line, counts[0], counts[1]);
+      }
+    }
+
+    public OrderLine find(int orderid, String itemName) throws SQLException {
+      return delegate.items().find(orderid, itemName);
+    }
+
+    public List<OrderLine> byOrder(int orderid) throws SQLException {
+      return delegate.items().byOrder(orderid);
+    }
+
+    public int setStatus(int orderid, String itemName, String status,
+        int version) throws SQLException {
+      int rowCount = delegate.items().setStatus(orderid, itemName, status,
+          version);
+      if (rowCount > 0) {
+        synchronized (WaitTimeEstimator.this) {
+          Tracked order = tracked.get(orderid);
+          Line line = order == null ? null : order.lines.get(itemName);
+          if (line != null) {
+            int[] counts = OrderLine.countsOf(status, line.quantity);
+            progressed(orderid, line, counts[0], counts[1]);
+          }
+        }
+      }
+      return rowCount;
+    }
+
+    public int setProgress(int orderid, String itemName, int startedQty,
+        int finishedQty, int version) throws SQLException {
+      int rowCount = delegate.items().setProgress(orderid, itemName,
+          startedQty, finishedQty, version);
+      if (rowCount > 0) {
+        synchronized (WaitTimeEstimator.this) {
+          Tracked order = tracked.get(orderid);
+          Line line = order == null ? null : order.lines.get(itemName);
+          if (line != null)
+            progressed(orderid, line, startedQty, finishedQty);
+        }
+      }
+      return rowCount;
+    }
+
+    public int setComments(int orderid, String itemName, String comments,
+        int version) throws SQLException {
+      return delegate.items().setComments(orderid, itemName, comments,
+          version);
+    }
+  }
+} // end WaitTimeEstimator
@@ -0,0 +1,76 @@
+import java.io.File;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+
+/**
+ * CacheSnapshot against the test driver: open orders saved with their
+ * fingerprint, restored while the database gives the same one and read
+ * again once it does not, and only Menu and Users needing a ChangeMarker.
+ */
+public class CacheSnapshotTest {
+
+  private static final String TS =
+      new Timestamp(System.currentTimeMillis()).toString();
+
+  public static void main(String[] args) throws Exception {
+    Class.forName("TestDriver");
+    Cafe esql = new Cafe("cafe", "5432", "test", "");
+    File file = File.createTempFile("cafe", ".snapshot");
+    file.delete();
+    try {
+      savesAndRestores(esql, file);
+    } finally {
+      file.delete();
+    }
+    esql.cleanup();
+    System.out.println("CacheSnapshotTest passed");
+  } // end main
+
+  // the database: two markers, one open order with a line, and the
+  // fingerprint of the open orders
+  private static void database(String fingerprint) {
+    TestDriver.results = sql -> {
+      if (sql.contains("FROM ChangeMarker"))
+        return new String[][] { { "menu", "4" }, { "users", "9" } };
+      if (sql.contains("hashtext("))
+        return new String[][] { { "1", fingerprint } };
+      if (sql.contains("FROM Orders WHERE paid=false"))
+        return new String[][] { { "7", "ann", "f", TS, "3.5", "1" } };
+      if (sql.contains("FROM ItemStatus WHERE orderid='7'"))
+        return new String[][] { { "7", "Latte", TS, "Hasn't Started", "", "1",
+            "0", "0", "3.5", "0" } };
+      return new String[0][];
+    };
+  }
+
+  private static void savesAndRestores(Cafe esql, File file)
+      throws SQLException {
+    TestDriver.reset();
+    database("12345");
+    CacheSnapshot snapshot = CacheSnapshot.open(file, esql);
+    CachingStore store = (CachingStore) snapshot.wrap(new JdbcStore(esql));
+    HotOrderStore hot = (HotOrderStore) store.delegate();
+    Check.that(hot.open().contains(7), "open orders read on a cold start");
+    snapshot.save();
+    Check.that(file.length() > 0, "snapshot written");
+
+    TestDriver.reset();
+    database("12345");
+    snapshot = CacheSnapshot.open(file, esql);
+    hot = (HotOrderStore) ((CachingStore) snapshot.wrap(new JdbcStore(esql)))
+        .delegate();
+    Check.that(hot.open().contains(7), "open orders restored");
+    Check.that(TestDriver.logged("FROM Orders WHERE paid=false").isEmpty(),
+        "restored orders not read again");
+    String asked = TestDriver.logged("hashtext(").get(0);
+    Check.that(asked.contains("timeStampRecieved >= '"),
+        "fingerprint of the orders saved: " + asked);
+
+    TestDriver.reset();
+    database("54321");
+    snapshot = CacheSnapshot.open(file, esql);
+    snapshot.wrap(new JdbcStore(esql));
+    Check.equal(1, TestDriver.logged("FROM Orders WHERE paid=false").size(),
+        "orders read again once changed");
+  } // end savesAndRestores
+} // end CacheSnapshotTest
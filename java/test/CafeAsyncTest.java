@@ -0,0 +1,78 @@
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletionException;
+
+/**
+ * CafeAsync against the test driver: items added to an order through the
+ * store's single statement, a paid order left untouched, and an order
+ * sent again under its key after the connection was lost placed once.
+ */
+public class CafeAsyncTest {
+
+  public static void main(String[] args) throws Exception {
+    Class.forName("TestDriver");
+    Cafe esql = new Cafe("cafe", "5432", "test", "");
+    CafeAsync cafe = new CafeAsync(new CafePool(esql, 2), 16, 5000);
+    addsItems(cafe);
+    placesOnce(cafe);
+    cafe.close();
+    esql.cleanup();
+    System.out.println("CafeAsyncTest passed");
+  } // end main
+
+  private static void addsItems(CafeAsync cafe) {
+    TestDriver.reset();
+    TestDriver.results = sql -> sql.contains("FROM OrderRequestKeys")
+        ? new String[][] { { "7", "10.5" } } : new String[0][];
+    Check.equal(10.5f, cafe.addItem(7, "Latte", 3).join(), "new total");
+    Check.equal(1, TestDriver.logged("INSERT INTO ItemStatus").size(),
+        "units and total added by one statement");
+
+    // a paid order matches nothing; its total must not be raised either
+    TestDriver.reset();
+    TestDriver.counts = sql -> 0;
+    try {
+      cafe.addItem(7, "Latte", 3).join();
+      throw new AssertionError("item added to a paid order");
+    } catch (CompletionException e) {
+      Check.that(e.getCause().getMessage().contains("already paid"),
+          "paid order reported: " + e.getCause().getMessage());
+    }
+    for (String sql : TestDriver.logged("UPDATE Orders"))
+      Check.that(sql.contains("O.paid = false"),
+          "total raised only for an unpaid order: " + sql);
+  } // end addsItems
+
+  private static void placesOnce(CafeAsync cafe) {
+    TestDriver.reset();
+    UUID key = UUID.randomUUID();
+    // the database remembers the key the first time it is inserted
+    int[] stored = { 0 };
+    TestDriver.counts = sql -> sql.contains("INSERT INTO OrderRequestKeys")
+        && stored[0]++ > 0 ? 0 : 1;
+    // the connection is lost after the first order was committed, while
+    // its receipt is read
+    int[] receipts = { 0 };
+    TestDriver.results = sql -> {
+      if (sql.contains("nextval('orders_orderid_seq')"))
+        return new String[][] { { "41" }, { "42" }, { "43" } };
+      if (sql.contains("FROM OrderRequestKeys"))
+        return receipts[0]++ == 0 ? new String[][] { null }
+            : new String[][] { { "41", "3.5" } };
+      return new String[0][];
+    };
+    int[] connects = { 0 };
+    TestDriver.fail = sql -> sql.endsWith(" CONNECT") && connects[0]++ < 0;
+
+    List<String> items = List.of("Latte");
+    Check.equal(41, cafe.placeOrder(key, "ann", items).join(),
+        "order of the first try");
+    Check.equal(1, connects[0], "connection opened again");
+    Check.equal(41, cafe.placeOrder(key, "ann", items).join(),
+        "order of the repeated request");
+    List<String> sent = TestDriver.logged("INSERT INTO OrderRequestKeys");
+    Check.equal(3, sent.size(), "order sent three times");
+    for (String sql : sent)
+      Check.that(sql.contains(key.toString()), "same key sent: " + sql);
+  } // end placesOnce
+} // end CafeAsyncTest
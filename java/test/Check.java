@@ -0,0 +1,22 @@
+import java.util.Objects;
+
+/**
+ * The assertions of the tests. A failed check throws an AssertionError,
+ * which ends the test's main with a non-zero exit status.
+ */
+public final class Check {
+
+  private Check() {
+  }
+
+  public static void that(boolean condition, String what) {
+    if (!condition)
+      throw new AssertionError(what);
+  }
+
+  public static void equal(Object expected, Object actual, String what) {
+    if (!Objects.equals(expected, actual))
+      throw new AssertionError(what + ": expected " + expected + " but was "
+          + actual);
+  }
+} // end Check
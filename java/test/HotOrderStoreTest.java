@@ -0,0 +1,132 @@
+import java.lang.reflect.Proxy;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.List;
+
+/**
+ * HotOrderStore over an InMemoryStore written to directly, as another
+ * process would: orders placed and paid elsewhere picked up by reload()
+ * and by the background refresh, changes made through the store while a
+ * reload was reading kept, and symbols of orders gone dropped.
+ */
+public class HotOrderStoreTest {
+
+  private static final Timestamp NOW = new Timestamp(System.currentTimeMillis());
+
+  public static void main(String[] args) throws Exception {
+    reloads();
+    keepsOwnChanges();
+    dropsSymbols();
+    refreshes();
+    System.out.println("HotOrderStoreTest passed");
+  } // end main
+
+  private static InMemoryStore store() throws SQLException {
+    InMemoryStore store = new InMemoryStore();
+    store.menu().add(new MenuItem("Latte", "Drinks", 3.5f, "", ""));
+    store.users().create(new UserAccount("ann", "555-0100", "pw", "",
+        UserAccount.CUSTOMER));
+    return store;
+  }
+
+  private static void reloads() throws SQLException {
+    InMemoryStore other = store();
+    int paidElsewhere = other.orders().create("ann", NOW, 0f);
+    HotOrderStore hot = new HotOrderStore(other);
+    Check.that(hot.open().contains(paidElsewhere), "warmed on creation");
+
+    int placedElsewhere = other.orders().create("ann", NOW, 0f);
+    other.items().add(placedElsewhere, "Latte", 2, NOW, OrderLine.NOT_STARTED);
+    other.orders().setPaid(paidElsewhere, true, Order.ANY_VERSION);
+    Check.that(!hot.open().contains(placedElsewhere), "not seen before reload");
+    hot.reload();
+    Check.that(hot.open().contains(placedElsewhere), "placed elsewhere seen");
+    Check.that(!hot.open().contains(paidElsewhere), "paid elsewhere dropped");
+    int[] quantity = { 0 };
+    hot.open().forEachLine(placedElsewhere,
+        (o, itemName, status, q, started, finished, updated) -> quantity[0] = q);
+    Check.equal(2, quantity[0], "lines read with the order");
+  } // end reloads
+
+  private static void keepsOwnChanges() throws SQLException {
+    InMemoryStore other = store();
+    HotOrderStore hot = new HotOrderStore(other);
+    int paid = hot.orders().create("ann", NOW, 0f);
+    int[] placed = { 0 };
+    // a source that sees the store before this process's writes below
+    CafeStore before = new CafeStore() {
+      public UserRepository users() {
+        return other.users();
+      }
+
+      public MenuRepository menu() {
+        return other.menu();
+      }
+
+      public OrderRepository orders() {
+        try {
+          List<Order> current = other.orders().current();
+          placed[0] = hot.orders().create("ann", NOW, 0f);
+          hot.orders().setPaid(paid, true, Order.ANY_VERSION);
+          return proxyCurrent(other.orders(), current);
+        } catch (SQLException e) {
+          throw new RuntimeException(e);
+        }
+      }
+
+      public ItemStatusRepository items() {
+        return other.items();
+      }
+    };
+    hot.reload(before);
+    Check.that(hot.open().contains(placed[0]), "order placed during the reload kept");
+    Check.that(!hot.open().contains(paid), "order paid during the reload stays out");
+  } // end keepsOwnChanges
+
+  // orders answering current() with rows read earlier
+  private static OrderRepository proxyCurrent(OrderRepository orders,
+      List<Order> current) {
+    return (OrderRepository) Proxy.newProxyInstance(
+        OrderRepository.class.getClassLoader(),
+        new Class<?>[] { OrderRepository.class }, (proxy, method, args) -> {
+          if (method.getName().equals("current"))
+            return current;
+          return method.invoke(orders, args);
+        });
+  }
+
+  private static void dropsSymbols() throws SQLException {
+    InMemoryStore other = store();
+    HotOrderStore hot = new HotOrderStore(other);
+    for (int i = 0; i < 50; i++) {
+      String login = "guest" + i;
+      other.users().create(new UserAccount(login, "555-1" + i, "pw", "",
+          UserAccount.CUSTOMER));
+      int orderid = hot.orders().create(login, NOW, 0f);
+      hot.orders().setPaid(orderid, true, Order.ANY_VERSION);
+    }
+    Check.that(hot.open().symbolCount() >= 50, "symbols of paid orders kept");
+    hot.orders().create("ann", NOW, 0f);
+    hot.reload();
+    Check.equal(1, hot.open().symbolCount(), "symbols after reload");
+    Check.equal(1, hot.open().size(), "orders after reload");
+  } // end dropsSymbols
+
+  private static void refreshes() throws Exception {
+    InMemoryStore other = store();
+    HotOrderStore hot = new HotOrderStore(other);
+    System.setProperty("cafe.hotOrders.refreshSeconds", "1");
+    try {
+      hot.refresh(other);
+    } finally {
+      System.clearProperty("cafe.hotOrders.refreshSeconds");
+    }
+    int orderid = other.orders().create("ann", NOW, 0f);
+    long deadline = System.currentTimeMillis() + 5000;
+    while (!hot.open().contains(orderid)
+        && System.currentTimeMillis() < deadline)
+      Thread.sleep(50);
+    hot.stop();
+    Check.that(hot.open().contains(orderid), "refreshed in the background");
+  } // end refreshes
+} // end HotOrderStoreTest
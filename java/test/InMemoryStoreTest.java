@@ -0,0 +1,224 @@
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * InMemoryStore: the schema's constraints, versioned updates, and the
+ * cost of the order operations. The timed part runs cafe.test.ops
+ * (default 200000) operations of each kind on cafe.test.threads (default
+ * 4) threads after a warm-up, prints the mean time per operation in
+ * microseconds and fails when one is slower than cafe.test.maxMicros
+ * (default 50), which only a lock or allocation regression gets near.
+ */
+public class InMemoryStoreTest {
+
+  private static final Timestamp NOW = new Timestamp(System.currentTimeMillis());
+
+  public static void main(String[] args) throws Exception {
+    constraints();
+    versions();
+    requestKeys();
+    benchmark();
+    System.out.println("InMemoryStoreTest passed");
+  } // end main
+
+  private static InMemoryStore store() throws SQLException {
+    InMemoryStore store = new InMemoryStore();
+    store.menu().add(new MenuItem("Latte", "Drinks", 3.5f, "", ""));
+    store.menu().add(new MenuItem("Scone", "Food", 2.25f, "", ""));
+    store.users().create(new UserAccount("ann", "555-0100", "pw", "",
+        UserAccount.CUSTOMER));
+    return store;
+  }
+
+  private static void constraints() throws SQLException {
+    InMemoryStore store = store();
+    try {
+      store.users().create(new UserAccount("bob", "555-0100", "pw", "",
+          UserAccount.CUSTOMER));
+      throw new AssertionError("duplicate phone number accepted");
+    } catch (SQLException e) {
+      // expected
+    }
+    int orderid = store.orders().create("ann", NOW, 0f);
+    Check.equal(1, orderid, "first order id");
+    try {
+      store.items().add(orderid, "Muffin", 1, NOW, OrderLine.NOT_STARTED);
+      throw new AssertionError("item not on the menu accepted");
+    } catch (SQLException e) {
+      // expected
+    }
+    try {
+      store.items().add(orderid + 1, "Latte", 1, NOW, OrderLine.NOT_STARTED);
+      throw new AssertionError("line of a missing order accepted");
+    } catch (SQLException e) {
+      // expected
+    }
+    store.items().add(orderid, "Latte", 2, NOW, OrderLine.NOT_STARTED);
+    store.items().add(orderid, "Latte", 1, NOW, OrderLine.NOT_STARTED);
+    OrderLine line = store.items().find(orderid, "Latte");
+    Check.equal(3, line.quantity(), "quantities of one item are merged");
+    Check.equal(3.5f, line.unitPrice(), "unit price kept with the line");
+    try {
+      store.menu().delete("Latte");
+      throw new AssertionError("ordered item deleted");
+    } catch (SQLException e) {
+      // expected
+    }
+    Check.equal(1, store.menu().delete("Scone"), "unordered item deleted");
+  } // end constraints
+
+  private static void versions() throws SQLException {
+    InMemoryStore store = store();
+    int orderid = store.orders().create("ann", NOW, 0f);
+    Order order = store.orders().find(orderid);
+    Check.equal(1, store.orders().setTotal(orderid, 3.5f, order.version()),
+        "update at the version read");
+    Check.equal(0, store.orders().setTotal(orderid, 7f, order.version()),
+        "update at an old version");
+    Check.equal(3.5f, store.orders().find(orderid).total(), "total kept");
+    Check.equal(1, store.orders().setPaid(orderid, true, OrderLine.ANY_VERSION),
+        "unconditional update");
+    Check.that(store.orders().current().isEmpty(), "paid order is not current");
+
+    int other = store.orders().create("ann", NOW, 0f);
+    store.items().add(other, "Latte", 2, NOW, OrderLine.NOT_STARTED);
+    OrderLine line = store.items().find(other, "Latte");
+    Check.equal(1, store.items().setProgress(other, "Latte", 1, 1,
+        line.version()), "progress at the version read");
+    Check.equal(0, store.items().setProgress(other, "Latte", 0, 2,
+        line.version()), "progress at an old version");
+    line = store.items().find(other, "Latte");
+    Check.equal(OrderLine.statusOf(2, 1, 1), line.status(), "status follows counts");
+    try {
+      store.items().setProgress(other, "Latte", 2, 1, line.version());
+      throw new AssertionError("counts over the quantity accepted");
+    } catch (SQLException e) {
+      // expected, not a version conflict
+    }
+    Check.equal(line, store.items().find(other, "Latte"),
+        "line kept after bad counts");
+    List<Order> recent = store.orders().recentByLogin("ann", 5);
+    Check.equal(other, recent.get(0).orderid(), "newest order first");
+  } // end versions
+
+  private static void requestKeys() throws SQLException {
+    InMemoryStore store = store();
+    UUID orderKey = UUID.randomUUID();
+    OrderReceipt placed = store.orders().create(orderKey, "ann", NOW, "Latte",
+        2, OrderLine.NOT_STARTED);
+    OrderReceipt again = store.orders().create(orderKey, "ann", NOW, "Latte",
+        2, OrderLine.NOT_STARTED);
+    Check.that(!placed.replayed() && again.replayed(), "second create replayed");
+    Check.equal(placed.orderid(), again.orderid(), "replayed order id");
+    Check.equal(7f, placed.total(), "order charged for its first line");
+    Check.equal(7f, store.orders().find(placed.orderid()).total(),
+        "order total written with the line");
+    Check.equal(2, store.items().find(placed.orderid(), "Latte").quantity(),
+        "first line written with the order");
+    Check.equal(1, store.orders().recentByLogin("ann", 5).size(),
+        "one order for one key");
+
+    UUID unknownKey = UUID.randomUUID();
+    Check.that(store.orders().create(unknownKey, "ann", NOW, "Muffin", 1,
+        OrderLine.NOT_STARTED) == null, "order of an item not on the menu");
+    Check.equal(1, store.orders().recentByLogin("ann", 5).size(),
+        "no order without its line");
+    store.menu().add(new MenuItem("Muffin", "Food", 2f, "", ""));
+    Check.that(!store.orders().create(unknownKey, "ann", NOW, "Muffin", 1,
+        OrderLine.NOT_STARTED).replayed(), "key of a refused order unused");
+
+    UUID itemKey = UUID.randomUUID();
+    store.items().add(itemKey, placed.orderid(), "Latte", 1, NOW,
+        OrderLine.NOT_STARTED);
+    OrderReceipt added = store.items().add(itemKey, placed.orderid(), "Latte",
+        1, NOW, OrderLine.NOT_STARTED);
+    Check.that(added.replayed(), "second add replayed");
+    Check.equal(3, store.items().find(placed.orderid(), "Latte").quantity(),
+        "units added once for one key");
+
+    Check.equal(0, store.expireRequestKeys(System.currentTimeMillis()
+        - OrderReceipt.ttlMillis()), "keys expired before their time");
+    Check.equal(3, store.expireRequestKeys(System.currentTimeMillis() + 1),
+        "keys expired");
+    Check.that(!store.items().add(itemKey, placed.orderid(), "Latte", 1, NOW,
+        OrderLine.NOT_STARTED).replayed(), "expired key used again");
+  } // end requestKeys
+
+  private interface Operation {
+    void run(InMemoryStore store, int i) throws SQLException;
+  }
+
+  private static void benchmark() throws Exception {
+    int ops = Integer.getInteger("cafe.test.ops", 200000);
+    int threads = Integer.getInteger("cafe.test.threads", 4);
+    long maxMicros = Long.getLong("cafe.test.maxMicros", 50);
+    InMemoryStore store = store();
+    List<String> slow = new ArrayList<String>();
+    String[] names = { "create", "find", "add item", "set progress",
+        "keyed order" };
+    Operation[] operations = {
+      (s, i) -> s.orders().create("ann", NOW, 0f),
+      (s, i) -> s.orders().find(1 + i % ops),
+      (s, i) -> s.items().add(1 + i % ops, "Latte", 1, NOW,
+          OrderLine.NOT_STARTED),
+      (s, i) -> s.items().setProgress(1 + i % ops, "Latte", 1, 0,
+          OrderLine.ANY_VERSION),
+      (s, i) -> s.orders().create(UUID.randomUUID(), "ann", NOW, "Latte", 1,
+          OrderLine.NOT_STARTED) };
+    // warm up with the orders the other operations work on
+    time(store, operations[0], ops, threads);
+    for (int k = 1; k < operations.length; k++)
+      time(store, operations[k], ops, threads);
+    for (int k = 0; k < operations.length; k++) {
+      double micros = time(store, operations[k], ops, threads);
+      System.out.printf("%-14s %8.3f us/op (%d threads)\n", names[k], micros,
+          threads);
+      if (micros > maxMicros)
+        slow.add(names[k]);
+    }
+    Check.that(slow.isEmpty(), "slower than " + maxMicros + " us/op: " + slow);
+  } // end benchmark
+
+  /*
+   * Runs ops operations spread over threads.
+   *
+   * @return the mean time one operation took on its thread, in
+   *         microseconds
+   */
+  private static double time(InMemoryStore store, Operation operation,
+      int ops, int threads) throws Exception {
+    CountDownLatch start = new CountDownLatch(1);
+    AtomicLong nanos = new AtomicLong();
+    List<Thread> workers = new ArrayList<Thread>();
+    List<Throwable> failures = new ArrayList<Throwable>();
+    for (int t = 0; t < threads; t++) {
+      int first = t;
+      Thread worker = new Thread(() -> {
+        try {
+          start.await();
+          long started = System.nanoTime();
+          for (int i = first; i < ops; i += threads)
+            operation.run(store, i);
+          nanos.addAndGet(System.nanoTime() - started);
+        } catch (Throwable e) {
+          synchronized (failures) {
+            failures.add(e);
+          }
+        }
+      });
+      worker.start();
+      workers.add(worker);
+    }
+    start.countDown();
+    for (Thread worker : workers)
+      worker.join();
+    if (!failures.isEmpty())
+      throw new AssertionError("operation failed", failures.get(0));
+    return nanos.get() / 1000.0 / ops;
+  } // end time
+} // end InMemoryStoreTest
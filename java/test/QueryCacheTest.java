@@ -0,0 +1,40 @@
+import java.sql.Timestamp;
+
+/**
+ * QueryCache behind Cafe and the test driver: the lines of an order read
+ * through the AllItemStatus view served from the cache, and read again
+ * once ItemStatus is written.
+ */
+public class QueryCacheTest {
+
+  private static final String TS =
+      new Timestamp(System.currentTimeMillis()).toString();
+
+  public static void main(String[] args) throws Exception {
+    // read when Cafe is loaded, so set before anything touches it
+    System.setProperty("cafe.queryCache", "true");
+    Class.forName("TestDriver");
+    Cafe esql = new Cafe("cafe", "5432", "test", "");
+    invalidatesViews(esql);
+    esql.cleanup();
+    System.out.println("QueryCacheTest passed");
+  } // end main
+
+  private static void invalidatesViews(Cafe esql) throws Exception {
+    TestDriver.reset();
+    TestDriver.results = sql -> sql.contains("FROM AllItemStatus")
+        ? new String[][] { { "7", "Latte", TS, "Hasn't Started", "", "1", "0",
+            "0", "3.5", "0" } }
+        : new String[0][];
+    JdbcStore store = new JdbcStore(esql);
+    store.items().byOrder(7);
+    Check.equal(1, store.items().byOrder(7).size(), "lines of the order");
+    Check.equal(1, TestDriver.logged("FROM AllItemStatus").size(),
+        "second read served from the cache");
+
+    store.items().setStatus(7, "Latte", "Started", OrderLine.ANY_VERSION);
+    store.items().byOrder(7);
+    Check.equal(2, TestDriver.logged("FROM AllItemStatus").size(),
+        "read again after an ItemStatus write");
+  } // end invalidatesViews
+} // end QueryCacheTest
@@ -0,0 +1,155 @@
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ReadRouter.pick against the test driver: replicas in turn, lagging and
+ * failed replicas skipped, reads after a write kept on the primary until
+ * a replica has replayed the write, and replica failures part way through
+ * a printed result.
+ */
+public class ReadRouterTest {
+
+  private static final String PRIMARY = "jdbc:postgresql://localhost:5432/";
+  private static final String REPLICA_1 = "jdbc:postgresql://localhost:5433/";
+  private static final String REPLICA_2 = "jdbc:postgresql://localhost:5434/";
+
+  public static void main(String[] args) throws Exception {
+    Class.forName("TestDriver");
+    System.setProperty("cafe.replica.maxLagMs", "5000");
+    System.setProperty("cafe.replica.retryMs", "60000");
+    Cafe primary = new Cafe("cafe", "5432", "test", "");
+    List<Cafe> replicas = new ArrayList<Cafe>();
+    replicas.add(new Cafe("cafe", "5433", "test", ""));
+    replicas.add(new Cafe("cafe", "5434", "test", ""));
+    roundRobin(primary, replicas);
+    skipsLagging(primary, replicas);
+    skipsFailed(primary, replicas);
+    readsOwnWrites(primary, replicas);
+    printsOnce();
+    System.out.println("ReadRouterTest passed");
+  } // end main
+
+  // replicas answer with lag, caught up position and a result row
+  private static void replicas(String lagging, String behind) {
+    TestDriver.results = sql -> {
+      if (sql.contains("pg_current_wal_lsn()"))
+        return new String[][] { { "0/16B3748" } };
+      if (sql.contains("pg_last_xact_replay_timestamp()"))
+        return new String[][] { { lagging != null && sql.startsWith(lagging)
+            ? "9000" : "0" } };
+      if (sql.contains("pg_last_wal_replay_lsn() >="))
+        return new String[][] { { behind != null && sql.startsWith(behind)
+            ? "f" : "t" } };
+      return new String[][] { { sql.substring(0, sql.indexOf(' ')) } };
+    };
+  }
+
+  private static void roundRobin(Cafe primary, List<Cafe> replicas) {
+    TestDriver.reset();
+    replicas(null, null);
+    ReadRouter router = new ReadRouter(primary, replicas);
+    Check.that(router.pick() == replicas.get(0), "first replica first");
+    Check.that(router.pick() == replicas.get(1), "second replica next");
+    Check.that(router.pick() == replicas.get(0), "back to the first");
+    Check.that(TestDriver.logged(PRIMARY).isEmpty(),
+        "primary queried without a write");
+  }
+
+  private static void skipsLagging(Cafe primary, List<Cafe> replicas) {
+    TestDriver.reset();
+    replicas(REPLICA_1, null);
+    ReadRouter router = new ReadRouter(primary, replicas);
+    for (int i = 0; i < 3; i++)
+      Check.that(router.pick() == replicas.get(1), "lagging replica skipped");
+    // the lag is checked at most once a second per replica
+    Check.equal(1, TestDriver.logged(REPLICA_1).size(), "lag checks of replica 1");
+
+    TestDriver.reset();
+    replicas(REPLICA_1, null);
+    TestDriver.results = sql -> new String[][] { { "9000" } };
+    router = new ReadRouter(primary, replicas);
+    Check.that(router.pick() == primary, "primary when every replica lags");
+  }
+
+  private static void skipsFailed(Cafe primary, List<Cafe> replicas) {
+    TestDriver.reset();
+    replicas(null, null);
+    TestDriver.fail = sql -> sql.startsWith(REPLICA_2);
+    ReadRouter router = new ReadRouter(primary, replicas);
+    Check.that(router.pick() == replicas.get(0), "healthy replica picked");
+    Check.that(router.pick() == replicas.get(0), "failing replica skipped");
+    TestDriver.fail = sql -> false;
+    Check.that(router.pick() == replicas.get(0),
+        "failed replica left alone for the retry period");
+
+    router.failed(replicas.get(0));
+    Check.that(router.pick() == primary, "primary when every replica failed");
+  }
+
+  private static void readsOwnWrites(Cafe primary, List<Cafe> replicas) {
+    TestDriver.reset();
+    replicas(null, REPLICA_1);
+    ReadRouter router = new ReadRouter(primary, replicas);
+    router.wrote();
+    Check.that(router.pick() == replicas.get(1), "caught up replica after a write");
+    Check.that(router.pick() == replicas.get(1), "replica behind the write skipped");
+    Check.equal(1, TestDriver.logged(PRIMARY).size(),
+        "write position read once per write");
+    List<String> waits = TestDriver.logged("pg_last_wal_replay_lsn() >=");
+    Check.that(waits.get(0).contains("'0/16B3748'::pg_lsn"),
+        "replica compared to the write position: " + waits.get(0));
+
+    // once caught up a replica is not asked again until the next write
+    replicas(null, null);
+    Check.that(router.pick() == replicas.get(0), "replica caught up later");
+    int asked = TestDriver.logged("pg_last_wal_replay_lsn() >=").size();
+    router.pick();
+    router.pick();
+    Check.equal(asked, TestDriver.logged("pg_last_wal_replay_lsn() >=").size(),
+        "confirmed replicas asked again");
+
+    TestDriver.reset();
+    replicas(null, null);
+    TestDriver.fail = sql -> sql.startsWith(PRIMARY);
+    router = new ReadRouter(primary, replicas);
+    router.wrote();
+    Check.that(router.pick() == primary,
+        "primary when the write position is unknown");
+  } // end readsOwnWrites
+
+  private static void printsOnce() throws Exception {
+    TestDriver.reset();
+    System.setProperty("cafe.replicas", "localhost:5433");
+    Cafe esql;
+    try {
+      esql = new Cafe("cafe", "5432", "test", "");
+    } finally {
+      System.clearProperty("cafe.replicas");
+    }
+    String query = "SELECT itemName FROM Menu";
+    TestDriver.results = sql -> {
+      if (sql.contains("pg_last_xact_replay_timestamp()"))
+        return new String[][] { { "0" } };
+      if (sql.startsWith(REPLICA_1))
+        return new String[][] { { "Replica Latte" }, null };
+      return new String[][] { { "Latte" }, { "Scone" } };
+    };
+    PrintStream console = System.out;
+    ByteArrayOutputStream printed = new ByteArrayOutputStream();
+    int rows;
+    System.setOut(new PrintStream(printed, true));
+    try {
+      rows = esql.executeReadQueryAndPrintResult(query);
+    } finally {
+      System.setOut(console);
+    }
+    Check.equal(2, rows, "rows of the primary");
+    Check.equal("c1\t\nLatte\t\nScone\t\n",
+        printed.toString().replace("\r", ""), "printed rows");
+    Check.equal(1, TestDriver.logged(REPLICA_1 + "cafe " + query).size(),
+        "query tried on the replica");
+    esql.cleanup();
+  } // end printsOnce
+} // end ReadRouterTest
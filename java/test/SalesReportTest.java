@@ -0,0 +1,84 @@
+import java.util.List;
+
+/**
+ * SalesReport against the test driver: days checked before they go into
+ * a query, the striped rollups added up by the reports, and archived
+ * orders counted in the chain's figures per store.
+ */
+public class SalesReportTest {
+
+  public static void main(String[] args) throws Exception {
+    Class.forName("TestDriver");
+    Cafe esql = new Cafe("cafe", "5432", "test", "");
+    checksDays(esql);
+    addsStripes(esql);
+    esql.cleanup();
+    countsArchived();
+    System.out.println("SalesReportTest passed");
+  } // end main
+
+  private static void checksDays(Cafe esql) throws Exception {
+    TestDriver.reset();
+    Check.equal("2026-10-01", SalesReport.day(" 2026-10-01 ").toString(),
+        "day read");
+    String[] bad = { "2026-10-01' OR '1'='1", "2026-13-01", "", null };
+    for (String day : bad) {
+      try {
+        SalesReport.revenueByHour(esql, day);
+        throw new AssertionError("report of day " + day);
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+      try {
+        SalesReport.revenueByDay(esql, "2026-10-01", day);
+        throw new AssertionError("report up to day " + day);
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+    }
+    Check.that(TestDriver.log.isEmpty(), "no query with a bad day");
+    SalesReport.revenueByDay(esql, "2026-10-01", "2026-10-07");
+    Check.equal(1, TestDriver.logged("BETWEEN '2026-10-01' AND '2026-10-07'")
+        .size(), "days in the query");
+  } // end checksDays
+
+  private static void addsStripes(Cafe esql) throws Exception {
+    TestDriver.reset();
+    TestDriver.results = sql -> new String[][] {
+      { "12", "30", "99.50", "2.50", "1", "4.00" } };
+    List<String> summary = SalesReport.summary(esql);
+    Check.equal("12", summary.get(0), "orders");
+    String asked = TestDriver.logged("FROM SalesTotals").get(0);
+    Check.that(asked.contains("sum(orders)") && !asked.contains("WHERE"),
+        "totals added up over the stripes: " + asked);
+    SalesReport.revenueByHour(esql, "2026-10-01");
+    Check.that(TestDriver.logged("GROUP BY hour").size() == 1,
+        "hours added up over the stripes");
+  } // end addsStripes
+
+  private static void countsArchived() throws Exception {
+    TestDriver.reset();
+    System.setProperty("cafe.shards", "1=localhost:5432/cafe,2=h2:2/b");
+    Cafe esql;
+    try {
+      esql = new Cafe("cafe", "5432", "test", "");
+    } finally {
+      System.clearProperty("cafe.shards");
+    }
+    // store 2 has 3 live orders and 2 archived ones in the range
+    TestDriver.results = sql -> {
+      if (!sql.startsWith("jdbc:postgresql://h2:2/b "))
+        return new String[0][];
+      return sql.contains("FROM AllOrders")
+          ? new String[][] { { "2", "5", "20.00" } }
+          : new String[][] { { "2", "3", "12.00" } };
+    };
+    List<SalesReport.ChainRow> stores =
+        SalesReport.chainByStore(esql, "2026-07-01", "2026-09-30");
+    Check.equal(1, stores.size(), "stores reported");
+    Check.equal(5L, stores.get(0).count(), "archived orders counted");
+    Check.equal("20.00", stores.get(0).revenue().toPlainString(),
+        "archived revenue counted");
+    esql.cleanup();
+  } // end countsArchived
+} // end SalesReportTest
@@ -0,0 +1,148 @@
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * ShardRouter and ShardedStore against the test driver: stores mapped to
+ * their shards, unreachable shards reported, chain reports gathered and
+ * added up over the shards, and orders of other stores found on their
+ * shard.
+ */
+public class ShardRouterTest {
+
+  private static final String H1 = "jdbc:postgresql://h1:1/a";
+  private static final String H2 = "jdbc:postgresql://h2:2/b";
+  private static final String H3 = "jdbc:postgresql://h3:3/cafe";
+  private static final String TS = "2026-10-01 10:00:00";
+
+  public static void main(String[] args) throws Exception {
+    Class.forName("TestDriver");
+    // stores 2 and 3 share a shard; store 4's database is down
+    System.setProperty("cafe.shards", "1=h1:1/a,2=h2:2/b,3=h2:2/b,4=h3:3");
+    System.setProperty("cafe.store.id", "2");
+    TestDriver.fail = sql -> sql.equals(H3 + " CONNECT");
+    Cafe esql = new Cafe("cafe", "5432", "test", "");
+    routes(esql);
+    gathers(esql);
+    chainReports(esql);
+    foreignOrders(esql);
+    esql.cleanup();
+    System.out.println("ShardRouterTest passed");
+  } // end main
+
+  private static void routes(Cafe esql) {
+    ShardRouter router = esql.shards();
+    Check.equal(H2, ShardRouter.homeUrl("cafe"), "home shard URL");
+    Check.equal(H2, esql.url(), "own connection is the home shard");
+    Check.equal(2, router.homeStore(), "home store");
+    Check.equal(Arrays.asList(1, 2, 3), router.stores(), "connected stores");
+    Check.equal(Arrays.asList(4), router.missing(), "unreachable stores");
+    Check.equal(2, router.shards().size(), "distinct shards");
+    Check.that(router.shards().get(0) == esql, "home shard first");
+    Check.that(router.shardOf(3) == esql, "store sharing the home shard");
+    Check.equal(H1, router.shardOf(1).url(), "store 1's shard");
+    Check.that(router.shardOf(4) == null, "unreachable store has no shard");
+    Check.that(router.directory() == router.shardOf(1),
+        "directory defaults to the lowest store's shard");
+  }
+
+  private static void gathers(Cafe esql) throws SQLException {
+    TestDriver.reset();
+    TestDriver.results = sql -> new String[][] {
+      { sql.substring(0, sql.indexOf(' ')) } };
+    List<String> rows = esql.shards().gather("SELECT 1", rs -> rs.getString(1));
+    Check.equal(Arrays.asList(H2, H1), rows, "rows of every shard, home first");
+    Check.equal(1, TestDriver.logged(H1 + " SELECT 1").size(), "asked once");
+
+    TestDriver.fail = sql -> sql.startsWith(H1 + " SELECT");
+    try {
+      esql.shards().gather("SELECT 1", rs -> rs.getString(1));
+      throw new AssertionError("gather passed with a failed shard");
+    } catch (SQLException e) {
+      Check.that(e.getMessage().startsWith(H1 + ": "),
+          "failed shard named: " + e.getMessage());
+    }
+  } // end gathers
+
+  private static void chainReports(Cafe esql) throws SQLException {
+    TestDriver.reset();
+    TestDriver.results = sql -> {
+      boolean h1 = sql.startsWith(H1);
+      if (sql.contains("GROUP BY storeId"))
+        return h1 ? new String[][] { { "1", "10", "40.50" } }
+            : new String[][] { { "3", "1", "1.25" }, { "2", "3", "9.00" } };
+      if (sql.contains("FROM ItemSales"))
+        return h1 ? new String[][] { { "Latte", "5", "17.50" },
+              { "Tea", "1", "2.00" } }
+            : new String[][] { { "Tea", "7", "14.00" } };
+      return new String[0][];
+    };
+    List<SalesReport.ChainRow> stores =
+        SalesReport.chainByStore(esql, "2026-10-01", "2026-10-02");
+    Check.equal(3, stores.size(), "stores reported");
+    Check.equal("1", stores.get(0).key(), "stores by id");
+    Check.equal("3", stores.get(2).key(), "stores by id");
+    Check.equal(3L, stores.get(1).count(), "store 2's orders");
+
+    List<SalesReport.ChainRow> items = SalesReport.chainItemMix(esql);
+    Check.equal(2, items.size(), "items merged over shards");
+    Check.equal("Tea", items.get(0).key(), "best seller first");
+    Check.equal(8L, items.get(0).count(), "units added up");
+    Check.equal("16.00", items.get(0).revenue().toPlainString(),
+        "revenue added up");
+    Check.equal(2, TestDriver.logged("FROM ItemSales").size(),
+        "one query per shard");
+  } // end chainReports
+
+  private static void foreignOrders(Cafe esql) throws SQLException {
+    TestDriver.reset();
+    TestDriver.results = sql -> {
+      boolean h1 = sql.startsWith(H1);
+      if (sql.contains("WHERE orderid='77'"))
+        return h1 ? new String[][] { { "77", "bob", "f", TS, "4.5", "3" } }
+            : new String[0][];
+      if (sql.contains("WHERE login = 'bob'"))
+        return h1
+            ? new String[][] { { "77", "bob", "f", "2026-10-01 10:00:00", "4.5", "3" },
+                { "11", "bob", "t", "2026-09-01 10:00:00", "1.0", "0" } }
+            : new String[][] { { "90", "bob", "f", "2026-10-02 10:00:00", "2.0", "0" } };
+      if (sql.contains("nextval('orders_orderid_seq')"))
+        return new String[][] { { "102" } };
+      return new String[0][];
+    };
+    CafeStore store = esql.store();
+    Check.that(store instanceof ShardedStore, "sharded store");
+    Order order = store.orders().find(77);
+    Check.equal(H1, TestDriver.logged("WHERE orderid='77'").get(1)
+        .substring(0, H1.length()), "order looked for on the other shard");
+    Check.equal("bob", order.login(), "order found on its shard");
+    Check.that(TestDriver.logged("WHERE orderid='77'").get(0)
+        .contains("FROM AllOrders"), "archived orders looked up too");
+    TestDriver.log.clear();
+    store.orders().setPaid(77, true, order.version());
+    Check.equal(1, TestDriver.logged("UPDATE Orders").size(),
+        "located order updated on its shard only");
+    Check.that(TestDriver.logged("UPDATE Orders").get(0).startsWith(H1),
+        "update sent to the order's shard");
+
+    List<Order> recent = store.orders().recentByLogin("bob", 2);
+    Check.equal(2, recent.size(), "history limited");
+    Check.equal(90, recent.get(0).orderid(), "newest order of any shard first");
+    Check.equal(77, recent.get(1).orderid(), "then the next newest");
+    Check.equal(2, TestDriver.logged("FROM AllOrders WHERE login = 'bob'")
+        .size(), "archived history of every shard");
+
+    TestDriver.log.clear();
+    store.orders().create("bob", Timestamp.valueOf(TS), 3f);
+    List<String> inserts = TestDriver.logged("INSERT INTO Orders");
+    Check.equal(1, inserts.size(), "order inserted once");
+    Check.that(inserts.get(0).startsWith(H2), "new order on the home shard");
+
+    TestDriver.log.clear();
+    store.users().setType("bob", UserAccount.EMPLOYEE);
+    List<String> updates = TestDriver.logged("UPDATE Users");
+    Check.equal(2, updates.size(), "user written on every shard");
+    Check.that(updates.get(0).startsWith(H1), "directory written first");
+  } // end foreignOrders
+} // end ShardRouterTest
@@ -0,0 +1,258 @@
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
+import java.util.logging.Logger;
+
+/**
+ * A JDBC driver for jdbc:postgresql: URLs that runs nothing. Every
+ * statement is appended to the log, prefixed by the connection URL, and
+ * answered by the test's functions: results gives the rows of a query
+ * (strings, or null for SQL NULL), counts the rows an update changed, and
+ * a statement fail accepts throws an SQLException. A null row in a
+ * result makes next() throw, as when the connection is lost part way
+ * through the rows. Prepared statements are logged as their text followed
+ * by their parameters.
+ *
+ * Loading the class registers the driver; reset() puts the defaults back
+ * between tests.
+ */
+public class TestDriver implements Driver {
+
+  public static final List<String> log =
+      Collections.synchronizedList(new ArrayList<String>());
+  public static volatile Function<String, String[][]> results;
+  public static volatile ToIntFunction<String> counts;
+  public static volatile Predicate<String> fail;
+
+  static {
+    reset();
+    try {
+      DriverManager.registerDriver(new TestDriver());
+    } catch (SQLException e) {
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+
+  /**
+   * Clears the log; queries return no rows, updates change one row and
+   * nothing fails.
+   */
+  public static void reset() {
+    log.clear();
+    results = sql -> new String[0][];
+    counts = sql -> 1;
+    fail = sql -> false;
+  }
+
+  /**
+   * @return the logged statements containing text, in order
+   */
+  public static List<String> logged(String text) {
+    List<String> found = new ArrayList<String>();
+    synchronized (log) {
+      for (String sql : log) {
+        if (sql.contains(text))
+          found.add(sql);
+      }
+    }
+    return found;
+  }
+
+  /**
+   * Connecting to url fails when fail accepts "url CONNECT".
+   */
+  public Connection connect(String url, Properties info) throws SQLException {
+    if (!acceptsURL(url))
+      return null;
+    if (fail.test(url + " CONNECT"))
+      throw new SQLException("test failure: cannot connect to " + url, "08001");
+    return proxy(Connection.class, connection(url));
+  }
+
+  public boolean acceptsURL(String url) {
+    return url.startsWith("jdbc:postgresql:");
+  }
+
+  public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+    return new DriverPropertyInfo[0];
+  }
+
+  public int getMajorVersion() {
+    return 1;
+  }
+
+  public int getMinorVersion() {
+    return 0;
+  }
+
+  public boolean jdbcCompliant() {
+    return false;
+  }
+
+  public Logger getParentLogger() {
+    return Logger.getGlobal();
+  }
+
+  private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+    return type.cast(Proxy.newProxyInstance(TestDriver.class.getClassLoader(),
+        new Class<?>[] { type }, handler));
+  }
+
+  private static Object zero(Class<?> type) {
+    if (type == boolean.class)
+      return false;
+    if (type == int.class)
+      return 0;
+    if (type == long.class)
+      return 0L;
+    if (type == float.class)
+      return 0f;
+    if (type == double.class)
+      return 0d;
+    return null;
+  }
+
+  private static InvocationHandler connection(String url) {
+    boolean[] autoCommit = { true };
+    return (proxy, method, args) -> {
+      switch (method.getName()) {
+        case "createStatement":
+          return proxy(Statement.class, statement(url, null));
+        case "prepareStatement":
+          return proxy(PreparedStatement.class, statement(url, (String) args[0]));
+        case "getAutoCommit":
+          return autoCommit[0];
+        case "setAutoCommit":
+          autoCommit[0] = (Boolean) args[0];
+          log.add(url + " AUTOCOMMIT " + args[0]);
+          return null;
+        case "commit":
+          log.add(url + " COMMIT");
+          return null;
+        case "rollback":
+          log.add(url + " ROLLBACK");
+          return null;
+        case "isValid":
+          return true;
+        default:
+          return zero(method.getReturnType());
+      }
+    };
+  } // end connection
+
+  private static InvocationHandler statement(String url, String prepared) {
+    List<String> batch = new ArrayList<String>();
+    Map<Integer, Object> parameters = new TreeMap<Integer, Object>();
+    return (proxy, method, args) -> {
+      String name = method.getName();
+      if (name.startsWith("set") && args != null && args.length == 2
+          && args[0] instanceof Integer) {
+        parameters.put((Integer) args[0], args[1]);
+        return null;
+      }
+      switch (name) {
+        case "addBatch":
+          batch.add(args == null ? prepared + " " + parameters : (String) args[0]);
+          return null;
+        case "executeBatch": {
+          int[] changed = new int[batch.size()];
+          for (int i = 0; i < changed.length; i++)
+            changed[i] = update(url + " " + batch.get(i));
+          batch.clear();
+          return changed;
+        }
+        case "execute":
+        case "executeUpdate":
+          return run(name, url + " "
+              + (args == null ? prepared + " " + parameters : (String) args[0]));
+        case "executeQuery": {
+          String sql = url + " "
+              + (args == null ? prepared + " " + parameters : (String) args[0]);
+          log.add(sql);
+          if (fail.test(sql))
+            throw new SQLException("test failure: " + sql, "XX000");
+          return proxy(ResultSet.class, resultSet(results.apply(sql)));
+        }
+        default:
+          return zero(method.getReturnType());
+      }
+    };
+  } // end statement
+
+  private static Object run(String method, String sql) throws SQLException {
+    int changed = update(sql);
+    return method.equals("execute") ? (Object) false : (Object) changed;
+  }
+
+  private static int update(String sql) throws SQLException {
+    log.add(sql);
+    if (fail.test(sql))
+      throw new SQLException("test failure: " + sql, "XX000");
+    return counts.applyAsInt(sql);
+  }
+
+  private static InvocationHandler resultSet(String[][] rows) {
+    int[] row = { -1 };
+    boolean[] wasNull = { false };
+    return (proxy, method, args) -> {
+      String name = method.getName();
+      if (name.equals("next")) {
+        if (++row[0] < rows.length && rows[row[0]] == null)
+          throw new SQLException("test failure: connection lost", "08006");
+        return row[0] < rows.length;
+      }
+      if (name.equals("wasNull"))
+        return wasNull[0];
+      if (name.equals("getMetaData"))
+        return proxy(ResultSetMetaData.class, (p, m, a) -> {
+          if (m.getName().equals("getColumnCount"))
+            return rows.length == 0 || rows[0] == null ? 0 : rows[0].length;
+          if (m.getName().equals("getColumnName"))
+            return "c" + a[0];
+          return zero(m.getReturnType());
+        });
+      if (!name.startsWith("get") || args == null || args.length != 1
+          || !(args[0] instanceof Integer))
+        return zero(method.getReturnType());
+      String value = rows[row[0]][(Integer) args[0] - 1];
+      wasNull[0] = value == null;
+      Class<?> type = method.getReturnType();
+      if (value == null)
+        return zero(type);
+      if (type == int.class)
+        return Integer.parseInt(value.trim());
+      if (type == long.class)
+        return Long.parseLong(value.trim());
+      if (type == float.class)
+        return Float.parseFloat(value.trim());
+      if (type == double.class)
+        return Double.parseDouble(value.trim());
+      if (type == boolean.class)
+        return value.startsWith("t");
+      if (type == BigDecimal.class)
+        return new BigDecimal(value.trim());
+      if (type == Timestamp.class)
+        return Timestamp.valueOf(value.trim());
+      return value;
+    };
+  } // end resultSet
+} // end TestDriver
@@ -0,0 +1,158 @@
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * TotalsChecker against the test driver: chunks cover the orderid range
+ * exactly once, totals are compared in whole cents, and repair mode
+ * batches one guarded update per wrong order.
+ */
+public class TotalsCheckerTest {
+
+  private static final String TS = "2026-10-01 10:00:00";
+
+  public static void main(String[] args) throws Exception {
+    Class.forName("TestDriver");
+    Cafe esql = new Cafe("cafe", "5432", "test", "");
+    chunksCoverRange(esql);
+    reportsMismatches(esql);
+    repairsInBatches(esql);
+    failedChunkFailsCheck(esql);
+    esql.cleanup();
+    System.out.println("TotalsCheckerTest passed");
+  } // end main
+
+  private static void orders() {
+    TestDriver.results = sql -> {
+      if (sql.contains(TotalsChecker.RANGE))
+        return new String[][] { { "1", "25" } };
+      if (sql.contains("O.orderid >= 1 AND"))
+        return new String[][] {
+          { "1", TS, "3.98", "2", "1.99" },
+          // 1.99 + 2.99 is 4.98
+          { "2", TS, "5.0", "1", "1.99" },
+          { "2", TS, "5.0", "1", "2.99" },
+          // no lines
+          { "3", TS, "0.0", null, null },
+          // 0.1f summed three times as floats is 0.30000001
+          { "4", TS, "0.3", "3", "0.1" },
+          { "5", TS, "1.0", "1", "1.5" } };
+      return new String[0][];
+    };
+  }
+
+  private static void chunksCoverRange(Cafe esql) throws Exception {
+    TestDriver.reset();
+    orders();
+    CafePool pool = new CafePool(esql, 3);
+    try {
+      new TotalsChecker(pool, false, 4, 10, new PrintStream(
+          new ByteArrayOutputStream())).check(esql);
+    } finally {
+      pool.close();
+    }
+    List<long[]> chunks = new ArrayList<long[]>();
+    for (String sql : TestDriver.logged("O.orderid >= ")) {
+      String[] words = sql.split(" ");
+      long from = 0;
+      long to = 0;
+      for (int i = 0; i < words.length - 1; i++) {
+        if (words[i].equals(">="))
+          from = Long.parseLong(words[i + 1]);
+        if (words[i].equals("<"))
+          to = Long.parseLong(words[i + 1]);
+      }
+      Check.that(to - from <= 4, "chunk " + from + ".." + to + " too big");
+      chunks.add(new long[] { from, to });
+    }
+    Collections.sort(chunks, (a, b) -> Long.compare(a[0], b[0]));
+    long next = 1;
+    for (long[] chunk : chunks) {
+      Check.equal(next, chunk[0], "chunk start");
+      next = chunk[1];
+    }
+    Check.equal(26L, next, "range end");
+  } // end chunksCoverRange
+
+  private static void reportsMismatches(Cafe esql) throws Exception {
+    TestDriver.reset();
+    orders();
+    ByteArrayOutputStream printed = new ByteArrayOutputStream();
+    CafePool pool = new CafePool(esql, 2);
+    TotalsChecker.Tally tally;
+    try {
+      tally = new TotalsChecker(pool, false, 12, 10, new PrintStream(printed))
+          .check(esql);
+    } finally {
+      pool.close();
+    }
+    Check.equal(5L, tally.orders, "orders checked");
+    Check.equal(2L, tally.mismatched, "orders mismatched");
+    Check.equal(0L, tally.repaired, "report mode repaired");
+    String report = printed.toString();
+    Check.that(report.contains("2\t5.00\t4.98"), "order 2 reported: " + report);
+    Check.that(report.contains("5\t1.00\t1.50"), "order 5 reported: " + report);
+    Check.that(!report.contains("4\t"), "order 4 matches in cents: " + report);
+    Check.that(TestDriver.logged("UPDATE Orders").isEmpty(),
+        "report mode updated orders");
+  } // end reportsMismatches
+
+  private static void repairsInBatches(Cafe esql) throws Exception {
+    TestDriver.reset();
+    orders();
+    CafePool pool = new CafePool(esql, 2);
+    TotalsChecker.Tally tally;
+    try {
+      tally = new TotalsChecker(pool, true, 12, 1, new PrintStream(
+          new ByteArrayOutputStream())).check(esql);
+    } finally {
+      pool.close();
+    }
+    Check.equal(2L, tally.repaired, "orders repaired");
+    List<String> repairs = TestDriver.logged("UPDATE Orders");
+    Check.equal(2, repairs.size(), "repair statements");
+    Check.that(repairs.get(0).contains("SET total = 4.98")
+        && repairs.get(0).contains("orderid = 2")
+        && repairs.get(0).contains("total = '5.0'::real"),
+        "order 2 repair guarded by the total read: " + repairs.get(0));
+    Check.that(repairs.get(1).contains("SET total = 1.50")
+        && repairs.get(1).contains("orderid = 5"),
+        "order 5 repair: " + repairs.get(1));
+    // a batch of one commits after each repair
+    Check.equal(2, TestDriver.logged(" COMMIT").size(), "repair batches");
+
+    // an order changed since it was read is not counted as repaired
+    TestDriver.reset();
+    orders();
+    TestDriver.counts = sql -> sql.contains("orderid = 2") ? 0 : 1;
+    pool = new CafePool(esql, 2);
+    try {
+      tally = new TotalsChecker(pool, true, 12, 10, new PrintStream(
+          new ByteArrayOutputStream())).check(esql);
+    } finally {
+      pool.close();
+    }
+    Check.equal(2L, tally.mismatched, "orders mismatched");
+    Check.equal(1L, tally.repaired, "orders repaired after a lost guard");
+    Check.equal(1, TestDriver.logged(" COMMIT").size(), "one batch of two");
+  } // end repairsInBatches
+
+  private static void failedChunkFailsCheck(Cafe esql) throws Exception {
+    TestDriver.reset();
+    orders();
+    TestDriver.fail = sql -> sql.contains("O.orderid >= 13 AND");
+    CafePool pool = new CafePool(esql, 2);
+    try {
+      new TotalsChecker(pool, false, 12, 10, new PrintStream(
+          new ByteArrayOutputStream())).check(esql);
+      throw new AssertionError("check passed with a failed chunk");
+    } catch (java.sql.SQLException e) {
+      Check.that(e.getMessage().contains("O.orderid >= 13"),
+          "chunk failure surfaced: " + e.getMessage());
+    } finally {
+      pool.close();
+    }
+  } // end failedChunkFailsCheck
+} // end TotalsCheckerTest
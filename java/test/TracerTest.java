@@ -0,0 +1,48 @@
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * Tracer writing to a file through the test driver: statements kept with
+ * their values, except those naming a password, whose literals are left
+ * out of the exported events.
+ */
+public class TracerTest {
+
+  public static void main(String[] args) throws Exception {
+    File file = File.createTempFile("cafe", ".trace");
+    // read when Tracer is loaded, so set before anything touches it
+    System.setProperty("cafe.trace", file.getPath());
+    System.setProperty("cafe.trace.sample", "1");
+    try {
+      Class.forName("TestDriver");
+      Cafe esql = new Cafe("cafe", "5432", "test", "");
+      redactsPasswords(esql, file);
+      esql.cleanup();
+    } finally {
+      file.delete();
+    }
+    System.out.println("TracerTest passed");
+  } // end main
+
+  private static void redactsPasswords(Cafe esql, File file) throws Exception {
+    TestDriver.reset();
+    JdbcStore store = new JdbcStore(esql);
+    Tracer.Span span = Tracer.begin("LogIn");
+    store.users().checkPassword("ann", "s3cret-login");
+    store.users().create(new UserAccount("bob", "555-0101", "s3cret-new", "",
+        UserAccount.CUSTOMER));
+    store.users().setPassword("ann", "s3cret-changed");
+    store.menu().byType("Drinks");
+    Tracer.end(span);
+    Tracer.close();
+
+    String trace = new String(Files.readAllBytes(file.toPath()),
+        StandardCharsets.UTF_8);
+    Check.that(TestDriver.logged("s3cret-").size() == 3,
+        "passwords sent to the database");
+    Check.that(!trace.contains("s3cret-"), "no password exported: " + trace);
+    Check.that(trace.contains("password = ?"), "password check traced");
+    Check.that(trace.contains("Drinks"), "other values kept: " + trace);
+  } // end redactsPasswords
+} // end TracerTest
@@ -1,6 +1,11 @@
 #!/bin/bash
 DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
 psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/create_tables.sql
+psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/partition_maintenance.sql
+psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/sales_rollups.sql
+psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/change_markers.sql
+psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/item_events.sql
+psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/shards.sql
 psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/create_indexes.sql
 psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/load_data.sql
 
@@ -0,0 +1,11 @@
+#!/bin/bash
+# Creates a streaming replica of the local database on $REPLICA_PORT so
+# read routing can be tried with two local PostgreSQL instances:
+#   java ... -Dcafe.replicas=localhost:$REPLICA_PORT Cafe <dbname> <port> <user>
+# The primary must allow replication connections for $USER (pg_hba.conf).
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+REPLICA_PORT=${REPLICA_PORT:-$((PGPORT + 1))}
+REPLICA_DIR=${REPLICA_DIR:-$DIR/../replica}
+
+pg_basebackup -h localhost -p $PGPORT -D $REPLICA_DIR -R -X stream
+pg_ctl -D $REPLICA_DIR -o "-p $REPLICA_PORT" -l $REPLICA_DIR/logfile start
@@ -0,0 +1,12 @@
+#!/bin/bash
+# Creates upcoming monthly partitions and archives old paid orders.
+# Suitable for cron when the Java maintenance job (-Dcafe.maintenance=true)
+# is not running.
+MONTHS_AHEAD=${MONTHS_AHEAD:-3}
+KEEP_MONTHS=${KEEP_MONTHS:-3}
+BATCH=${BATCH:-1000}
+
+psql -h localhost -p $PGPORT $USER"_DB" -c "SELECT cafe_ensure_partitions(now()::date, $MONTHS_AHEAD)"
+while [ "$(psql -h localhost -p $PGPORT $USER"_DB" -tA -c "SELECT cafe_archive_paid_orders($KEEP_MONTHS, $BATCH)")" -ge "$BATCH" ]; do
+  :
+done
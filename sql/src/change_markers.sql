@@ -0,0 +1,35 @@
+-- One version counter per cached table, bumped once per writing statement.
+-- Clients compare the versions they saw when a local cache snapshot was
+-- written with the current ones to decide whether the snapshot is usable.
+-- Only Menu and Users have one: every order and item write would update
+-- the same marker row and queue behind it, so the snapshot checks open
+-- orders against the rows themselves (see CacheSnapshot). Running this
+-- again drops the markers of Orders and ItemStatus older versions had.
+DROP TRIGGER IF EXISTS orders_change_marker ON Orders;
+DROP TRIGGER IF EXISTS itemstatus_change_marker ON ItemStatus;
+DROP TABLE ChangeMarker;
+
+CREATE TABLE ChangeMarker(
+	tableName varchar(32) NOT NULL,
+	version bigint NOT NULL DEFAULT 0,
+	PRIMARY KEY(tableName));
+
+INSERT INTO ChangeMarker (tableName) VALUES
+	('menu'), ('users');
+
+CREATE OR REPLACE FUNCTION cafe_bump_change_marker()
+RETURNS trigger AS $$
+BEGIN
+	UPDATE ChangeMarker SET version = version + 1
+	WHERE tableName = lower(TG_TABLE_NAME);
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER menu_change_marker
+AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON Menu
+FOR EACH STATEMENT EXECUTE FUNCTION cafe_bump_change_marker();
+
+CREATE TRIGGER users_change_marker
+AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON Users
+FOR EACH STATEMENT EXECUTE FUNCTION cafe_bump_change_marker();
@@ -5,3 +5,11 @@ ON orders
 CREATE INDEX index2
 ON ItemStatus
 ( orderid );
+
+CREATE INDEX index3
+ON OrdersArchive
+(timeStampRecieved);
+
+CREATE INDEX index4
+ON OrderRequestKeys
+(created);
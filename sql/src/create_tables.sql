@@ -1,7 +1,13 @@
+DROP VIEW AllItemStatus;
+DROP VIEW AllOrders;
 DROP TABLE Users CASCADE;
 DROP TABLE Orders CASCADE;
 DROP TABLE Menu CASCADE;
 DROP TABLE ItemStatus;
+DROP TABLE ItemStatusArchive;
+DROP TABLE OrdersArchive CASCADE;
+DROP TABLE OrderJournalCheckpoint;
+DROP TABLE OrderRequestKeys;
 
 CREATE TABLE Users(
 	login char(50) UNIQUE NOT NULL, 
@@ -9,6 +15,7 @@ CREATE TABLE Users(
 	password char(50) NOT NULL,
 	favItems char(400),
 	type char(8) NOT NULL,
+	storeId smallint,
 	PRIMARY KEY(login));
 
 CREATE TABLE Menu(
@@ -19,20 +26,109 @@ CREATE TABLE Menu(
 	imageURL char(256),
 	PRIMARY KEY(itemName));
 
+-- Orders and ItemStatus are range partitioned by month on timeStampRecieved.
+-- Partitions are created ahead of time by cafe_ensure_partitions()
+-- (see partition_maintenance.sql), so the partition key has to be part of
+-- every unique constraint and ItemStatus carries a copy of it.
+-- storeId is the store that took the order (see shards.sql). version is
+-- bumped by every update, so an update made as of a row read earlier can
+-- require the row to be unchanged (AND version = n) and tell from its
+-- update count whether somebody else got there first. ItemStatus keeps
+-- one the same way.
+-- Because the primary key has to include timeStampRecieved, the database
+-- does not stop two partitions from holding the same orderid. Orderids
+-- are unique only because every order takes one from orders_orderid_seq
+-- (see OrderIdAllocator.java and shards.sql); never insert orders with
+-- orderids from anywhere else. OrdersArchive's key rejects a duplicate
+-- when it is archived.
 CREATE TABLE Orders(
-	orderid serial UNIQUE NOT NULL,
+	orderid serial NOT NULL,
 	login char(50), 
 	paid boolean,
 	timeStampRecieved timestamp NOT NULL,
 	total real NOT NULL,
-	PRIMARY KEY(orderid));
+	storeId smallint NOT NULL DEFAULT 1,
+	version integer NOT NULL DEFAULT 0,
+	PRIMARY KEY(orderid,timeStampRecieved))
+	PARTITION BY RANGE (timeStampRecieved);
 
+-- An ItemStatus row is one distinct item of an order: quantity units, of
+-- which startedQty are being made and finishedQty are done. unitPrice is
+-- the menu price when the line was ordered, so revenue and totals can be
+-- worked out from the lines alone.
 CREATE TABLE ItemStatus(
 	orderid integer,
 	itemName char(50), 
 	lastUpdated timestamp NOT NULL,
 	status char(20), 
 	comments char(130), 
+	timeStampRecieved timestamp NOT NULL,
+	quantity integer NOT NULL DEFAULT 1 CHECK (quantity > 0),
+	startedQty integer NOT NULL DEFAULT 0 CHECK (startedQty >= 0),
+	finishedQty integer NOT NULL DEFAULT 0 CHECK (finishedQty >= 0),
+	unitPrice real NOT NULL CHECK (unitPrice >= 0),
+	version integer NOT NULL DEFAULT 0,
+	CHECK (startedQty + finishedQty <= quantity),
+	PRIMARY KEY(orderid,itemName,timeStampRecieved),
+	FOREIGN KEY(orderid,timeStampRecieved) REFERENCES Orders(orderid,timeStampRecieved),
+	FOREIGN KEY(itemName) REFERENCES Menu(itemName))
+	PARTITION BY RANGE (timeStampRecieved);
+
+-- Archive tier: old paid orders are moved here by cafe_archive_paid_orders().
+CREATE TABLE OrdersArchive(
+	orderid integer UNIQUE NOT NULL,
+	login char(50), 
+	paid boolean,
+	timeStampRecieved timestamp NOT NULL,
+	total real NOT NULL,
+	storeId smallint NOT NULL DEFAULT 1,
+	version integer NOT NULL DEFAULT 0,
+	PRIMARY KEY(orderid));
+
+CREATE TABLE ItemStatusArchive(
+	orderid integer,
+	itemName char(50), 
+	lastUpdated timestamp NOT NULL,
+	status char(20), 
+	comments char(130), 
+	timeStampRecieved timestamp NOT NULL,
+	quantity integer NOT NULL DEFAULT 1,
+	startedQty integer NOT NULL DEFAULT 0,
+	finishedQty integer NOT NULL DEFAULT 0,
+	unitPrice real NOT NULL,
 	PRIMARY KEY(orderid,itemName),
-	FOREIGN KEY(orderid) REFERENCES Orders(orderid),
-	FOREIGN KEY(itemName) REFERENCES Menu(itemName));
+	FOREIGN KEY(orderid) REFERENCES OrdersArchive(orderid) DEFERRABLE INITIALLY DEFERRED);
+
+-- Orders and order lines of both tiers, for reads that must find
+-- archived orders too: order history, an order looked up by id and its
+-- lines. Archived orders are paid and never updated, so writes still go
+-- to Orders and ItemStatus. Archived lines have no version and read as 0.
+CREATE VIEW AllOrders AS
+	SELECT orderid, login, paid, timeStampRecieved, total, storeId, version FROM Orders
+	UNION ALL
+	SELECT orderid, login, paid, timeStampRecieved, total, storeId, version FROM OrdersArchive;
+
+CREATE VIEW AllItemStatus AS
+	SELECT orderid, itemName, lastUpdated, status, comments, timeStampRecieved, quantity, startedQty, finishedQty, unitPrice, version FROM ItemStatus
+	UNION ALL
+	SELECT orderid, itemName, lastUpdated, status, comments, timeStampRecieved, quantity, startedQty, finishedQty, unitPrice, 0 FROM ItemStatusArchive;
+
+-- Last journal sequence number written to the database for each local
+-- order journal (see OrderJournal.java).
+CREATE TABLE OrderJournalCheckpoint(
+	journal bigint NOT NULL,
+	lastSeq bigint NOT NULL,
+	PRIMARY KEY(journal));
+
+-- Request keys of the order requests (placing an order, adding an item)
+-- made in the last cafe.requestKeys.ttlHours, with the order each one
+-- created or added to and the order's total afterwards. A request whose
+-- key is already here is a retry of one that went through and gets that
+-- receipt back instead of being applied again. Expired keys are deleted
+-- by cafe_expire_request_keys() (see partition_maintenance.sql).
+CREATE TABLE OrderRequestKeys(
+	requestKey uuid NOT NULL,
+	orderid integer NOT NULL,
+	total real NOT NULL,
+	created timestamp NOT NULL DEFAULT now(),
+	PRIMARY KEY(requestKey));
@@ -0,0 +1,120 @@
+-- Append-only log of item status changes and the preparation time
+-- histograms folded from it. Events are written in batches by
+-- ItemStatusEvents.java and never updated; cafe_aggregate_prep_times()
+-- folds the events past its watermark into PrepTimeHistogram.
+DROP TABLE ItemStatusEvents;
+DROP TABLE PrepTimeHistogram;
+DROP TABLE PrepTimeWatermark;
+
+-- startedQty and finishedQty are NULL when the whole line was put in a
+-- status; they then follow from the status and the line's quantity.
+-- status is NULL when the unit counts were set instead.
+-- occurredAt is when the change was made, recordedAt when it was written.
+CREATE TABLE ItemStatusEvents(
+	eventid bigserial NOT NULL,
+	orderid integer NOT NULL,
+	itemName char(50) NOT NULL,
+	status char(20),
+	startedQty integer,
+	finishedQty integer,
+	occurredAt timestamp NOT NULL,
+	recordedAt timestamp NOT NULL DEFAULT now(),
+	PRIMARY KEY(eventid));
+
+CREATE INDEX ItemStatusEvents_line
+ON ItemStatusEvents
+(orderid, itemName, eventid);
+
+-- Units per 10 second bucket of time from the order being received to
+-- the unit being started (phase 'start') or finished (phase 'finish'),
+-- per menu item (scope 'item') and per menu type (scope 'type'). The
+-- last bucket, 720, holds everything from two hours on.
+CREATE TABLE PrepTimeHistogram(
+	scope char(4) NOT NULL,
+	name char(50) NOT NULL,
+	phase char(6) NOT NULL,
+	bucket integer NOT NULL,
+	units bigint NOT NULL DEFAULT 0,
+	PRIMARY KEY(scope,name,phase,bucket));
+
+-- single row (id = 1): the last event folded into PrepTimeHistogram
+CREATE TABLE PrepTimeWatermark(
+	id smallint NOT NULL CHECK (id = 1),
+	lastEventId bigint NOT NULL DEFAULT 0,
+	PRIMARY KEY(id));
+
+INSERT INTO PrepTimeWatermark (id) VALUES (1);
+
+-- Folds up to max_events events past the watermark into the histograms
+-- and moves the watermark past them. Units started or finished by an
+-- event are its counts minus the highest counts of the earlier events of
+-- the same line, so a correction downwards is not counted twice. Events
+-- written less than settle ago are left for the next run, as are all
+-- events after them, so that an eventid taken by a transaction that
+-- commits late is not skipped. Events of lines already archived are
+-- dropped. Returns the number of events folded.
+CREATE OR REPLACE FUNCTION cafe_aggregate_prep_times(max_events integer, settle interval)
+RETURNS integer AS $$
+DECLARE
+	low bigint;
+	high bigint;
+	unsettled bigint;
+	folded integer;
+BEGIN
+	SELECT lastEventId INTO low FROM PrepTimeWatermark WHERE id = 1 FOR UPDATE;
+	SELECT min(eventid) INTO unsettled FROM ItemStatusEvents
+	WHERE eventid > low AND recordedAt >= now() - settle;
+	SELECT max(eventid), count(*) INTO high, folded FROM (
+		SELECT eventid FROM ItemStatusEvents
+		WHERE eventid > low AND (unsettled IS NULL OR eventid < unsettled)
+		ORDER BY eventid
+		LIMIT max_events) batch;
+	IF high IS NULL THEN
+		RETURN 0;
+	END IF;
+
+	WITH lines AS (
+		SELECT DISTINCT orderid, itemName FROM ItemStatusEvents
+		WHERE eventid > low AND eventid <= high),
+	counted AS (
+		SELECT E.eventid, E.orderid, E.itemName, M.type,
+			extract(epoch FROM E.occurredAt - I.timeStampRecieved) AS seconds,
+			coalesce(E.startedQty + E.finishedQty,
+				CASE WHEN trim(E.status) IN ('Started', 'Finished') THEN I.quantity ELSE 0 END) AS begun,
+			coalesce(E.finishedQty,
+				CASE WHEN trim(E.status) = 'Finished' THEN I.quantity ELSE 0 END) AS done
+		FROM ItemStatusEvents E
+		JOIN lines L ON L.orderid = E.orderid AND L.itemName = E.itemName
+		JOIN ItemStatus I ON I.orderid = E.orderid AND I.itemName = E.itemName
+		JOIN Menu M ON M.itemName = E.itemName
+		WHERE E.eventid <= high),
+	deltas AS (
+		SELECT eventid, itemName, type, seconds,
+			begun - coalesce(max(begun) OVER earlier, 0) AS started,
+			done - coalesce(max(done) OVER earlier, 0) AS finished
+		FROM counted
+		WINDOW earlier AS (PARTITION BY orderid, itemName ORDER BY eventid
+			ROWS BETWEEN UNBOUNDED PRECEDING AND 1 PRECEDING)),
+	units AS (
+		SELECT itemName, type, 'start' AS phase, seconds, started AS n
+		FROM deltas WHERE eventid > low AND started > 0
+		UNION ALL
+		SELECT itemName, type, 'finish', seconds, finished
+		FROM deltas WHERE eventid > low AND finished > 0)
+	INSERT INTO PrepTimeHistogram AS H (scope, name, phase, bucket, units)
+	SELECT scope, name, phase, bucket, sum(n) FROM (
+		SELECT 'item' AS scope, itemName AS name, phase,
+			least(floor(greatest(seconds, 0) / 10), 720)::integer AS bucket, n
+		FROM units
+		UNION ALL
+		SELECT 'type', type, phase,
+			least(floor(greatest(seconds, 0) / 10), 720)::integer, n
+		FROM units) AS u
+	GROUP BY scope, name, phase, bucket
+	ON CONFLICT (scope, name, phase, bucket) DO UPDATE
+	SET units = H.units + EXCLUDED.units;
+
+	UPDATE PrepTimeWatermark SET lastEventId = high WHERE id = 1;
+	RETURN folded;
+END;
+$$ LANGUAGE plpgsql;
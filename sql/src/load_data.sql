@@ -2,16 +2,42 @@ COPY MENU
 FROM '/extra/dparm003/project/data/menu.csv'
 WITH DELIMITER ';';
 
-COPY USERS
+COPY USERS (login, phoneNum, password, favItems, type)
 FROM '/extra/dparm003/project/data/users.csv'
 WITH DELIMITER ';';
 
-COPY ORDERS
+-- orders are staged first so the partitions covering their months can be
+-- created before the rows are routed into Orders/ItemStatus
+CREATE TEMP TABLE OrdersLoad (LIKE OrdersArchive INCLUDING DEFAULTS);
+CREATE TEMP TABLE ItemStatusLoad (
+	orderid integer,
+	itemName char(50),
+	lastUpdated timestamp NOT NULL,
+	status char(20),
+	comments char(130));
+
+COPY OrdersLoad (orderid, login, paid, timeStampRecieved, total)
 FROM '/extra/dparm003/project/data/orders.csv'
 WITH DELIMITER ';';
-ALTER SEQUENCE orders_orderid_seq RESTART 87257;
 
-COPY ITEMSTATUS
+COPY ItemStatusLoad
 FROM '/extra/dparm003/project/data/itemStatus.csv'
 WITH DELIMITER ';';
 
+SELECT cafe_ensure_partitions(
+	(SELECT coalesce(min(timeStampRecieved), now())::date FROM OrdersLoad), 3);
+
+INSERT INTO ORDERS SELECT * FROM OrdersLoad;
+ALTER SEQUENCE orders_orderid_seq RESTART 87257;
+
+-- one unit per loaded row, with its unit counts taken from the status and
+-- its price from the menu
+INSERT INTO ITEMSTATUS
+	(orderid, itemName, lastUpdated, status, comments, timeStampRecieved,
+	startedQty, finishedQty, unitPrice)
+SELECT I.orderid, I.itemName, I.lastUpdated, I.status, I.comments, O.timeStampRecieved,
+	CASE WHEN trim(I.status) = 'Started' THEN 1 ELSE 0 END,
+	CASE WHEN trim(I.status) = 'Finished' THEN 1 ELSE 0 END,
+	M.price
+FROM ItemStatusLoad I, OrdersLoad O, Menu M
+WHERE I.orderid = O.orderid AND M.itemName = I.itemName;
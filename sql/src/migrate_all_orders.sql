@@ -0,0 +1,12 @@
+-- Adds the views over both order tiers (see create_tables.sql) to a
+-- database created before they existed. Run migrate_versions.sql first,
+-- the views read the version columns.
+CREATE VIEW AllOrders AS
+	SELECT orderid, login, paid, timeStampRecieved, total, storeId, version FROM Orders
+	UNION ALL
+	SELECT orderid, login, paid, timeStampRecieved, total, storeId, version FROM OrdersArchive;
+
+CREATE VIEW AllItemStatus AS
+	SELECT orderid, itemName, lastUpdated, status, comments, timeStampRecieved, quantity, startedQty, finishedQty, unitPrice, version FROM ItemStatus
+	UNION ALL
+	SELECT orderid, itemName, lastUpdated, status, comments, timeStampRecieved, quantity, startedQty, finishedQty, unitPrice, 0 FROM ItemStatusArchive;
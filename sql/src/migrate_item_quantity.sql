@@ -0,0 +1,19 @@
+-- Adds order line quantities to a database created before they existed.
+-- Each existing row becomes one unit, with its unit counts taken from
+-- its status. Afterwards run sales_rollups.sql to install the updated
+-- rollup trigger, then SELECT cafe_rebuild_sales_rollups().
+ALTER TABLE ItemStatus
+	ADD COLUMN quantity integer NOT NULL DEFAULT 1 CHECK (quantity > 0),
+	ADD COLUMN startedQty integer NOT NULL DEFAULT 0 CHECK (startedQty >= 0),
+	ADD COLUMN finishedQty integer NOT NULL DEFAULT 0 CHECK (finishedQty >= 0),
+	ADD CHECK (startedQty + finishedQty <= quantity);
+
+ALTER TABLE ItemStatusArchive
+	ADD COLUMN quantity integer NOT NULL DEFAULT 1,
+	ADD COLUMN startedQty integer NOT NULL DEFAULT 0,
+	ADD COLUMN finishedQty integer NOT NULL DEFAULT 0;
+
+UPDATE ItemStatus SET startedQty = 1 WHERE trim(status) = 'Started';
+UPDATE ItemStatus SET finishedQty = 1 WHERE trim(status) = 'Finished';
+UPDATE ItemStatusArchive SET startedQty = 1 WHERE trim(status) = 'Started';
+UPDATE ItemStatusArchive SET finishedQty = 1 WHERE trim(status) = 'Finished';
@@ -0,0 +1,13 @@
+-- Adds the order request key table (see create_tables.sql) to a database
+-- created before it had one. Afterwards run partition_maintenance.sql to
+-- install cafe_expire_request_keys().
+CREATE TABLE OrderRequestKeys(
+	requestKey uuid NOT NULL,
+	orderid integer NOT NULL,
+	total real NOT NULL,
+	created timestamp NOT NULL DEFAULT now(),
+	PRIMARY KEY(requestKey));
+
+CREATE INDEX index4
+ON OrderRequestKeys
+(created);
@@ -0,0 +1,13 @@
+-- Adds the store dimension to a database created before the chain was
+-- sharded. Run with the id of the store whose orders it holds:
+--   psql -v store=2 ... < migrate_store_id.sql
+-- Existing orders are given that store; staff are given it as the store
+-- they work at, customers none. Then load shards.sql and run
+-- cafe_configure_shard() on every shard.
+ALTER TABLE Orders ADD COLUMN storeId smallint NOT NULL DEFAULT 1;
+ALTER TABLE OrdersArchive ADD COLUMN storeId smallint NOT NULL DEFAULT 1;
+ALTER TABLE Users ADD COLUMN storeId smallint;
+
+UPDATE Orders SET storeId = :store WHERE storeId <> :store;
+UPDATE OrdersArchive SET storeId = :store WHERE storeId <> :store;
+UPDATE Users SET storeId = :store WHERE type <> 'Customer';
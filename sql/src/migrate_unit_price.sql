@@ -0,0 +1,50 @@
+-- Adds the price at order time to the order lines of a database created
+-- before they had one. Backfills, in order of preference:
+--   1. lines that are the only line of their order: the order's total
+--      over the quantity, i.e. what was actually charged
+--   2. other lines: the current menu price
+--   3. lines whose item is no longer on the menu (archive only): what is
+--      left of the order's total after its other lines, when that is the
+--      only such line of the order, otherwise 0
+-- Afterwards run sales_rollups.sql to install the updated rollup trigger,
+-- then SELECT cafe_rebuild_sales_rollups().
+ALTER TABLE ItemStatus ADD COLUMN unitPrice real;
+ALTER TABLE ItemStatusArchive ADD COLUMN unitPrice real;
+
+UPDATE ItemStatus I SET unitPrice = greatest(O.total, 0) / I.quantity
+FROM Orders O
+WHERE O.orderid = I.orderid AND O.timeStampRecieved = I.timeStampRecieved
+AND NOT EXISTS (SELECT 1 FROM ItemStatus J
+	WHERE J.orderid = I.orderid AND J.timeStampRecieved = I.timeStampRecieved
+	AND J.itemName <> I.itemName);
+
+UPDATE ItemStatus I SET unitPrice = M.price
+FROM Menu M
+WHERE I.unitPrice IS NULL AND M.itemName = I.itemName;
+
+UPDATE ItemStatusArchive I SET unitPrice = greatest(O.total, 0) / I.quantity
+FROM OrdersArchive O
+WHERE O.orderid = I.orderid
+AND NOT EXISTS (SELECT 1 FROM ItemStatusArchive J
+	WHERE J.orderid = I.orderid AND J.itemName <> I.itemName);
+
+UPDATE ItemStatusArchive I SET unitPrice = M.price
+FROM Menu M
+WHERE I.unitPrice IS NULL AND M.itemName = I.itemName;
+
+UPDATE ItemStatusArchive I
+SET unitPrice = greatest(O.total - coalesce((SELECT sum(J.quantity * J.unitPrice)
+	FROM ItemStatusArchive J
+	WHERE J.orderid = I.orderid AND J.unitPrice IS NOT NULL), 0), 0) / I.quantity
+FROM OrdersArchive O
+WHERE I.unitPrice IS NULL AND O.orderid = I.orderid
+AND NOT EXISTS (SELECT 1 FROM ItemStatusArchive J
+	WHERE J.orderid = I.orderid AND J.itemName <> I.itemName
+	AND J.unitPrice IS NULL);
+
+UPDATE ItemStatusArchive SET unitPrice = 0 WHERE unitPrice IS NULL;
+
+ALTER TABLE ItemStatus
+	ALTER COLUMN unitPrice SET NOT NULL,
+	ADD CHECK (unitPrice >= 0);
+ALTER TABLE ItemStatusArchive ALTER COLUMN unitPrice SET NOT NULL;
@@ -0,0 +1,8 @@
+-- Adds the row versions that optimistic updates of orders and order lines
+-- check (see create_tables.sql) to a database created before they had
+-- them. Existing rows start at version 0. Archived orders are never
+-- updated; they keep the version they had when they were archived, so
+-- OrdersArchive has the same columns as Orders.
+ALTER TABLE Orders ADD COLUMN version integer NOT NULL DEFAULT 0;
+ALTER TABLE ItemStatus ADD COLUMN version integer NOT NULL DEFAULT 0;
+ALTER TABLE OrdersArchive ADD COLUMN version integer NOT NULL DEFAULT 0;
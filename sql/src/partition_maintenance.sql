@@ -0,0 +1,123 @@
+-- Monthly partition management and archival for Orders/ItemStatus, and
+-- expiry of order request keys.
+-- Requires PostgreSQL 12 or later (foreign keys to partitioned tables).
+
+-- Creates the Orders and ItemStatus partitions for the month starting at
+-- month_start. Returns 1 when the partitions were created, 0 if they exist.
+CREATE OR REPLACE FUNCTION cafe_create_partition(month_start date)
+RETURNS integer AS $$
+DECLARE
+	suffix text := to_char(month_start, '"y"YYYY"m"MM');
+	month_end date := (month_start + interval '1 month')::date;
+BEGIN
+	IF to_regclass('orders_' || suffix) IS NOT NULL THEN
+		RETURN 0;
+	END IF;
+	EXECUTE format(
+		'CREATE TABLE orders_%s PARTITION OF Orders FOR VALUES FROM (%L) TO (%L)',
+		suffix, month_start, month_end);
+	EXECUTE format(
+		'CREATE TABLE itemstatus_%s PARTITION OF ItemStatus FOR VALUES FROM (%L) TO (%L)',
+		suffix, month_start, month_end);
+	RETURN 1;
+END;
+$$ LANGUAGE plpgsql;
+
+-- Makes sure every month from first_month up to months_ahead months after
+-- the current one has a partition. Returns the number of months created.
+CREATE OR REPLACE FUNCTION cafe_ensure_partitions(first_month date, months_ahead integer)
+RETURNS integer AS $$
+DECLARE
+	m date := date_trunc('month', first_month)::date;
+	last_month date := (date_trunc('month', now()) + make_interval(months => months_ahead))::date;
+	created integer := 0;
+BEGIN
+	WHILE m <= last_month LOOP
+		created := created + cafe_create_partition(m);
+		m := (m + interval '1 month')::date;
+	END LOOP;
+	RETURN created;
+END;
+$$ LANGUAGE plpgsql;
+
+-- Moves up to batch_size paid orders received before the start of the
+-- month keep_months ago (and their items) into the archive tables, then
+-- drops monthly partitions that are older than that and now empty.
+-- Returns the number of orders moved; call again until it returns less
+-- than batch_size.
+CREATE OR REPLACE FUNCTION cafe_archive_paid_orders(keep_months integer, batch_size integer)
+RETURNS integer AS $$
+DECLARE
+	cutoff timestamp := date_trunc('month', now()) - make_interval(months => keep_months);
+	ids integer[];
+	part record;
+BEGIN
+	-- lock the batch once so orders paid concurrently are left for next run
+	SELECT array_agg(orderid) INTO ids FROM (
+		SELECT orderid FROM Orders
+		WHERE paid AND timeStampRecieved < cutoff
+		LIMIT batch_size
+		FOR UPDATE) batch;
+	IF ids IS NULL THEN
+		ids := '{}';
+	END IF;
+
+	WITH moved AS (
+		DELETE FROM ItemStatus
+		WHERE timeStampRecieved < cutoff AND orderid = ANY(ids)
+		RETURNING *)
+	INSERT INTO ItemStatusArchive
+		(orderid, itemName, lastUpdated, status, comments, timeStampRecieved,
+		quantity, startedQty, finishedQty, unitPrice)
+	SELECT orderid, itemName, lastUpdated, status, comments, timeStampRecieved,
+		quantity, startedQty, finishedQty, unitPrice
+	FROM moved;
+
+	WITH moved AS (
+		DELETE FROM Orders
+		WHERE timeStampRecieved < cutoff AND orderid = ANY(ids)
+		RETURNING *)
+	INSERT INTO OrdersArchive (orderid, login, paid, timeStampRecieved, total,
+		storeId, version)
+	SELECT orderid, login, paid, timeStampRecieved, total, storeId, version
+	FROM moved;
+
+	IF cardinality(ids) < batch_size THEN
+		FOR part IN
+			SELECT c.relname FROM pg_inherits i
+			JOIN pg_class c ON c.oid = i.inhrelid
+			WHERE i.inhparent = 'orders'::regclass
+			AND c.relname ~ '^orders_y[0-9]{4}m[0-9]{2}$'
+			AND to_date(substr(c.relname, 9), 'YYYY"m"MM') + interval '1 month' <= cutoff
+		LOOP
+			IF NOT EXISTS (SELECT 1 FROM Orders
+					WHERE timeStampRecieved >= to_date(substr(part.relname, 9), 'YYYY"m"MM')
+					AND timeStampRecieved < to_date(substr(part.relname, 9), 'YYYY"m"MM') + interval '1 month') THEN
+				EXECUTE format('DROP TABLE itemstatus_%s', substr(part.relname, 8));
+				EXECUTE format('DROP TABLE %I', part.relname);
+			END IF;
+		END LOOP;
+	END IF;
+
+	RETURN cardinality(ids);
+END;
+$$ LANGUAGE plpgsql;
+
+-- Deletes up to batch_size order request keys older than ttl (see
+-- OrderRequestKeys in create_tables.sql). Returns the number deleted;
+-- call again until it returns less than batch_size.
+CREATE OR REPLACE FUNCTION cafe_expire_request_keys(ttl interval, batch_size integer)
+RETURNS integer AS $$
+DECLARE
+	deleted integer;
+BEGIN
+	DELETE FROM OrderRequestKeys
+	WHERE requestKey IN (
+		SELECT requestKey FROM OrderRequestKeys
+		WHERE created < now() - ttl
+		ORDER BY created
+		LIMIT batch_size);
+	GET DIAGNOSTICS deleted = ROW_COUNT;
+	RETURN deleted;
+END;
+$$ LANGUAGE plpgsql;
@@ -0,0 +1,167 @@
+-- Sales rollups kept current by triggers on Orders and ItemStatus so that
+-- manager reports read a handful of rows instead of scanning order history.
+-- Rows moved to the archive tier are still counted (deletes are ignored).
+--
+-- SalesByHour and SalesTotals are split into 16 stripes, the stripe of an
+-- order being orderid % 16, so concurrent orders mostly update different
+-- rows instead of queueing on one; reports add up the stripes. Running
+-- this file again recreates the tables empty, refill them with
+-- SELECT cafe_rebuild_sales_rollups();
+DROP TABLE SalesByHour;
+DROP TABLE ItemSales;
+DROP TABLE SalesTotals;
+
+CREATE TABLE SalesByHour(
+	day date NOT NULL,
+	hour smallint NOT NULL,
+	stripe smallint NOT NULL CHECK (stripe BETWEEN 0 AND 15),
+	orders integer NOT NULL DEFAULT 0,
+	items integer NOT NULL DEFAULT 0,
+	revenue numeric(12,2) NOT NULL DEFAULT 0,
+	PRIMARY KEY(day,hour,stripe));
+
+CREATE TABLE ItemSales(
+	itemName char(50) NOT NULL,
+	type char(20),
+	units bigint NOT NULL DEFAULT 0,
+	revenue numeric(12,2) NOT NULL DEFAULT 0,
+	PRIMARY KEY(itemName));
+
+-- counters over every order in this database, one row per stripe; with
+-- several shards the chain's figures are the sum of theirs
+CREATE TABLE SalesTotals(
+	stripe smallint NOT NULL CHECK (stripe BETWEEN 0 AND 15),
+	orders bigint NOT NULL DEFAULT 0,
+	items bigint NOT NULL DEFAULT 0,
+	revenue numeric(14,2) NOT NULL DEFAULT 0,
+	unpaidOrders bigint NOT NULL DEFAULT 0,
+	unpaidTotal numeric(14,2) NOT NULL DEFAULT 0,
+	PRIMARY KEY(stripe));
+
+INSERT INTO SalesTotals (stripe) SELECT generate_series(0, 15);
+
+CREATE OR REPLACE FUNCTION cafe_rollup_order()
+RETURNS trigger AS $$
+DECLARE
+	delta numeric := NEW.total;
+	unpaid_orders integer := 0;
+	unpaid_delta numeric := 0;
+	new_orders integer := 0;
+	order_stripe smallint := NEW.orderid % 16;
+BEGIN
+	IF TG_OP = 'INSERT' THEN
+		new_orders := 1;
+		IF NOT coalesce(NEW.paid, false) THEN
+			unpaid_orders := 1;
+			unpaid_delta := NEW.total;
+		END IF;
+	ELSE
+		delta := NEW.total - OLD.total;
+		IF NOT coalesce(OLD.paid, false) THEN
+			unpaid_orders := unpaid_orders - 1;
+			unpaid_delta := unpaid_delta - OLD.total;
+		END IF;
+		IF NOT coalesce(NEW.paid, false) THEN
+			unpaid_orders := unpaid_orders + 1;
+			unpaid_delta := unpaid_delta + NEW.total;
+		END IF;
+	END IF;
+
+	IF new_orders <> 0 OR delta <> 0 THEN
+		INSERT INTO SalesByHour AS S (day, hour, stripe, orders, revenue)
+		VALUES (NEW.timeStampRecieved::date,
+			extract(hour FROM NEW.timeStampRecieved), order_stripe,
+			new_orders, delta)
+		ON CONFLICT (day, hour, stripe) DO UPDATE
+		SET orders = S.orders + EXCLUDED.orders,
+			revenue = S.revenue + EXCLUDED.revenue;
+	END IF;
+
+	UPDATE SalesTotals
+	SET orders = orders + new_orders,
+		revenue = revenue + delta,
+		unpaidOrders = unpaidOrders + unpaid_orders,
+		unpaidTotal = unpaidTotal + unpaid_delta
+	WHERE stripe = order_stripe;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION cafe_rollup_item()
+RETURNS trigger AS $$
+DECLARE
+	item_type char(20);
+	units integer := NEW.quantity;
+	order_stripe smallint := NEW.orderid % 16;
+BEGIN
+	-- a repeated item raises the quantity of its existing row
+	IF TG_OP = 'UPDATE' THEN
+		units := NEW.quantity - OLD.quantity;
+	END IF;
+	IF units = 0 THEN
+		RETURN NULL;
+	END IF;
+
+	SELECT type INTO item_type FROM Menu WHERE itemName = NEW.itemName;
+
+	INSERT INTO SalesByHour AS S (day, hour, stripe, items)
+	VALUES (NEW.timeStampRecieved::date,
+		extract(hour FROM NEW.timeStampRecieved), order_stripe, units)
+	ON CONFLICT (day, hour, stripe) DO UPDATE SET items = S.items + EXCLUDED.items;
+
+	INSERT INTO ItemSales AS S (itemName, type, units, revenue)
+	VALUES (NEW.itemName, item_type, units, units * NEW.unitPrice::numeric)
+	ON CONFLICT (itemName) DO UPDATE
+	SET type = EXCLUDED.type,
+		units = S.units + EXCLUDED.units,
+		revenue = S.revenue + EXCLUDED.revenue;
+
+	UPDATE SalesTotals SET items = items + units WHERE stripe = order_stripe;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER orders_rollup
+AFTER INSERT OR UPDATE OF total, paid ON Orders
+FOR EACH ROW EXECUTE FUNCTION cafe_rollup_order();
+
+CREATE TRIGGER itemstatus_rollup
+AFTER INSERT OR UPDATE OF quantity ON ItemStatus
+FOR EACH ROW EXECUTE FUNCTION cafe_rollup_item();
+
+-- Recomputes every rollup from Orders/ItemStatus and the archive tier.
+-- Only needed for databases created before the triggers existed.
+CREATE OR REPLACE FUNCTION cafe_rebuild_sales_rollups()
+RETURNS void AS $$
+BEGIN
+	LOCK TABLE Orders, ItemStatus IN SHARE MODE;
+	DELETE FROM SalesByHour;
+	DELETE FROM ItemSales;
+
+	INSERT INTO SalesByHour (day, hour, stripe, orders, items, revenue)
+	SELECT O.timeStampRecieved::date, extract(hour FROM O.timeStampRecieved),
+		O.orderid % 16, count(*), sum(coalesce(I.items, 0)), sum(O.total)
+	FROM (SELECT orderid, timeStampRecieved, total FROM Orders
+		UNION ALL SELECT orderid, timeStampRecieved, total FROM OrdersArchive) O
+	LEFT JOIN (
+		SELECT orderid, sum(quantity) AS items FROM (
+			SELECT orderid, quantity FROM ItemStatus
+			UNION ALL SELECT orderid, quantity FROM ItemStatusArchive) L
+		GROUP BY orderid) I ON I.orderid = O.orderid
+	GROUP BY 1, 2, 3;
+
+	INSERT INTO ItemSales (itemName, type, units, revenue)
+	SELECT L.itemName, M.type, sum(L.quantity), sum(L.quantity * L.unitPrice::numeric)
+	FROM (SELECT itemName, quantity, unitPrice FROM ItemStatus
+		UNION ALL SELECT itemName, quantity, unitPrice FROM ItemStatusArchive) L
+	LEFT JOIN Menu M ON M.itemName = L.itemName
+	GROUP BY L.itemName, M.type;
+
+	UPDATE SalesTotals T SET
+		orders = (SELECT coalesce(sum(orders), 0) FROM SalesByHour S WHERE S.stripe = T.stripe),
+		items = (SELECT coalesce(sum(items), 0) FROM SalesByHour S WHERE S.stripe = T.stripe),
+		revenue = (SELECT coalesce(sum(revenue), 0) FROM SalesByHour S WHERE S.stripe = T.stripe),
+		unpaidOrders = (SELECT count(*) FROM Orders WHERE NOT coalesce(paid, false) AND orderid % 16 = T.stripe),
+		unpaidTotal = (SELECT coalesce(sum(total), 0) FROM Orders WHERE NOT coalesce(paid, false) AND orderid % 16 = T.stripe);
+END;
+$$ LANGUAGE plpgsql;
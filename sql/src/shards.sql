@@ -0,0 +1,33 @@
+-- Support for running the stores of a chain on several databases (shards),
+-- see ShardRouter.java. Every shard gets the full schema; Menu and Users
+-- are copied from the directory, Orders and ItemStatus stay on the shard
+-- of the store that took them.
+
+-- Keeps the orderids handed out by the shards apart, so an orderid names
+-- one order in the whole chain. Run once on every shard with its own
+-- number, from 1 up to shards, and the highest orderid of any shard:
+--   SELECT cafe_configure_shard(2, 16, 90000);
+-- The shard then hands out shard, shard + shards, shard + 2 * shards, ...
+-- above that orderid. Orders of stores that ran on their own before may
+-- share orderids; those are only told apart by their storeId. Returns the
+-- next orderid of the shard.
+CREATE OR REPLACE FUNCTION cafe_configure_shard(shard integer, shards integer,
+	above bigint)
+RETURNS bigint AS $$
+DECLARE
+	top bigint;
+	next_id bigint;
+BEGIN
+	IF shard < 1 OR shard > shards THEN
+		RAISE EXCEPTION 'shard % is not between 1 and %', shard, shards;
+	END IF;
+	SELECT greatest(above,
+		(SELECT coalesce(max(orderid), 0) FROM Orders),
+		(SELECT coalesce(max(orderid), 0) FROM OrdersArchive)) INTO top;
+	next_id := (top / shards + 1) * shards + shard;
+	EXECUTE format(
+		'ALTER SEQUENCE orders_orderid_seq INCREMENT BY %s RESTART WITH %s',
+		shards, next_id);
+	RETURN next_id;
+END;
+$$ LANGUAGE plpgsql;